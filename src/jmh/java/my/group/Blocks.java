@@ -0,0 +1,66 @@
+package my.group;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Blocks that one benchmark thread loads, round robin over all blocks of a grid and starting at a different block in
+ * each thread. Counts the loaded voxels, which JMH reports as voxels per time unit next to the blocks per time unit.
+ * Blocks are written into a buffer of the thread, so that the allocation rate is that of the loader alone.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Blocks {
+
+    public long voxels;
+
+    private long next;
+
+    private double[] data = new double[0];
+
+    private final long[] min = new long[3];
+
+    private final int[] cellSize = new int[3];
+
+    @Setup(Level.Trial)
+    public void setUp(final ThreadParams threads) {
+        next = threads.getThreadIndex() * 7919L;
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        voxels = 0;
+    }
+
+    /**
+     * @return a voxel of the loaded block, to keep the JIT from eliminating the load
+     */
+    public double load(final CellGrid grid, final BlockLoader loader) throws Exception {
+        return load(grid, 0, loader);
+    }
+
+    /**
+     * @param numChannels if positive, blocks have a channel dimension of this size after the spatial dimensions
+     * @return a voxel of the loaded block, to keep the JIT from eliminating the load
+     */
+    public double load(final CellGrid grid, final int numChannels, final BlockLoader loader) throws Exception {
+        grid.getCellDimensions(next++ % Intervals.numElements(grid.getGridDimensions()), min, cellSize);
+        final int numVoxels = (int) Intervals.numElements(cellSize) * Math.max(numChannels, 1);
+        if (data.length != numVoxels)
+            data = new double[numVoxels];
+        if (numChannels > 0)
+            loader.load(Views.translate(ArrayImgs.doubles(data, cellSize[0], cellSize[1], cellSize[2], numChannels), min[0], min[1], min[2], 0));
+        else
+            loader.load(Views.translate(ArrayImgs.doubles(data, cellSize[0], cellSize[1], cellSize[2]), min));
+        voxels += Intervals.numElements(cellSize);
+        return data[numVoxels / 2];
+    }
+}
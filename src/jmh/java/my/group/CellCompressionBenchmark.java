@@ -0,0 +1,237 @@
+package my.group;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time per cell of writing and reading the disk tier of feature sources for each {@link CellCompression codec}. Cells
+ * hold the gradient magnitude of a smooth noisy volume. The uncompressed baseline writes one raw file per cell like the
+ * session cache of {@link net.imglib2.cache.img.DiskCachedCellImg}. Reads hit the page cache unless it is dropped, i.e.
+ * the read time shows the decoding cost. The size on disk of each codec is logged when a trial ends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellCompressionBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String DATASET = "cells";
+
+    @State(Scope.Thread)
+    public static class Cells {
+
+        @Param({"NONE", "LZ4", "SHUFFLE_LZ4", "GZIP"})
+        public CellCompression compression;
+
+        @Param({"FLOAT32", "FLOAT64"})
+        public StorageType storageType;
+
+        @Param("32")
+        public int cellSize;
+
+        @Param("64")
+        public int numCells;
+
+        @Param("0.01")
+        public double noise;
+
+        /**
+         * Directory for the cells, preferably on the disk under test, empty for a temporary directory.
+         */
+        @Param("")
+        public String directory;
+
+        int[] size;
+
+        List<long[]> gridPositions;
+
+        List<long[]> readOrder;
+
+        double[][] cells;
+
+        float[][] floatCells;
+
+        Path root;
+
+        N5FSWriter n5;
+
+        DatasetAttributes attributes;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            size = new int[]{cellSize, cellSize, cellSize};
+            final int gridSize = (int) Math.ceil(Math.cbrt(numCells));
+            gridPositions = new ArrayList<>();
+            for (int i = 0; i < numCells; ++i)
+                gridPositions.add(new long[]{i % gridSize, i / gridSize % gridSize, i / gridSize / gridSize});
+            readOrder = new ArrayList<>(gridPositions);
+            Collections.shuffle(readOrder, new Random(1));
+
+            cells = new double[numCells][];
+            floatCells = new float[numCells][];
+            for (int i = 0; i < numCells; ++i) {
+                cells[i] = cell(size, gridPositions.get(i), noise, new Random(i));
+                floatCells[i] = toFloats(cells[i]);
+            }
+
+            root = directory.isEmpty()
+                    ? Files.createTempDirectory("cell-compression-benchmark-")
+                    : Files.createDirectories(Paths.get(directory, "cell-compression-benchmark"));
+            if (compression.usesSessionDiskCache())
+                Files.createDirectories(root);
+            else {
+                n5 = new N5FSWriter(root.toString());
+                attributes = new DatasetAttributes(
+                        new long[]{gridSize * cellSize, gridSize * cellSize, gridSize * cellSize},
+                        size,
+                        compression.storedType(PersistentBlockCache.dataType(storageType)),
+                        compression.n5Compression());
+                n5.createDataset(DATASET, attributes);
+            }
+            // all cells exist before reads are measured
+            for (int i = 0; i < numCells; ++i)
+                write(i);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            final long rawBytes = (long) numCells * cells[0].length * storageType.getBytesPerVoxel();
+            final long diskBytes = size(root);
+            LOG.info("{} {}: {} bytes on disk, compression ratio {}", compression, storageType, diskBytes, (double) rawBytes / diskBytes);
+            delete(root);
+        }
+
+        void write(final int index) throws IOException {
+            if (compression.usesSessionDiskCache()) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(cells[index].length * storageType.getBytesPerVoxel()).order(ByteOrder.nativeOrder());
+                if (StorageType.FLOAT64.equals(storageType))
+                    buffer.asDoubleBuffer().put(cells[index]);
+                else
+                    buffer.asFloatBuffer().put(floatCells[index]);
+                try (final FileChannel channel = FileChannel.open(rawFile(gridPositions.get(index)), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    channel.write(buffer);
+                }
+            } else {
+                final DataBlock<?> block = StorageType.FLOAT64.equals(storageType)
+                        ? compression.encode(size, gridPositions.get(index), cells[index])
+                        : compression.encode(size, gridPositions.get(index), floatCells[index]);
+                n5.writeBlock(DATASET, attributes, block);
+            }
+        }
+
+        double read(final long[] gridPosition) throws IOException {
+            if (compression.usesSessionDiskCache()) {
+                final int numVoxels = size[0] * size[1] * size[2];
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(numVoxels * storageType.getBytesPerVoxel()).order(ByteOrder.nativeOrder());
+                try (final FileChannel channel = FileChannel.open(rawFile(gridPosition), StandardOpenOption.READ)) {
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    }
+                }
+                buffer.flip();
+                if (StorageType.FLOAT64.equals(storageType)) {
+                    final double[] values = new double[numVoxels];
+                    buffer.asDoubleBuffer().get(values);
+                    return values[numVoxels / 2];
+                }
+                final float[] values = new float[numVoxels];
+                buffer.asFloatBuffer().get(values);
+                return values[numVoxels / 2];
+            }
+            final Object values = compression.decode(n5.readBlock(DATASET, attributes, gridPosition));
+            return values instanceof float[] ? ((float[]) values)[0] : ((double[]) values)[0];
+        }
+
+        private Path rawFile(final long[] gridPosition) {
+            return root.resolve(gridPosition[0] + "-" + gridPosition[1] + "-" + gridPosition[2]);
+        }
+    }
+
+    @Benchmark
+    public void write(final Cells cells) throws IOException {
+        cells.write(cells.next++ % cells.numCells);
+    }
+
+    @Benchmark
+    public double read(final Cells cells) throws IOException {
+        return cells.read(cells.readOrder.get(cells.next++ % cells.numCells));
+    }
+
+    /**
+     * Gradient magnitude of a smooth volume with additive noise.
+     */
+    private static double[] cell(final int[] size, final long[] gridPosition, final double noise, final Random random) {
+        final int[] sizeWithHalo = {size[0] + 2, size[1] + 2, size[2] + 2};
+        final double[] source = new double[sizeWithHalo[0] * sizeWithHalo[1] * sizeWithHalo[2]];
+        for (int z = 0, i = 0; z < sizeWithHalo[2]; ++z)
+            for (int y = 0; y < sizeWithHalo[1]; ++y)
+                for (int x = 0; x < sizeWithHalo[0]; ++x, ++i) {
+                    final double gx = gridPosition[0] * size[0] + x;
+                    final double gy = gridPosition[1] * size[1] + y;
+                    final double gz = gridPosition[2] * size[2] + z;
+                    source[i] = 100 * (Math.sin(0.05 * gx) + Math.cos(0.07 * gy) + Math.sin(0.03 * gz + 0.01 * gx))
+                            + 100 * noise * random.nextGaussian();
+                }
+        final double[] target = new double[size[0] * size[1] * size[2]];
+        GradientKernels.gradientAndMagnitude(source, size, target, false);
+        return target;
+    }
+
+    private static float[] toFloats(final double[] values) {
+        final float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; ++i)
+            floats[i] = (float) values[i];
+        return floats;
+    }
+
+    private static long size(final Path path) throws IOException {
+        try (final Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(final Path path) throws IOException {
+        try (final Stream<Path> files = Files.walk(path)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks per second of the {@link DistanceTransformLoaders exact and halo loaders} of
+ * {@link DistanceTransformSourceState}, with the parameters of a source that the distance transform panel creates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceTransformLoaderBenchmark {
+
+    @State(Scope.Benchmark)
+    public abstract static class Input {
+
+        @Param("128")
+        public int size;
+
+        @Param({"16", "32", "64"})
+        public int blockSize;
+
+        @Param({"UINT8", "UINT16", "FLOAT32", "FLOAT64"})
+        public InputBenchmark.InputType inputType;
+
+        @Param({"EUCLIDIAN", "L1"})
+        public DistanceTransform.DISTANCE_TYPE distanceType;
+
+        @Param({"true", "false"})
+        public boolean threshold;
+
+        CellGrid grid;
+
+        RandomAccessibleInterval<? extends RealType<?>> input;
+
+        DistanceTransformLoaders.Parameters parameters;
+
+        void setUpInput() {
+            input = SyntheticInputs.create(inputType, size, blockSize);
+            grid = new CellGrid(Intervals.dimensionsAsLongArray(input), new int[]{blockSize, blockSize, blockSize});
+            parameters = new DistanceTransformLoaders.Parameters(
+                    distanceType,
+                    new double[]{1.0},
+                    1.0,
+                    threshold ? new DistanceTransformLoaders.ThresholdPredicate(SyntheticInputs.threshold(inputType)) : null,
+                    0.0,
+                    true,
+                    1);
+        }
+    }
+
+    public static class Exact extends Input {
+
+        SharedCellCache.Source cache;
+
+        BlockLoader loader;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            setUpInput();
+            cache = SharedCellCache.global().newSource("exact-benchmark");
+            loader = DistanceTransformLoaders.exact(input, parameters, new int[]{blockSize, blockSize, blockSize}, cache, new LoadGeneration().current());
+        }
+
+        /**
+         * Measure blocks whose intermediate stages are computed, not only looked up.
+         */
+        @Setup(Level.Iteration)
+        public void invalidate() {
+            cache.invalidateAll();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cache.invalidateAll();
+        }
+    }
+
+    public static class Halo extends Input {
+
+        @Param({"4", "16"})
+        public int halo;
+
+        BlockLoader loader;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            setUpInput();
+            loader = DistanceTransformLoaders.halo(input, parameters, new int[]{halo, halo, halo});
+        }
+    }
+
+    @Benchmark
+    public double exact(final Exact state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, state.loader);
+    }
+
+    @Benchmark
+    public double halo(final Halo state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, state.loader);
+    }
+}
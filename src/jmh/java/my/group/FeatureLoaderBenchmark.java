@@ -0,0 +1,116 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks per second of the loaders of the gradient and gradient magnitude features of {@link FeatureSourceState}. The
+ * magnitude reads gradients that are cached completely before the measurement, as stored by the gradient features.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureLoaderBenchmark {
+
+    @State(Scope.Benchmark)
+    public abstract static class Input {
+
+        @Param("128")
+        public int size;
+
+        @Param({"16", "32", "64"})
+        public int blockSize;
+
+        @Param({"UINT8", "UINT16", "FLOAT32", "FLOAT64"})
+        public InputBenchmark.InputType inputType;
+
+        CellGrid grid;
+
+        RandomAccessibleInterval<? extends RealType<?>> input;
+
+        void setUpInput() {
+            input = SyntheticInputs.create(inputType, size, blockSize);
+            grid = new CellGrid(Intervals.dimensionsAsLongArray(input), new int[]{blockSize, blockSize, blockSize});
+        }
+    }
+
+    public static class Gradient extends Input {
+
+        @Param({"0", "1", "2"})
+        public int dim;
+
+        BlockLoader loader;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            setUpInput();
+            loader = FeatureSourceState.gradientLoader(input, dim);
+        }
+    }
+
+    public static class Magnitude extends Input {
+
+        @Param({"FLOAT64", "FLOAT32", "INT16"})
+        public StorageType storageType;
+
+        SharedCellCache.Source cache;
+
+        BlockLoader loader;
+
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setUp() {
+            setUpInput();
+            cache = SharedCellCache.global().newSource("magnitude-benchmark");
+            final RandomAccessibleInterval<DoubleType>[] gradients = new RandomAccessibleInterval[3];
+            for (int d = 0; d < gradients.length; ++d) {
+                final RandomAccessibleInterval<? extends RealType<?>> stored = storageType.createCachedCellImg(
+                        grid,
+                        FeatureSourceState.gradientLoader(input, d),
+                        StorageType.DEFAULT_QUANTIZATION_STEP,
+                        cache);
+                gradients[d] = storageType.asDouble(stored, StorageType.DEFAULT_QUANTIZATION_STEP);
+                // load all cells, only the magnitude is measured
+                for (final DoubleType voxel : Views.flatIterable(gradients[d]))
+                    voxel.get();
+            }
+            loader = FeatureSourceState.magnitudeLoader(gradients);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cache.invalidateAll();
+        }
+    }
+
+    @Benchmark
+    public double gradient(final Gradient state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, state.loader);
+    }
+
+    @Benchmark
+    public double magnitude(final Magnitude state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, state.loader);
+    }
+}
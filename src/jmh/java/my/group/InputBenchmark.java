@@ -0,0 +1,102 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks per second of the fused gradient and the block-local distance transform loaders when they read their input
+ * through generic {@link RealType} converters and through the {@link InputArrays primitive fast path}, for each input
+ * type. Run with {@code java -jar target/benchmarks.jar --include 'my\.group\.InputBenchmark\..*'}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputBenchmark {
+
+    public enum InputType {
+        UINT8,
+        UINT16,
+        FLOAT32,
+        FLOAT64
+    }
+
+    @State(Scope.Benchmark)
+    public static class Input {
+
+        @Param("128")
+        public int size;
+
+        @Param({"16", "32", "64"})
+        public int blockSize;
+
+        @Param({"UINT8", "UINT16", "FLOAT32", "FLOAT64"})
+        public InputType inputType;
+
+        @Param({"true", "false"})
+        public boolean fastPath;
+
+        @Param("8")
+        public int halo;
+
+        CellGrid grid;
+
+        BlockLoader gradientMagnitude;
+
+        BlockLoader distanceTransform;
+
+        private boolean fastPathEnabled;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fastPathEnabled = InputArrays.isFastPathEnabled();
+            InputArrays.setFastPathEnabled(fastPath);
+            final RandomAccessibleInterval<? extends RealType<?>> input = SyntheticInputs.create(inputType, size, blockSize);
+            grid = new CellGrid(Intervals.dimensionsAsLongArray(input), new int[]{blockSize, blockSize, blockSize});
+            final DistanceTransformLoaders.Parameters parameters = new DistanceTransformLoaders.Parameters(
+                    DistanceTransform.DISTANCE_TYPE.EUCLIDIAN,
+                    new double[]{1.0},
+                    1.0,
+                    new DistanceTransformLoaders.ThresholdPredicate(SyntheticInputs.threshold(inputType)),
+                    0.0,
+                    true,
+                    1);
+            gradientMagnitude = GradientKernels.loader(InputArrays.reader(input, false), 3, false);
+            distanceTransform = DistanceTransformLoaders.halo(input, parameters, new int[]{halo, halo, halo});
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            InputArrays.setFastPathEnabled(fastPathEnabled);
+        }
+    }
+
+    @Benchmark
+    public double gradientMagnitude(final Input input, final Blocks blocks) throws Exception {
+        return blocks.load(input.grid, 1, input.gradientMagnitude);
+    }
+
+    @Benchmark
+    public double distanceTransform(final Input input, final Blocks blocks) throws Exception {
+        return blocks.load(input.grid, input.distanceTransform);
+    }
+}
@@ -0,0 +1,163 @@
+package my.group;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gradient.PartialDerivative;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per block of the gradient and gradient magnitude kernels: the baseline computes them with
+ * {@link PartialDerivative}/{@link LoopBuilder} on views, the flat variants with the array kernels of
+ * {@link GradientKernels}. Unlike {@link FeatureLoaderBenchmark}, no caching, uniform blocks or storage types are
+ * involved. Run with {@code java -jar target/benchmarks.jar --include 'my\.group\.KernelBenchmark\..*'}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KernelBenchmark {
+
+    @State(Scope.Benchmark)
+    public abstract static class Input {
+
+        @Param("128")
+        public int size;
+
+        @Param({"16", "32", "64"})
+        public int blockSize;
+
+        CellGrid grid;
+
+        CellImg<DoubleType, ?> input;
+
+        @SuppressWarnings("unchecked")
+        void setUpInput() {
+            input = (CellImg<DoubleType, ?>) SyntheticInputs.create(InputBenchmark.InputType.FLOAT64, size, blockSize);
+            grid = input.getCellGrid();
+        }
+    }
+
+    public static class Gradient extends Input {
+
+        @Param({"0", "1", "2"})
+        public int dim;
+
+        RandomAccessible<DoubleType> extended;
+
+        InputArrays.Reader reader;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            setUpInput();
+            extended = Views.extendBorder(input);
+            reader = InputArrays.reader(input, false);
+        }
+    }
+
+    public static class Magnitude extends Input {
+
+        RandomAccessibleInterval<DoubleType>[] gradients;
+
+        InputArrays.Reader[] readers;
+
+        /**
+         * Precomputed gradients, so that only the magnitude is timed.
+         */
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setUp() {
+            setUpInput();
+            final RandomAccessible<DoubleType> extended = Views.extendBorder(input);
+            gradients = new RandomAccessibleInterval[3];
+            for (int d = 0; d < gradients.length; ++d) {
+                final CellImg<DoubleType, ?> gradient = new CellImgFactory<>(new DoubleType(), blockSize).create(size, size, size);
+                PartialDerivative.gradientCentralDifference(extended, gradient, d);
+                gradients[d] = gradient;
+            }
+            readers = Arrays
+                    .stream(gradients)
+                    .map(gradient -> InputArrays.reader(gradient, false))
+                    .toArray(InputArrays.Reader[]::new);
+        }
+    }
+
+    @Benchmark
+    public double gradientBaseline(final Gradient state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, block -> PartialDerivative.gradientCentralDifference(state.extended, block, state.dim));
+    }
+
+    @Benchmark
+    public double gradientFlat(final Gradient state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, block -> {
+            final long[] expansion = new long[3];
+            expansion[state.dim] = 1;
+            final FinalInterval withHalo = Intervals.expand(block, expansion);
+            final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+            final double[] target = ScratchBuffers.borrowDoubles((int) Intervals.numElements(block));
+            try {
+                state.reader.fillBorder(withHalo, source);
+                GradientKernels.centralDifference(source, Intervals.dimensionsAsIntArray(block), state.dim, target);
+                CellArrays.copy(target, block, block, false);
+            } finally {
+                ScratchBuffers.release(target);
+                ScratchBuffers.release(source);
+            }
+        });
+    }
+
+    @Benchmark
+    public double magnitudeBaseline(final Magnitude state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, block -> {
+            // cells of a cache start at zero, but Blocks reuses its buffer
+            Views.iterable(block).forEach(DoubleType::setZero);
+            for (final RandomAccessibleInterval<DoubleType> gradient : state.gradients)
+                LoopBuilder
+                        .setImages(Views.interval(gradient, block), block)
+                        .forEachPixel((src, tgt) -> tgt.setReal(tgt.getRealDouble() + src.getRealDouble() * src.getRealDouble()));
+            Views.iterable(block).forEach(px -> px.setReal(Math.sqrt(px.getRealDouble())));
+        });
+    }
+
+    @Benchmark
+    public double magnitudeFlat(final Magnitude state, final Blocks blocks) throws Exception {
+        return blocks.load(state.grid, block -> {
+            final int numVoxels = (int) Intervals.numElements(block);
+            final double[] component = ScratchBuffers.borrowDoubles(numVoxels);
+            final double[] sumOfSquares = ScratchBuffers.borrowDoubles(numVoxels);
+            try {
+                Arrays.fill(sumOfSquares, 0, numVoxels, 0.0);
+                for (final InputArrays.Reader reader : state.readers) {
+                    reader.fillBorder(block, component);
+                    GradientKernels.addSquares(component, sumOfSquares, numVoxels);
+                }
+                CellArrays.copy(sumOfSquares, block, block, true);
+            } finally {
+                ScratchBuffers.release(sumOfSquares);
+                ScratchBuffers.release(component);
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package my.group;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import picocli.CommandLine;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the JMH benchmarks of the cell loaders once for each thread count: a throughput pass that reports blocks and
+ * voxels per second and the allocation rate, and a sample time pass that reports latency percentiles per block.
+ * Build with {@code mvn -P benchmarks package} and run {@code java -jar target/benchmarks.jar}.
+ */
+@CommandLine.Command(name = "loader-benchmarks", mixinStandardHelpOptions = true)
+public class LoaderBenchmarks implements Callable<Void> {
+
+    @CommandLine.Option(names = "--include", description = "Regular expression of the benchmarks to run. Default: all loader benchmarks")
+    private String include = "my\\.group\\..*LoaderBenchmark\\..*";
+
+    @CommandLine.Option(names = "--threads", split = ",", description = "Comma separated thread counts. Default: 1 and the number of cores")
+    private int[] threads = {1, ComputePool.PARALLELISM};
+
+    @CommandLine.Option(names = {"-p", "--param"}, description = "Restrict a parameter to comma separated values, e.g. -p blockSize=32,64")
+    private Map<String, String> params = Collections.emptyMap();
+
+    @CommandLine.Option(names = "--forks", description = "Forked JVMs per benchmark. Default: 1")
+    private int forks = 1;
+
+    @CommandLine.Option(names = "--no-latency", description = "Skip the sample time pass")
+    private boolean noLatency = false;
+
+    @CommandLine.Option(names = "--result", description = "Prefix of JSON result files, one per pass and thread count. Default: none")
+    private String result = null;
+
+    public static void main(final String[] args) {
+        CommandLine.call(new LoaderBenchmarks(), args);
+    }
+
+    @Override
+    public Void call() throws Exception {
+        for (final int numThreads : threads) {
+            run(options(numThreads, "throughput")
+                    .mode(Mode.Throughput)
+                    .timeUnit(TimeUnit.SECONDS)
+                    .addProfiler(GCProfiler.class));
+            if (!noLatency)
+                run(options(numThreads, "latency")
+                        .mode(Mode.SampleTime)
+                        .timeUnit(TimeUnit.MILLISECONDS));
+        }
+        return null;
+    }
+
+    private ChainedOptionsBuilder options(final int numThreads, final String pass) {
+        final ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .threads(numThreads)
+                .forks(forks);
+        params.forEach((name, values) -> options.param(name, values.split(",")));
+        if (result != null)
+            options
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(String.format("%s-%s-%d-threads.json", result, pass, numThreads));
+        return options;
+    }
+
+    private static void run(final ChainedOptionsBuilder options) throws Exception {
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,73 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.Random;
+
+/**
+ * Inputs of the loader benchmarks: smooth noisy cubic cell imgs of each {@link InputBenchmark.InputType}, like the
+ * levels of a raw {@link org.janelia.saalfeldlab.paintera.data.DataSource}. About half of the voxels are above
+ * {@link #threshold(InputBenchmark.InputType)}.
+ */
+public class SyntheticInputs {
+
+    private SyntheticInputs() {
+    }
+
+    public static RandomAccessibleInterval<? extends RealType<?>> create(
+            final InputBenchmark.InputType type,
+            final int size,
+            final int cellSize) {
+        switch (type) {
+            case UINT8:
+                return fill(new UnsignedByteType(), maxValue(type), size, cellSize);
+            case UINT16:
+                return fill(new UnsignedShortType(), maxValue(type), size, cellSize);
+            case FLOAT32:
+                return fill(new FloatType(), maxValue(type), size, cellSize);
+            default:
+                return fill(new DoubleType(), maxValue(type), size, cellSize);
+        }
+    }
+
+    public static double threshold(final InputBenchmark.InputType type) {
+        return 0.5 * maxValue(type);
+    }
+
+    private static double maxValue(final InputBenchmark.InputType type) {
+        switch (type) {
+            case UINT8:
+                return 255;
+            case UINT16:
+                return 65535;
+            default:
+                return 1.0;
+        }
+    }
+
+    private static <T extends NativeType<T> & RealType<T>> CellImg<T, ?> fill(
+            final T type,
+            final double maxValue,
+            final int size,
+            final int cellSize) {
+        final CellImg<T, ?> img = new CellImgFactory<>(type, cellSize).create(size, size, size);
+        final Random random = new Random(1);
+        final long[] position = new long[3];
+        for (final Cursor<T> cursor = img.localizingCursor(); cursor.hasNext(); ) {
+            final T voxel = cursor.next();
+            cursor.localize(position);
+            final double smooth = 0.5 + 0.25 * (Math.sin(0.05 * position[0]) + Math.cos(0.07 * position[1] + 0.03 * position[2]));
+            voxel.setReal(Math.max(0.0, Math.min(1.0, smooth + 0.02 * random.nextGaussian())) * maxValue);
+        }
+        return img;
+    }
+}
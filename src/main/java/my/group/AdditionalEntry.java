@@ -1,15 +1,285 @@
 package my.group;
 
+import bdv.util.volatiles.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Interpolation;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.converter.ARGBColorConverter;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.paintera.PainteraBaseView;
+import org.janelia.saalfeldlab.paintera.cache.InvalidateAll;
+import org.janelia.saalfeldlab.paintera.composition.CompositeCopy;
+import org.janelia.saalfeldlab.paintera.data.DataSource;
+import org.janelia.saalfeldlab.paintera.data.RandomAccessibleIntervalDataSource;
+import org.janelia.saalfeldlab.paintera.state.RawSourceState;
+import org.janelia.saalfeldlab.paintera.ui.PainteraAlerts;
 import org.janelia.saalfeldlab.paintera.ui.opendialog.menu.OpenDialogMenuEntry;
 import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
-@Plugin(type = OpenDialogMenuEntry.class, menuPath = "_My>_Menu>_Entry")
+/**
+ * Opens N5 and HDF5 datasets and multi-scale groups below a directory as raw sources. The directory is scanned in
+ * parallel and the results are kept in a {@link DatasetIndex} in the project directory, so that the list is shown
+ * right away on later opens and rescans only read what changed.
+ */
+@Plugin(type = OpenDialogMenuEntry.class, menuPath = "_Datasets>_Open From Directory")
 public class AdditionalEntry implements OpenDialogMenuEntry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final SharedQueue QUEUE = new SharedQueue(Math.max(1, ComputePool.PARALLELISM / 2));
+
+    /**
+     * Block size of HDF5 datasets that are not chunked.
+     */
+    private static final int[] HDF5_DEFAULT_BLOCK_SIZE = {64, 64, 64};
+
     @Override
     public BiConsumer<PainteraBaseView, String> onAction() {
-        return (pbv, string) -> System.out.println("Additional entry!");
+        return (pbv, directory) -> {
+            final DatasetIndex index = new DatasetIndex(directory);
+            final String lastRoot = index.getLastRoot();
+            final Alert alert = PainteraAlerts.alert(Alert.AlertType.CONFIRMATION, true);
+            alert.setHeaderText("Open datasets");
+
+            final TextField rootField = new TextField(lastRoot == null ? directory : lastRoot);
+            HBox.setHgrow(rootField, Priority.ALWAYS);
+            final Button browseButton = new Button("Browse");
+            final Button scanButton = new Button("Scan");
+            final TextField filterField = new TextField();
+            filterField.setPromptText("Filter, e.g. raw uint8");
+            final ObservableList<DatasetIndex.Dataset> datasets = FXCollections.observableArrayList();
+            final FilteredList<DatasetIndex.Dataset> filtered = new FilteredList<>(datasets, dataset -> true);
+            filterField.textProperty().addListener((obs, oldv, newv) -> filtered.setPredicate(matches(newv)));
+            final ListView<DatasetIndex.Dataset> list = new ListView<>(filtered);
+            list.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+            list.setPrefWidth(800);
+            final Label status = new Label();
+
+            browseButton.setOnAction(e -> {
+                final DirectoryChooser chooser = new DirectoryChooser();
+                final File current = new File(rootField.getText().trim());
+                if (current.isDirectory())
+                    chooser.setInitialDirectory(current);
+                final File chosen = chooser.showDialog(alert.getDialogPane().getScene().getWindow());
+                if (chosen != null) {
+                    rootField.setText(chosen.getAbsolutePath());
+                    scanButton.fire();
+                }
+            });
+            scanButton.setOnAction(e -> {
+                final Path root = Paths.get(rootField.getText().trim());
+                // show what was found last time while scanning
+                setAll(list, datasets, index.datasets(root));
+                status.setText("Scanning " + root + "...");
+                scanButton.setDisable(true);
+                final Thread scan = new Thread(() -> {
+                    try {
+                        final List<DatasetIndex.Dataset> found = index.scan(root, DatasetIndex.defaultNumThreads());
+                        Platform.runLater(() -> {
+                            setAll(list, datasets, found);
+                            status.setText(datasets.size() + " datasets in " + root);
+                        });
+                    } catch (final IOException | RuntimeException ex) {
+                        LOG.warn("Unable to scan {}", root, ex);
+                        Platform.runLater(() -> status.setText("Unable to scan " + root + ": " + ex.getMessage()));
+                    } finally {
+                        Platform.runLater(() -> scanButton.setDisable(false));
+                    }
+                }, "dataset-scan");
+                scan.setDaemon(true);
+                scan.start();
+            });
+
+            alert.getDialogPane().setContent(new VBox(
+                    new Label("Directory"),
+                    new HBox(rootField, browseButton, scanButton),
+                    filterField,
+                    list,
+                    status));
+            scanButton.fire();
+
+            final Optional<ButtonType> bt = alert.showAndWait();
+            if (bt.filter(ButtonType.OK::equals).isPresent()) {
+                final Map<String, N5Reader> readers = new HashMap<>();
+                for (final DatasetIndex.Dataset dataset : new ArrayList<>(list.getSelectionModel().getSelectedItems())) {
+                    try {
+                        pbv.addState(open(reader(readers, dataset), dataset));
+                    } catch (final IOException | RuntimeException e) {
+                        LOG.error("Unable to open {}", dataset, e);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Replace the contents of {@code datasets} with the datasets in {@code found} that can be shown and keep the
+     * selection.
+     */
+    private static void setAll(
+            final ListView<DatasetIndex.Dataset> list,
+            final ObservableList<DatasetIndex.Dataset> datasets,
+            final List<DatasetIndex.Dataset> found) {
+        final Set<String> selected = list
+                .getSelectionModel()
+                .getSelectedItems()
+                .stream()
+                .map(DatasetIndex.Dataset::toString)
+                .collect(Collectors.toSet());
+        datasets.setAll(found.stream().filter(AdditionalEntry::canOpen).collect(Collectors.toList()));
+        for (final DatasetIndex.Dataset dataset : datasets)
+            if (selected.contains(dataset.toString()))
+                list.getSelectionModel().select(dataset);
+    }
+
+    private static boolean canOpen(final DatasetIndex.Dataset dataset) {
+        return dataset.getDimensions().length == 3 && !"object".equalsIgnoreCase(dataset.getDataType());
     }
-}
 
+    /**
+     * @return predicate that matches datasets that contain all whitespace separated terms of {@code filter}, ignoring
+     * case
+     */
+    private static Predicate<DatasetIndex.Dataset> matches(final String filter) {
+        final List<String> terms = Arrays
+                .stream(filter == null ? new String[0] : filter.trim().toLowerCase(Locale.ROOT).split("\\s+"))
+                .filter(term -> !term.isEmpty())
+                .collect(Collectors.toList());
+        return dataset -> {
+            final String string = dataset.toString().toLowerCase(Locale.ROOT);
+            return terms.stream().allMatch(string::contains);
+        };
+    }
+
+    private static N5Reader reader(final Map<String, N5Reader> readers, final DatasetIndex.Dataset dataset) throws IOException {
+        final N5Reader reader = readers.get(dataset.getContainer());
+        if (reader != null)
+            return reader;
+        final N5Reader created = dataset.getFormat() == DatasetIndex.Format.HDF5
+                ? new N5HDF5Reader(dataset.getContainer(), HDF5_DEFAULT_BLOCK_SIZE)
+                : new N5FSReader(dataset.getContainer());
+        readers.put(dataset.getContainer(), created);
+        return created;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends NativeType<T> & RealType<T>, V extends Volatile<T> & NativeType<V> & RealType<V>> RawSourceState<T, V> open(
+            final N5Reader n5,
+            final DatasetIndex.Dataset dataset) throws IOException {
+        final String group = dataset.getPath();
+        final List<String> levels = new ArrayList<>();
+        if (dataset.isMultiScale())
+            for (int level = 0; level < dataset.getNumScales(); ++level)
+                levels.add((group.endsWith("/") ? group : group + "/") + "s" + level);
+        else
+            levels.add(group);
+
+        final double[] resolution = doubleAttribute(n5, group, "resolution", 1.0);
+        final double[] offset = doubleAttribute(n5, group, "offset", 0.0);
+        final long[] s0Dimensions = dataset.getDimensions();
+
+        final RandomAccessibleInterval<T>[] data = new RandomAccessibleInterval[levels.size()];
+        final RandomAccessibleInterval<V>[] vdata = new RandomAccessibleInterval[levels.size()];
+        final AffineTransform3D[] transforms = new AffineTransform3D[levels.size()];
+        final List<CachedCellImg<T, ?>> imgs = new ArrayList<>();
+        for (int level = 0; level < levels.size(); ++level) {
+            final CachedCellImg<T, ?> img = N5Utils.openVolatile(n5, levels.get(level));
+            imgs.add(img);
+            data[level] = img;
+            vdata[level] = VolatileViews.wrapAsVolatile(img, QUEUE);
+
+            final double[] factors = n5.getAttribute(levels.get(level), "downsamplingFactors", double[].class);
+            final double[] scale = new double[3];
+            final double[] translation = new double[3];
+            for (int d = 0; d < 3; ++d) {
+                // without factors, estimate them from the dimensions of the levels
+                final double factor = level == 0 ? 1.0 : factors != null ? factors[d] : s0Dimensions[d] / (double) img.dimension(d);
+                scale[d] = resolution[d] * factor;
+                translation[d] = offset[d] + 0.5 * (factor - 1) * resolution[d];
+            }
+            transforms[level] = new AffineTransform3D();
+            transforms[level].set(
+                    scale[0], 0, 0, translation[0],
+                    0, scale[1], 0, translation[1],
+                    0, 0, scale[2], translation[2]);
+        }
+
+        // refreshing the source also invalidates the derived sources that depend on it
+        final List<DataSource<?, ?>> self = new ArrayList<>();
+        final InvalidateAll invalidateAll = () -> {
+            imgs.forEach(img -> img.getCache().invalidateAll());
+            self.forEach(SourceInvalidation::invalidated);
+        };
+        final RandomAccessibleIntervalDataSource<T, V> source = new RandomAccessibleIntervalDataSource<>(
+                data,
+                vdata,
+                transforms,
+                invalidateAll,
+                interpolation -> Interpolation.NLINEAR.equals(interpolation) ? new NLinearInterpolatorFactory<>() : new NearestNeighborInterpolatorFactory<>(),
+                interpolation -> Interpolation.NLINEAR.equals(interpolation) ? new NLinearInterpolatorFactory<>() : new NearestNeighborInterpolatorFactory<>(),
+                dataset.getName());
+        PersistentBlockCache.setOrigin(source, dataset.getContainer(), group);
+        self.add(source);
+
+        // full range of integer types, floating point data is usually normalized
+        final T type = Util.getTypeFromInterval(data[0]);
+        final double min = type instanceof IntegerType<?> ? type.getMinValue() : 0.0;
+        final double max = type instanceof IntegerType<?> ? type.getMaxValue() : 1.0;
+        return new RawSourceState<>(source, new ARGBColorConverter.Imp0<>(min, max), new CompositeCopy<>(), dataset.getName());
+    }
+
+    private static double[] doubleAttribute(final N5Reader n5, final String group, final String key, final double fallback) throws IOException {
+        final double[] value = n5.getAttribute(group, key, double[].class);
+        if (value != null && value.length == 3)
+            return value;
+        final double[] defaultValue = new double[3];
+        Arrays.fill(defaultValue, fallback);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,115 @@
+package my.group;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import net.imglib2.converter.ARGBColorConverter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the display range of a converter at robust percentiles of the {@link ValueStatistics} of its source while
+ * {@link #enabledProperty() enabled}, so that the range settles as blocks load. It is disabled by default. Manual
+ * changes of the range are overridden by the next update. Updates are coalesced and computed in the background from
+ * copies of the properties, and applied on the JavaFX application thread.
+ */
+public class AutoContrast {
+
+    public static final double DEFAULT_LOWER_PERCENTILE = 0.5;
+
+    public static final double DEFAULT_UPPER_PERCENTILE = 99.5;
+
+    private static final long UPDATE_DELAY_MILLIS = 250;
+
+    private static final ScheduledExecutorService UPDATE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "auto-contrast");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ValueStatistics statistics;
+
+    private final int channel;
+
+    private final ARGBColorConverter<?> converter;
+
+    private final BooleanProperty enabled = new SimpleBooleanProperty(false);
+
+    private final DoubleProperty lowerPercentile = new SimpleDoubleProperty(DEFAULT_LOWER_PERCENTILE);
+
+    private final DoubleProperty upperPercentile = new SimpleDoubleProperty(DEFAULT_UPPER_PERCENTILE);
+
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+
+    // copies of the properties for the loading and update threads, the properties belong to the JavaFX thread
+
+    private volatile boolean isEnabled = false;
+
+    private volatile double lower = DEFAULT_LOWER_PERCENTILE;
+
+    private volatile double upper = DEFAULT_UPPER_PERCENTILE;
+
+    /**
+     * @param channel of {@code statistics} that {@code converter} shows
+     */
+    public AutoContrast(final ValueStatistics statistics, final int channel, final ARGBColorConverter<?> converter) {
+        this.statistics = statistics;
+        this.channel = channel;
+        this.converter = converter;
+        statistics.addListener(this::requestUpdate);
+        enabled.addListener((obs, oldv, newv) -> {
+            isEnabled = newv;
+            requestUpdate();
+        });
+        lowerPercentile.addListener((obs, oldv, newv) -> {
+            lower = newv.doubleValue();
+            requestUpdate();
+        });
+        upperPercentile.addListener((obs, oldv, newv) -> {
+            upper = newv.doubleValue();
+            requestUpdate();
+        });
+    }
+
+    public BooleanProperty enabledProperty() {
+        return enabled;
+    }
+
+    /**
+     * @return percentile in {@code [0, 100]} that is mapped to the minimum of the converter
+     */
+    public DoubleProperty lowerPercentileProperty() {
+        return lowerPercentile;
+    }
+
+    /**
+     * @return percentile in {@code [0, 100]} that is mapped to the maximum of the converter
+     */
+    public DoubleProperty upperPercentileProperty() {
+        return upperPercentile;
+    }
+
+    private void requestUpdate() {
+        if (isEnabled && updateScheduled.compareAndSet(false, true))
+            UPDATE_SCHEDULER.schedule(this::update, UPDATE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void update() {
+        updateScheduled.set(false);
+        final double[] range = statistics.range(channel, lower / 100.0, upper / 100.0);
+        // keep the current range while nothing is loaded or everything is uniform
+        if (range == null || !(range[1] > range[0]))
+            return;
+        Platform.runLater(() -> {
+            if (enabled.get()) {
+                converter.setMin(range[0]);
+                converter.setMax(range[1]);
+            }
+        });
+    }
+}
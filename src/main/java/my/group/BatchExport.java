@@ -0,0 +1,313 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * Headless export of distance transforms and gradient features of all mipmap levels of an N5 dataset into an N5
+ * container. Blocks are computed in parallel and written as soon as they are done, so memory is bounded by the blocks
+ * in flight and the shared cell cache. Blocks that exist in the output already are skipped, i.e. an interrupted export
+ * resumes where it stopped when run again with the same arguments.
+ */
+@CommandLine.Command(name = "batch-export", mixinStandardHelpOptions = true)
+public class BatchExport implements Callable<Void> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String COMPLETE_KEY = "complete";
+
+    public enum Feature {
+        DISTANCE_TRANSFORM,
+        GRADIENT,
+        GRADIENT_MAGNITUDE
+    }
+
+    @CommandLine.Option(names = {"--input-container", "-i"}, required = true, description = "N5 container of the input")
+    private String inputContainer;
+
+    @CommandLine.Option(names = {"--input-dataset", "-d"}, required = true, description = "Input dataset or multi-scale group with datasets s0, s1, ...")
+    private String inputDataset;
+
+    @CommandLine.Option(names = {"--output-container", "-o"}, required = true, description = "N5 container of the output, may be the input container")
+    private String outputContainer;
+
+    @CommandLine.Option(names = {"--output-group", "-g"}, required = true, description = "Group for the features in the output container")
+    private String outputGroup;
+
+    @CommandLine.Option(names = {"--feature", "-f"}, split = ",", description = "Features to export: ${COMPLETION-CANDIDATES}. Default: DISTANCE_TRANSFORM")
+    private Feature[] features = {Feature.DISTANCE_TRANSFORM};
+
+    @CommandLine.Option(names = {"--block-size", "-b"}, split = ",", description = "Block size of the output. Default: 64,64,64")
+    private int[] blockSize = {64, 64, 64};
+
+    @CommandLine.Option(names = "--data-type", description = "FLOAT64 or FLOAT32. Default: FLOAT32")
+    private DataType dataType = DataType.FLOAT32;
+
+    @CommandLine.Option(names = "--distance-type", description = "${COMPLETION-CANDIDATES}. Default: EUCLIDIAN")
+    private DistanceTransform.DISTANCE_TYPE distanceType = DistanceTransform.DISTANCE_TYPE.EUCLIDIAN;
+
+    @CommandLine.Option(names = "--weights", split = ",", description = "Default: 1,1,1")
+    private double[] weights = {1.0, 1.0, 1.0};
+
+    @CommandLine.Option(names = "--scale-factor", description = "Default: 1.0")
+    private double scaleFactor = 1.0;
+
+    @CommandLine.Option(names = "--threshold", description = "Transform the distance to voxels with values larger than this threshold")
+    private Double threshold = null;
+
+    @CommandLine.Option(names = "--extension", description = "Value outside the input. Default: 1000.0")
+    private double sampleExtension = 1000.0;
+
+    @CommandLine.Option(names = "--square-input")
+    private boolean squareInput = false;
+
+    @CommandLine.Option(names = "--halo", split = ",", description = "Use a block-local distance transform with this halo instead of the exact distance transform")
+    private int[] halo = null;
+
+    @CommandLine.Option(names = "--threads", description = "Number of blocks computed concurrently. Default: number of processors")
+    private int numThreads = ComputePool.PARALLELISM;
+
+    @CommandLine.Option(names = "--cache-mib", description = "Memory limit of the cache for intermediate results of the exact distance transform")
+    private Long cacheMiB = null;
+
+    public static void main(final String[] args) {
+        CommandLine.call(new BatchExport(), args);
+    }
+
+    @Override
+    public Void call() throws Exception {
+        if (!DataType.FLOAT64.equals(dataType) && !DataType.FLOAT32.equals(dataType))
+            throw new IllegalArgumentException("Data type must be FLOAT64 or FLOAT32 but got " + dataType);
+        if (cacheMiB != null)
+            SharedCellCache.global().setMaxBytes(cacheMiB << 20);
+
+        final N5Reader input = new N5FSReader(inputContainer);
+        final N5Writer output = new N5FSWriter(outputContainer);
+        final List<String> levels = levels(input, inputDataset);
+        final boolean isMultiScale = !input.datasetExists(inputDataset);
+
+        final SharedCellCache.Source cache = SharedCellCache.global().newSource("batch-export");
+        final LoadGeneration.Token generation = new LoadGeneration().current();
+        final DistanceTransformLoaders.Parameters parameters = new DistanceTransformLoaders.Parameters(
+                distanceType,
+                weights,
+                scaleFactor,
+                threshold == null ? null : new DistanceTransformLoaders.ThresholdPredicate(threshold),
+                sampleExtension,
+                squareInput,
+                1);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService es = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread t = new Thread(r, "batch-export-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int level = 0; level < levels.size(); ++level) {
+                final RandomAccessibleInterval<? extends RealType<?>> raw = (RandomAccessibleInterval) N5Utils.open(input, levels.get(level));
+                if (halo == null && Arrays.asList(features).contains(Feature.DISTANCE_TRANSFORM) && !BlockwiseDistanceTransform.fitsInCache(raw, cache))
+                    LOG.warn(
+                            "Exact distance transform of {} needs {} MiB of cache but the budget is {} MiB, consider --cache-mib or --halo",
+                            levels.get(level),
+                            BlockwiseDistanceTransform.stageBytes(raw) >> 20,
+                            cache.getBudget() >> 20);
+                final Map<String, BlockLoader> loaders = new LinkedHashMap<>();
+                for (final Feature feature : features) {
+                    switch (feature) {
+                        case DISTANCE_TRANSFORM:
+                            loaders.put("distance-transform", halo == null
+                                    ? DistanceTransformLoaders.exact(raw, parameters, blockSize, cache, generation)
+                                    : DistanceTransformLoaders.halo(raw, parameters, halo));
+                            break;
+                        case GRADIENT:
+                            for (int dim = 0; dim < raw.numDimensions(); ++dim)
+                                loaders.put("gradient-" + dim, gradient(raw, dim));
+                            break;
+                        case GRADIENT_MAGNITUDE:
+                            loaders.put("gradient-magnitude", gradient(raw, raw.numDimensions()));
+                            break;
+                    }
+                }
+
+                for (final Map.Entry<String, BlockLoader> loader : loaders.entrySet()) {
+                    final String group = outputGroup + "/" + loader.getKey();
+                    final String dataset = isMultiScale ? group + "/s" + level : group;
+                    if (isMultiScale) {
+                        output.createGroup(group);
+                        output.setAttribute(group, "multiScale", true);
+                    }
+                    export(output, dataset, Intervals.dimensionsAsLongArray(raw), loader.getValue(), es);
+                    copyAttribute(input, levels.get(level), output, dataset, "downsamplingFactors");
+                    copyAttribute(input, isMultiScale ? inputDataset : levels.get(level), output, isMultiScale ? group : dataset, "resolution");
+                    cache.invalidateAll();
+                }
+            }
+        } finally {
+            es.shutdown();
+        }
+        return null;
+    }
+
+    private void export(
+            final N5Writer output,
+            final String dataset,
+            final long[] dimensions,
+            final BlockLoader loader,
+            final ExecutorService es) throws IOException, InterruptedException {
+
+        final DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, dataType, new Lz4Compression());
+        if (output.datasetExists(dataset)) {
+            if (Boolean.TRUE.equals(output.getAttribute(dataset, COMPLETE_KEY, Boolean.class))) {
+                LOG.info("Skipping {}, it is complete already", dataset);
+                return;
+            }
+        } else
+            output.createDataset(dataset, attributes);
+
+        final CellGrid grid = new CellGrid(dimensions, blockSize);
+        final long numBlocks = Intervals.numElements(grid.getGridDimensions());
+        final AtomicLong done = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        // bound the number of blocks in memory
+        final int maxInFlight = 2 * numThreads;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        LOG.info("Exporting {} blocks into {}", numBlocks, dataset);
+
+        for (long index = 0; index < numBlocks && failure.get() == null; ++index) {
+            final long blockIndex = index;
+            inFlight.acquire();
+            es.submit(() -> {
+                try {
+                    final long[] gridPosition = new long[dimensions.length];
+                    final long[] min = new long[dimensions.length];
+                    final int[] size = new int[dimensions.length];
+                    grid.getCellGridPositionFlat(blockIndex, gridPosition);
+                    grid.getCellDimensions(gridPosition, min, size);
+                    if (!isComplete(output, dataset, attributes, gridPosition)) {
+                        final double[] data = new double[(int) Intervals.numElements(size)];
+                        final RandomAccessibleInterval<DoubleType> block = Views.translate(ArrayImgs.doubles(data, IntStream.of(size).asLongStream().toArray()), min);
+                        loader.load(block);
+                        output.writeBlock(dataset, attributes, DataType.FLOAT32.equals(dataType)
+                                ? new FloatArrayDataBlock(size, gridPosition, toFloats(data))
+                                : new DoubleArrayDataBlock(size, gridPosition, data));
+                    }
+                    final long numDone = done.incrementAndGet();
+                    if (numDone * 100 / numBlocks != (numDone - 1) * 100 / numBlocks)
+                        LOG.info("{}: {}/{} blocks ({}%)", dataset, numDone, numBlocks, numDone * 100 / numBlocks);
+                } catch (final Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+
+        if (failure.get() != null)
+            throw new IOException("Unable to export " + dataset, failure.get());
+        output.setAttribute(dataset, COMPLETE_KEY, true);
+    }
+
+    /**
+     * Blocks of an interrupted export may be truncated, a block is complete only if it can be read.
+     */
+    private static boolean isComplete(
+            final N5Reader n5,
+            final String dataset,
+            final DatasetAttributes attributes,
+            final long[] gridPosition) {
+        try {
+            final DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+            return block != null;
+        } catch (final IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static List<String> levels(final N5Reader n5, final String dataset) throws IOException {
+        final List<String> levels = new ArrayList<>();
+        if (n5.datasetExists(dataset))
+            levels.add(dataset);
+        else
+            for (int level = 0; n5.datasetExists(dataset + "/s" + level); ++level)
+                levels.add(dataset + "/s" + level);
+        if (levels.isEmpty())
+            throw new IOException(dataset + " is neither a dataset nor a multi-scale group in " + n5);
+        return levels;
+    }
+
+    private static void copyAttribute(
+            final N5Reader from,
+            final String fromPath,
+            final N5Writer to,
+            final String toPath,
+            final String key) throws IOException {
+        final double[] value = from.getAttribute(fromPath, key, double[].class);
+        if (value != null)
+            to.setAttribute(toPath, key, value);
+    }
+
+    /**
+     * @param channel gradient component along dimension {@code channel}, or the magnitude if {@code channel} is the
+     *                number of dimensions, computed like the gradient features of the viewer
+     */
+    private static BlockLoader gradient(final RandomAccessibleInterval<? extends RealType<?>> raw, final int channel) {
+        return UniformBlocks.shortCircuit(
+                zeroWhereUniform(raw),
+                GradientKernels.channelLoader(InputArrays.reader(raw, false), channel));
+    }
+
+    /**
+     * Central differences vanish where {@code raw} is uniform within one voxel of a block.
+     */
+    private static UniformBlocks.Check zeroWhereUniform(final RandomAccessibleInterval<? extends RealType<?>> raw) {
+        final int[] halo = IntStream.generate(() -> 1).limit(raw.numDimensions()).toArray();
+        return UniformBlocks.ofInput(raw, halo, value -> OptionalDouble.of(0.0));
+    }
+
+    private static float[] toFloats(final double[] data) {
+        final float[] floats = new float[data.length];
+        for (int i = 0; i < data.length; ++i)
+            floats[i] = (float) data[i];
+        return floats;
+    }
+}
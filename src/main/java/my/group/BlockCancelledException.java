@@ -0,0 +1,13 @@
+package my.group;
+
+/**
+ * Thrown by a {@link DerivedSourceScheduler scheduled} loader when its block went out of view before it was computed.
+ * This is not a failure: cell imgs of derived sources {@link StorageType#createCachedCellImg return} an invalid cell for
+ * it that is not cached, so the block is requested again if it comes back into view.
+ */
+public class BlockCancelledException extends Exception {
+
+    public BlockCancelledException(final String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,29 @@
+package my.group;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import java.util.OptionalDouble;
+
+/**
+ * Fill a block of a derived source. In contrast to {@link net.imglib2.cache.img.CellLoader}, the block is a
+ * {@link DoubleType} view that is independent of the {@link StorageType} of the backing cell img.
+ */
+@FunctionalInterface
+public interface BlockLoader {
+
+    void load(RandomAccessibleInterval<DoubleType> block) throws Exception;
+
+    /**
+     * Wrapping loaders, e.g. of the {@link DerivedSourceScheduler scheduler}, do not forward this, pass it to the cell
+     * img explicitly.
+     *
+     * @return value of all voxels of {@code block} if it is uniform and known without loading it, see
+     * {@link UniformBlocks}
+     */
+    default OptionalDouble uniformValue(final Interval block) throws Exception {
+        return OptionalDouble.empty();
+    }
+
+}
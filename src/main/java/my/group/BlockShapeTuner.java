@@ -0,0 +1,258 @@
+package my.group;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.paintera.data.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks a block shape for each mipmap level of a derived source from short calibration loads on its actual input.
+ * Candidate shapes have about the same physical extent in all dimensions, i.e. they are flatter along dimensions with
+ * larger voxels. Each candidate loads a few non-uniform blocks with a fresh cache. The first of them warms up the
+ * cache, e.g. with the whole-volume stages of exact loaders, and is not timed. The throughput of a candidate is the
+ * number of block voxels per second of the other blocks, which includes the overhead of reading a halo. The shape with
+ * the highest throughput whose slowest block stays within {@link #getMaxLatencyMillis()} wins, smaller shapes are
+ * preferred when they are almost as fast. If no shape qualifies, the smallest shape is used.
+ */
+public class BlockShapeTuner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_LATENCY_PROPERTY = "my.group.block-shape.max-latency-ms";
+
+    private static final int[] EDGE_LENGTHS = {16, 24, 32, 48, 64, 96, 128};
+
+    private static final int MIN_EDGE_LENGTH = 4;
+
+    private static final int SAMPLE_BLOCKS = 3;
+
+    /**
+     * Blocks that are loaded before the timed blocks of each candidate.
+     */
+    private static final int WARM_UP_BLOCKS = 1;
+
+    private static final int MAX_UNIFORM_CHECKS = 64;
+
+    /**
+     * Smaller shapes within this fraction of the best throughput are preferred for their lower latency.
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+    private static volatile long maxLatencyMillis = Long.getLong(MAX_LATENCY_PROPERTY, 250);
+
+    /**
+     * Loader of a level of the tuned source for blocks of a candidate shape.
+     */
+    @FunctionalInterface
+    public interface LoaderFactory {
+
+        /**
+         * @param cache for intermediate results, it is invalidated after each candidate
+         */
+        BlockLoader create(int level, int[] blockSize, SharedCellCache.Source cache) throws Exception;
+
+    }
+
+    private BlockShapeTuner() {
+    }
+
+    public static long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * @param maxLatencyMillis blocks of the tuned shapes should not take longer than this
+     */
+    public static void setMaxLatencyMillis(final long maxLatencyMillis) {
+        BlockShapeTuner.maxLatencyMillis = Math.max(1, maxLatencyMillis);
+    }
+
+    /**
+     * @param input first timepoint of the input of the tuned source, defines the grids and the anisotropy of each level
+     * @param halo context that each block reads around it, only for logging the halo overhead
+     * @param generation tuning is cancelled when it becomes stale
+     * @return block shape for each level of {@code input}
+     */
+    public static int[][] tune(
+            final DataSource<?, ?> input,
+            final int[] halo,
+            final LoaderFactory loaders,
+            final LoadGeneration.Token generation) throws Exception {
+        final int[][] blockSizes = new int[input.getNumMipmapLevels()][];
+        final SharedCellCache.Source cache = SharedCellCache.global().newSource("block-shape-tuning");
+        try {
+            for (int level = 0; level < blockSizes.length; ++level) {
+                final AffineTransform3D transform = new AffineTransform3D();
+                input.getSourceTransform(0, level, transform);
+                final long[] dimensions = Intervals.dimensionsAsLongArray(input.getDataSource(0, level));
+                blockSizes[level] = tuneLevel(level, dimensions, voxelSize(transform), halo, loaders, cache, generation);
+            }
+        } finally {
+            cache.invalidateAll();
+        }
+        return blockSizes;
+    }
+
+    private static int[] tuneLevel(
+            final int level,
+            final long[] dimensions,
+            final double[] voxelSize,
+            final int[] halo,
+            final LoaderFactory loaders,
+            final SharedCellCache.Source cache,
+            final LoadGeneration.Token generation) throws Exception {
+        final long maxLatencyNanos = maxLatencyMillis * 1000000L;
+        final List<int[]> shapes = candidates(dimensions, voxelSize);
+        final List<double[]> measurements = new ArrayList<>();
+        for (final int[] shape : shapes) {
+            generation.check();
+            final BlockLoader loader = loaders.create(level, shape, cache);
+            final List<Interval> blocks = sampleBlocks(new CellGrid(dimensions, shape), loader);
+            // stages that all blocks share only count if there are no other blocks to time
+            for (int i = 0; i < WARM_UP_BLOCKS && blocks.size() > 1; ++i) {
+                generation.check();
+                load(loader, blocks.remove(0));
+            }
+            long totalNanos = 0;
+            long maxNanos = 0;
+            long numVoxels = 0;
+            for (final Interval block : blocks) {
+                generation.check();
+                final long start = System.nanoTime();
+                load(loader, block);
+                final long nanos = System.nanoTime() - start;
+                totalNanos += nanos;
+                maxNanos = Math.max(maxNanos, nanos);
+                numVoxels += Intervals.numElements(block);
+            }
+            cache.invalidateAll();
+            final double throughput = totalNanos == 0 ? 0.0 : numVoxels * 1e9 / totalNanos;
+            measurements.add(new double[]{throughput, maxNanos});
+            LOG.debug(
+                    "Level {} block shape {}: {} voxels/s, slowest of {} blocks {} ms, halo overhead {}",
+                    level,
+                    Arrays.toString(shape),
+                    String.format("%.3g", throughput),
+                    blocks.size(),
+                    maxNanos / 1000000L,
+                    String.format("%.2f", haloOverhead(shape, halo)));
+            // larger shapes only get slower
+            if (maxNanos > maxLatencyNanos || blocks.isEmpty())
+                break;
+        }
+
+        double best = 0.0;
+        for (int i = 0; i < measurements.size(); ++i)
+            if (measurements.get(i)[1] <= maxLatencyNanos)
+                best = Math.max(best, measurements.get(i)[0]);
+        if (best == 0.0)
+            LOG.warn(
+                    "No block shape of level {} loaded non-uniform blocks within {} ms, falling back to {}",
+                    level,
+                    maxLatencyMillis,
+                    Arrays.toString(shapes.get(0)));
+        int choice = 0;
+        for (int i = 0; i < measurements.size(); ++i)
+            if (measurements.get(i)[1] <= maxLatencyNanos && measurements.get(i)[0] >= (1.0 - THROUGHPUT_TOLERANCE) * best) {
+                choice = i;
+                break;
+            }
+        LOG.info("Tuned block shape of level {}: {}", level, Arrays.toString(shapes.get(choice)));
+        return shapes.get(choice);
+    }
+
+    /**
+     * @return distinct shapes of about {@link #EDGE_LENGTHS} voxels along the dimension with the smallest voxels,
+     * covering the same physical extent along all other dimensions
+     */
+    private static List<int[]> candidates(final long[] dimensions, final double[] voxelSize) {
+        final double minVoxelSize = Arrays.stream(voxelSize).min().orElse(1.0);
+        final List<int[]> shapes = new ArrayList<>();
+        for (final int edgeLength : EDGE_LENGTHS) {
+            final int[] shape = new int[dimensions.length];
+            for (int d = 0; d < shape.length; ++d) {
+                final long size = Math.round(edgeLength * minVoxelSize / voxelSize[Math.min(d, voxelSize.length - 1)]);
+                shape[d] = (int) Math.max(1, Math.min(dimensions[d], Math.max(MIN_EDGE_LENGTH, size)));
+            }
+            if (shapes.isEmpty() || !Arrays.equals(shapes.get(shapes.size() - 1), shape))
+                shapes.add(shape);
+        }
+        return shapes;
+    }
+
+    /**
+     * @return up to {@link #WARM_UP_BLOCKS} + {@link #SAMPLE_BLOCKS} blocks around the center of {@code grid} that are not uniform, neighbours
+     * along dimension {@code 0} first, so that exact loaders can share intermediate results like during rendering
+     */
+    private static List<Interval> sampleBlocks(final CellGrid grid, final BlockLoader loader) throws Exception {
+        final long numBlocks = Intervals.numElements(grid.getGridDimensions());
+        final long[] center = grid.getGridDimensions();
+        for (int d = 0; d < center.length; ++d)
+            center[d] /= 2;
+        final long start = linearIndex(center, grid.getGridDimensions());
+        final List<Interval> blocks = new ArrayList<>();
+        final long[] min = new long[grid.numDimensions()];
+        final long[] max = new long[grid.numDimensions()];
+        final int[] size = new int[grid.numDimensions()];
+        for (long i = 0; i < Math.min(numBlocks, MAX_UNIFORM_CHECKS) && blocks.size() < WARM_UP_BLOCKS + SAMPLE_BLOCKS; ++i) {
+            grid.getCellDimensions((start + i) % numBlocks, min, size);
+            for (int d = 0; d < max.length; ++d)
+                max[d] = min[d] + size[d] - 1;
+            final Interval block = new FinalInterval(min, max);
+            if (!loader.uniformValue(block).isPresent())
+                blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static long linearIndex(final long[] position, final long[] dimensions) {
+        long index = 0;
+        for (int d = dimensions.length - 1; d >= 0; --d)
+            index = index * dimensions[d] + position[d];
+        return index;
+    }
+
+    private static void load(final BlockLoader loader, final Interval block) throws Exception {
+        final RandomAccessibleInterval<DoubleType> img = ArrayImgs.doubles(Intervals.dimensionsAsLongArray(block));
+        loader.load(Views.translate(img, Intervals.minAsLongArray(block)));
+    }
+
+    /**
+     * @return voxels read around a block relative to the voxels of the block
+     */
+    private static double haloOverhead(final int[] shape, final int[] halo) {
+        double block = 1.0;
+        double withHalo = 1.0;
+        for (int d = 0; d < shape.length; ++d) {
+            block *= shape[d];
+            withHalo *= shape[d] + 2 * (d < halo.length ? halo[d] : 0);
+        }
+        return withHalo / block - 1.0;
+    }
+
+    /**
+     * @return extent of a voxel along each dimension, the norms of the columns of {@code transform}
+     */
+    private static double[] voxelSize(final AffineTransform3D transform) {
+        final double[] voxelSize = new double[3];
+        for (int d = 0; d < voxelSize.length; ++d)
+            voxelSize[d] = Math.sqrt(
+                    transform.get(0, d) * transform.get(0, d)
+                            + transform.get(1, d) * transform.get(1, d)
+                            + transform.get(2, d) * transform.get(2, d));
+        return voxelSize;
+    }
+}
@@ -0,0 +1,320 @@
+package my.group;
+
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.PrimitiveType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.DoubleStream;
+
+/**
+ * Exact separable distance transform that is evaluated block by block.
+ *
+ * The passes along all but the last dimension are stored in cached "line" images whose cells span the full extent
+ * of the pass dimension, so every 1D line is transformed exactly once and shared between all blocks that need it.
+ * {@link #transformBlock(RandomAccessibleInterval)} only runs the pass along the last dimension for the requested
+ * block. Out-of-bounds samples are treated as if the input was extended by a constant {@code extension} value.
+ * Infinite input values are treated as background, i.e. they never are the closest sample.
+ *
+ * The dependency region of a block cannot be bounded: a line cell of stage {@code d} reads the cells of stage
+ * {@code d - 1} that span the full extent of dimension {@code d}, so the first block of a column along the last
+ * dimension computes stage {@code 0} over the whole volume, i.e. its cost is O(volume). Later blocks are cheap only
+ * as long as the stages stay in the cache; with a cache budget below {@link #stageBytes(Dimensions)} the stages are
+ * evicted and recomputed for every column. Use a block-local transform with a halo for large volumes instead, see
+ * {@link #fitsInCache(Dimensions, SharedCellCache.Source)}.
+ */
+public class BlockwiseDistanceTransform {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final RandomAccessibleInterval<DoubleType> input;
+
+    private final double extension;
+
+    private final DistanceTransform.DISTANCE_TYPE distanceType;
+
+    private final double[] weights;
+
+    private final int[] blockSize;
+
+    private final SharedCellCache.Source cache;
+
+    private final LoadGeneration.Token generation;
+
+    private final int numTasks;
+
+    private final RandomAccessibleInterval<DoubleType>[] stages;
+
+    /**
+     * @param input zero-min input, values are the offsets {@code f(q)} in {@code min_q f(q) + d(x, q)}
+     * @param extension value of all samples outside of {@code input}
+     * @param distanceType squared Euclidian or L1
+     * @param blockSize cross section of the cached line cells, ideally the block size of the consumer
+     * @param cache holds the cached line cells
+     * @param generation loads are cancelled when it becomes stale
+     * @param numTasks number of tasks per block on the {@link ComputePool}, {@code 1} for the calling thread only
+     * @param weights one weight per dimension, or a single weight for all dimensions
+     */
+    public BlockwiseDistanceTransform(
+            final RandomAccessibleInterval<DoubleType> input,
+            final double extension,
+            final DistanceTransform.DISTANCE_TYPE distanceType,
+            final int[] blockSize,
+            final SharedCellCache.Source cache,
+            final LoadGeneration.Token generation,
+            final int numTasks,
+            final double... weights) {
+        this.input = Views.zeroMin(input);
+        this.extension = extension;
+        this.distanceType = distanceType;
+        this.blockSize = blockSize.clone();
+        this.cache = cache;
+        this.generation = generation;
+        this.numTasks = Math.max(numTasks, 1);
+        final int nDim = input.numDimensions();
+        this.weights = weights.length == 1
+                ? DoubleStream.generate(() -> weights[0]).limit(nDim).toArray()
+                : weights.clone();
+        this.stages = new RandomAccessibleInterval[Math.max(nDim - 1, 0)];
+        RandomAccessibleInterval<DoubleType> previous = this.input;
+        for (int d = 0; d < stages.length; ++d) {
+            stages[d] = lineStage(previous, d);
+            previous = stages[d];
+        }
+    }
+
+    /**
+     * @return bytes of all cached line stages of an input of size {@code dimensions}
+     */
+    public static long stageBytes(final Dimensions dimensions) {
+        return Intervals.numElements(dimensions) * Double.BYTES * Math.max(dimensions.numDimensions() - 1, 0);
+    }
+
+    /**
+     * @return {@code true} if all line stages of an input of size {@code dimensions} fit into the budget of
+     * {@code cache}, i.e. blocks are not dominated by recomputing the stages
+     */
+    public static boolean fitsInCache(final Dimensions dimensions, final SharedCellCache.Source cache) {
+        return stageBytes(dimensions) <= cache.getBudget();
+    }
+
+    /**
+     * Fill {@code block} with the final distances, i.e. the square root is taken for {@link DistanceTransform.DISTANCE_TYPE#EUCLIDIAN}.
+     */
+    public void transformBlock(final RandomAccessibleInterval<DoubleType> block) {
+        final int lastDim = input.numDimensions() - 1;
+        final RandomAccessibleInterval<DoubleType> source = lastDim == 0 ? input : stages[lastDim - 1];
+        LOG.trace("Final pass along dimension {} for block {}", lastDim, block);
+        transformAlongDimension(source, block, lastDim, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN.equals(distanceType));
+    }
+
+    private RandomAccessibleInterval<DoubleType> lineStage(final RandomAccessible<DoubleType> source, final int dim) {
+        final long[] dimensions = Intervals.dimensionsAsLongArray(input);
+        final int[] cellDimensions = new int[dimensions.length];
+        for (int d = 0; d < cellDimensions.length; ++d)
+            cellDimensions[d] = d == dim ? (int) dimensions[d] : blockSize[d];
+        final CellGrid grid = new CellGrid(dimensions, cellDimensions);
+        final CellLoader<DoubleType> loader = cell -> transformAlongDimension(source, cell, dim, false);
+        final SharedCellCache.Partition<Long, Cell<DoubleArray>> lineCache = cache.cellCache(Double.BYTES);
+        final LoadedCellCacheLoader<DoubleType, DoubleArray> cacheLoader = LoadedCellCacheLoader.get(grid, loader, new DoubleType(), PrimitiveType.DOUBLE, AccessFlags.setOf());
+        return new CachedCellImg<>(grid, new DoubleType(), lineCache.withLoader(cacheLoader), new DoubleArray(1));
+    }
+
+    private void transformAlongDimension(
+            final RandomAccessible<DoubleType> source,
+            final RandomAccessibleInterval<DoubleType> target,
+            final int dim,
+            final boolean sqrt) {
+        final long[] min = Intervals.minAsLongArray(target);
+        final long[] max = Intervals.maxAsLongArray(target);
+        max[dim] = min[dim];
+
+        // split the lines along the longest other dimension
+        int splitDim = -1;
+        for (int d = 0; d < min.length; ++d)
+            if (d != dim && (splitDim < 0 || target.dimension(d) > target.dimension(splitDim)))
+                splitDim = d;
+        final int numChunks = splitDim < 0 ? 1 : (int) Math.min(numTasks, target.dimension(splitDim));
+        if (numChunks <= 1) {
+            transformLines(source, target, dim, sqrt, min, max);
+            return;
+        }
+
+        final List<Runnable> tasks = new ArrayList<>();
+        final long extent = target.dimension(splitDim);
+        for (int chunk = 0; chunk < numChunks; ++chunk) {
+            final long[] chunkMin = min.clone();
+            final long[] chunkMax = max.clone();
+            chunkMin[splitDim] = min[splitDim] + chunk * extent / numChunks;
+            chunkMax[splitDim] = min[splitDim] + (chunk + 1) * extent / numChunks - 1;
+            tasks.add(() -> transformLines(source, target, dim, sqrt, chunkMin, chunkMax));
+        }
+        ComputePool.invokeAll(tasks);
+    }
+
+    /**
+     * Transform all lines along {@code dim} that start in {@code [min, max]}, {@code min[dim] == max[dim]}.
+     */
+    private void transformLines(
+            final RandomAccessible<DoubleType> source,
+            final RandomAccessibleInterval<DoubleType> target,
+            final int dim,
+            final boolean sqrt,
+            final long[] min,
+            final long[] max) {
+        final int size = (int) input.dimension(dim);
+        final double weight = weights[dim];
+        final double[] line = ScratchBuffers.borrowDoubles(size);
+        final double[] transformed = ScratchBuffers.borrowDoubles(size);
+        final int[] locations = ScratchBuffers.borrowInts(size + 2);
+        final double[] values = ScratchBuffers.borrowDoubles(size + 2);
+        final double[] intersections = ScratchBuffers.borrowDoubles(size + 3);
+
+        final LocalizingIntervalIterator lines = new LocalizingIntervalIterator(min, max);
+        final long[] position = new long[min.length];
+        final RandomAccess<DoubleType> sourceAccess = source.randomAccess();
+        final double[] storage = CellArrays.storage(target);
+        final RandomAccess<DoubleType> targetAccess = storage == null ? target.randomAccess() : null;
+        long stride = 1;
+        for (int d = 0; d < dim; ++d)
+            stride *= target.dimension(d);
+
+        try {
+            while (lines.hasNext()) {
+                generation.check();
+                lines.fwd();
+                lines.localize(position);
+
+                position[dim] = 0;
+                sourceAccess.setPosition(position);
+                for (int i = 0; i < size; ++i, sourceAccess.fwd(dim))
+                    line[i] = sourceAccess.get().getRealDouble();
+
+                if (DistanceTransform.DISTANCE_TYPE.L1.equals(distanceType))
+                    l1(line, transformed, size, weight, extension);
+                else
+                    squaredEuclidian(line, transformed, size, weight, extension, locations, values, intersections);
+
+                position[dim] = target.min(dim);
+                if (storage == null) {
+                    targetAccess.setPosition(position);
+                    for (long i = target.min(dim); i <= target.max(dim); ++i, targetAccess.fwd(dim)) {
+                        final double value = transformed[(int) i];
+                        targetAccess.get().set(sqrt ? Math.sqrt(value) : value);
+                    }
+                } else {
+                    long index = 0;
+                    for (int d = target.numDimensions() - 1; d >= 0; --d)
+                        index = index * target.dimension(d) + position[d] - target.min(d);
+                    for (long i = target.min(dim); i <= target.max(dim); ++i, index += stride) {
+                        final double value = transformed[(int) i];
+                        storage[(int) index] = sqrt ? Math.sqrt(value) : value;
+                    }
+                }
+            }
+        } finally {
+            ScratchBuffers.release(line);
+            ScratchBuffers.release(transformed);
+            ScratchBuffers.release(locations);
+            ScratchBuffers.release(values);
+            ScratchBuffers.release(intersections);
+        }
+    }
+
+    /**
+     * Lower envelope of parabolas (Felzenszwalb and Huttenlocher) with the extension as virtual samples at
+     * {@code -1} and {@code size}.
+     */
+    static void squaredEuclidian(
+            final double[] f,
+            final double[] d,
+            final int size,
+            final double w,
+            final double boundary,
+            final int[] locations,
+            final double[] values,
+            final double[] intersections) {
+        int k = -1;
+        for (int q = -1; q <= size; ++q) {
+            final double fq = q < 0 || q >= size ? boundary : f[q];
+            if (Double.isInfinite(fq) || Double.isNaN(fq))
+                continue;
+            if (k < 0) {
+                k = 0;
+                locations[0] = q;
+                values[0] = fq;
+                intersections[0] = Double.NEGATIVE_INFINITY;
+                intersections[1] = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            double s = intersection(locations[k], values[k], q, fq, w);
+            while (s <= intersections[k]) {
+                // intersections[0] is negative infinity, so this terminates at k == 0
+                --k;
+                s = intersection(locations[k], values[k], q, fq, w);
+            }
+            ++k;
+            locations[k] = q;
+            values[k] = fq;
+            intersections[k] = s;
+            intersections[k + 1] = Double.POSITIVE_INFINITY;
+        }
+
+        if (k < 0) {
+            Arrays.fill(d, Double.POSITIVE_INFINITY);
+            return;
+        }
+
+        for (int x = 0, j = 0; x < size; ++x) {
+            while (intersections[j + 1] < x)
+                ++j;
+            final double diff = x - locations[j];
+            d[x] = w * diff * diff + values[j];
+        }
+    }
+
+    private static double intersection(final int p, final double fp, final int q, final double fq, final double w) {
+        return ((fq + w * q * q) - (fp + w * p * p)) / (2 * w * (q - p));
+    }
+
+    /**
+     * Forward and backward pass for weighted L1 distance with the extension as virtual samples at {@code -1} and
+     * {@code size}.
+     */
+    static void l1(
+            final double[] f,
+            final double[] d,
+            final int size,
+            final double w,
+            final double boundary) {
+        double previous = boundary;
+        for (int x = 0; x < size; ++x) {
+            previous = Math.min(f[x], previous + w);
+            d[x] = previous;
+        }
+        previous = boundary;
+        for (int x = size - 1; x >= 0; --x) {
+            previous = Math.min(d[x], previous + w);
+            d[x] = previous;
+        }
+    }
+}
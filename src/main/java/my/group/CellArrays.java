@@ -0,0 +1,75 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Direct access to the primitive storage of cells and fused copy-out from flat scratch arrays.
+ */
+public class CellArrays {
+
+    private CellArrays() {
+    }
+
+    /**
+     * @return the primitive array that backs {@code block} in flat iteration order, or {@code null} if {@code block}
+     * is not a single array, e.g. a converted view for {@link StorageType#FLOAT32}.
+     */
+    public static double[] storage(final RandomAccessibleInterval<DoubleType> block) {
+        if (!(block instanceof NativeImg<?, ?>))
+            return null;
+        final Object access = ((NativeImg<?, ?>) block).update(null);
+        if (!(access instanceof ArrayDataAccess<?>))
+            return null;
+        final Object storage = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+        return storage instanceof double[] && ((double[]) storage).length == Intervals.numElements(block)
+                ? (double[]) storage
+                : null;
+    }
+
+    /**
+     * Copy the part of the flat {@code source} array with extent {@code sourceInterval} that overlaps with
+     * {@code target} into {@code target}, optionally taking the square root on the way.
+     */
+    public static void copy(
+            final double[] source,
+            final Interval sourceInterval,
+            final RandomAccessibleInterval<DoubleType> target,
+            final boolean sqrt) {
+        final int n = target.numDimensions();
+        final long[] strides = new long[n];
+        strides[0] = 1;
+        for (int d = 1; d < n; ++d)
+            strides[d] = strides[d - 1] * sourceInterval.dimension(d - 1);
+
+        final double[] storage = storage(target);
+        final Cursor<DoubleType> cursor = storage == null ? Views.flatIterable(target).cursor() : null;
+        final long[] position = Intervals.minAsLongArray(target);
+        final int lineLength = (int) target.dimension(0);
+        final long numLines = Intervals.numElements(target) / lineLength;
+
+        for (long line = 0, targetIndex = 0; line < numLines; ++line) {
+            long sourceIndex = 0;
+            for (int d = 0; d < n; ++d)
+                sourceIndex += (position[d] - sourceInterval.min(d)) * strides[d];
+            for (int x = 0; x < lineLength; ++x, ++targetIndex) {
+                final double value = sqrt ? Math.sqrt(source[(int) sourceIndex + x]) : source[(int) sourceIndex + x];
+                if (storage == null)
+                    cursor.next().set(value);
+                else
+                    storage[(int) targetIndex] = value;
+            }
+            for (int d = 1; d < n; ++d) {
+                if (++position[d] <= target.max(d))
+                    break;
+                position[d] = target.min(d);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package my.group;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+
+/**
+ * Codec of the disk tier of feature sources. {@link #NONE} spills cells that are evicted from memory to raw files of a
+ * session-local {@link net.imglib2.cache.img.DiskCachedCellImg} and persists them with LZ4. All other codecs keep only
+ * a memory cache and read evicted cells back from the compressed {@link PersistentBlockCache persistent tier}.
+ *
+ * {@link #SHUFFLE_LZ4} transposes the bytes of all values of a block before compression, so that the sign, exponent and
+ * high mantissa bytes, which vary slowly in smooth feature data, form long runs. Shuffled blocks are stored as
+ * {@link DataType#INT32}/{@link DataType#INT64} datasets that hold the bit patterns of the values.
+ */
+public enum CellCompression {
+
+    NONE,
+    LZ4,
+    SHUFFLE_LZ4,
+    GZIP;
+
+    public static CellCompression orDefault(final CellCompression compression) {
+        return compression == null ? NONE : compression;
+    }
+
+    public boolean usesSessionDiskCache() {
+        return this == NONE;
+    }
+
+    public Compression n5Compression() {
+        return this == GZIP ? new GzipCompression() : new Lz4Compression();
+    }
+
+    /**
+     * @param valueType {@link DataType#FLOAT64} or {@link DataType#FLOAT32}
+     * @return data type of the datasets that store blocks of {@code valueType}
+     */
+    public DataType storedType(final DataType valueType) {
+        if (this != SHUFFLE_LZ4)
+            return valueType;
+        return DataType.FLOAT32.equals(valueType) ? DataType.INT32 : DataType.INT64;
+    }
+
+    public DataBlock<?> encode(final int[] size, final long[] gridPosition, final float[] values) {
+        return this == SHUFFLE_LZ4
+                ? new IntArrayDataBlock(size, gridPosition, shuffle(values))
+                : new FloatArrayDataBlock(size, gridPosition, values);
+    }
+
+    public DataBlock<?> encode(final int[] size, final long[] gridPosition, final double[] values) {
+        return this == SHUFFLE_LZ4
+                ? new LongArrayDataBlock(size, gridPosition, shuffle(values))
+                : new DoubleArrayDataBlock(size, gridPosition, values);
+    }
+
+    /**
+     * @return {@code float[]} or {@code double[]} values of {@code block}
+     */
+    public Object decode(final DataBlock<?> block) {
+        final Object data = block.getData();
+        if (data instanceof int[])
+            return unshuffle((int[]) data);
+        if (data instanceof long[])
+            return unshuffle((long[]) data);
+        return data;
+    }
+
+    /**
+     * Byte {@code b} (most significant first) of value {@code i} moves to byte {@code b * values.length + i} of the
+     * big-endian representation of the result.
+     */
+    static int[] shuffle(final float[] values) {
+        final int n = values.length;
+        final int[] shuffled = new int[n];
+        for (int i = 0; i < n; ++i) {
+            final int bits = Float.floatToRawIntBits(values[i]);
+            for (int b = 0; b < 4; ++b) {
+                final int position = b * n + i;
+                shuffled[position >> 2] |= ((bits >>> (24 - 8 * b)) & 0xff) << (24 - 8 * (position & 3));
+            }
+        }
+        return shuffled;
+    }
+
+    static float[] unshuffle(final int[] shuffled) {
+        final int n = shuffled.length;
+        final float[] values = new float[n];
+        for (int i = 0; i < n; ++i) {
+            int bits = 0;
+            for (int b = 0; b < 4; ++b) {
+                final int position = b * n + i;
+                bits |= ((shuffled[position >> 2] >>> (24 - 8 * (position & 3))) & 0xff) << (24 - 8 * b);
+            }
+            values[i] = Float.intBitsToFloat(bits);
+        }
+        return values;
+    }
+
+    static long[] shuffle(final double[] values) {
+        final int n = values.length;
+        final long[] shuffled = new long[n];
+        for (int i = 0; i < n; ++i) {
+            final long bits = Double.doubleToRawLongBits(values[i]);
+            for (int b = 0; b < 8; ++b) {
+                final int position = b * n + i;
+                shuffled[position >> 3] |= ((bits >>> (56 - 8 * b)) & 0xffL) << (56 - 8 * (position & 7));
+            }
+        }
+        return shuffled;
+    }
+
+    static double[] unshuffle(final long[] shuffled) {
+        final int n = shuffled.length;
+        final double[] values = new double[n];
+        for (int i = 0; i < n; ++i) {
+            long bits = 0;
+            for (int b = 0; b < 8; ++b) {
+                final int position = b * n + i;
+                bits |= ((shuffled[position >> 3] >>> (56 - 8 * (position & 7))) & 0xffL) << (56 - 8 * b);
+            }
+            values[i] = Double.longBitsToDouble(bits);
+        }
+        return values;
+    }
+}
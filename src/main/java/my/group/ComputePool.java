@@ -0,0 +1,117 @@
+package my.group;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded fork-join pool, by default sized to half of the cores, that is shared by all derived sources for
+ * intra-block parallelism. Blocks themselves are loaded concurrently by the {@link DerivedSourceScheduler scheduler},
+ * so the number of tasks per block determines how the pool is divided between intra-block work and concurrent blocks.
+ * The scheduler {@link #call(Callable) computes} its blocks on the pool as well, so the parallelism of the pool bounds
+ * the cores that derived sources use.
+ */
+public class ComputePool {
+
+    public static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Initial parallelism of the pool, the same as the number of threads of the
+     * {@link DerivedSourceScheduler#global() global scheduler}: {@link DerivedSourceScheduler#THREADS_PROPERTY} or half
+     * of the cores.
+     */
+    public static final int DEFAULT_PARALLELISM = Math.max(1, Integer.getInteger(DerivedSourceScheduler.THREADS_PROPERTY, PARALLELISM / 2));
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static volatile ForkJoinPool pool = createPool(DEFAULT_PARALLELISM);
+
+    private ComputePool() {
+    }
+
+    public static ForkJoinPool get() {
+        return pool;
+    }
+
+    /**
+     * @return whether the current thread is a worker of this or of a previous pool
+     */
+    public static boolean isWorker() {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * Replace the pool with a pool of {@code parallelism} threads. Tasks that were submitted to the previous pool
+     * complete on it.
+     */
+    public static synchronized void setParallelism(final int parallelism) {
+        if (parallelism == pool.getParallelism())
+            return;
+        final ForkJoinPool previous = pool;
+        pool = createPool(parallelism);
+        previous.shutdown();
+    }
+
+    private static ForkJoinPool createPool(final int parallelism) {
+        return new ForkJoinPool(
+                parallelism,
+                forkJoinPool -> {
+                    final ForkJoinWorkerThread t = new Worker(forkJoinPool);
+                    t.setName("derived-source-compute-" + THREAD_COUNT.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                null,
+                false);
+    }
+
+    /**
+     * Run {@code task} on the shared pool and wait for it, or directly if the current thread is a worker of the pool.
+     * Exceptions of the task are rethrown.
+     */
+    public static <V> V call(final Callable<V> task) throws Exception {
+        if (isWorker())
+            return task.call();
+        try {
+            return pool.submit(task).get();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Run all {@code tasks} on the shared pool and wait for them. Joins from within pool threads help with the work
+     * instead of blocking, so nested calls, e.g. a block that triggers loading another cached block, do not starve
+     * the pool. Exceptions of the tasks are rethrown.
+     */
+    public static void invokeAll(final List<? extends Runnable> tasks) {
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+            return;
+        }
+        final List<ForkJoinTask<?>> forkJoinTasks = tasks.stream().map(ForkJoinTask::adapt).collect(Collectors.toList());
+        final ForkJoinPool current = pool;
+        if (ForkJoinTask.getPool() == current)
+            ForkJoinTask.invokeAll(forkJoinTasks);
+        else
+            current.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(forkJoinTasks);
+                }
+            });
+    }
+
+    private static class Worker extends ForkJoinWorkerThread {
+
+        private Worker(final ForkJoinPool pool) {
+            super(pool);
+        }
+    }
+}
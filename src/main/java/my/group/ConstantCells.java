@@ -0,0 +1,166 @@
+package my.group;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileDoubleAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileFloatAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileShortAccess;
+
+/**
+ * Read-only accesses that hold a single value for all voxels of a cell. Cells of uniform blocks use them instead of a
+ * dense array, so that background costs neither compute nor cache memory. {@link #invalid Invalid} constant cells stand
+ * in for blocks that were not computed.
+ */
+public class ConstantCells {
+
+    /**
+     * Weight of a constant cell in a {@link SharedCellCache}, independent of its size.
+     */
+    public static final long BYTES = 64;
+
+    private ConstantCells() {
+    }
+
+    /**
+     * Marker of constant accesses.
+     */
+    public interface Constant {
+
+    }
+
+    public static boolean isConstant(final Object access) {
+        return access instanceof Constant;
+    }
+
+    /**
+     * @param stored value in the primitive type of {@code storageType}, i.e. quantized for {@link StorageType#INT16}
+     */
+    public static Object access(final StorageType storageType, final double stored) {
+        switch (storageType) {
+            case FLOAT32:
+                return new FloatAccess((float) stored);
+            case INT16:
+                return new ShortAccess((short) stored);
+            default:
+                return new DoubleAccess(stored);
+        }
+    }
+
+    /**
+     * @return access of a cell whose block was not computed, e.g. because it was
+     * {@link BlockCancelledException cancelled}. Such cells are never cached.
+     */
+    public static Object invalid(final StorageType storageType) {
+        switch (storageType) {
+            case FLOAT32:
+                return new FloatAccess(0.0f, false);
+            case INT16:
+                return new ShortAccess((short) 0, false);
+            default:
+                return new DoubleAccess(0.0, false);
+        }
+    }
+
+    /**
+     * @return whether {@code access} holds computed data, i.e. it is not volatile or it is valid
+     */
+    public static boolean isValid(final Object access) {
+        return !(access instanceof VolatileAccess) || ((VolatileAccess) access).isValid();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Constant cells are read-only");
+    }
+
+    public static class DoubleAccess implements VolatileDoubleAccess, Constant {
+
+        private final double value;
+
+        private final boolean valid;
+
+        public DoubleAccess(final double value) {
+            this(value, true);
+        }
+
+        public DoubleAccess(final double value, final boolean valid) {
+            this.value = value;
+            this.valid = valid;
+        }
+
+        @Override
+        public double getValue(final int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(final int index, final double value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    public static class FloatAccess implements VolatileFloatAccess, Constant {
+
+        private final float value;
+
+        private final boolean valid;
+
+        public FloatAccess(final float value) {
+            this(value, true);
+        }
+
+        public FloatAccess(final float value, final boolean valid) {
+            this.value = value;
+            this.valid = valid;
+        }
+
+        @Override
+        public float getValue(final int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(final int index, final float value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    public static class ShortAccess implements VolatileShortAccess, Constant {
+
+        private final short value;
+
+        private final boolean valid;
+
+        public ShortAccess(final short value) {
+            this(value, true);
+        }
+
+        public ShortAccess(final short value, final boolean valid) {
+            this.value = value;
+            this.valid = valid;
+        }
+
+        @Override
+        public short getValue(final int index) {
+            return value;
+        }
+
+        @Override
+        public void setValue(final int index, final short value) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+    }
+}
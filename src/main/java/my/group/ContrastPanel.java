@@ -0,0 +1,83 @@
+package my.group;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.scene.Node;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.layout.GridPane;
+import org.janelia.saalfeldlab.fx.Labels;
+import org.janelia.saalfeldlab.fx.TitledPanes;
+import org.janelia.saalfeldlab.fx.ui.NumberField;
+import org.janelia.saalfeldlab.fx.ui.ObjectField;
+import org.janelia.saalfeldlab.paintera.ui.BindUnbindAndNodeSupplier;
+
+/**
+ * Controls of the {@link AutoContrast} of a derived source.
+ */
+public class ContrastPanel implements BindUnbindAndNodeSupplier {
+
+    private final AutoContrast autoContrast;
+
+    private final BooleanProperty enabled = new SimpleBooleanProperty(false);
+
+    private final DoubleProperty lowerPercentile = new SimpleDoubleProperty(AutoContrast.DEFAULT_LOWER_PERCENTILE);
+
+    private final DoubleProperty upperPercentile = new SimpleDoubleProperty(AutoContrast.DEFAULT_UPPER_PERCENTILE);
+
+    public ContrastPanel(final AutoContrast autoContrast) {
+        this.autoContrast = autoContrast;
+    }
+
+    @Override
+    public Node get() {
+        final GridPane gp = new GridPane();
+        final Label enabled = Labels.withTooltip("Auto Contrast", "Set the display range to percentiles of the values of the blocks that were loaded so far. Overrides manual changes of the range.");
+        final Label percentiles = Labels.withTooltip("Percentiles", "Lower and upper percentile of the values that are mapped to the minimum and maximum of the display range");
+
+        final CheckBox enabledBox = new CheckBox();
+        bind(enabledBox.selectedProperty(), this.enabled);
+
+        final NumberField<DoubleProperty> lowerField = NumberField.doubleField(this.lowerPercentile.get(), p -> p >= 0 && p <= 100, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(lowerField.valueProperty(), this.lowerPercentile);
+        final NumberField<DoubleProperty> upperField = NumberField.doubleField(this.upperPercentile.get(), p -> p >= 0 && p <= 100, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(upperField.valueProperty(), this.upperPercentile);
+        lowerField.textField().disableProperty().bind(enabledBox.selectedProperty().not());
+        upperField.textField().disableProperty().bind(enabledBox.selectedProperty().not());
+
+        gp.add(enabled, 0, 0);
+        gp.add(enabledBox, 3, 0);
+
+        gp.add(percentiles, 0, 1);
+        gp.add(lowerField.textField(), 2, 1);
+        gp.add(upperField.textField(), 3, 1);
+
+        return TitledPanes.createCollapsed("Contrast", gp);
+    }
+
+    @Override
+    public void bind() {
+        bind(this.enabled, autoContrast.enabledProperty());
+        bind(this.lowerPercentile, autoContrast.lowerPercentileProperty());
+        bind(this.upperPercentile, autoContrast.upperPercentileProperty());
+    }
+
+    @Override
+    public void unbind() {
+        this.enabled.unbindBidirectional(autoContrast.enabledProperty());
+        this.lowerPercentile.unbindBidirectional(autoContrast.lowerPercentileProperty());
+        this.upperPercentile.unbindBidirectional(autoContrast.upperPercentileProperty());
+    }
+
+    private void bind(final BooleanProperty property, final BooleanProperty to) {
+        property.bindBidirectional(to);
+        property.set(to.get());
+    }
+
+    private void bind(final DoubleProperty property, final DoubleProperty to) {
+        property.bindBidirectional(to);
+        property.set(to.get());
+    }
+}
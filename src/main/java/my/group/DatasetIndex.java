@@ -0,0 +1,475 @@
+package my.group;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Datasets and multi-scale groups of the N5 containers and HDF5 files below a directory, found by a parallel scan of
+ * the directory tree and remembered in a small JSON index in the project directory. Rescans are incremental: the
+ * attributes of N5 directories and the contents of HDF5 files are only read again if they were modified since they
+ * were indexed. Directories are listed to find new containers, but never the blocks of a dataset.
+ *
+ * Multi-scale groups are groups with datasets {@code s0, s1, ...}, they replace their levels in the
+ * {@link #datasets(Path) results}. Zarr arrays are not indexed, there is no Zarr reader to open them.
+ */
+public class DatasetIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String INDEX_FILE = "dataset-index.json";
+
+    public static final String THREADS_PROPERTY = "my.group.discovery.threads";
+
+    private static final int VERSION = 2;
+
+    private static final String ATTRIBUTES_FILE = "attributes.json";
+
+    private static final String ZARR_ARRAY_FILE = ".zarray";
+
+    private static final Pattern SCALE_LEVEL = Pattern.compile("s\\d+");
+
+    private static final List<String> HDF5_EXTENSIONS = Arrays.asList(".h5", ".hdf5", ".hdf");
+
+    private static final Gson GSON = new Gson();
+
+    public enum Format {
+        N5,
+        HDF5
+    }
+
+    /**
+     * A dataset or multi-scale group in a container.
+     */
+    public static class Dataset {
+
+        private final Format format;
+
+        private final String container;
+
+        private final String path;
+
+        private final long[] dimensions;
+
+        private final String dataType;
+
+        private final int numScales;
+
+        /**
+         * @param container  absolute path of the N5 root directory or of the HDF5 file
+         * @param dimensions of the dataset, of {@code s0} for multi-scale groups
+         * @param numScales  number of levels of a multi-scale group, {@code 0} for a dataset
+         */
+        public Dataset(
+                final Format format,
+                final String container,
+                final String path,
+                final long[] dimensions,
+                final String dataType,
+                final int numScales) {
+            this.format = format;
+            this.container = container;
+            this.path = path;
+            this.dimensions = dimensions.clone();
+            this.dataType = dataType;
+            this.numScales = numScales;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public String getContainer() {
+            return container;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long[] getDimensions() {
+            return dimensions.clone();
+        }
+
+        public String getDataType() {
+            return dataType;
+        }
+
+        public boolean isMultiScale() {
+            return numScales > 0;
+        }
+
+        public int getNumScales() {
+            return numScales;
+        }
+
+        /**
+         * @return last element of the path, e.g. as the name of a source
+         */
+        public String getName() {
+            final String[] elements = path.split("/");
+            return elements.length == 0 ? Paths.get(container).getFileName().toString() : elements[elements.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s : %s  %s %s%s",
+                    container,
+                    path,
+                    Arrays.toString(dimensions),
+                    dataType,
+                    isMultiScale() ? "  (" + numScales + " scales)" : "");
+        }
+    }
+
+    /**
+     * Datasets described by a file, i.e. an N5 attributes file or an HDF5 file, at the time it was modified last.
+     */
+    private static class Entry {
+
+        private final long modified;
+
+        private final long size;
+
+        private final List<Dataset> datasets;
+
+        private Entry(final long modified, final long size, final List<Dataset> datasets) {
+            this.modified = modified;
+            this.size = size;
+            this.datasets = datasets;
+        }
+    }
+
+    private static class IndexFile {
+
+        private int version = VERSION;
+
+        private String lastRoot = null;
+
+        private Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private final Path indexFile;
+
+    private IndexFile index = null;
+
+    /**
+     * @param directory of the index, e.g. the project directory
+     */
+    public DatasetIndex(final String directory) {
+        this.indexFile = Paths.get(directory, INDEX_FILE).toAbsolutePath().normalize();
+    }
+
+    public static int defaultNumThreads() {
+        return Integer.getInteger(THREADS_PROPERTY, 2 * ComputePool.PARALLELISM);
+    }
+
+    /**
+     * @return directory of the last {@link #scan(Path, int) scan}, or {@code null}
+     */
+    public synchronized String getLastRoot() {
+        return index().lastRoot;
+    }
+
+    /**
+     * @return datasets below {@code root} as of the last scan, without scanning
+     */
+    public synchronized List<Dataset> datasets(final Path root) {
+        final Path normalized = root.toAbsolutePath().normalize();
+        final List<Dataset> datasets = index()
+                .entries
+                .entrySet()
+                .stream()
+                .filter(entry -> Paths.get(entry.getKey()).startsWith(normalized))
+                .flatMap(entry -> entry.getValue().datasets.stream())
+                .collect(Collectors.toList());
+        return withMultiScaleGroups(datasets);
+    }
+
+    /**
+     * Scan {@code root} on {@code numThreads} threads and store the results in the index file.
+     *
+     * @return datasets below {@code root}
+     */
+    public List<Dataset> scan(final Path root, final int numThreads) throws IOException {
+        final Path normalized = root.toAbsolutePath().normalize();
+        if (!Files.isDirectory(normalized))
+            throw new IOException(normalized + " is not a directory");
+        final Map<String, Entry> previous;
+        synchronized (this) {
+            previous = new HashMap<>(index().entries);
+        }
+
+        final long start = System.currentTimeMillis();
+        final Map<String, Entry> found = new ConcurrentHashMap<>();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(numThreads, 1));
+        try {
+            pool.invoke(new DirectoryScan(normalized, null, previous, found));
+        } finally {
+            pool.shutdown();
+        }
+        LOG.info("Scanned {} in {} ms, {} containers and attribute files", normalized, System.currentTimeMillis() - start, found.size());
+
+        synchronized (this) {
+            final IndexFile index = index();
+            index.entries.keySet().removeIf(key -> Paths.get(key).startsWith(normalized));
+            index.entries.putAll(found);
+            index.lastRoot = normalized.toString();
+            save(index);
+        }
+        return datasets(normalized);
+    }
+
+    private IndexFile index() {
+        if (index == null)
+            index = load();
+        return index;
+    }
+
+    private IndexFile load() {
+        if (Files.isRegularFile(indexFile)) {
+            try (final Reader reader = Files.newBufferedReader(indexFile)) {
+                final IndexFile index = GSON.fromJson(reader, IndexFile.class);
+                if (index != null && index.version == VERSION && index.entries != null)
+                    return index;
+                LOG.info("Ignoring dataset index {} of an unknown version", indexFile);
+            } catch (final IOException | JsonParseException e) {
+                LOG.warn("Unable to read dataset index {}, scanning from scratch", indexFile, e);
+            }
+        }
+        return new IndexFile();
+    }
+
+    private void save(final IndexFile index) {
+        try {
+            Files.createDirectories(indexFile.getParent());
+            final Path tmp = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+            try (final Writer writer = Files.newBufferedWriter(tmp)) {
+                GSON.toJson(index, writer);
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOG.warn("Unable to write dataset index {}", indexFile, e);
+        }
+    }
+
+    /**
+     * Scans a directory and its sub-directories concurrently.
+     */
+    private static class DirectoryScan extends RecursiveAction {
+
+        private final Path directory;
+
+        private final Path container;
+
+        private final Map<String, Entry> previous;
+
+        private final Map<String, Entry> found;
+
+        /**
+         * @param container root of the N5 container that {@code directory} is part of, {@code null} if none
+         */
+        private DirectoryScan(final Path directory, final Path container, final Map<String, Entry> previous, final Map<String, Entry> found) {
+            this.directory = directory;
+            this.container = container;
+            this.previous = previous;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            // the chunks of Zarr arrays are not listed either
+            if (Files.exists(directory.resolve(ZARR_ARRAY_FILE)))
+                return;
+
+            final Path attributes = directory.resolve(ATTRIBUTES_FILE);
+            final boolean hasAttributes = Files.isRegularFile(attributes);
+            final Path container = this.container == null && hasAttributes ? directory : this.container;
+            if (hasAttributes) {
+                final Entry entry = entry(attributes, () -> readN5(this.container, directory, attributes));
+                if (entry != null) {
+                    found.put(attributes.toString(), entry);
+                    // never list the blocks of a dataset
+                    if (!entry.datasets.isEmpty())
+                        return;
+                }
+            }
+
+            final List<DirectoryScan> children = new ArrayList<>();
+            try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (final Path child : stream) {
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                        children.add(new DirectoryScan(child, container, previous, found));
+                    else if (isHdf5(child)) {
+                        final Entry entry = entry(child, () -> readHdf5(child));
+                        if (entry != null)
+                            found.put(child.toString(), entry);
+                    }
+                }
+            } catch (final IOException e) {
+                LOG.debug("Unable to list {}", directory, e);
+            }
+            invokeAll(children);
+        }
+
+        /**
+         * @return indexed entry of {@code file} if it was not modified since, a new entry otherwise, {@code null} if
+         * {@code file} cannot be read
+         */
+        private Entry entry(final Path file, final Callable<List<Dataset>> read) {
+            try {
+                final long modified = Files.getLastModifiedTime(file).toMillis();
+                final long size = Files.size(file);
+                final Entry indexed = previous.get(file.toString());
+                if (indexed != null && indexed.modified == modified && indexed.size == size)
+                    return indexed;
+                return new Entry(modified, size, read.call());
+            } catch (final Exception e) {
+                LOG.debug("Unable to index {}", file, e);
+                return null;
+            }
+        }
+    }
+
+    private static boolean isHdf5(final Path file) {
+        final String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return HDF5_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    /**
+     * @param container root of the N5 container, {@code null} if no directory above has attributes. The container
+     *                  of a dataset is then the directory that contains it, so that the levels of a multi-scale group
+     *                  still share their container.
+     * @return the dataset that {@code attributes} describe, if any
+     */
+    private static List<Dataset> readN5(final Path container, final Path directory, final Path attributes) throws IOException {
+        final JsonObject json;
+        try (final Reader reader = Files.newBufferedReader(attributes)) {
+            final JsonElement element = new JsonParser().parse(reader);
+            if (!element.isJsonObject())
+                return Collections.emptyList();
+            json = element.getAsJsonObject();
+        } catch (final JsonParseException e) {
+            throw new IOException("Invalid attributes in " + attributes, e);
+        }
+        if (!json.has("dimensions") || !json.has("dataType"))
+            return Collections.emptyList();
+        final JsonArray dimensionsArray = json.getAsJsonArray("dimensions");
+        final long[] dimensions = new long[dimensionsArray.size()];
+        for (int d = 0; d < dimensions.length; ++d)
+            dimensions[d] = dimensionsArray.get(d).getAsLong();
+        final Path root = container == null ? directory.getParent() : container;
+        return Collections.singletonList(new Dataset(
+                Format.N5,
+                root == null ? directory.toString() : root.toString(),
+                root == null ? "/" : n5Path(root, directory),
+                dimensions,
+                json.get("dataType").getAsString(),
+                0));
+    }
+
+    private static String n5Path(final Path container, final Path directory) {
+        final List<String> elements = new ArrayList<>();
+        for (final Path element : container.relativize(directory))
+            if (!element.toString().isEmpty())
+                elements.add(element.toString());
+        return "/" + String.join("/", elements);
+    }
+
+    /**
+     * @return all datasets in the HDF5 file {@code file}
+     */
+    private static List<Dataset> readHdf5(final Path file) throws IOException {
+        final N5HDF5Reader hdf5 = new N5HDF5Reader(file.toString());
+        try {
+            final List<Dataset> datasets = new ArrayList<>();
+            addHdf5Datasets(hdf5, file.toString(), "/", datasets);
+            return datasets;
+        } finally {
+            hdf5.close();
+        }
+    }
+
+    private static void addHdf5Datasets(final N5HDF5Reader hdf5, final String file, final String group, final List<Dataset> datasets) throws IOException {
+        for (final String child : hdf5.list(group)) {
+            final String path = group.endsWith("/") ? group + child : group + "/" + child;
+            if (hdf5.datasetExists(path)) {
+                final DatasetAttributes attributes = hdf5.getDatasetAttributes(path);
+                datasets.add(new Dataset(Format.HDF5, file, path, attributes.getDimensions(), attributes.getDataType().toString(), 0));
+            } else
+                addHdf5Datasets(hdf5, file, path, datasets);
+        }
+    }
+
+    /**
+     * @return {@code datasets} where the levels {@code s0, s1, ...} of a group are replaced by the group, sorted by
+     * container and path
+     */
+    private static List<Dataset> withMultiScaleGroups(final List<Dataset> datasets) {
+        final Map<List<String>, Map<Integer, Dataset>> groups = new HashMap<>();
+        final List<Dataset> result = new ArrayList<>();
+        for (final Dataset dataset : datasets) {
+            final int separator = dataset.path.lastIndexOf('/');
+            final String name = dataset.path.substring(separator + 1);
+            if (separator >= 0 && SCALE_LEVEL.matcher(name).matches())
+                groups
+                        .computeIfAbsent(Arrays.asList(dataset.container, dataset.path.substring(0, separator)), g -> new TreeMap<>())
+                        .put(Integer.parseInt(name.substring(1)), dataset);
+            else
+                result.add(dataset);
+        }
+        for (final Map.Entry<List<String>, Map<Integer, Dataset>> group : groups.entrySet()) {
+            final Map<Integer, Dataset> levels = group.getValue();
+            int numScales = 0;
+            while (levels.containsKey(numScales))
+                ++numScales;
+            if (numScales == 0) {
+                result.addAll(levels.values());
+                continue;
+            }
+            final Dataset s0 = levels.get(0);
+            final String path = group.getKey().get(1);
+            result.add(new Dataset(s0.format, s0.container, path.isEmpty() ? "/" : path, s0.dimensions, s0.dataType, numScales));
+            // levels beyond a gap are not part of the group
+            for (final Map.Entry<Integer, Dataset> level : levels.entrySet())
+                if (level.getKey() >= numScales)
+                    result.add(level.getValue());
+        }
+        result.sort(Comparator.comparing(Dataset::getContainer).thenComparing(Dataset::getPath));
+        return result;
+    }
+}
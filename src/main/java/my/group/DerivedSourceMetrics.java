@@ -0,0 +1,581 @@
+package my.group;
+
+import bdv.viewer.Source;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.collections.ObservableList;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+import org.janelia.saalfeldlab.paintera.PainteraBaseView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of a derived source that are cheap enough to stay on: per level cache hits, misses and evictions, bytes
+ * in memory, requested blocks that are not loaded yet, and histograms of the time per block spent on I/O, on
+ * computing and in total. I/O is reading inputs and reading or writing persisted blocks; readers report it with
+ * {@link #addIoNanos(long)} on the thread that loads a block, the {@link DerivedSourceScheduler scheduler} carries the
+ * block to its compute threads.
+ *
+ * {@link #register() Registered} metrics are available through JMX as {@code my.group:type=DerivedSource,name=...}.
+ */
+public class DerivedSourceMetrics implements DerivedSourceMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String DOMAIN = "my.group";
+
+    private static final long DISK_BYTES_REFRESH_MILLIS = 10000;
+
+    private static final ThreadLocal<Block> CURRENT = new ThreadLocal<>();
+
+    private static final ExecutorService DISK_BYTES_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "derived-source-metrics-disk");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile String name = null;
+
+    private final Map<Integer, Level> levels = new ConcurrentSkipListMap<>();
+
+    private volatile LongSupplier diskBytes = () -> 0L;
+
+    private final AtomicLong cachedDiskBytes = new AtomicLong();
+
+    private final AtomicLong diskBytesUpdated = new AtomicLong(Long.MIN_VALUE);
+
+    private final AtomicBoolean diskBytesUpdating = new AtomicBoolean();
+
+    private ObjectName objectName = null;
+
+    /**
+     * A block that is loaded on the current thread.
+     */
+    public static final class Block {
+
+        private long ioNanos = 0;
+
+        private boolean fromDisk = false;
+
+        private int diskWrites = 0;
+
+        private Block() {
+        }
+    }
+
+    /**
+     * Register with the platform MBean server, e.g. under the name of the source state. Sources with equal names are
+     * told apart by a suffix. Registering again has no effect.
+     */
+    public synchronized void register(final String name) {
+        if (objectName != null)
+            return;
+        this.name = name;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (int i = 0; objectName == null; ++i) {
+                final ObjectName candidate = new ObjectName(DOMAIN, properties(i == 0 ? name : name + " (" + i + ")"));
+                if (!server.isRegistered(candidate)) {
+                    server.registerMBean(this, candidate);
+                    objectName = candidate;
+                }
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register metrics of {} with JMX", name, e);
+        }
+    }
+
+    /**
+     * {@link #register(String) Register} for as long as {@code source} is one of the sources of {@code paintera}, and
+     * {@link #unregister()} when it is removed.
+     */
+    public void registerWhileAdded(final PainteraBaseView paintera, final Source<?> source, final String name) {
+        register(name);
+        final ObservableList<Source<?>> sources = paintera.sourceInfo().trackSources();
+        sources.addListener(new InvalidationListener() {
+            @Override
+            public void invalidated(final Observable observable) {
+                if (!sources.contains(source)) {
+                    unregister();
+                    sources.removeListener(this);
+                }
+            }
+        });
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (final JMException e) {
+            LOG.debug("Unable to unregister metrics of {}", name, e);
+        }
+        objectName = null;
+    }
+
+    private static Hashtable<String, String> properties(final String name) {
+        final Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "DerivedSource");
+        properties.put("name", ObjectName.quote(name));
+        return properties;
+    }
+
+    public Level level(final int level) {
+        return levels.computeIfAbsent(level, Level::new);
+    }
+
+    /**
+     * @param diskBytes size of the persisted blocks of this source, may be expensive, it is evaluated in the background
+     *                  at most every {@link #DISK_BYTES_REFRESH_MILLIS} ms
+     */
+    public void setDiskBytes(final LongSupplier diskBytes) {
+        this.diskBytes = diskBytes;
+        diskBytesUpdated.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Add {@code nanos} of I/O to the block that is loaded on the current thread, if any.
+     */
+    public static void addIoNanos(final long nanos) {
+        final Block block = CURRENT.get();
+        if (block != null)
+            block.ioNanos += nanos;
+    }
+
+    /**
+     * The block that is loaded on the current thread was read from disk in {@code nanos}.
+     */
+    public static void diskHit(final long nanos) {
+        final Block block = CURRENT.get();
+        if (block != null) {
+            block.ioNanos += nanos;
+            block.fromDisk = true;
+        }
+    }
+
+    /**
+     * The block that is loaded on the current thread was written to disk in {@code nanos}.
+     */
+    public static void diskWrite(final long nanos) {
+        final Block block = CURRENT.get();
+        if (block != null) {
+            block.ioNanos += nanos;
+            ++block.diskWrites;
+        }
+    }
+
+    /**
+     * @return block that is loaded on the current thread, to be {@link #setCurrentBlock(Block) continued} on another
+     * thread, or {@code null}
+     */
+    public static Block currentBlock() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return block that was loaded on the current thread before
+     */
+    public static Block setCurrentBlock(final Block block) {
+        final Block previous = CURRENT.get();
+        if (block == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(block);
+        return previous;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public List<LevelStatistics> getLevels() {
+        final List<LevelStatistics> statistics = new ArrayList<>();
+        levels.values().forEach(level -> statistics.add(level.statistics()));
+        return statistics;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return levels.values().stream().mapToLong(level -> level.memoryBytes.get()).sum();
+    }
+
+    @Override
+    public long getDiskBytes() {
+        final long now = System.currentTimeMillis();
+        final long updated = diskBytesUpdated.get();
+        if ((updated == Long.MIN_VALUE || now - updated > DISK_BYTES_REFRESH_MILLIS) && diskBytesUpdating.compareAndSet(false, true)) {
+            final LongSupplier diskBytes = this.diskBytes;
+            DISK_BYTES_EXECUTOR.execute(() -> {
+                try {
+                    cachedDiskBytes.set(diskBytes.getAsLong());
+                } catch (final RuntimeException e) {
+                    LOG.debug("Unable to determine disk usage of {}", name, e);
+                } finally {
+                    diskBytesUpdated.set(System.currentTimeMillis());
+                    diskBytesUpdating.set(false);
+                }
+            });
+        }
+        return cachedDiskBytes.get();
+    }
+
+    @Override
+    public long getPendingBlocks() {
+        return levels.values().stream().mapToLong(level -> level.pending.get()).sum();
+    }
+
+    @Override
+    public int getSchedulerQueueLength() {
+        return DerivedSourceScheduler.global().getQueueLength();
+    }
+
+    /**
+     * Counters of a single mipmap level. As a {@link SharedCellCache.Listener}, it counts the accesses of the cells of
+     * this level in memory.
+     */
+    public static class Level implements SharedCellCache.Listener {
+
+        private final int level;
+
+        private final LongAdder cacheHits = new LongAdder();
+
+        private final LongAdder cacheMisses = new LongAdder();
+
+        private final LongAdder evictions = new LongAdder();
+
+        private final AtomicLong memoryBytes = new AtomicLong();
+
+        private final LongAdder requests = new LongAdder();
+
+        private final AtomicLong pending = new AtomicLong();
+
+        private final LongAdder computed = new LongAdder();
+
+        private final LongAdder diskHits = new LongAdder();
+
+        private final LongAdder diskWrites = new LongAdder();
+
+        private final Histogram io = new Histogram();
+
+        private final Histogram compute = new Histogram();
+
+        private final Histogram latency = new Histogram();
+
+        private Level(final int level) {
+            this.level = level;
+        }
+
+        /**
+         * @return {@code loader} that counts the blocks that are requested from the cell img of this level and their
+         * latency, incl. waiting for the scheduler and disk I/O. Derived inputs that are loaded while a block is
+         * computed count as I/O of that block.
+         */
+        public BlockLoader requested(final BlockLoader loader) {
+            return block -> {
+                requests.increment();
+                pending.incrementAndGet();
+                final Block current = new Block();
+                final Block previous = setCurrentBlock(current);
+                final long start = System.nanoTime();
+                boolean loaded = false;
+                try {
+                    loader.load(block);
+                    loaded = true;
+                } finally {
+                    final long nanos = System.nanoTime() - start;
+                    setCurrentBlock(previous);
+                    pending.decrementAndGet();
+                    if (previous != null)
+                        previous.ioNanos += nanos;
+                    if (loaded) {
+                        latency.record(nanos);
+                        io.record(current.ioNanos);
+                        if (current.fromDisk)
+                            diskHits.increment();
+                        diskWrites.add(current.diskWrites);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return {@code loader} that measures the compute time of blocks, excluding I/O on the current thread
+         */
+        public BlockLoader computed(final BlockLoader loader) {
+            return new BlockLoader() {
+
+                @Override
+                public void load(final RandomAccessibleInterval<DoubleType> block) throws Exception {
+                    final Block outer = currentBlock();
+                    final Block current = outer == null ? new Block() : outer;
+                    if (outer == null)
+                        setCurrentBlock(current);
+                    final long ioBefore = current.ioNanos;
+                    final boolean fromDiskBefore = current.fromDisk;
+                    final long start = System.nanoTime();
+                    try {
+                        loader.load(block);
+                        if (current.fromDisk == fromDiskBefore) {
+                            computed.increment();
+                            compute.record(System.nanoTime() - start - (current.ioNanos - ioBefore));
+                        }
+                    } finally {
+                        if (outer == null)
+                            setCurrentBlock(null);
+                    }
+                }
+
+                @Override
+                public OptionalDouble uniformValue(final Interval block) throws Exception {
+                    return loader.uniformValue(block);
+                }
+            };
+        }
+
+        @Override
+        public void hit() {
+            cacheHits.increment();
+        }
+
+        @Override
+        public void miss() {
+            cacheMisses.increment();
+        }
+
+        @Override
+        public void inserted(final long bytes) {
+            memoryBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public void removed(final long bytes, final boolean evicted) {
+            memoryBytes.addAndGet(-bytes);
+            if (evicted)
+                evictions.increment();
+        }
+
+        public LevelStatistics statistics() {
+            return new LevelStatistics(
+                    level,
+                    cacheHits.sum(),
+                    cacheMisses.sum(),
+                    evictions.sum(),
+                    memoryBytes.get(),
+                    requests.sum(),
+                    pending.get(),
+                    computed.sum(),
+                    diskHits.sum(),
+                    diskWrites.sum(),
+                    io.percentileMillis(0.5),
+                    io.percentileMillis(0.99),
+                    compute.percentileMillis(0.5),
+                    compute.percentileMillis(0.99),
+                    latency.percentileMillis(0.5),
+                    latency.percentileMillis(0.99));
+        }
+    }
+
+    /**
+     * Snapshot of the counters of a level, a composite value in JMX.
+     */
+    public static class LevelStatistics {
+
+        private final int level;
+
+        private final long cacheHits;
+
+        private final long cacheMisses;
+
+        private final long evictions;
+
+        private final long memoryBytes;
+
+        private final long requests;
+
+        private final long pending;
+
+        private final long computed;
+
+        private final long diskHits;
+
+        private final long diskWrites;
+
+        private final double ioMillisP50;
+
+        private final double ioMillisP99;
+
+        private final double computeMillisP50;
+
+        private final double computeMillisP99;
+
+        private final double latencyMillisP50;
+
+        private final double latencyMillisP99;
+
+        @ConstructorProperties({
+                "level", "cacheHits", "cacheMisses", "evictions", "memoryBytes", "requests", "pending", "computed",
+                "diskHits", "diskWrites", "ioMillisP50", "ioMillisP99", "computeMillisP50", "computeMillisP99",
+                "latencyMillisP50", "latencyMillisP99"})
+        public LevelStatistics(
+                final int level,
+                final long cacheHits,
+                final long cacheMisses,
+                final long evictions,
+                final long memoryBytes,
+                final long requests,
+                final long pending,
+                final long computed,
+                final long diskHits,
+                final long diskWrites,
+                final double ioMillisP50,
+                final double ioMillisP99,
+                final double computeMillisP50,
+                final double computeMillisP99,
+                final double latencyMillisP50,
+                final double latencyMillisP99) {
+            this.level = level;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.evictions = evictions;
+            this.memoryBytes = memoryBytes;
+            this.requests = requests;
+            this.pending = pending;
+            this.computed = computed;
+            this.diskHits = diskHits;
+            this.diskWrites = diskWrites;
+            this.ioMillisP50 = ioMillisP50;
+            this.ioMillisP99 = ioMillisP99;
+            this.computeMillisP50 = computeMillisP50;
+            this.computeMillisP99 = computeMillisP99;
+            this.latencyMillisP50 = latencyMillisP50;
+            this.latencyMillisP99 = latencyMillisP99;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+
+        /**
+         * @return blocks that were requested from the cell img after missing the memory cache
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getPending() {
+            return pending;
+        }
+
+        public long getComputed() {
+            return computed;
+        }
+
+        public long getDiskHits() {
+            return diskHits;
+        }
+
+        public long getDiskWrites() {
+            return diskWrites;
+        }
+
+        public double getIoMillisP50() {
+            return ioMillisP50;
+        }
+
+        public double getIoMillisP99() {
+            return ioMillisP99;
+        }
+
+        public double getComputeMillisP50() {
+            return computeMillisP50;
+        }
+
+        public double getComputeMillisP99() {
+            return computeMillisP99;
+        }
+
+        public double getLatencyMillisP50() {
+            return latencyMillisP50;
+        }
+
+        public double getLatencyMillisP99() {
+            return latencyMillisP99;
+        }
+    }
+
+    /**
+     * Counts of durations in buckets of powers of two microseconds, percentiles are the upper bounds of buckets.
+     */
+    private static class Histogram {
+
+        private static final int NUM_BUCKETS = 32;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+        private void record(final long nanos) {
+            final long micros = nanos / 1000;
+            final int bucket = micros <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+            counts.incrementAndGet(bucket);
+        }
+
+        /**
+         * @return upper bound in ms of the bucket of quantile {@code q}, {@code 0} without any records
+         */
+        private double percentileMillis(final double q) {
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i)
+                total += counts.get(i);
+            if (total == 0)
+                return 0.0;
+            final long rank = (long) Math.ceil(q * total);
+            long count = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                count += counts.get(i);
+                if (count >= rank)
+                    return (1L << i) / 1000.0;
+            }
+            return (1L << (NUM_BUCKETS - 1)) / 1000.0;
+        }
+    }
+}
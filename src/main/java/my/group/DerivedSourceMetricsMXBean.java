@@ -0,0 +1,28 @@
+package my.group;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link DerivedSourceMetrics}.
+ */
+public interface DerivedSourceMetricsMXBean {
+
+    String getName();
+
+    List<DerivedSourceMetrics.LevelStatistics> getLevels();
+
+    long getMemoryBytes();
+
+    /**
+     * @return size of the persisted blocks, updated in the background
+     */
+    long getDiskBytes();
+
+    long getPendingBlocks();
+
+    /**
+     * @return blocks of all derived sources that wait for a thread of the {@link DerivedSourceScheduler scheduler}
+     */
+    int getSchedulerQueueLength();
+
+}
@@ -0,0 +1,380 @@
+package my.group;
+
+import bdv.fx.viewer.ViewerPanelFX;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+import org.janelia.saalfeldlab.paintera.PainteraBaseView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the blocks of all derived sources on a bounded number of threads, so that loading raw data stays
+ * responsive while derived sources fill in. The fetcher threads of the viewer only wait for their blocks.
+ *
+ * Queued blocks are ordered by mipmap level, coarse first, and within a level by the distance of the block to the
+ * closest viewer plane. When the view moves, queued blocks are reordered and blocks that are further than their own
+ * extent from all viewer planes are cancelled. Their cells stay invalid and are requested again if they come back into
+ * view. Blocks that are already computing always finish.
+ *
+ * Blocks are computed on the {@link ComputePool compute pool}, the threads of the scheduler only limit the number of
+ * blocks in flight, so derived sources never use more cores than the parallelism of the pool. Blocks that are requested
+ * from within a block, e.g. cached input of a derived feature, are computed directly on the requesting worker. A block
+ * may still wait for input that a fetcher thread is loading and whose block is queued behind it. The thread that waits
+ * for such a load therefore {@link #runAwaitedBy(Thread) takes over} the queued block instead.
+ *
+ * Blocks that are loaded {@link #speculatively(Callable) speculatively}, e.g. of the next timepoint, are queued after
+ * all other blocks.
+ */
+public class DerivedSourceScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String THREADS_PROPERTY = "my.group.scheduler.threads";
+
+    private static final DerivedSourceScheduler GLOBAL = new DerivedSourceScheduler(ComputePool.DEFAULT_PARALLELISM);
+
+    private static final ThreadLocal<Boolean> IS_SPECULATIVE = ThreadLocal.withInitial(() -> false);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Queued blocks are reordered at most this often while the view moves.
+     */
+    private static final long REORDER_DELAY_MILLIS = 100;
+
+    private static final ScheduledExecutorService REORDER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r);
+        t.setName("derived-source-scheduler-reorder");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Queued block that each waiting thread waits for.
+     */
+    private static final Map<Thread, Task> AWAITED = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean reorderRequested = new AtomicBoolean();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<Object, AffineTransform3D> viewerTransforms = new WeakHashMap<>();
+
+    private final Set<PainteraBaseView> tracked = Collections.newSetFromMap(new WeakHashMap<>());
+
+    public DerivedSourceScheduler(final int numThreads) {
+        this.executor = new ThreadPoolExecutor(
+                numThreads,
+                numThreads,
+                60,
+                TimeUnit.SECONDS,
+                queue,
+                r -> {
+                    final Thread t = new Thread(r);
+                    t.setName("derived-source-scheduler-" + THREAD_COUNT.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static DerivedSourceScheduler global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Run {@code load} with the lowest priority: blocks that it requests are queued after all blocks that are not
+     * speculative, and blocks that these blocks request in turn are speculative as well.
+     */
+    public static <V> V speculatively(final Callable<V> load) throws Exception {
+        final boolean wasSpeculative = IS_SPECULATIVE.get();
+        IS_SPECULATIVE.set(true);
+        try {
+            return load.call();
+        } finally {
+            IS_SPECULATIVE.set(wasSpeculative);
+        }
+    }
+
+    /**
+     * @return whether blocks are requested {@link #speculatively(Callable) speculatively} on the current thread
+     */
+    public static boolean isSpeculative() {
+        return IS_SPECULATIVE.get();
+    }
+
+    public int getNumThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of blocks that are waiting for a thread
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Limit the number of blocks that are computed concurrently and the parallelism of the shared
+     * {@link ComputePool compute pool} that computes them, i.e. the number of cores that derived sources use.
+     */
+    public synchronized void setNumThreads(final int numThreads) {
+        if (numThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(numThreads);
+            executor.setCorePoolSize(numThreads);
+        } else {
+            executor.setCorePoolSize(numThreads);
+            executor.setMaximumPoolSize(numThreads);
+        }
+        ComputePool.setParallelism(numThreads);
+    }
+
+    /**
+     * Follow the viewer planes of {@code paintera} to order and cancel queued blocks. Calling this more than once for
+     * the same viewer has no effect.
+     */
+    public void track(final PainteraBaseView paintera) {
+        synchronized (tracked) {
+            if (!tracked.add(paintera))
+                return;
+        }
+        track(paintera.orthogonalViews().topLeft().viewer());
+        track(paintera.orthogonalViews().topRight().viewer());
+        track(paintera.orthogonalViews().bottomLeft().viewer());
+    }
+
+    private void track(final ViewerPanelFX viewer) {
+        final TransformListener<AffineTransform3D> listener = transform -> {
+            setViewerTransform(viewer, transform);
+            // reorder off the FX thread, once for all transform changes in the meantime
+            if (reorderRequested.compareAndSet(false, true))
+                REORDER.schedule(this::viewChanged, REORDER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        };
+        viewer.addTransformListener(listener);
+    }
+
+    void setViewerTransform(final Object viewer, final AffineTransform3D transform) {
+        synchronized (viewerTransforms) {
+            viewerTransforms.put(viewer, transform.copy());
+        }
+    }
+
+    /**
+     * @param sourceTransform transform from voxels of the blocks of {@code loader} to world coordinates
+     * @return {@code loader} that computes blocks on this scheduler and throws a {@link BlockCancelledException} for
+     * blocks that went out of view before they were computed
+     */
+    public BlockLoader scheduled(final int level, final AffineTransform3D sourceTransform, final BlockLoader loader) {
+        return scheduled(level, sourceTransform, loader, true);
+    }
+
+    /**
+     * @param cancellable whether blocks that go out of view are cancelled, not for cells that cannot stay invalid,
+     *                    e.g. of a disk cached cell img
+     */
+    public BlockLoader scheduled(final int level, final AffineTransform3D sourceTransform, final BlockLoader loader, final boolean cancellable) {
+        final AffineTransform3D transform = sourceTransform.copy();
+        return block -> {
+            if (ComputePool.isWorker()) {
+                loader.load(block);
+                return;
+            }
+            final boolean speculative = IS_SPECULATIVE.get();
+            final DerivedSourceMetrics.Block metricsBlock = DerivedSourceMetrics.currentBlock();
+            final Task task = new Task(level, globalBounds(block, transform), speculative, cancellable, () -> ComputePool.call(() -> {
+                final boolean wasSpeculative = IS_SPECULATIVE.get();
+                final DerivedSourceMetrics.Block previousBlock = DerivedSourceMetrics.setCurrentBlock(metricsBlock);
+                IS_SPECULATIVE.set(speculative);
+                try {
+                    loader.load(block);
+                } finally {
+                    IS_SPECULATIVE.set(wasSpeculative);
+                    DerivedSourceMetrics.setCurrentBlock(previousBlock);
+                }
+                return null;
+            }));
+            task.updateDistance(viewerTransforms());
+            final Thread waiting = Thread.currentThread();
+            AWAITED.put(waiting, task);
+            try {
+                executor.execute(task);
+                task.get();
+            } catch (final CancellationException e) {
+                throw new BlockCancelledException("Block " + task + " went out of view before it was computed");
+            } catch (final InterruptedException e) {
+                task.cancel(false);
+                throw e;
+            } catch (final ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                AWAITED.remove(waiting, task);
+            }
+        };
+    }
+
+    /**
+     * Compute the block that {@code thread} waits for on the current thread if it is still queued, e.g. because the
+     * current thread needs a cached block that {@code thread} is loading. Scheduled blocks that wait for each other in
+     * this way would otherwise hold all threads of the scheduler while the block that they need stays queued.
+     *
+     * @return whether a block was computed
+     */
+    public static boolean runAwaitedBy(final Thread thread) {
+        final Task task = AWAITED.get(thread);
+        if (task == null || !task.scheduler().queue.remove(task))
+            return false;
+        LOG.debug("Computing block {} for waiting thread {} on {}", task, thread.getName(), Thread.currentThread().getName());
+        task.run();
+        return true;
+    }
+
+    private List<AffineTransform3D> viewerTransforms() {
+        synchronized (viewerTransforms) {
+            return new ArrayList<>(viewerTransforms.values());
+        }
+    }
+
+    /**
+     * Reorder the queued blocks by their distance to the viewer planes and cancel those that are out of view.
+     */
+    void viewChanged() {
+        reorderRequested.set(false);
+        final List<AffineTransform3D> transforms = viewerTransforms();
+        final List<Runnable> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        int numCancelled = 0;
+        for (final Runnable runnable : queued) {
+            final Task task = (Task) runnable;
+            task.updateDistance(transforms);
+            if (task.cancellable && task.isOutOfView()) {
+                task.cancel(false);
+                ++numCancelled;
+            } else
+                queue.add(task);
+        }
+        if (numCancelled > 0)
+            LOG.debug("Cancelled {} of {} queued blocks that are out of view", numCancelled, queued.size());
+    }
+
+    private static RealInterval globalBounds(final Interval block, final AffineTransform3D transform) {
+        final double[] min = new double[3];
+        final double[] max = new double[3];
+        for (int d = 0; d < 3; ++d) {
+            min[d] = d < block.numDimensions() ? block.min(d) - 0.5 : -0.5;
+            max[d] = d < block.numDimensions() ? block.max(d) + 0.5 : 0.5;
+        }
+        return transform.estimateBounds(new FinalRealInterval(min, max));
+    }
+
+    private class Task extends FutureTask<Void> implements Comparable<Task> {
+
+        private final int level;
+
+        private final boolean speculative;
+
+        private final boolean cancellable;
+
+        private final long sequence = DerivedSourceScheduler.this.sequence.getAndIncrement();
+
+        private final double[] center = new double[3];
+
+        private final double[] halfExtent = new double[3];
+
+        private final double radius;
+
+        private volatile double distance = 0.0;
+
+        private Task(
+                final int level,
+                final RealInterval globalBounds,
+                final boolean speculative,
+                final boolean cancellable,
+                final Callable<Void> callable) {
+            super(callable);
+            this.level = level;
+            this.speculative = speculative;
+            this.cancellable = cancellable;
+            double squaredRadius = 0.0;
+            for (int d = 0; d < 3; ++d) {
+                center[d] = 0.5 * (globalBounds.realMin(d) + globalBounds.realMax(d));
+                halfExtent[d] = 0.5 * (globalBounds.realMax(d) - globalBounds.realMin(d));
+                squaredRadius += halfExtent[d] * halfExtent[d];
+            }
+            this.radius = Math.sqrt(squaredRadius);
+        }
+
+        /**
+         * Distance in world coordinates of the bounds of the block to the closest plane, {@code 0} without planes.
+         */
+        private void updateDistance(final List<AffineTransform3D> viewerTransforms) {
+            double distance = viewerTransforms.isEmpty() ? 0.0 : Double.POSITIVE_INFINITY;
+            for (final AffineTransform3D viewerTransform : viewerTransforms) {
+                // the viewer plane is z = 0 in viewer coordinates
+                double z = viewerTransform.get(2, 3);
+                double extent = 0.0;
+                double norm = 0.0;
+                for (int d = 0; d < 3; ++d) {
+                    final double r = viewerTransform.get(2, d);
+                    z += r * center[d];
+                    extent += Math.abs(r) * halfExtent[d];
+                    norm += r * r;
+                }
+                distance = Math.min(distance, Math.max(Math.abs(z) - extent, 0.0) / Math.sqrt(norm));
+            }
+            this.distance = distance;
+        }
+
+        private boolean isOutOfView() {
+            return distance > radius;
+        }
+
+        private DerivedSourceScheduler scheduler() {
+            return DerivedSourceScheduler.this;
+        }
+
+        @Override
+        public String toString() {
+            return (speculative ? "speculative " : "") + "level " + level + " at " + Arrays.toString(center);
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (speculative != other.speculative)
+                return speculative ? 1 : -1;
+            if (level != other.level)
+                return Integer.compare(other.level, level);
+            if (distance != other.distance)
+                return Double.compare(distance, other.distance);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
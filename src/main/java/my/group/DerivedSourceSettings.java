@@ -0,0 +1,85 @@
+package my.group;
+
+import com.google.gson.JsonObject;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+
+/**
+ * Settings that are shared by all derived sources of the process: the {@link SharedCellCache#global() global cache}
+ * budget, the threads of the {@link DerivedSourceScheduler#global() scheduler} and of the {@link IoPool}, the
+ * {@link TimeSeriesSource#getMaxResident() resident timepoints} and the latency limit of the
+ * {@link BlockShapeTuner}. Changes of the properties are applied immediately. Every derived source stores them with
+ * its own settings in the project, so that they are restored with any of them.
+ */
+public class DerivedSourceSettings {
+
+    private static final DerivedSourceSettings GLOBAL = new DerivedSourceSettings();
+
+    private final IntegerProperty cacheLimitMiB = new SimpleIntegerProperty((int) (SharedCellCache.global().getMaxBytes() >> 20));
+
+    private final IntegerProperty derivedThreads = new SimpleIntegerProperty(DerivedSourceScheduler.global().getNumThreads());
+
+    private final IntegerProperty ioThreads = new SimpleIntegerProperty(IoPool.getNumThreads());
+
+    private final IntegerProperty residentTimepoints = new SimpleIntegerProperty(TimeSeriesSource.getMaxResident());
+
+    private final IntegerProperty maxLatencyMillis = new SimpleIntegerProperty((int) BlockShapeTuner.getMaxLatencyMillis());
+
+    private DerivedSourceSettings() {
+        cacheLimitMiB.addListener((obs, oldv, newv) -> SharedCellCache.global().setMaxBytes(newv.longValue() << 20));
+        derivedThreads.addListener((obs, oldv, newv) -> DerivedSourceScheduler.global().setNumThreads(newv.intValue()));
+        ioThreads.addListener((obs, oldv, newv) -> IoPool.setNumThreads(newv.intValue()));
+        residentTimepoints.addListener((obs, oldv, newv) -> TimeSeriesSource.setMaxResident(newv.intValue()));
+        maxLatencyMillis.addListener((obs, oldv, newv) -> BlockShapeTuner.setMaxLatencyMillis(newv.longValue()));
+    }
+
+    public static DerivedSourceSettings global() {
+        return GLOBAL;
+    }
+
+    public IntegerProperty cacheLimitMiBProperty() {
+        return cacheLimitMiB;
+    }
+
+    public IntegerProperty derivedThreadsProperty() {
+        return derivedThreads;
+    }
+
+    public IntegerProperty ioThreadsProperty() {
+        return ioThreads;
+    }
+
+    public IntegerProperty residentTimepointsProperty() {
+        return residentTimepoints;
+    }
+
+    public IntegerProperty maxLatencyMillisProperty() {
+        return maxLatencyMillis;
+    }
+
+    public JsonObject serialize() {
+        final JsonObject settings = new JsonObject();
+        settings.addProperty("cacheLimitMiB", cacheLimitMiB.get());
+        settings.addProperty("derivedThreads", derivedThreads.get());
+        settings.addProperty("ioThreads", ioThreads.get());
+        settings.addProperty("residentTimepoints", residentTimepoints.get());
+        settings.addProperty("maxLatencyMillis", maxLatencyMillis.get());
+        return settings;
+    }
+
+    /**
+     * Apply the settings that are present in {@code settings}, others are left unchanged. Invalid values are ignored.
+     */
+    public void deserialize(final JsonObject settings) {
+        if (settings.has("cacheLimitMiB") && settings.get("cacheLimitMiB").getAsInt() > 0)
+            cacheLimitMiB.set(settings.get("cacheLimitMiB").getAsInt());
+        if (settings.has("derivedThreads") && settings.get("derivedThreads").getAsInt() > 0)
+            derivedThreads.set(Math.min(settings.get("derivedThreads").getAsInt(), ComputePool.PARALLELISM));
+        if (settings.has("ioThreads") && settings.get("ioThreads").getAsInt() >= 0)
+            ioThreads.set(settings.get("ioThreads").getAsInt());
+        if (settings.has("residentTimepoints") && settings.get("residentTimepoints").getAsInt() > 0)
+            residentTimepoints.set(settings.get("residentTimepoints").getAsInt());
+        if (settings.has("maxLatencyMillis") && settings.get("maxLatencyMillis").getAsInt() > 0)
+            maxLatencyMillis.set(settings.get("maxLatencyMillis").getAsInt());
+    }
+}
@@ -0,0 +1,101 @@
+package my.group;
+
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.GridPane;
+import org.janelia.saalfeldlab.fx.Labels;
+import org.janelia.saalfeldlab.fx.TitledPanes;
+import org.janelia.saalfeldlab.fx.ui.NumberField;
+import org.janelia.saalfeldlab.fx.ui.ObjectField;
+import org.janelia.saalfeldlab.paintera.ui.BindUnbindAndNodeSupplier;
+
+/**
+ * Controls of the {@link DerivedSourceSettings} that are shared by all derived sources. Every derived source shows
+ * this panel, changes apply to all of them.
+ */
+public class DerivedSourceSettingsPanel implements BindUnbindAndNodeSupplier {
+
+    private final DerivedSourceSettings settings;
+
+    private final IntegerProperty cacheLimitMiB = new SimpleIntegerProperty();
+
+    private final IntegerProperty derivedThreads = new SimpleIntegerProperty();
+
+    private final IntegerProperty ioThreads = new SimpleIntegerProperty();
+
+    private final IntegerProperty residentTimepoints = new SimpleIntegerProperty();
+
+    private final IntegerProperty maxLatencyMillis = new SimpleIntegerProperty();
+
+    public DerivedSourceSettingsPanel(final DerivedSourceSettings settings) {
+        this.settings = settings;
+        this.cacheLimitMiB.set(settings.cacheLimitMiBProperty().get());
+        this.derivedThreads.set(settings.derivedThreadsProperty().get());
+        this.ioThreads.set(settings.ioThreadsProperty().get());
+        this.residentTimepoints.set(settings.residentTimepointsProperty().get());
+        this.maxLatencyMillis.set(settings.maxLatencyMillisProperty().get());
+    }
+
+    @Override
+    public Node get() {
+        final GridPane gp = new GridPane();
+        final Label cacheLimit = Labels.withTooltip("Global Cache (MiB)", "Memory limit shared by all derived sources");
+        final Label derivedThreads = Labels.withTooltip("Derived Threads", "Blocks of all derived sources that are computed concurrently, and threads of the shared compute pool. Lower values keep raw data loading responsive.");
+        final Label ioThreads = Labels.withTooltip("I/O Threads", "Concurrent reads of the inputs of feature blocks before they are computed. 0 reads inputs sequentially while computing.");
+        final Label residentTimepoints = Labels.withTooltip("Resident Timepoints", "Timepoints of each derived source that are kept in memory. With at least 2, blocks of the next timepoint are computed ahead while scrubbing through time, with at least 3 also of the previous timepoint.");
+        final Label maxLatency = Labels.withTooltip("Max Block Latency (ms)", "Sources with an automatic block size keep their blocks below this latency");
+
+        final NumberField<IntegerProperty> cacheLimitField = NumberField.intField(settings.cacheLimitMiBProperty().get(), i -> i > 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(cacheLimitField.valueProperty(), this.cacheLimitMiB);
+        final NumberField<IntegerProperty> derivedThreadsField = NumberField.intField(settings.derivedThreadsProperty().get(), i -> i > 0 && i <= ComputePool.PARALLELISM, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(derivedThreadsField.valueProperty(), this.derivedThreads);
+        final NumberField<IntegerProperty> ioThreadsField = NumberField.intField(settings.ioThreadsProperty().get(), i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(ioThreadsField.valueProperty(), this.ioThreads);
+        final NumberField<IntegerProperty> residentTimepointsField = NumberField.intField(settings.residentTimepointsProperty().get(), i -> i > 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(residentTimepointsField.valueProperty(), this.residentTimepoints);
+        final NumberField<IntegerProperty> maxLatencyField = NumberField.intField(settings.maxLatencyMillisProperty().get(), i -> i > 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+        bind(maxLatencyField.valueProperty(), this.maxLatencyMillis);
+
+        gp.add(cacheLimit, 0, 0);
+        gp.add(cacheLimitField.textField(), 3, 0);
+
+        gp.add(derivedThreads, 0, 1);
+        gp.add(derivedThreadsField.textField(), 3, 1);
+
+        gp.add(ioThreads, 0, 2);
+        gp.add(ioThreadsField.textField(), 3, 2);
+
+        gp.add(residentTimepoints, 0, 3);
+        gp.add(residentTimepointsField.textField(), 3, 3);
+
+        gp.add(maxLatency, 0, 4);
+        gp.add(maxLatencyField.textField(), 3, 4);
+
+        return TitledPanes.createCollapsed("All Derived Sources", gp);
+    }
+
+    @Override
+    public void bind() {
+        bind(this.cacheLimitMiB, settings.cacheLimitMiBProperty());
+        bind(this.derivedThreads, settings.derivedThreadsProperty());
+        bind(this.ioThreads, settings.ioThreadsProperty());
+        bind(this.residentTimepoints, settings.residentTimepointsProperty());
+        bind(this.maxLatencyMillis, settings.maxLatencyMillisProperty());
+    }
+
+    @Override
+    public void unbind() {
+        this.cacheLimitMiB.unbindBidirectional(settings.cacheLimitMiBProperty());
+        this.derivedThreads.unbindBidirectional(settings.derivedThreadsProperty());
+        this.ioThreads.unbindBidirectional(settings.ioThreadsProperty());
+        this.residentTimepoints.unbindBidirectional(settings.residentTimepointsProperty());
+        this.maxLatencyMillis.unbindBidirectional(settings.maxLatencyMillisProperty());
+    }
+
+    private void bind(final IntegerProperty property, final IntegerProperty to) {
+        property.bindBidirectional(to);
+        property.set(to.get());
+    }
+}
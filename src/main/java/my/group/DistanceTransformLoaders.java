@@ -0,0 +1,224 @@
+package my.group;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealDoubleConverter;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.OptionalDouble;
+import java.util.function.Predicate;
+import java.util.stream.DoubleStream;
+
+/**
+ * {@link BlockLoader block loaders} for distance transforms of a single mipmap level. They do not depend on any
+ * viewer state and are shared by {@link DistanceTransformSourceState} and {@link BatchExport}.
+ *
+ * Blocks whose result is known from uniform input are {@link UniformBlocks short-circuited}: with a threshold, blocks
+ * that are entirely foreground are {@code 0}, and block-local transforms without any foreground in their context are
+ * the background cost of {@link DistanceTransform#binaryTransform}. Without a threshold, block-local transforms of
+ * uniform context are the input value.
+ */
+public class DistanceTransformLoaders {
+
+    /**
+     * Immutable snapshot of the distance transform parameters.
+     */
+    public static class Parameters {
+
+        public final DistanceTransform.DISTANCE_TYPE distanceType;
+
+        public final double[] weights;
+
+        public final double scaleFactor;
+
+        /**
+         * Transform the distance to voxels that pass the threshold, {@code null} to transform the input directly.
+         */
+        public final Predicate<DoubleType> threshold;
+
+        public final double sampleExtension;
+
+        public final boolean squareInput;
+
+        public final int threadsPerBlock;
+
+        public Parameters(
+                final DistanceTransform.DISTANCE_TYPE distanceType,
+                final double[] weights,
+                final double scaleFactor,
+                final Predicate<DoubleType> threshold,
+                final double sampleExtension,
+                final boolean squareInput,
+                final int threadsPerBlock) {
+            this.distanceType = distanceType;
+            this.weights = weights.clone();
+            this.scaleFactor = scaleFactor;
+            this.threshold = threshold;
+            this.sampleExtension = sampleExtension;
+            this.squareInput = squareInput;
+            this.threadsPerBlock = threadsPerBlock;
+        }
+
+        /**
+         * @return weights scaled by the scale factor, unless thresholded
+         */
+        public double[] scaledWeights() {
+            return threshold == null
+                    ? DoubleStream.of(weights).map(d -> d * scaleFactor).toArray()
+                    : weights.clone();
+        }
+    }
+
+    /**
+     * Selects voxels with values larger than a fixed threshold. Unlike arbitrary predicates, it can be serialized and
+     * hashed through {@link #getThreshold()}.
+     */
+    public static class ThresholdPredicate implements Predicate<DoubleType> {
+
+        private final double t;
+
+        public ThresholdPredicate(final double t) {
+            this.t = t;
+        }
+
+        public double getThreshold() {
+            return t;
+        }
+
+        @Override
+        public boolean test(final DoubleType doubleType) {
+            return doubleType.getRealDouble() > t;
+        }
+    }
+
+    private DistanceTransformLoaders() {
+    }
+
+    public static <T extends RealType<?>> RandomAccessibleInterval<DoubleType> asDouble(
+            final RandomAccessibleInterval<T> sampledFunction,
+            final boolean squareInput) {
+        return squareInput
+                ? Converters.convert(sampledFunction, new RealDoubleConverter(), new DoubleType())
+                : Converters.convert(sampledFunction, (s, t) -> t.setReal(s.getRealDouble() * s.getRealDouble()), new DoubleType());
+    }
+
+    /**
+     * Exact transform that propagates distances across block borders through cached intermediate stages in
+     * {@code cache}.
+     */
+    public static BlockLoader exact(
+            final RandomAccessibleInterval<? extends RealType<?>> sampledFunction,
+            final Parameters parameters,
+            final int[] blockSize,
+            final SharedCellCache.Source cache,
+            final LoadGeneration.Token generation) {
+        final RandomAccessibleInterval<DoubleType> convertedSampledFunction = asDouble(sampledFunction, parameters.squareInput);
+        final Predicate<DoubleType> threshold = parameters.threshold;
+        final BlockwiseDistanceTransform dt;
+        if (threshold == null) {
+            dt = new BlockwiseDistanceTransform(
+                    convertedSampledFunction,
+                    parameters.sampleExtension,
+                    parameters.distanceType,
+                    blockSize,
+                    cache,
+                    generation,
+                    parameters.threadsPerBlock,
+                    parameters.scaledWeights());
+        } else {
+            final RandomAccessibleInterval<DoubleType> costs = Converters.convert(convertedSampledFunction, (s, t) -> t.set(threshold.test(s) ? 0.0 : Double.POSITIVE_INFINITY), new DoubleType());
+            dt = new BlockwiseDistanceTransform(
+                    costs,
+                    threshold.test(new DoubleType(parameters.sampleExtension)) ? 0.0 : Double.POSITIVE_INFINITY,
+                    parameters.distanceType,
+                    blockSize,
+                    cache,
+                    generation,
+                    parameters.threadsPerBlock,
+                    parameters.scaledWeights());
+            // the distance of foreground voxels is 0, the distance of background depends on voxels outside the block
+            return UniformBlocks.shortCircuit(
+                    block -> {
+                        final OptionalDouble cost = UniformBlocks.value(costs, block);
+                        return cost.isPresent() && cost.getAsDouble() == 0.0 ? cost : OptionalDouble.empty();
+                    },
+                    dt::transformBlock);
+        }
+        return dt::transformBlock;
+    }
+
+    /**
+     * Block-local transform that considers only {@code halo} voxels of context around each block.
+     */
+    public static BlockLoader halo(
+            final RandomAccessibleInterval<? extends RealType<?>> sampledFunction,
+            final Parameters parameters,
+            final int[] halo) {
+        final RandomAccessibleInterval<DoubleType> convertedSampledFunction = asDouble(sampledFunction, parameters.squareInput);
+        final DistanceTransform.DISTANCE_TYPE distanceType = parameters.distanceType;
+        final Predicate<DoubleType> threshold = parameters.threshold;
+        final int threadsPerBlock = parameters.threadsPerBlock;
+        final double[] weights = parameters.scaledWeights();
+        final boolean sqrt = DistanceTransform.DISTANCE_TYPE.EUCLIDIAN.equals(distanceType);
+        final RandomAccessible<DoubleType> extended = Views.extendValue(convertedSampledFunction, new DoubleType(parameters.sampleExtension));
+        final InputArrays.Reader reader = InputArrays.reader(sampledFunction, !parameters.squareInput);
+        final UniformBlocks.Check uniform = img -> {
+            final OptionalDouble value = UniformBlocks.value(
+                    threshold == null ? extended : Converters.convert(extended, (s, t) -> t.set(threshold.test(s) ? 0.0 : Double.MAX_VALUE), new DoubleType()),
+                    Intervals.expand(img, new FinalDimensions(halo)));
+            return value.isPresent() && sqrt ? OptionalDouble.of(Math.sqrt(value.getAsDouble())) : value;
+        };
+        return UniformBlocks.shortCircuit(uniform, img -> {
+            final FinalInterval withContext = Intervals.expand(img, new FinalDimensions(halo));
+            final double[] input = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withContext));
+            final double[] scratch = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withContext));
+            try {
+                reader.fillValue(withContext, parameters.sampleExtension, input);
+                final RandomAccessibleInterval<DoubleType> sampled = ArrayImgs.doubles(input, Intervals.dimensionsAsLongArray(withContext));
+                final RandomAccessibleInterval<DoubleType> dt = ArrayImgs.doubles(scratch, Intervals.dimensionsAsLongArray(withContext));
+                if (threshold == null && threadsPerBlock > 1) {
+                    DistanceTransform.transform(
+                            sampled,
+                            dt,
+                            distanceType,
+                            ComputePool.get(),
+                            threadsPerBlock,
+                            weights);
+                } else if (threshold == null) {
+                    DistanceTransform.transform(
+                            sampled,
+                            dt,
+                            distanceType,
+                            weights);
+                } else if (threadsPerBlock > 1) {
+                    DistanceTransform.binaryTransform(
+                            Converters.convert(sampled, (s, t) -> t.set(threshold.test(s)), new BitType()),
+                            dt,
+                            distanceType,
+                            ComputePool.get(),
+                            threadsPerBlock,
+                            weights);
+                } else {
+                    DistanceTransform.binaryTransform(
+                            Converters.convert(sampled, (s, t) -> t.set(threshold.test(s)), new BitType()),
+                            dt,
+                            distanceType,
+                            weights);
+                }
+                CellArrays.copy(scratch, withContext, img, sqrt);
+            } finally {
+                ScratchBuffers.release(scratch);
+                ScratchBuffers.release(input);
+            }
+        });
+    }
+}
@@ -1,7 +1,14 @@
 package my.group;
 
-import bdv.util.volatiles.VolatileViews;
 import bdv.viewer.Interpolation;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.ObjectBinding;
@@ -11,6 +18,7 @@ import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -28,23 +36,15 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.algorithm.morphology.distance.DistanceTransform;
 import net.imglib2.cache.img.CachedCellImg;
-import net.imglib2.cache.img.CellLoader;
-import net.imglib2.cache.img.LoadedCellCacheLoader;
-import net.imglib2.cache.ref.SoftRefLoaderCache;
 import net.imglib2.converter.ARGBColorConverter;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealDoubleConverter;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.AccessFlags;
-import net.imglib2.img.basictypeaccess.volatiles.array.VolatileDoubleArray;
-import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.PrimitiveType;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.volatiles.VolatileDoubleType;
@@ -56,11 +56,14 @@ import org.janelia.saalfeldlab.fx.Labels;
 import org.janelia.saalfeldlab.fx.TitledPanes;
 import org.janelia.saalfeldlab.fx.ui.NumberField;
 import org.janelia.saalfeldlab.fx.ui.ObjectField;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.paintera.PainteraBaseView;
 import org.janelia.saalfeldlab.paintera.cache.InvalidateAll;
 import org.janelia.saalfeldlab.paintera.composition.ARGBCompositeAlphaAdd;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
 import org.janelia.saalfeldlab.paintera.data.RandomAccessibleIntervalDataSource;
+import org.janelia.saalfeldlab.paintera.serialization.SerializationHelpers;
+import org.janelia.saalfeldlab.paintera.serialization.StatefulSerializer;
 import org.janelia.saalfeldlab.paintera.state.MinimalSourceState;
 import org.janelia.saalfeldlab.paintera.state.SourceState;
 import org.janelia.saalfeldlab.paintera.ui.BindUnbindAndNodeSupplier;
@@ -68,37 +71,106 @@ import org.janelia.saalfeldlab.paintera.ui.PainteraAlerts;
 import org.janelia.saalfeldlab.paintera.ui.opendialog.menu.OpenDialogMenuEntry;
 import org.janelia.saalfeldlab.paintera.ui.source.state.SourceStateUIElementsDefaultFactory;
 import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.IntFunction;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static org.janelia.saalfeldlab.paintera.serialization.sourcestate.SourceStateSerialization.DEPENDS_ON_KEY;
+import static org.janelia.saalfeldlab.paintera.serialization.sourcestate.SourceStateSerialization.INTERPOLATION_KEY;
+import static org.janelia.saalfeldlab.paintera.serialization.sourcestate.SourceStateSerialization.IS_VISIBLE_KEY;
+import static org.janelia.saalfeldlab.paintera.serialization.sourcestate.SourceStateSerialization.NAME_KEY;
+
 public class DistanceTransformSourceState extends MinimalSourceState<DoubleType, VolatileDoubleType, DistanceTransformSourceState.DistanceTransformSource, ARGBColorConverter<VolatileDoubleType>> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final long UPDATE_DELAY_MILLIS = 250;
+
+    private static final String DISK_CACHE_CONTAINER = "distance-transform-cache.n5";
+
+    private static final ScheduledExecutorService UPDATE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "distance-transform-update");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Calibration loads take seconds and must not hold back rebuilds on the {@link #UPDATE_SCHEDULER}.
+     */
+    private static final ExecutorService TUNING_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "distance-transform-block-shape-tuning");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Distance transform of each timepoint of the sampled function, see {@link TimeSeriesSource}.
+     */
     public static class DistanceTransformSource implements DataSource<DoubleType, VolatileDoubleType> {
 
         private final DataSource<? extends RealType<?>, ?> sampledFunction;
 
         private final String name;
 
-        private int[] blockSize = {16, 16, 16};
+        private int[][] blockSizes;
+
+        private StorageType storageType = StorageType.FLOAT64;
+
+        private double quantizationStep = StorageType.DEFAULT_QUANTIZATION_STEP;
+
+        private Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> loaderFactory = null;
+
+        private Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> previewLoaderFactory = null;
+
+        private Runnable onBlockLoaded = () -> {};
+
+        private Runnable onInvalidateAll = () -> {};
+
+        private final SharedCellCache.Source cache;
 
-        private IntFunction<CellLoader<DoubleType>> loaderFactory = null;
+        private final LoadGeneration generation = new LoadGeneration();
 
-        private RandomAccessibleIntervalDataSource<DoubleType, VolatileDoubleType> distanceTransform;
+        private final TimeSeriesSource timeSeries;
+
+        private final DerivedSourceMetrics metrics;
+
+        private final ValueStatistics statistics = new ValueStatistics();
 
         private DistanceTransformSource(
                 final DataSource<? extends RealType<?>, ?> sampledFunction,
                 final String name) {
             this.sampledFunction = sampledFunction;
+            this.name = name;
+            this.cache = SharedCellCache.global().newSource(name);
+            this.metrics = new DerivedSourceMetrics();
+            this.blockSizes = repeat(new int[] {16, 16, 16}, sampledFunction.getNumMipmapLevels());
+            // also drops intermediate results that loaders store in the same cache
+            this.timeSeries = new TimeSeriesSource(sampledFunction, this::timepoint, cache::invalidateAll, name);
             setLoaderFactory(sf -> level ->  img -> {
                 final int[] halo = {0, 0, 0};
                 final DoubleType sampleExtension = new DoubleType(Math.sqrt(3*256));
@@ -114,21 +186,130 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
                         .setImages(img, Views.interval(Views.translate(dt, Intervals.minAsLongArray(withContext)), img))
                         .forEachPixel(DoubleType::set);
             });
-            this.name = name;
         }
 
-        public synchronized void setLoaderFactory(final Function<DataSource<? extends RealType<?>, ?>, IntFunction<CellLoader<DoubleType>>> loaderFactory) {
-            this.loaderFactory = loaderFactory.apply(this.sampledFunction);
+        /**
+         * @param loaderFactory applied to a single timepoint of the sampled function, see
+         *                      {@link TimeSeriesSource#at(DataSource, int)}
+         */
+        public synchronized void setLoaderFactory(final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> loaderFactory) {
+            this.loaderFactory = loaderFactory;
             update();
         }
 
+        /**
+         * Use the same {@code blockSize} at all levels.
+         */
         public synchronized void setBlockSize(final int... blockSize) {
-            this.blockSize = blockSize.clone();
+            this.blockSizes = repeat(blockSize, getNumMipmapLevels());
+            update();
+        }
+
+        /**
+         * @param blockSizes block size of each level
+         */
+        public synchronized void setBlockSizes(final int[][] blockSizes) {
+            this.blockSizes = copyOf(blockSizes, getNumMipmapLevels());
+            update();
+        }
+
+        /**
+         * @return block size of level {@code 0}
+         */
+        public synchronized int[] getBlockSize() {
+            return getBlockSize(0);
+        }
+
+        public synchronized int[] getBlockSize(final int level) {
+            return this.blockSizes[level].clone();
+        }
+
+        public SharedCellCache.Source getCache() {
+            return this.cache;
+        }
+
+        public DerivedSourceMetrics getMetrics() {
+            return this.metrics;
+        }
+
+        /**
+         * @return distribution of the exact values that were loaded with the current parameters
+         */
+        public ValueStatistics getStatistics() {
+            return this.statistics;
+        }
+
+        /**
+         * @return token of the current parameter generation, it becomes stale with the next rebuild
+         */
+        public LoadGeneration.Token getGeneration() {
+            return this.generation.current();
+        }
+
+        /**
+         * @param onBlockLoaded called whenever an exact block replaced its preview, i.e. after its cell was inserted
+         *                      into the cache, while the cache is locked
+         */
+        public void setOnBlockLoaded(final Runnable onBlockLoaded) {
+            this.onBlockLoaded = onBlockLoaded;
+        }
+
+        /**
+         * @param onInvalidateAll called by {@link #invalidateAll()} before the cells are dropped from memory, e.g. to
+         *                        drop persisted blocks that would be read back otherwise
+         */
+        public void setOnInvalidateAll(final Runnable onInvalidateAll) {
+            this.onInvalidateAll = onInvalidateAll;
+        }
+
+        /**
+         * Set all parameters at once and rebuild only once. The factories are applied to a single timepoint of the
+         * sampled function.
+         *
+         * @param previewLoaderFactory fast approximation that is shown until the exact result of a block is available,
+         *                             {@code null} for no preview
+         * @param blockSizes block size of each level
+         */
+        public synchronized void configure(
+                final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> loaderFactory,
+                final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> previewLoaderFactory,
+                final int[][] blockSizes,
+                final StorageType storageType,
+                final double quantizationStep) {
+            this.loaderFactory = loaderFactory;
+            this.previewLoaderFactory = previewLoaderFactory;
+            this.blockSizes = copyOf(blockSizes, getNumMipmapLevels());
+            this.storageType = StorageType.orDefault(storageType);
+            this.quantizationStep = quantizationStep;
+            update();
+        }
+
+        public synchronized void setStorage(final StorageType storageType, final double quantizationStep) {
+            this.storageType = StorageType.orDefault(storageType);
+            this.quantizationStep = quantizationStep;
             update();
         }
 
         private synchronized void update() {
 
+            // cells of the previous loaders are never requested again, cancel loads that are still in flight
+            generation.next();
+            cache.newGeneration();
+            timeSeries.clear();
+            statistics.clear();
+        }
+
+        /**
+         * @return distance transform of timepoint {@code t} with the current parameters, whose
+         * {@link DataSource#invalidateAll()} drops its cells from memory
+         */
+        private synchronized DataSource<DoubleType, VolatileDoubleType> timepoint(final int t, final TimeSeriesSource.Requests requests) {
+
+            final LoadGeneration.Token token = generation.current();
+            final DataSource<? extends RealType<?>, ?> sampledFunction = TimeSeriesSource.at(this.sampledFunction, t);
+            final IntFunction<BlockLoader> loaderFactory = this.loaderFactory.apply(sampledFunction);
+            final IntFunction<BlockLoader> previewLoaderFactory = this.previewLoaderFactory == null ? null : this.previewLoaderFactory.apply(sampledFunction);
+
             final AffineTransform3D[] transforms = IntStream
                     .range(0, getNumMipmapLevels())
                     .mapToObj(level -> {
@@ -138,42 +319,101 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
                     })
                     .toArray(AffineTransform3D[]::new);
 
-            final RandomAccessibleInterval<DoubleType>[] data = IntStream
+            final boolean progressive = previewLoaderFactory != null;
+            final Runnable onBlockLoaded = this.onBlockLoaded;
+            final int[][] blockSizes = this.blockSizes;
+            final CachedCellImg[] stored = IntStream
                     .range(0, getNumMipmapLevels())
                     .mapToObj(level -> {
-                        final CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(sampledFunction.getDataSource(0, level)), blockSize);
-                        final CellLoader<DoubleType> loader = loaderFactory.apply(level);
-                        final SoftRefLoaderCache<Long, Cell<VolatileDoubleArray>> cache = new SoftRefLoaderCache<>();
-                        final LoadedCellCacheLoader<DoubleType, VolatileDoubleArray> cacheLoader = LoadedCellCacheLoader.get(grid, loader, new DoubleType(), PrimitiveType.DOUBLE, AccessFlags.setOf(AccessFlags.VOLATILE));
-                        return new CachedCellImg<>(grid, new DoubleType(), cache.withLoader(cacheLoader), new VolatileDoubleArray(1, true));
+                        final CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(sampledFunction.getDataSource(0, level)), blockSizes[level]);
+                        final BlockLoader loader = loaderFactory.apply(level);
+                        final DerivedSourceMetrics.Level levelMetrics = metrics.level(level);
+                        final BlockLoader cancellableLoader = block -> {
+                            token.check();
+                            loader.load(block);
+                        };
+                        // uniform blocks become constant cells without occupying the scheduler
+                        final UniformBlocks.Check uniform = statistics.observingUniform(level, 0, block -> {
+                            token.check();
+                            return loader.uniformValue(block);
+                        });
+                        // the exact cell replaces the preview only once it is in the cache
+                        final SharedCellCache.Listener listener = progressive ? levelMetrics.andOnInserted(onBlockLoaded) : levelMetrics;
+                        final BlockLoader scheduledLoader = DerivedSourceScheduler.global().scheduled(level, transforms[level], levelMetrics.computed(cancellableLoader));
+                        final BlockLoader observedLoader = statistics.observing(level, 0, scheduledLoader);
+                        return storageType.createCachedCellImg(grid, uniform, requests.notifying(level, levelMetrics.requested(observedLoader)), quantizationStep, cache, listener);
                     })
+                    .toArray(CachedCellImg[]::new);
+            final List<CachedCellImg<?, ?>> cellImgs = new ArrayList<>(Arrays.asList(stored));
+            final RandomAccessibleInterval<DoubleType>[] data = Stream
+                    .of(stored)
+                    .map(img -> storageType.asDouble(img, quantizationStep))
                     .toArray(RandomAccessibleInterval[]::new);
             final RandomAccessibleInterval<VolatileDoubleType>[] vdata = Stream
-                    .of(data)
-                    .map(VolatileViews::wrapAsVolatile)
+                    .of(stored)
+                    .map(img -> storageType.asVolatileDouble(img, quantizationStep))
                     .toArray(RandomAccessibleInterval[]::new);
 
-            final InvalidateAll invalidateAll = () -> {
-                Stream.of(data).forEach(rai -> ((CachedCellImg<?, ?>)rai).getCache().invalidateAll());
-            };
+            if (progressive) {
+                for (int level = 0; level < vdata.length; ++level) {
+                    final BlockLoader loader = previewLoaderFactory.apply(level);
+                    final BlockLoader cancellableLoader = block -> {
+                        token.check();
+                        loader.load(block);
+                    };
+                    final BlockLoader scheduledLoader = DerivedSourceScheduler.global().scheduled(level, transforms[level], cancellableLoader);
+                    final CachedCellImg<? extends RealType<?>, ?> preview = storageType.createCachedCellImg(stored[level].getCellGrid(), loader::uniformValue, scheduledLoader, quantizationStep, cache);
+                    cellImgs.add(preview);
+                    vdata[level] = withPreview(vdata[level], storageType.asVolatileDouble(preview, quantizationStep));
+                }
+            }
+
+            // intermediate results of the exact loaders are left to the cache budget
+            final InvalidateAll invalidateAll = () -> cellImgs.forEach(img -> img.getCache().invalidateAll());
 
-            this.distanceTransform = new RandomAccessibleIntervalDataSource<>(
+            return new RandomAccessibleIntervalDataSource<>(
                     new ValueTriple<>(data, vdata, transforms),
                     invalidateAll,
                     interpolation -> Interpolation.NLINEAR.equals(interpolation) ? new NLinearInterpolatorFactory<>() : new NearestNeighborInterpolatorFactory<>(),
                     interpolation -> Interpolation.NLINEAR.equals(interpolation) ? new NLinearInterpolatorFactory<>() : new NearestNeighborInterpolatorFactory<>(),
                     getName());
+        }
+
+        private static int[][] repeat(final int[] blockSize, final int numLevels) {
+            return IntStream.range(0, numLevels).mapToObj(level -> blockSize.clone()).toArray(int[][]::new);
+        }
 
+        private static int[][] copyOf(final int[][] blockSizes, final int numLevels) {
+            if (blockSizes.length != numLevels)
+                throw new IllegalArgumentException("Expected " + numLevels + " block sizes but got " + blockSizes.length);
+            return Stream.of(blockSizes).map(int[]::clone).toArray(int[][]::new);
+        }
+
+        /**
+         * The renderer treats preview values as valid, {@link #setOnBlockLoaded(Runnable)} requests a repaint once the
+         * exact block is available.
+         */
+        private static RandomAccessibleInterval<VolatileDoubleType> withPreview(
+                final RandomAccessibleInterval<VolatileDoubleType> exact,
+                final RandomAccessibleInterval<VolatileDoubleType> preview) {
+            return Converters.convert(
+                    Views.interval(Views.pair(exact, preview), exact),
+                    (pair, t) -> {
+                        final VolatileDoubleType value = pair.getA().isValid() ? pair.getA() : pair.getB();
+                        t.setValid(value.isValid());
+                        t.get().set(value.get().get());
+                    },
+                    new VolatileDoubleType());
         }
 
         @Override
         public RandomAccessibleInterval<DoubleType> getDataSource(int t, int level) {
-            return distanceTransform.getDataSource(t, level);
+            return timeSeries.getDataSource(t, level);
         }
 
         @Override
         public RealRandomAccessible<DoubleType> getInterpolatedDataSource(int t, int level, Interpolation interpolation) {
-            return distanceTransform.getInterpolatedDataSource(t, level, interpolation);
+            return timeSeries.getInterpolatedDataSource(t, level, interpolation);
         }
 
         @Override
@@ -183,22 +423,22 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
 
         @Override
         public boolean isPresent(int t) {
-            return true;
+            return timeSeries.isPresent(t);
         }
 
         @Override
         public RandomAccessibleInterval<VolatileDoubleType> getSource(int t, int level) {
-            return distanceTransform.getSource(t, level);
+            return timeSeries.getSource(t, level);
         }
 
         @Override
         public RealRandomAccessible<VolatileDoubleType> getInterpolatedSource(int t, int level, Interpolation method) {
-            return distanceTransform.getInterpolatedSource(t, level, method);
+            return timeSeries.getInterpolatedSource(t, level, method);
         }
 
         @Override
         public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-            distanceTransform.getSourceTransform(t, level, transform);
+            timeSeries.getSourceTransform(t, level, transform);
         }
 
         @Override
@@ -223,7 +463,9 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
 
         @Override
         public void invalidateAll() {
-            distanceTransform.invalidateAll();
+            onInvalidateAll.run();
+            timeSeries.invalidateAll();
+            SourceInvalidation.invalidated(this);
         }
     }
 
@@ -231,6 +473,13 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
 
     private final ObjectProperty<int[]> blockSize = new SimpleObjectProperty<>(new int[] {16, 16, 16});
 
+    private final BooleanProperty autoBlockSize = new SimpleBooleanProperty(false);
+
+    /**
+     * Block size of each level from the last {@link BlockShapeTuner calibration}, {@code null} if there was none yet.
+     */
+    private final ObjectProperty<int[][]> tunedBlockSizes = new SimpleObjectProperty<>(null);
+
     private final ObjectProperty<double[]> weights = new SimpleObjectProperty<>(new double[] {1.0, 1.0, 1.0});
 
     private final ObjectProperty<DistanceTransform.DISTANCE_TYPE> dtType = new SimpleObjectProperty<>(DistanceTransform.DISTANCE_TYPE.EUCLIDIAN);
@@ -243,69 +492,394 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
 
     private final BooleanProperty squareInput = new SimpleBooleanProperty(false);
 
+    // levels that do not fit into the cache fall back to the halo transform, see exactOrHalo
+    private final BooleanProperty exact = new SimpleBooleanProperty(true);
+
+    private final ObjectProperty<StorageType> storageType = new SimpleObjectProperty<>(StorageType.FLOAT64);
+
+    private final DoubleProperty quantizationStep = new SimpleDoubleProperty(StorageType.DEFAULT_QUANTIZATION_STEP);
+
+    private final IntegerProperty cacheLimitMiB = new SimpleIntegerProperty(0);
+
+    private final BooleanProperty weighCacheByCost = new SimpleBooleanProperty(false);
+
+    private final IntegerProperty threadsPerBlock = new SimpleIntegerProperty(1);
+
+    private final BooleanProperty progressive = new SimpleBooleanProperty(true);
+
+    private final BooleanProperty persist = new SimpleBooleanProperty(false);
+
+    private final IntegerProperty diskCacheLimitMiB = new SimpleIntegerProperty(4096);
+
     private final List<Runnable> onUpdateListeners = new ArrayList<>();
 
+    private final LoadGeneration tuning = new LoadGeneration();
+
+    private final PersistentBlockCache diskCache;
+
+    private final Set<String> persistedParameters = ConcurrentHashMap.newKeySet();
+
+    private final AutoContrast autoContrast;
+
+    private ScheduledFuture<?> scheduledUpdate = null;
+
+    private final AtomicBoolean repaintRequested = new AtomicBoolean(false);
+
 
     public DistanceTransformSourceState(
             SourceState<? extends RealType<?>, ?> dataSource,
             String name) {
+        this(dataSource, name, null);
+    }
+
+    /**
+     * @param cacheDirectory directory for the persistent disk cache, e.g. the project directory, {@code null} for none
+     */
+    public DistanceTransformSourceState(
+            SourceState<? extends RealType<?>, ?> dataSource,
+            String name,
+            String cacheDirectory) {
         super(
                 new DistanceTransformSource(dataSource.getDataSource(), name),
                 new ARGBColorConverter.InvertingImp1<>(),
                 new ARGBCompositeAlphaAdd(),
                 name,
                 dataSource);
-        halo.addListener(obs -> updateDistanceTransformLoaderFactory());
-        weights.addListener(obs -> updateDistanceTransformLoaderFactory());
-        dtType.addListener(obs -> updateDistanceTransformLoaderFactory());
-        scaleFactor.addListener(obs -> updateDistanceTransformLoaderFactory());
-        threshold.addListener(obs -> updateDistanceTransformLoaderFactory());
-        sampleExtension.addListener(obs -> updateDistanceTransformLoaderFactory());
-        squareInput.addListener(obs -> updateDistanceTransformLoaderFactory());
-        blockSize.addListener((obs, oldv, newv) -> getDataSource().setBlockSize(newv));
-        blockSize.addListener((obs, oldv, newv) -> onUpdate());
+        this.diskCache = createDiskCache(cacheDirectory);
+        this.autoContrast = new AutoContrast(getDataSource().getStatistics(), 0, converter());
+        halo.addListener(obs -> requestUpdate());
+        weights.addListener(obs -> requestUpdate());
+        dtType.addListener(obs -> requestUpdate());
+        scaleFactor.addListener(obs -> requestUpdate());
+        threshold.addListener(obs -> requestUpdate());
+        sampleExtension.addListener(obs -> requestUpdate());
+        squareInput.addListener(obs -> requestUpdate());
+        exact.addListener(obs -> requestUpdate());
+        blockSize.addListener(obs -> requestUpdate());
+        tunedBlockSizes.addListener(obs -> requestUpdate());
+        autoBlockSize.addListener(obs -> requestUpdate());
+        // parameters that change the cost of blocks, tuning on a stale configuration is cancelled
+        autoBlockSize.addListener(obs -> requestTuning());
+        exact.addListener(obs -> requestTuning());
+        halo.addListener(obs -> requestTuning());
+        dtType.addListener(obs -> requestTuning());
+        threshold.addListener(obs -> requestTuning());
+        threadsPerBlock.addListener(obs -> requestTuning());
+        storageType.addListener(obs -> requestUpdate());
+        quantizationStep.addListener(obs -> requestUpdate());
+        threadsPerBlock.addListener(obs -> requestUpdate());
+        progressive.addListener(obs -> requestUpdate());
+        persist.addListener(obs -> requestUpdate());
+        diskCacheLimitMiB.addListener((obs, oldv, newv) -> UPDATE_SCHEDULER.execute(() -> evictDiskCache(newv.longValue() << 20)));
+        getDataSource().setOnBlockLoaded(this::onUpdate);
+        // recompute when the input is refreshed
+        SourceInvalidation.addDependent(dataSource.getDataSource(), getDataSource());
+        cacheLimitMiB.addListener((obs, oldv, newv) -> getDataSource().getCache().setMaxBytes(newv.longValue() << 20));
+        weighCacheByCost.addListener((obs, oldv, newv) -> getDataSource().getCache().setWeighByCost(newv));
+        if (diskCache != null) {
+            getDataSource().setOnInvalidateAll(this::invalidatePersisted);
+            getDataSource().getMetrics().setDiskBytes(() -> persistedParameters.stream().mapToLong(diskCache::bytes).sum());
+        }
+        updateDistanceTransformLoaderFactory(new Configuration(this));
+    }
+
+    private static PersistentBlockCache createDiskCache(final String cacheDirectory) {
+        if (cacheDirectory == null)
+            return null;
+        try {
+            return PersistentBlockCache.get(cacheDirectory, DISK_CACHE_CONTAINER);
+        } catch (final IOException e) {
+            LOG.warn("Unable to create disk cache in {}, distance transforms will not be persisted", cacheDirectory, e);
+            return null;
+        }
     }
 
+    /**
+     * Request a repaint on the FX thread, bursts of loaded blocks are coalesced into a single repaint.
+     */
     private void onUpdate() {
-        onUpdateListeners.forEach(Runnable::run);
+        if (repaintRequested.compareAndSet(false, true))
+            Platform.runLater(() -> {
+                repaintRequested.set(false);
+                onUpdateListeners.forEach(Runnable::run);
+            });
     }
 
-    private void updateDistanceTransformLoaderFactory() {
-        Function<DataSource<? extends RealType<?>, ?>, IntFunction<CellLoader<DoubleType>>> factory = sampledFunction -> level -> img -> {
-            final int[] halo = this.halo.get();
-            final FinalInterval withContext = Intervals.expand(img, new FinalDimensions(halo));
-            final boolean squareInput = this.squareInput.get();
-            final RandomAccessibleInterval<DoubleType> convertedSampledFunction =
-                    squareInput
-                            ? Converters.convert(sampledFunction.getDataSource(0, level), new RealDoubleConverter(), new DoubleType())
-                            : Converters.convert(sampledFunction.getDataSource(0, level), (s, t) -> t.setReal(s.getRealDouble() * s.getRealDouble()), new DoubleType());
-            final IntervalView<DoubleType> sampled = Views.interval(Views.extendValue(convertedSampledFunction, new DoubleType(sampleExtension.get())), withContext);
-            final RandomAccessibleInterval<DoubleType> dt = ArrayImgs.doubles(Intervals.dimensionsAsLongArray(withContext));
-            final DistanceTransform.DISTANCE_TYPE distanceType = dtType.get();
-            final Predicate<DoubleType> threshold = this.threshold.get();
-            if (threshold == null) {
-                DistanceTransform.transform(
-                        Views.zeroMin(sampled),
-                        dt,
-                        distanceType,
-                        DoubleStream.of(weights.get()).map(d -> d * scaleFactor.get()).toArray());
-            } else {
-                DistanceTransform.binaryTransform(
-                        Converters.convert((RandomAccessibleInterval<DoubleType>)Views.zeroMin(sampled), (s, t) -> t.set(threshold.test(s)), new BitType()),
-                        dt,
-                        distanceType,
-                        weights.get());
-            }
-            if (DistanceTransform.DISTANCE_TYPE.EUCLIDIAN.equals(distanceType)) {
-                Views.interval(Views.translate(dt, Intervals.minAsLongArray(withContext)), img).forEach(v -> v.setReal(Math.sqrt(v.getRealDouble())));
+    /**
+     * Immutable copy of all properties that the loaders depend on. It is taken on the FX thread, the loaders and the
+     * disk cache only ever see the snapshot.
+     */
+    private static class Configuration {
+
+        private final String name;
+
+        private final DistanceTransformLoaders.Parameters parameters;
+
+        private final boolean exact;
+
+        private final int[] halo;
+
+        private final boolean progressive;
+
+        private final int[][] blockSizes;
+
+        private final StorageType storageType;
+
+        private final double quantizationStep;
+
+        private final boolean persist;
+
+        private final long diskCacheLimitBytes;
+
+        private Configuration(final DistanceTransformSourceState state) {
+            this.name = state.nameProperty().get();
+            this.parameters = state.parameters();
+            this.exact = state.exact.get();
+            this.halo = state.halo.get().clone();
+            this.progressive = state.progressive.get();
+            this.blockSizes = state.blockSizes();
+            this.storageType = state.storageType.get();
+            this.quantizationStep = state.quantizationStep.get();
+            this.persist = state.persist.get();
+            this.diskCacheLimitBytes = state.diskCacheLimitMiB.longValue() << 20;
+        }
+    }
+
+    /**
+     * Coalesce bursts of parameter changes, e.g. from the three weights fields, into a single rebuild. Must be called
+     * on the FX thread.
+     */
+    private synchronized void requestUpdate() {
+        if (scheduledUpdate != null)
+            scheduledUpdate.cancel(false);
+        final Configuration configuration = new Configuration(this);
+        scheduledUpdate = UPDATE_SCHEDULER.schedule(() -> {
+            try {
+                updateDistanceTransformLoaderFactory(configuration);
+            } catch (final RuntimeException e) {
+                LOG.error("Unable to update distance transform {}", configuration.name, e);
             }
-            LoopBuilder
-                    .setImages(img, Views.interval(Views.translate(dt, Intervals.minAsLongArray(withContext)), img))
-                    .forEachPixel(DoubleType::set);
-        };
-        getDataSource().setLoaderFactory(factory);
+        }, UPDATE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void updateDistanceTransformLoaderFactory(final Configuration configuration) {
+        final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> factory = configuration.exact
+                ? sf -> exactLoaderFactory(sf, configuration)
+                : sf -> haloLoaderFactory(sf, configuration.parameters, configuration.halo);
+        // the halo transform is block-local already and does not benefit from a preview
+        final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> previewFactory = configuration.exact && configuration.progressive
+                ? sf -> haloLoaderFactory(sf, configuration.parameters, new int[configuration.halo.length])
+                : null;
+        getDataSource().configure(
+                persistent(factory, configuration),
+                previewFactory,
+                configuration.blockSizes,
+                configuration.storageType,
+                configuration.quantizationStep);
         onUpdate();
+        UPDATE_SCHEDULER.execute(() -> evictDiskCache(configuration.diskCacheLimitBytes));
+
+    }
+
+    /**
+     * @return tuned block size of each level if {@link #autoBlockSize} is set and tuning finished, the
+     * {@link #blockSize} at all levels otherwise
+     */
+    private int[][] blockSizes() {
+        final int[][] tuned = tunedBlockSizes.get();
+        final int numLevels = getDataSource().getNumMipmapLevels();
+        return autoBlockSize.get() && tuned != null && tuned.length == numLevels
+                ? Stream.of(tuned).map(int[]::clone).toArray(int[][]::new)
+                : IntStream.range(0, numLevels).mapToObj(level -> blockSize.get().clone()).toArray(int[][]::new);
+    }
+
+    /**
+     * Calibrate block shapes for the current parameters in the background and apply them once done, if
+     * {@link #autoBlockSize} is set. Cancels calibrations that are still running. Must be called on the FX thread.
+     */
+    private void requestTuning() {
+        final LoadGeneration.Token token = tuning.next();
+        if (autoBlockSize.get()) {
+            final Configuration configuration = new Configuration(this);
+            TUNING_EXECUTOR.execute(() -> tuneBlockSizes(configuration, token));
+        }
+    }
+
+    private void tuneBlockSizes(final Configuration configuration, final LoadGeneration.Token token) {
+        if (token.isStale())
+            return;
+        final DataSource<? extends RealType<?>, ?> sampledFunction = TimeSeriesSource.at(getDataSource().sampledFunction, 0);
+        final DistanceTransformLoaders.Parameters parameters = configuration.parameters;
+        final boolean exact = configuration.exact;
+        final int[] halo = exact ? new int[configuration.halo.length] : configuration.halo;
+        final BlockShapeTuner.LoaderFactory loaders = (level, blockSize, cache) -> exact
+                ? exactOrHalo(sampledFunction.getDataSource(0, level), level, configuration, blockSize, cache, token)
+                : DistanceTransformLoaders.halo(sampledFunction.getDataSource(0, level), parameters, halo);
+        try {
+            final long start = System.currentTimeMillis();
+            final int[][] blockSizes = BlockShapeTuner.tune(sampledFunction, halo, loaders, token);
+            LOG.info("Tuned block sizes of {} in {} ms: {}", configuration.name, System.currentTimeMillis() - start, Arrays.deepToString(blockSizes));
+            Platform.runLater(() -> {
+                if (!token.isStale())
+                    tunedBlockSizes.set(blockSizes);
+            });
+        } catch (final CancellationException e) {
+            LOG.debug("Tuning block sizes of {} cancelled", configuration.name);
+        } catch (final Exception e) {
+            LOG.warn("Unable to tune block sizes of {}, keeping {}", configuration.name, Arrays.toString(configuration.blockSizes[0]), e);
+        }
+    }
+
+    /**
+     * Read finished blocks from the disk cache and write newly computed blocks to it. Previews are never persisted.
+     */
+    private Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> persistent(
+            final Function<DataSource<? extends RealType<?>, ?>, IntFunction<BlockLoader>> factory,
+            final Configuration configuration) {
+        final PersistentBlockCache diskCache = this.diskCache;
+        persistedParameters.clear();
+        if (diskCache == null || !configuration.persist)
+            return factory;
+        final DataType dataType = PersistentBlockCache.dataType(configuration.storageType);
+        final int[][] blockSizes = configuration.blockSizes;
+        return sf -> {
+            final IntFunction<BlockLoader> loaders = factory.apply(sf);
+            final String parameters = persistentParameters(sf, configuration);
+            // each timepoint protects its own parameter set until it is garbage collected
+            diskCache.setInUse(sf, parameters);
+            if (parameters == null)
+                return loaders;
+            persistedParameters.add(parameters);
+            return level -> {
+                final BlockLoader loader = loaders.apply(level);
+                try {
+                    final long[] dimensions = Intervals.dimensionsAsLongArray(sf.getDataSource(0, level));
+                    // uniform blocks are cheaper to detect than to read
+                    return UniformBlocks.shortCircuit(loader::uniformValue, diskCache.wrap(parameters, level, dimensions, blockSizes[level], dataType, loader));
+                } catch (final IOException e) {
+                    LOG.warn("Unable to use disk cache for level {} of {}", level, configuration.name, e);
+                    return loader;
+                }
+            };
+        };
+    }
+
+    /**
+     * @return description of all parameters that affect the values of the distance transform, or {@code null} if the
+     * threshold cannot be described
+     */
+    private String persistentParameters(final DataSource<? extends RealType<?>, ?> sampledFunction, final Configuration configuration) {
+        final DistanceTransformLoaders.Parameters dtParameters = configuration.parameters;
+        final Predicate<DoubleType> threshold = dtParameters.threshold;
+        if (threshold != null && !(threshold instanceof DistanceTransformLoaders.ThresholdPredicate))
+            return null;
+        final int[][] blockSizes = configuration.blockSizes;
+        final JsonObject parameters = new JsonObject();
+        parameters.add("input", PersistentBlockCache.describe(sampledFunction));
+        parameters.addProperty("distanceType", dtParameters.distanceType.name());
+        parameters.addProperty("weights", Arrays.toString(dtParameters.weights));
+        parameters.addProperty("scaleFactor", dtParameters.scaleFactor);
+        if (threshold != null)
+            parameters.addProperty("threshold", ((DistanceTransformLoaders.ThresholdPredicate) threshold).getThreshold());
+        parameters.addProperty("extension", dtParameters.sampleExtension);
+        parameters.addProperty("squareInput", dtParameters.squareInput);
+        parameters.addProperty("exact", configuration.exact);
+        if (configuration.exact) {
+            // levels that do not fit into the cache fall back to the halo transform
+            final int[] haloLevels = IntStream
+                    .range(0, sampledFunction.getNumMipmapLevels())
+                    .filter(level -> !BlockwiseDistanceTransform.fitsInCache(sampledFunction.getDataSource(0, level), getDataSource().getCache()))
+                    .toArray();
+            if (haloLevels.length > 0) {
+                parameters.addProperty("haloLevels", Arrays.toString(haloLevels));
+                parameters.addProperty("halo", Arrays.toString(configuration.halo));
+            }
+        } else
+            parameters.addProperty("halo", Arrays.toString(configuration.halo));
+        // uniform block sizes keep the description of earlier versions
+        parameters.addProperty("blockSize", Stream.of(blockSizes).allMatch(size -> Arrays.equals(size, blockSizes[0]))
+                ? Arrays.toString(blockSizes[0])
+                : Arrays.deepToString(blockSizes));
+        parameters.addProperty("storageType", StorageType.orDefault(configuration.storageType).name());
+        parameters.addProperty("quantizationStep", configuration.quantizationStep);
+        return parameters.toString();
+    }
 
+    /**
+     * Drop the persisted blocks of the current parameters of all timepoints, e.g. after the input changed.
+     */
+    private void invalidatePersisted() {
+        for (final String parameters : persistedParameters) {
+            try {
+                diskCache.invalidateAll(parameters);
+            } catch (final IOException e) {
+                LOG.warn("Unable to invalidate persisted blocks of {}", nameProperty().get(), e);
+            }
+        }
+    }
+
+    private void evictDiskCache(final long maxBytes) {
+        if (diskCache == null)
+            return;
+        try {
+            diskCache.evict(maxBytes);
+        } catch (final IOException e) {
+            LOG.warn("Unable to evict old parameter sets from disk cache", e);
+        }
+    }
+
+    private DistanceTransformLoaders.Parameters parameters() {
+        return new DistanceTransformLoaders.Parameters(
+                dtType.get(),
+                weights.get(),
+                scaleFactor.get(),
+                threshold.get(),
+                sampleExtension.get(),
+                squareInput.get(),
+                threadsPerBlock.get());
+    }
+
+    private IntFunction<BlockLoader> exactLoaderFactory(
+            final DataSource<? extends RealType<?>, ?> sampledFunction,
+            final Configuration configuration) {
+        return level -> exactOrHalo(
+                sampledFunction.getDataSource(0, level),
+                level,
+                configuration,
+                getDataSource().getBlockSize(level),
+                getDataSource().getCache(),
+                getDataSource().getGeneration());
+    }
+
+    /**
+     * The exact transform computes its line stages over the whole level for the first block, see
+     * {@link BlockwiseDistanceTransform}. Levels whose stages do not fit into the cache budget use the halo transform
+     * instead of recomputing the stages for every block.
+     */
+    private static BlockLoader exactOrHalo(
+            final RandomAccessibleInterval<? extends RealType<?>> sampledFunction,
+            final int level,
+            final Configuration configuration,
+            final int[] blockSize,
+            final SharedCellCache.Source cache,
+            final LoadGeneration.Token generation) {
+        if (BlockwiseDistanceTransform.fitsInCache(sampledFunction, cache))
+            return DistanceTransformLoaders.exact(sampledFunction, configuration.parameters, blockSize, cache, generation);
+        LOG.warn(
+                "Exact distance transform of level {} of {} needs {} MiB of cache but the budget is {} MiB, using a halo of {} instead",
+                level,
+                configuration.name,
+                BlockwiseDistanceTransform.stageBytes(sampledFunction) >> 20,
+                cache.getBudget() >> 20,
+                Arrays.toString(configuration.halo));
+        return DistanceTransformLoaders.halo(sampledFunction, configuration.parameters, configuration.halo);
+    }
+
+    private static IntFunction<BlockLoader> haloLoaderFactory(
+            final DataSource<? extends RealType<?>, ?> sampledFunction,
+            final DistanceTransformLoaders.Parameters parameters,
+            final int[] halo) {
+        return level -> DistanceTransformLoaders.halo(sampledFunction.getDataSource(0, level), parameters, halo);
     }
 
     @Plugin(type = OpenDialogMenuEntry.class,
@@ -333,7 +907,8 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
                     final SourceState<? extends RealType<?>, ?> raw = comboBox.getValue();
                     final DistanceTransformSourceState distanceTransform = new DistanceTransformSourceState(
                             raw,
-                            raw.nameProperty().get() + "-distance-transform");
+                            raw.nameProperty().get() + "-distance-transform",
+                            directory);
                     pbv.addState(distanceTransform);
                 }
             };
@@ -348,29 +923,20 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
         converter().colorProperty().addListener(requestRepaint);
         converter().alphaProperty().addListener(requestRepaint);
         onUpdateListeners.add(paintera.orthogonalViews()::requestRepaint);
+        DerivedSourceScheduler.global().track(paintera);
+        getDataSource().getMetrics().registerWhileAdded(paintera, getDataSource(), nameProperty().get());
     }
 
     private static class Settings implements BindUnbindAndNodeSupplier {
 
-        private static class ThresholdPredicate implements Predicate<DoubleType> {
-            private final double t;
-
-            private ThresholdPredicate(double t) {
-                this.t = t;
-            }
-
-            @Override
-            public boolean test(DoubleType doubleType) {
-                return doubleType.getRealDouble() > t;
-            }
-        }
-
         private final DistanceTransformSourceState state;
 
         private final ObjectProperty<int[]> halo = new SimpleObjectProperty<>(new int[] {0, 0, 0});
 
         private final ObjectProperty<int[]> blockSize = new SimpleObjectProperty<>(new int[] {16, 16, 16});
 
+        private final BooleanProperty autoBlockSize = new SimpleBooleanProperty(false);
+
         private final ObjectProperty<double[]> weights = new SimpleObjectProperty<>(new double[] {1.0, 1.0, 1.0});
 
         private final ObjectProperty<DistanceTransform.DISTANCE_TYPE> dtType = new SimpleObjectProperty<>(DistanceTransform.DISTANCE_TYPE.EUCLIDIAN);
@@ -383,12 +949,30 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
 
         private final BooleanProperty squareInput = new SimpleBooleanProperty(false);
 
+        private final BooleanProperty exact = new SimpleBooleanProperty(true);
+
+        private final ObjectProperty<StorageType> storageType = new SimpleObjectProperty<>(StorageType.FLOAT64);
+
+        private final DoubleProperty quantizationStep = new SimpleDoubleProperty(StorageType.DEFAULT_QUANTIZATION_STEP);
+
+        private final IntegerProperty cacheLimitMiB = new SimpleIntegerProperty(0);
+
+        private final BooleanProperty weighCacheByCost = new SimpleBooleanProperty(false);
+
+        private final IntegerProperty threadsPerBlock = new SimpleIntegerProperty(1);
+
+        private final BooleanProperty progressive = new SimpleBooleanProperty(true);
+
+        private final BooleanProperty persist = new SimpleBooleanProperty(false);
+
+        private final IntegerProperty diskCacheLimitMiB = new SimpleIntegerProperty(4096);
+
         private final DoubleProperty thresholdAt = new SimpleDoubleProperty(0.0);
 
         private final BooleanProperty doThreshold = new SimpleBooleanProperty(false);
 
         private final ObjectBinding<Predicate<DoubleType>> thresholdBinding = Bindings.createObjectBinding(
-                () -> doThreshold.get() ? new ThresholdPredicate(thresholdAt.get())  : null,
+                () -> doThreshold.get() ? new DistanceTransformLoaders.ThresholdPredicate(thresholdAt.get())  : null,
                 thresholdAt,
                 doThreshold);
 
@@ -408,8 +992,15 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
             final Label threshold = Labels.withTooltip("Threshold");
             final Label extension = Labels.withTooltip("Extension");
             final Label squareInput = Labels.withTooltip("Square Input");
-            final Label halo = Labels.withTooltip("Halo", "Padding around blocks for calculating distance transform");
+            final Label exact = Labels.withTooltip("Exact", "Propagate distances across block borders instead of using a fixed halo. The first block of each level transforms the whole level, levels that do not fit into the cache use the halo");
+            final Label progressive = Labels.withTooltip("Progressive", "Show a fast block-local approximation until the exact result of a block is available");
+            final Label halo = Labels.withTooltip("Halo", "Padding around blocks for calculating distance transform (only used by exact levels that do not fit into the cache if exact)");
             final Label blockSize = Labels.withTooltip("Block Size");
+            final Label autoBlockSize = Labels.withTooltip("Auto Block Size", "Check to pick the block size of each level from short calibration loads on the input, whenever parameters change that affect the cost of blocks. Blocks are kept below the latency limit of all derived sources.");
+            final Label storage = Labels.withTooltip("Storage", "Precision of cached values. INT16 stores multiples of the quantization step.");
+            final Label cacheLimit = Labels.withTooltip("Cache Limit (MiB)", "Memory limit for this source, 0 for no limit. Check to prefer evicting blocks that are cheap to recompute.");
+            final Label diskCacheLimit = Labels.withTooltip("Disk Cache (MiB)", "Check to keep finished blocks in the project directory. Least recently used parameter sets are removed when the disk cache exceeds this limit.");
+            final Label threadsPerBlock = Labels.withTooltip("Threads per Block", "Tasks per block on the shared compute pool of " + ComputePool.get().getParallelism() + " threads. Use 1 to compute many blocks concurrently, more for large blocks.");
 
             final ComboBox<DistanceTransform.DISTANCE_TYPE> dtChoice = new ComboBox<>(FXCollections.observableArrayList(DistanceTransform.DISTANCE_TYPE.values()));
             dtChoice.valueProperty().bindBidirectional(this.dtType);
@@ -436,6 +1027,12 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
             final CheckBox squareBox = new CheckBox();
             bind(squareBox.selectedProperty(), this.squareInput);
 
+            final CheckBox exactBox = new CheckBox();
+            bind(exactBox.selectedProperty(), this.exact);
+
+            final CheckBox progressiveBox = new CheckBox();
+            bind(progressiveBox.selectedProperty(), this.progressive);
+
             final NumberField<IntegerProperty> haloX = NumberField.intField(this.halo.get()[0], i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
             final NumberField<IntegerProperty> haloY = NumberField.intField(this.halo.get()[1], i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
             final NumberField<IntegerProperty> haloZ = NumberField.intField(this.halo.get()[2], i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
@@ -449,7 +1046,31 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
             blockSizeX.valueProperty().addListener((obs -> this.blockSize.set(new int[] {blockSizeX.valueProperty().get(), blockSizeY.valueProperty().get(), blockSizeZ.valueProperty().get()})));
             blockSizeY.valueProperty().addListener((obs -> this.blockSize.set(new int[] {blockSizeX.valueProperty().get(), blockSizeY.valueProperty().get(), blockSizeZ.valueProperty().get()})));
             blockSizeZ.valueProperty().addListener((obs -> this.blockSize.set(new int[] {blockSizeX.valueProperty().get(), blockSizeY.valueProperty().get(), blockSizeZ.valueProperty().get()})));
-
+            blockSizeX.textField().disableProperty().bind(this.autoBlockSize);
+            blockSizeY.textField().disableProperty().bind(this.autoBlockSize);
+            blockSizeZ.textField().disableProperty().bind(this.autoBlockSize);
+
+            final CheckBox autoBlockSizeBox = new CheckBox();
+            bind(autoBlockSizeBox.selectedProperty(), this.autoBlockSize);
+
+            final ComboBox<StorageType> storageChoice = new ComboBox<>(FXCollections.observableArrayList(StorageType.values()));
+            storageChoice.valueProperty().bindBidirectional(this.storageType);
+            storageChoice.setValue(this.storageType.get());
+            final NumberField<DoubleProperty> quantizationStepField = NumberField.doubleField(this.quantizationStep.get(), i -> i > 0, ObjectField.SubmitOn.values());
+            bind(quantizationStepField.valueProperty(), this.quantizationStep);
+
+            final NumberField<IntegerProperty> cacheLimitField = NumberField.intField(this.cacheLimitMiB.get(), i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+            bind(cacheLimitField.valueProperty(), this.cacheLimitMiB);
+            final CheckBox weighByCostBox = new CheckBox();
+            bind(weighByCostBox.selectedProperty(), this.weighCacheByCost);
+            final NumberField<IntegerProperty> threadsPerBlockField = NumberField.intField(this.threadsPerBlock.get(), i -> i > 0 && i <= ComputePool.PARALLELISM, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+            bind(threadsPerBlockField.valueProperty(), this.threadsPerBlock);
+
+            final CheckBox persistBox = new CheckBox();
+            bind(persistBox.selectedProperty(), this.persist);
+            persistBox.setDisable(state.diskCache == null);
+            final NumberField<IntegerProperty> diskCacheLimitField = NumberField.intField(this.diskCacheLimitMiB.get(), i -> i >= 0, ObjectField.SubmitOn.ENTER_PRESSED, ObjectField.SubmitOn.FOCUS_LOST);
+            bind(diskCacheLimitField.valueProperty(), this.diskCacheLimitMiB);
 
             gp.add(distanceType, 0, 0);
             gp.add(dtChoice, 3, 0);
@@ -472,15 +1093,39 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
             gp.add(squareInput, 0, 5);
             gp.add(squareBox, 3, 5);
 
-            gp.add(halo, 0, 6);
-            gp.add(haloX.textField(), 1, 6);
-            gp.add(haloY.textField(), 2, 6);
-            gp.add(haloZ.textField(), 3, 6);
+            gp.add(exact, 0, 6);
+            gp.add(exactBox, 3, 6);
+
+            gp.add(halo, 0, 7);
+            gp.add(haloX.textField(), 1, 7);
+            gp.add(haloY.textField(), 2, 7);
+            gp.add(haloZ.textField(), 3, 7);
+
+            gp.add(blockSize, 0, 8);
+            gp.add(blockSizeX.textField(), 1, 8);
+            gp.add(blockSizeY.textField(), 2, 8);
+            gp.add(blockSizeZ.textField(), 3, 8);
+
+            gp.add(autoBlockSize, 0, 9);
+            gp.add(autoBlockSizeBox, 3, 9);
+
+            gp.add(storage, 0, 10);
+            gp.add(quantizationStepField.textField(), 2, 10);
+            gp.add(storageChoice, 3, 10);
+
+            gp.add(cacheLimit, 0, 11);
+            gp.add(weighByCostBox, 2, 11);
+            gp.add(cacheLimitField.textField(), 3, 11);
 
-            gp.add(blockSize, 0, 7);
-            gp.add(blockSizeX.textField(), 1, 7);
-            gp.add(blockSizeY.textField(), 2, 7);
-            gp.add(blockSizeZ.textField(), 3, 7);
+            gp.add(threadsPerBlock, 0, 12);
+            gp.add(threadsPerBlockField.textField(), 3, 12);
+
+            gp.add(progressive, 0, 13);
+            gp.add(progressiveBox, 3, 13);
+
+            gp.add(diskCacheLimit, 0, 14);
+            gp.add(persistBox, 2, 14);
+            gp.add(diskCacheLimitField.textField(), 3, 14);
 
             return TitledPanes.createCollapsed("Settings", gp);
         }
@@ -489,24 +1134,44 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
         public void bind() {
             bind(this.halo, state.halo);
             bind(this.blockSize, state.blockSize);
+            bind(this.autoBlockSize, state.autoBlockSize);
             bind(this.weights, state.weights);
             bind(this.dtType, state.dtType);
             bind(this.scaleFactor, state.scaleFactor);
             bind(this.threshold, state.threshold);
             bind(this.sampleExtension, state.sampleExtension);
             bind(this.squareInput, state.squareInput);
+            bind(this.exact, state.exact);
+            bind(this.storageType, state.storageType);
+            bind(this.quantizationStep, state.quantizationStep);
+            bind(this.cacheLimitMiB, state.cacheLimitMiB);
+            bind(this.weighCacheByCost, state.weighCacheByCost);
+            bind(this.threadsPerBlock, state.threadsPerBlock);
+            bind(this.progressive, state.progressive);
+            bind(this.persist, state.persist);
+            bind(this.diskCacheLimitMiB, state.diskCacheLimitMiB);
         }
 
         @Override
         public void unbind() {
             this.halo.unbindBidirectional(state.halo);
             this.blockSize.unbindBidirectional(state.blockSize);
+            this.autoBlockSize.unbindBidirectional(state.autoBlockSize);
             this.weights.unbindBidirectional(state.weights);
             this.dtType.unbindBidirectional(state.dtType);
             this.scaleFactor.unbindBidirectional(state.scaleFactor);
             this.threshold.unbindBidirectional(state.threshold);
             this.sampleExtension.unbindBidirectional(state.sampleExtension);
             this.squareInput.unbindBidirectional(state.squareInput);
+            this.exact.unbindBidirectional(state.exact);
+            this.storageType.unbindBidirectional(state.storageType);
+            this.quantizationStep.unbindBidirectional(state.quantizationStep);
+            this.cacheLimitMiB.unbindBidirectional(state.cacheLimitMiB);
+            this.weighCacheByCost.unbindBidirectional(state.weighCacheByCost);
+            this.threadsPerBlock.unbindBidirectional(state.threadsPerBlock);
+            this.progressive.unbindBidirectional(state.progressive);
+            this.persist.unbindBidirectional(state.persist);
+            this.diskCacheLimitMiB.unbindBidirectional(state.diskCacheLimitMiB);
         }
 
         private <T> void bind(ObjectProperty<T> property, ObjectProperty<T> to) {
@@ -523,10 +1188,152 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
             property.bindBidirectional(to);
             property.set(to.get());
         }
+
+        private void bind(IntegerProperty property, IntegerProperty to) {
+            property.bindBidirectional(to);
+            property.set(to.get());
+        }
     }
 
+    @Plugin(type = StatefulSerializer.SerializerAndDeserializer.class)
+    public static class SerializationFactory implements StatefulSerializer.SerializerAndDeserializer<DistanceTransformSourceState, Deserializer, Serializer> {
 
+        @Override
+        public Deserializer createDeserializer(
+                StatefulSerializer.Arguments arguments,
+                Supplier<String> projectDirectory,
+                IntFunction<SourceState<?, ?>> dependencyFromIndex) {
+            return new Deserializer(dependencyFromIndex, projectDirectory.get());
+        }
+
+        @Override
+        public Serializer createSerializer(
+                Supplier<String> projectDirectory,
+                ToIntFunction<SourceState<?, ?>> stateToIndex) {
+            return new Serializer(stateToIndex);
+        }
 
+        @Override
+        public Class<DistanceTransformSourceState> getTargetClass() {
+            return DistanceTransformSourceState.class;
+        }
+    }
+
+    private static class Serializer implements JsonSerializer<DistanceTransformSourceState> {
+
+        private final ToIntFunction<SourceState<?, ?>> sourceToIndex;
+
+        private Serializer(final ToIntFunction<SourceState<?, ?>> sourceToIndex) {
+            this.sourceToIndex = sourceToIndex;
+        }
+
+        @Override
+        public JsonElement serialize(DistanceTransformSourceState src, Type typeOfSrc, JsonSerializationContext context) {
+            final JsonObject map = new JsonObject();
+            map.add("composite", SerializationHelpers.serializeWithClassInfo(src.compositeProperty().get(), context));
+            map.add("converter", SerializationHelpers.serializeWithClassInfo(src.converter(), context));
+            map.add(INTERPOLATION_KEY, context.serialize(src.interpolationProperty().get(), Interpolation.class));
+            map.addProperty(IS_VISIBLE_KEY, src.isVisibleProperty().get());
+            map.addProperty(NAME_KEY, src.nameProperty().get());
+            map.add(DEPENDS_ON_KEY, context.serialize(Stream.of(src.dependsOn()).mapToInt(sourceToIndex).toArray()));
+
+            final JsonObject settings = new JsonObject();
+            settings.add("halo", context.serialize(src.halo.get()));
+            settings.add("blockSize", context.serialize(src.blockSize.get()));
+            settings.addProperty("autoBlockSize", src.autoBlockSize.get());
+            settings.add("weights", context.serialize(src.weights.get()));
+            settings.addProperty("distanceType", src.dtType.get().name());
+            settings.addProperty("scaleFactor", src.scaleFactor.get());
+            if (src.threshold.get() instanceof DistanceTransformLoaders.ThresholdPredicate)
+                settings.addProperty("threshold", ((DistanceTransformLoaders.ThresholdPredicate) src.threshold.get()).getThreshold());
+            settings.addProperty("extension", src.sampleExtension.get());
+            settings.addProperty("squareInput", src.squareInput.get());
+            settings.addProperty("exact", src.exact.get());
+            settings.addProperty("storageType", StorageType.orDefault(src.storageType.get()).name());
+            settings.addProperty("quantizationStep", src.quantizationStep.get());
+            settings.addProperty("cacheLimitMiB", src.cacheLimitMiB.get());
+            settings.addProperty("weighCacheByCost", src.weighCacheByCost.get());
+            settings.addProperty("threadsPerBlock", src.threadsPerBlock.get());
+            settings.addProperty("progressive", src.progressive.get());
+            settings.addProperty("persist", src.persist.get());
+            settings.addProperty("diskCacheLimitMiB", src.diskCacheLimitMiB.get());
+            settings.addProperty("autoContrast", src.autoContrast.enabledProperty().get());
+            settings.add("autoContrastPercentiles", context.serialize(new double[] {src.autoContrast.lowerPercentileProperty().get(), src.autoContrast.upperPercentileProperty().get()}));
+            map.add("settings", settings);
+            map.add("derivedSources", DerivedSourceSettings.global().serialize());
+            return map;
+        }
+    }
+
+    private static class Deserializer implements JsonDeserializer<DistanceTransformSourceState> {
+
+        private final IntFunction<SourceState<?, ?>> dependencyFromIndex;
+
+        private final String cacheDir;
+
+        private Deserializer(final IntFunction<SourceState<?, ?>> dependencyFromIndex, final String cacheDir) {
+            this.dependencyFromIndex = dependencyFromIndex;
+            this.cacheDir = cacheDir;
+        }
+
+        @Override
+        public DistanceTransformSourceState deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+            final JsonObject map = json.getAsJsonObject();
+            try {
+                final int[] dependsOn = context.deserialize(map.get(DEPENDS_ON_KEY), int[].class);
+                if (dependsOn.length != 1)
+                    throw new JsonParseException("Expected exactly one dependency but got " + dependsOn.length);
+                final SourceState<? extends RealType<?>, ?> raw = (SourceState<? extends RealType<?>, ?>) dependencyFromIndex.apply(dependsOn[0]);
+                if (raw == null)
+                    return null;
+                final DistanceTransformSourceState state = new DistanceTransformSourceState(
+                        raw,
+                        map.get(NAME_KEY).getAsString(),
+                        cacheDir);
+
+                final JsonObject settings = map.getAsJsonObject("settings");
+                state.halo.set(context.deserialize(settings.get("halo"), int[].class));
+                state.blockSize.set(context.deserialize(settings.get("blockSize"), int[].class));
+                state.autoBlockSize.set(settings.has("autoBlockSize") && settings.get("autoBlockSize").getAsBoolean());
+                state.weights.set(context.deserialize(settings.get("weights"), double[].class));
+                state.dtType.set(DistanceTransform.DISTANCE_TYPE.valueOf(settings.get("distanceType").getAsString()));
+                state.scaleFactor.set(settings.get("scaleFactor").getAsDouble());
+                state.threshold.set(settings.has("threshold") ? new DistanceTransformLoaders.ThresholdPredicate(settings.get("threshold").getAsDouble()) : null);
+                state.sampleExtension.set(settings.get("extension").getAsDouble());
+                state.squareInput.set(settings.get("squareInput").getAsBoolean());
+                state.exact.set(settings.get("exact").getAsBoolean());
+                state.storageType.set(StorageType.valueOf(settings.get("storageType").getAsString()));
+                state.quantizationStep.set(settings.get("quantizationStep").getAsDouble());
+                state.cacheLimitMiB.set(settings.get("cacheLimitMiB").getAsInt());
+                state.weighCacheByCost.set(settings.get("weighCacheByCost").getAsBoolean());
+                state.threadsPerBlock.set(settings.get("threadsPerBlock").getAsInt());
+                state.progressive.set(settings.get("progressive").getAsBoolean());
+                state.persist.set(settings.get("persist").getAsBoolean());
+                state.diskCacheLimitMiB.set(settings.get("diskCacheLimitMiB").getAsInt());
+                if (map.has("derivedSources"))
+                    DerivedSourceSettings.global().deserialize(map.getAsJsonObject("derivedSources"));
+                // keep the stored display range of projects from before auto contrast
+                state.autoContrast.enabledProperty().set(settings.has("autoContrast") && settings.get("autoContrast").getAsBoolean());
+                if (settings.has("autoContrastPercentiles")) {
+                    final double[] percentiles = context.deserialize(settings.get("autoContrastPercentiles"), double[].class);
+                    state.autoContrast.lowerPercentileProperty().set(percentiles[0]);
+                    state.autoContrast.upperPercentileProperty().set(percentiles[1]);
+                }
+
+                final ARGBColorConverter<VolatileDoubleType> converter = SerializationHelpers.deserializeFromClassInfo(map.getAsJsonObject("converter"), context);
+                state.converter().setColor(converter.getColor());
+                state.converter().setMin(converter.getMin());
+                state.converter().setMax(converter.getMax());
+                state.converter().alphaProperty().set(converter.alphaProperty().get());
+                state.compositeProperty().set(SerializationHelpers.deserializeFromClassInfo(map.getAsJsonObject("composite"), context));
+                state.interpolationProperty().set(context.deserialize(map.get(INTERPOLATION_KEY), Interpolation.class));
+                state.isVisibleProperty().set(map.get(IS_VISIBLE_KEY).getAsBoolean());
+                return state;
+            } catch (ClassNotFoundException e) {
+                throw new JsonParseException(e);
+            }
+        }
+    }
 
     @Plugin(type = SourceStateUIElementsDefaultFactory.AdditionalBindUnbindSuppliersFactory.class)
     public static class LabelSourceStateAdditionalBindAndUnbindSupplierFactory implements SourceStateUIElementsDefaultFactory.AdditionalBindUnbindSuppliersFactory<DistanceTransformSourceState>
@@ -535,7 +1342,10 @@ public class DistanceTransformSourceState extends MinimalSourceState<DoubleType,
         @Override
         public BindUnbindAndNodeSupplier[] create(DistanceTransformSourceState state) {
             return new BindUnbindAndNodeSupplier[] {
-                new Settings(state)
+                new Settings(state),
+                new DerivedSourceSettingsPanel(DerivedSourceSettings.global()),
+                new ContrastPanel(state.autoContrast),
+                new MetricsPanel(state.getDataSource().getMetrics())
             };
         }
 
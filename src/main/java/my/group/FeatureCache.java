@@ -0,0 +1,369 @@
+package my.group;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Storage of a feature source: a session-local disk cache for cells that are evicted from memory, backed by a
+ * {@link PersistentBlockCache} in the project directory. Persistent blocks are keyed by the feature type, its
+ * parameters, the cell dimensions and the identity of its inputs, and are reused when the project is reopened.
+ * With a {@link CellCompression compressed} disk tier, there is no session-local disk cache: cells that are evicted
+ * from memory are read back from the persistent tier.
+ *
+ * This cache holds the first timepoint of a feature, the cells of other {@link #timepoint(int) timepoints} are held by
+ * caches that are created on demand and that are invalidated together with this cache.
+ */
+public class FeatureCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String CONTAINER = "feature-cache.n5";
+
+    public static final int DEFAULT_CELL_SIZE = 32;
+
+    private static final Gson EXPOSED_ONLY = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+
+    private final String directory;
+
+    private final int[] cellDimensions;
+
+    private final CellCompression compression;
+
+    private final PersistentBlockCache persistent;
+
+    private final String key;
+
+    private final SharedCellCache.Source memory;
+
+    private final Map<Integer, CachedCellImg<?, ?>> cellImgs = new ConcurrentHashMap<>();
+
+    private final Map<Integer, CellGrid> grids = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Path> sessionDirectories = new ConcurrentHashMap<>();
+
+    private final Map<Integer, FeatureCache> timepoints = new ConcurrentHashMap<>();
+
+    private final IntFunction<String[]> inputs;
+
+    private final DerivedSourceMetrics metrics;
+
+    private final ValueStatistics statistics;
+
+    private FeatureCache(
+            final String directory,
+            final int[] cellDimensions,
+            final CellCompression compression,
+            final PersistentBlockCache persistent,
+            final String key,
+            final IntFunction<String[]> inputs,
+            final DerivedSourceMetrics metrics,
+            final ValueStatistics statistics) {
+        this.directory = directory;
+        this.cellDimensions = cellDimensions.clone();
+        this.compression = compression;
+        this.persistent = persistent;
+        this.key = key;
+        this.inputs = inputs;
+        this.memory = SharedCellCache.global().newSource("feature-" + PersistentBlockCache.hash(key));
+        this.metrics = metrics;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param feature feature with its parameters in {@link com.google.gson.annotations.Expose exposed} fields
+     * @param inputs  identities of the inputs at a timepoint, e.g. {@link PersistentBlockCache#describe} of the input
+     *                at that timepoint or the {@link #getKey() key} of the timepoint of another feature
+     */
+    public static FeatureCache create(
+            final String directory,
+            final int[] cellDimensions,
+            final CellCompression compression,
+            final Object feature,
+            final IntFunction<String[]> inputs) {
+        final JsonObject key = new JsonObject();
+        key.addProperty("feature", feature.getClass().getName());
+        key.add("parameters", EXPOSED_ONLY.toJsonTree(feature));
+        key.addProperty("cellDimensions", Arrays.toString(cellDimensions));
+        // blocks of uncompressed session caches were persisted before the codec was configurable, keep their key
+        if (!CellCompression.orDefault(compression).usesSessionDiskCache())
+            key.addProperty("compression", compression.name());
+        key.add("inputs", inputArray(inputs.apply(0)));
+
+        PersistentBlockCache persistent = null;
+        try {
+            persistent = PersistentBlockCache.get(directory, CONTAINER);
+        } catch (final IOException e) {
+            LOG.warn("Unable to open feature cache in {}, features will not be persisted", directory, e);
+        }
+        final FeatureCache cache = new FeatureCache(directory, cellDimensions, CellCompression.orDefault(compression), persistent, key.toString(), inputs, new DerivedSourceMetrics(), new ValueStatistics());
+        if (persistent != null) {
+            final PersistentBlockCache blocks = persistent;
+            cache.metrics.setDiskBytes(() -> blocks.bytes(cache.key) + cache.timepoints.values().stream().mapToLong(t -> blocks.bytes(t.key)).sum());
+        }
+        return cache;
+    }
+
+    private static JsonArray inputArray(final String[] inputs) {
+        final JsonArray inputArray = new JsonArray();
+        for (final String input : inputs)
+            inputArray.add(input);
+        return inputArray;
+    }
+
+    public static int[] defaultCellDimensions(final int nDim) {
+        final int[] cellDimensions = new int[nDim];
+        Arrays.fill(cellDimensions, DEFAULT_CELL_SIZE);
+        return cellDimensions;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return cache of timepoint {@code t} with the same configuration. Its persistent blocks are keyed by the
+     * timepoint and the identities of the inputs at that timepoint, the first timepoint is this cache.
+     */
+    public FeatureCache timepoint(final int t) {
+        if (t == 0)
+            return this;
+        return timepoints.computeIfAbsent(t, k -> {
+            final JsonObject timepointKey = new JsonParser().parse(key).getAsJsonObject();
+            timepointKey.addProperty("timepoint", k);
+            timepointKey.add("inputs", inputArray(inputs.apply(k)));
+            return new FeatureCache(directory, cellDimensions, compression, persistent, timepointKey.toString(), inputs, metrics, statistics);
+        });
+    }
+
+    /**
+     * @return metrics of all timepoints
+     */
+    public DerivedSourceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return distribution of the values of all timepoints that were loaded since the last
+     * {@link #invalidateAll() invalidation}, per level and channel
+     */
+    public ValueStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int[] getCellDimensions() {
+        return cellDimensions.clone();
+    }
+
+    public CellCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param numChannels if positive, the cells get an additional dimension of that size for the channels
+     */
+    public int[] cellDimensions(final int numChannels) {
+        if (numChannels <= 0)
+            return cellDimensions.clone();
+        final int[] withChannels = Arrays.copyOf(cellDimensions, cellDimensions.length + 1);
+        withChannels[cellDimensions.length] = numChannels;
+        return withChannels;
+    }
+
+    /**
+     * @param prefix      of the temporary directory of the session cache
+     * @param transform   from voxels of {@code level} to world coordinates
+     * @param dimensions  of {@code level}, incl. channels
+     * @param numChannels see {@link #cellDimensions(int)}
+     * @param inputs      fetches the inputs of a block before it is computed, see {@link IoPool}
+     * @param requests    notified of the blocks that are requested from the cell img, see {@link TimeSeriesSource}
+     * @param loader      fills cells of {@link #cellDimensions(int)}
+     * @return volatile cell img of {@code level}, cached in memory and on disk as configured and computed by the
+     * {@link DerivedSourceScheduler scheduler}. Persisted cells are read and written, and inputs are fetched, before
+     * and after a block occupies a compute thread. Blocks with a {@link BlockLoader#uniformValue uniform value} are
+     * neither computed nor persisted, in memory caches they are {@link ConstantCells constant cells}.
+     */
+    public CachedCellImg<? extends RealType<?>, ?> createCellImg(
+            final String prefix,
+            final int level,
+            final AffineTransform3D transform,
+            final long[] dimensions,
+            final int numChannels,
+            final StorageType storageType,
+            final double quantizationStep,
+            final IoPool.Prefetcher inputs,
+            final TimeSeriesSource.Requests requests,
+            final BlockLoader loader) {
+        final int[] cellDimensions = cellDimensions(numChannels);
+        final DerivedSourceMetrics.Level levelMetrics = metrics.level(level);
+        // set once it is known whether the cells are disk cached
+        final BlockLoader[] scheduledLoader = new BlockLoader[1];
+        final BlockLoader loaderWithInputs = block -> {
+            inputs.prefetch(block);
+            scheduledLoader[0].load(block);
+        };
+        final BlockLoader persistentLoader = persistent(level, dimensions, cellDimensions, storageType, loaderWithInputs);
+        final BlockLoader requestedLoader = requests.notifying(level, levelMetrics.requested(statistics.observing(level, numChannels, persistentLoader)));
+        final UniformBlocks.Check uniform = statistics.observingUniform(level, numChannels, loader::uniformValue);
+        final CellGrid grid = new CellGrid(dimensions, cellDimensions);
+        final boolean sessionDiskCache = compression.usesSessionDiskCache() || persistentLoader == loaderWithInputs;
+        // cells of the session disk cache cannot stay invalid, their blocks are computed even if they go out of view
+        scheduledLoader[0] = DerivedSourceScheduler.global().scheduled(level, transform, levelMetrics.computed(loader), !sessionDiskCache);
+        // hits of the session disk cache are not observable, only its misses are counted as requests
+        final CachedCellImg<? extends RealType<?>, ?> img = sessionDiskCache
+                ? storageType.createDiskCachedCellImg(new FinalDimensions(dimensions), UniformBlocks.shortCircuit(uniform, requestedLoader), quantizationStep, options(prefix, level, numChannels))
+                : storageType.createCachedCellImg(grid, uniform, requestedLoader, quantizationStep, memory, levelMetrics);
+        cellImgs.put(level, img);
+        grids.put(level, grid);
+        return img;
+    }
+
+    /**
+     * Drop all cells from memory and from the session disk cache, e.g. when the timepoint of this cache is no longer
+     * resident. Persisted blocks are kept. Cell imgs that are created from now on replace the dropped ones.
+     */
+    public void evict() {
+        cellImgs.values().forEach(img -> img.getCache().invalidateAll());
+        cellImgs.clear();
+        sessionDirectories.keySet().forEach(level -> deleteSessionDirectory(sessionDirectories.remove(level)));
+    }
+
+    /**
+     * Drop all cells of all timepoints from memory and disk, they are recomputed when they are requested again.
+     */
+    public void invalidateAll() {
+        if (persistent != null) {
+            try {
+                persistent.invalidateAll(key);
+            } catch (final IOException e) {
+                LOG.warn("Unable to invalidate persisted blocks of feature {}", key, e);
+            }
+        }
+        cellImgs.values().forEach(img -> img.getCache().invalidateAll());
+        timepoints.values().forEach(FeatureCache::invalidateAll);
+        statistics.clear();
+    }
+
+    /**
+     * Drop the cells of {@code level} of all timepoints that intersect {@code interval} from memory and disk, they are
+     * recomputed when they are requested again. All channels of these cells are dropped.
+     *
+     * @param interval in voxels of {@code level}, without the channel dimension
+     */
+    public void invalidate(final int level, final Interval interval) {
+        timepoints.values().forEach(timepoint -> timepoint.invalidate(level, interval));
+        final CellGrid grid = grids.get(level);
+        if (grid == null)
+            return;
+        final long[] gridDimensions = grid.getGridDimensions();
+        final long[] gridMin = new long[grid.numDimensions()];
+        final long[] gridMax = new long[grid.numDimensions()];
+        for (int d = 0; d < grid.numDimensions(); ++d) {
+            if (d < interval.numDimensions()) {
+                gridMin[d] = Math.max(interval.min(d), 0) / grid.cellDimension(d);
+                gridMax[d] = Math.min(interval.max(d), grid.imgDimension(d) - 1) / grid.cellDimension(d);
+                if (gridMin[d] > gridMax[d])
+                    return;
+            } else
+                gridMax[d] = gridDimensions[d] - 1;
+        }
+
+        if (persistent != null) {
+            try {
+                persistent.invalidate(key, level, gridMin, gridMax);
+            } catch (final IOException e) {
+                LOG.warn("Unable to invalidate persisted blocks {}-{} of level {} of feature {}", Arrays.toString(gridMin), Arrays.toString(gridMax), level, key, e);
+            }
+        }
+        final CachedCellImg<?, ?> img = cellImgs.get(level);
+        if (img == null)
+            return;
+        img.getCache().invalidateIf(index -> {
+            final long[] gridPosition = new long[gridMin.length];
+            grid.getCellGridPositionFlat(index, gridPosition);
+            for (int d = 0; d < gridPosition.length; ++d)
+                if (gridPosition[d] < gridMin[d] || gridPosition[d] > gridMax[d])
+                    return false;
+            return true;
+        });
+    }
+
+    /**
+     * The session cache of {@code level} gets its own temporary directory, which replaces and deletes the directory of
+     * the previous cell img of that level.
+     *
+     * @param prefix      of the temporary directory of the session cache
+     * @param numChannels see {@link #cellDimensions(int)}
+     */
+    private DiskCachedCellImgOptions options(final String prefix, final int level, final int numChannels) {
+        final DiskCachedCellImgOptions options = DiskCachedCellImgOptions
+                .options()
+                .tempDirectory(Paths.get(directory))
+                .tempDirectoryPrefix(prefix)
+                .deleteCacheDirectoryOnExit(true)
+                .cellDimensions(cellDimensions(numChannels))
+                .volatileAccesses(true);
+        try {
+            final Path cacheDirectory = Files.createTempDirectory(Files.createDirectories(Paths.get(directory)), prefix);
+            deleteSessionDirectory(sessionDirectories.put(level, cacheDirectory));
+            return options.cacheDirectory(cacheDirectory);
+        } catch (final IOException e) {
+            LOG.warn("Unable to create session cache directory in {}, it is only deleted on exit", directory, e);
+            return options;
+        }
+    }
+
+    private static void deleteSessionDirectory(final Path cacheDirectory) {
+        if (cacheDirectory == null)
+            return;
+        try (final Stream<Path> files = Files.walk(cacheDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (final IOException e) {
+            LOG.debug("Unable to delete session cache directory {}", cacheDirectory, e);
+        }
+    }
+
+    /**
+     * @param dimensions of {@code level}, incl. channels
+     * @param cellDimensions incl. channels, must match the cells that {@code loader} is called for
+     * @return {@code loader} backed by the persistent cache, or {@code loader} if it is not available
+     */
+    private BlockLoader persistent(
+            final int level,
+            final long[] dimensions,
+            final int[] cellDimensions,
+            final StorageType storageType,
+            final BlockLoader loader) {
+        if (persistent == null)
+            return loader;
+        try {
+            return persistent.wrap(key, level, dimensions, cellDimensions, PersistentBlockCache.dataType(storageType), compression, loader);
+        } catch (final IOException e) {
+            LOG.warn("Unable to persist level {} of feature {}", level, key, e);
+            return loader;
+        }
+    }
+}
@@ -14,27 +14,35 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.gradient.PartialDerivative;
-import net.imglib2.cache.img.CellLoader;
-import net.imglib2.cache.img.DiskCachedCellImgFactory;
-import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.RealInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.converter.ARGBColorConverter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.loops.LoopBuilder;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.volatiles.VolatileDoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.janelia.saalfeldlab.paintera.PainteraBaseView;
+import org.janelia.saalfeldlab.paintera.cache.InvalidateAll;
 import org.janelia.saalfeldlab.paintera.composition.ARGBCompositeAlphaAdd;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
 import org.janelia.saalfeldlab.paintera.data.RandomAccessibleIntervalDataSource;
@@ -42,8 +50,10 @@ import org.janelia.saalfeldlab.paintera.serialization.SerializationHelpers;
 import org.janelia.saalfeldlab.paintera.serialization.StatefulSerializer;
 import org.janelia.saalfeldlab.paintera.state.MinimalSourceState;
 import org.janelia.saalfeldlab.paintera.state.SourceState;
+import org.janelia.saalfeldlab.paintera.ui.BindUnbindAndNodeSupplier;
 import org.janelia.saalfeldlab.paintera.ui.PainteraAlerts;
 import org.janelia.saalfeldlab.paintera.ui.opendialog.menu.OpenDialogMenuEntry;
+import org.janelia.saalfeldlab.paintera.ui.source.state.SourceStateUIElementsDefaultFactory;
 import org.janelia.saalfeldlab.util.Colors;
 import org.scijava.plugin.Plugin;
 import org.slf4j.Logger;
@@ -51,9 +61,14 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Type;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.IntFunction;
@@ -70,9 +85,35 @@ import static org.janelia.saalfeldlab.paintera.serialization.sourcestate.SourceS
 
 public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileDoubleType, DataSource<DoubleType, VolatileDoubleType>, ARGBColorConverter<VolatileDoubleType>> {
 
+    /**
+     * Outer scale of the structure tensor relative to the scale of the smoothing it is computed from.
+     */
+    private static final double STRUCTURE_TENSOR_OUTER_SCALE = 0.5;
+
     private interface Feature {
 
-        DataSource<DoubleType, VolatileDoubleType> featureSource(String cacheDir, String name, SourceState<? extends RealType<?>, ?>... dependsOn);
+        /**
+         * @param cache    cache of a single timepoint
+         * @param requests to be notified of the blocks that are requested from the cell imgs of the feature
+         * @param inputs   same timepoint of the data sources of the states that the feature depends on
+         * @return feature of a single timepoint, whose {@link DataSource#invalidateAll()} drops its cells from memory
+         */
+        DataSource<DoubleType, VolatileDoubleType> featureSource(FeatureCache cache, TimeSeriesSource.Requests requests, String name, DataSource<? extends RealType<?>, ?>... inputs);
+
+        /**
+         * @return context in voxels of {@code level} that a voxel of this feature reads from {@code input}
+         */
+        default int[] halo(final DataSource<?, ?> input, final int level) {
+            return new int[input.getDataSource(0, level).numDimensions()];
+        }
+
+        /**
+         * @return value of all channels of this feature where its input is uniform with value {@code input}, or
+         * empty if it has to be computed
+         */
+        default OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.empty();
+        }
 
     }
 
@@ -83,19 +124,41 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
         @Expose
         private final int dim;
 
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
 
         public GradientFeature(final int dim) {
+            this(dim, StorageType.FLOAT64, StorageType.DEFAULT_QUANTIZATION_STEP);
+        }
+
+        public GradientFeature(final int dim, final StorageType storageType, final double quantizationStep) {
             this.dim = dim;
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
+        @Override
+        public int[] halo(final DataSource<?, ?> input, final int level) {
+            return ones(input.getDataSource(0, level).numDimensions());
+        }
+
+        @Override
+        public OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.of(0.0);
         }
 
         @Override
         public DataSource<DoubleType, VolatileDoubleType> featureSource(
-                final String cacheDir,
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
                 final String name,
-                final SourceState<? extends RealType<?>, ?>... dependsOn) {
-            if (dependsOn.length != 1)
-                throw new RuntimeException("Expected exactly one dependency but got " + dependsOn.length);
-            final DataSource<? extends RealType<?>, ?> dataSource = dependsOn[0].getDataSource();
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            final DataSource<? extends RealType<?>, ?> dataSource = inputs[0];
             final int numLevels = dataSource.getNumMipmapLevels();
             final AffineTransform3D[] tfs = IntStream
                     .range(0, numLevels)
@@ -104,49 +167,74 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
 
             final RandomAccessibleInterval<DoubleType>[] data = new RandomAccessibleInterval[numLevels];
             final RandomAccessibleInterval<VolatileDoubleType>[] vdata = new RandomAccessibleInterval[numLevels];
-
-            final DiskCachedCellImgOptions options = DiskCachedCellImgOptions
-                    .options()
-                    .tempDirectory(Paths.get(cacheDir))
-                    .tempDirectoryPrefix("gradient-")
-                    .deleteCacheDirectoryOnExit(true)
-                    .cellDimensions(32, 32, 32)
-                    .volatileAccesses(true);
-
+            final StorageType storageType = StorageType.orDefault(this.storageType);
 
             for (int lvl = 0; lvl < numLevels; ++lvl) {
-                final RandomAccessibleInterval<DoubleType> raw = Converters.convert(
-                        dataSource.getDataSource(0, lvl),
-                        (src, tgt) -> tgt.setReal(src.getRealDouble()),
-                        new DoubleType());
-                final int nDim = raw.numDimensions();
-                final RandomAccessible<DoubleType> rawExtended = Views.extendBorder(raw);
-                final DiskCachedCellImgFactory<DoubleType> factory = new DiskCachedCellImgFactory<>(new DoubleType(), options);
-
-                CellLoader<DoubleType> loader = img -> PartialDerivative.gradientCentralDifference(rawExtended, img, dim);
-
-                data[lvl] = factory.create(raw, loader, options);
-                vdata[lvl] = VolatileViews.wrapAsVolatile(data[lvl]);
+                final int[] halo = halo(dataSource, lvl);
+                final RandomAccessibleInterval<? extends RealType<?>> input = dataSource.getDataSource(0, lvl);
+                final BlockLoader loader = loader(input, halo);
+                final CachedCellImg<? extends RealType<?>, ?> stored = cache.createCellImg("gradient-", lvl, tfs[lvl], Intervals.dimensionsAsLongArray(input), 0, storageType, quantizationStep, block -> IoPool.prefetch(block, halo, input), requests, loader);
+                data[lvl] = storageType.asDouble(stored, quantizationStep);
+                vdata[lvl] = storageType.asVolatileDouble(stored, quantizationStep);
             }
             return new RandomAccessibleIntervalDataSource<DoubleType, VolatileDoubleType>(
                     data,
                     vdata,
                     tfs,
-                    () -> {},
+                    cache::evict,
                     new InterpolationFunc<>(),
                     new InterpolationFunc<>(),
                     name);
         }
+
+        /**
+         * @param halo see {@link #halo(DataSource, int)}
+         * @return loader of a level of this feature, without caching and scheduling
+         */
+        private BlockLoader loader(final RandomAccessibleInterval<? extends RealType<?>> input, final int[] halo) {
+            final InputArrays.Reader reader = InputArrays.reader(input, false);
+            final long[] expansion = new long[input.numDimensions()];
+            expansion[dim] = 1;
+            final BlockLoader compute = img -> {
+                final FinalInterval withHalo = Intervals.expand(img, expansion);
+                final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+                final double[] target = ScratchBuffers.borrowDoubles((int) Intervals.numElements(img));
+                try {
+                    reader.fillBorder(withHalo, source);
+                    GradientKernels.centralDifference(source, Intervals.dimensionsAsIntArray(img), dim, target);
+                    CellArrays.copy(target, img, img, false);
+                } finally {
+                    ScratchBuffers.release(target);
+                    ScratchBuffers.release(source);
+                }
+            };
+            return UniformBlocks.shortCircuit(UniformBlocks.ofInput(input, halo, this::uniformOutput), compute);
+        }
     }
 
     private static class MagnitudeFeature implements Feature {
 
         private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
+
+        public MagnitudeFeature() {
+            this(StorageType.FLOAT64, StorageType.DEFAULT_QUANTIZATION_STEP);
+        }
+
+        public MagnitudeFeature(final StorageType storageType, final double quantizationStep) {
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
             @Override
-            public DataSource<DoubleType, VolatileDoubleType> featureSource(final String cacheDir, final String name, final SourceState<? extends RealType<?>, ?>... dependsOn) {
+            public DataSource<DoubleType, VolatileDoubleType> featureSource(final FeatureCache cache, final TimeSeriesSource.Requests requests, final String name, final DataSource<? extends RealType<?>, ?>... dependsOn) {
                 // TODO check consistency of all sources, as long as it is called only privately, do not care
-                final DataSource<? extends RealType<?>, ?> dataSource = dependsOn[0].getDataSource();
+                final DataSource<? extends RealType<?>, ?> dataSource = dependsOn[0];
                 final int numLevels = dataSource.getNumMipmapLevels();
                 final AffineTransform3D[] tfs = IntStream
                         .range(0, numLevels)
@@ -155,68 +243,664 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
 
                 final RandomAccessibleInterval<DoubleType>[] data = new RandomAccessibleInterval[numLevels];
                 final RandomAccessibleInterval<VolatileDoubleType>[] vdata = new RandomAccessibleInterval[numLevels];
-
-                final DiskCachedCellImgOptions options = DiskCachedCellImgOptions
-                        .options()
-                        .tempDirectory(Paths.get(cacheDir))
-                        .tempDirectoryPrefix("gradient-")
-                        .deleteCacheDirectoryOnExit(true)
-                        .cellDimensions(32, 32, 32)
-                        .volatileAccesses(true);
-
+                final StorageType storageType = StorageType.orDefault(this.storageType);
 
                 for (int lvl = 0; lvl < numLevels; ++lvl) {
-                    final RandomAccessibleInterval<DoubleType> raw = Converters.convert(
-                            dataSource.getDataSource(0, lvl),
-                            (src, tgt) -> tgt.setReal(src.getRealDouble()),
-                            new DoubleType());
-                    final DiskCachedCellImgFactory<DoubleType> factory = new DiskCachedCellImgFactory<>(new DoubleType(), options);
                     final int flvl = lvl;
-
-                    CellLoader<DoubleType> loader = img -> {
-                        for (SourceState<? extends RealType<?>, ?> state : dependsOn) {
-                            LOG.trace("Adding square of state {} with type {}", state.nameProperty().get(), state.getDataSource().getDataType());
-                            LoopBuilder
-                                    .setImages(Views.interval(state.getDataSource().getDataSource(0, flvl), img), img)
-                                    .forEachPixel((src, tgt) -> tgt.setReal(tgt.getRealDouble() + src.getRealDouble() * src.getRealDouble()));
-                        }
-                        LOG.trace("Taking sqrt");
-                        img.forEach(px -> px.setReal(Math.sqrt(px.getRealDouble())));
-                        LOG.trace("First voxel value {}", img.cursor().next());
-                    };
-
-                    data[lvl] = factory.create(raw, loader, options);
-                    vdata[lvl] = VolatileViews.wrapAsVolatile(data[lvl]);
+                    final int[] halo = halo(dataSource, lvl);
+                    final RandomAccessibleInterval<? extends RealType<?>>[] inputs = Stream
+                            .of(dependsOn)
+                            .map(input -> input.getDataSource(0, flvl))
+                            .toArray(RandomAccessibleInterval[]::new);
+                    final BlockLoader loader = loader(inputs, halo);
+                    final CachedCellImg<? extends RealType<?>, ?> stored = cache.createCellImg("magnitude-", lvl, tfs[lvl], Intervals.dimensionsAsLongArray(inputs[0]), 0, storageType, quantizationStep, block -> IoPool.prefetch(block, halo, inputs), requests, loader);
+                    data[lvl] = storageType.asDouble(stored, quantizationStep);
+                    vdata[lvl] = storageType.asVolatileDouble(stored, quantizationStep);
                 }
                 return new RandomAccessibleIntervalDataSource<>(
                         data,
                         vdata,
                         tfs,
-                        () -> {
-                        },
+                        cache::evict,
                         new InterpolationFunc<>(),
                         new InterpolationFunc<>(),
                         name);
         }
+
+        /**
+         * @param halo see {@link #halo(DataSource, int)}
+         * @return loader of a level of this feature, without caching and scheduling
+         */
+        private BlockLoader loader(final RandomAccessibleInterval<? extends RealType<?>>[] inputs, final int[] halo) {
+            final InputArrays.Reader[] readers = Stream
+                    .of(inputs)
+                    .map(input -> InputArrays.reader(input, false))
+                    .toArray(InputArrays.Reader[]::new);
+
+            final BlockLoader compute = img -> {
+                final int numVoxels = (int) Intervals.numElements(img);
+                final double[] component = ScratchBuffers.borrowDoubles(numVoxels);
+                final double[] sumOfSquares = ScratchBuffers.borrowDoubles(numVoxels);
+                try {
+                    Arrays.fill(sumOfSquares, 0, numVoxels, 0.0);
+                    for (final InputArrays.Reader reader : readers) {
+                        reader.fillBorder(img, component);
+                        GradientKernels.addSquares(component, sumOfSquares, numVoxels);
+                    }
+                    LOG.trace("Adding squares of {} inputs and taking sqrt", readers.length);
+                    CellArrays.copy(sumOfSquares, img, img, true);
+                } finally {
+                    ScratchBuffers.release(sumOfSquares);
+                    ScratchBuffers.release(component);
+                }
+            };
+            return UniformBlocks.shortCircuit(block -> {
+                double sumOfSquares = 0.0;
+                for (final RandomAccessibleInterval<? extends RealType<?>> input : inputs) {
+                    final OptionalDouble value = UniformBlocks.borderValue(input, block, halo);
+                    if (!value.isPresent())
+                        return value;
+                    sumOfSquares += value.getAsDouble() * value.getAsDouble();
+                }
+                return OptionalDouble.of(Math.sqrt(sumOfSquares));
+            }, compute);
+        }
+    }
+
+    /**
+     * Gradient magnitude that computes all gradient components in the same sweep over a haloed input block. If
+     * {@link #storeComponents}, the components are stored as additional channels of the same cells and
+     * {@link ChannelFeature channel features} show them without reading the input again.
+     */
+    private static class FusedGradientFeature implements Feature {
+
+        @Expose
+        private final boolean storeComponents;
+
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
+
+        public FusedGradientFeature(final boolean storeComponents, final StorageType storageType, final double quantizationStep) {
+            this.storeComponents = storeComponents;
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
+        @Override
+        public int[] halo(final DataSource<?, ?> input, final int level) {
+            return ones(input.getDataSource(0, level).numDimensions());
+        }
+
+        @Override
+        public OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.of(0.0);
+        }
+
+        @Override
+        public DataSource<DoubleType, VolatileDoubleType> featureSource(
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
+                final String name,
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            final DataSource<? extends RealType<?>, ?> dataSource = inputs[0];
+            final int nDim = dataSource.getDataSource(0, 0).numDimensions();
+            final int numChannels = storeComponents ? nDim + 1 : 1;
+            return channelSource(this, cache, requests, "gradient-", name, dataSource, numChannels, numChannels - 1, storageType, quantizationStep, lvl ->
+                    GradientKernels.loader(InputArrays.reader(dataSource.getDataSource(0, lvl), false), nDim, storeComponents));
+        }
+    }
+
+    /**
+     * Gaussian smoothing with a parallel separable convolution on the shared compute pool. Derived features of a
+     * {@link FeatureBankMenuEntry feature bank} depend on the state of this feature and read the smoothed data from
+     * its cache instead of smoothing again.
+     */
+    private static class GaussianFeature implements Feature {
+
+        /**
+         * In units of the smallest voxel edge at full resolution.
+         */
+        @Expose
+        private final double sigma;
+
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
+
+        public GaussianFeature(final double sigma, final StorageType storageType, final double quantizationStep) {
+            this.sigma = sigma;
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
+        @Override
+        public int[] halo(final DataSource<?, ?> input, final int level) {
+            return Gauss3.halfkernelsizes(sigmas(input, level, sigma));
+        }
+
+        @Override
+        public OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.of(input);
+        }
+
+        @Override
+        public DataSource<DoubleType, VolatileDoubleType> featureSource(
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
+                final String name,
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            final DataSource<? extends RealType<?>, ?> dataSource = inputs[0];
+            final int nDim = dataSource.getDataSource(0, 0).numDimensions();
+            return channelSource(this, cache, requests, "gaussian-", name, dataSource, 1, 0, storageType, quantizationStep, lvl -> {
+                final RandomAccessible<DoubleType> rawExtended = Views.extendBorder(asDouble(dataSource.getDataSource(0, lvl)));
+                final double[] sigmas = sigmas(dataSource, lvl, sigma);
+                return block -> Gauss3.gauss(sigmas, rawExtended, Views.hyperSlice(block, nDim, block.min(nDim)), ComputePool.get());
+            });
+        }
+    }
+
+    /**
+     * Eigenvalues of the Hessian matrix of a {@link GaussianFeature}, in descending order. The largest eigenvalue is
+     * shown by the state of this feature, the others by {@link ChannelFeature channel features}.
+     */
+    private static class HessianEigenvaluesFeature implements Feature {
+
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
+
+        public HessianEigenvaluesFeature(final StorageType storageType, final double quantizationStep) {
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
+        @Override
+        public int[] halo(final DataSource<?, ?> input, final int level) {
+            return ones(input.getDataSource(0, level).numDimensions());
+        }
+
+        @Override
+        public OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.of(0.0);
+        }
+
+        @Override
+        public DataSource<DoubleType, VolatileDoubleType> featureSource(
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
+                final String name,
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            final DataSource<? extends RealType<?>, ?> smoothed = inputs[0];
+            final int nDim = smoothed.getDataSource(0, 0).numDimensions();
+            return channelSource(this, cache, requests, "hessian-", name, smoothed, nDim, 0, storageType, quantizationStep, lvl -> {
+                final InputArrays.Reader input = InputArrays.reader(smoothed.getDataSource(0, lvl), false);
+                return block -> {
+                    final RandomAccessibleInterval<DoubleType> spatial = Views.hyperSlice(block, nDim, block.min(nDim));
+                    final FinalInterval withHalo = Intervals.expand(spatial, 1);
+                    final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+                    final double[] target = ScratchBuffers.borrowDoubles((int) Intervals.numElements(block));
+                    try {
+                        input.fillBorder(withHalo, source);
+                        TensorKernels.hessianEigenvalues(source, Intervals.dimensionsAsIntArray(spatial), target);
+                        CellArrays.copy(target, block, block, false);
+                    } finally {
+                        ScratchBuffers.release(target);
+                        ScratchBuffers.release(source);
+                    }
+                };
+            });
+        }
+    }
+
+    /**
+     * Eigenvalues of the structure tensor of a {@link GaussianFeature}, in descending order. The gradients of the
+     * smoothed data are the inner scale, their outer products are smoothed with {@link #outerSigma}. The largest
+     * eigenvalue is shown by the state of this feature, the others by {@link ChannelFeature channel features}.
+     */
+    private static class StructureTensorEigenvaluesFeature implements Feature {
+
+        /**
+         * In units of the smallest voxel edge at full resolution.
+         */
+        @Expose
+        private final double outerSigma;
+
+        @Expose
+        private final StorageType storageType;
+
+        @Expose
+        private final double quantizationStep;
+
+        public StructureTensorEigenvaluesFeature(final double outerSigma, final StorageType storageType, final double quantizationStep) {
+            this.outerSigma = outerSigma;
+            this.storageType = storageType;
+            this.quantizationStep = quantizationStep;
+        }
+
+        @Override
+        public int[] halo(final DataSource<?, ?> input, final int level) {
+            // gradients of the smoothed input are the inner scale
+            return IntStream.of(Gauss3.halfkernelsizes(sigmas(input, level, outerSigma))).map(h -> h + 1).toArray();
+        }
+
+        @Override
+        public OptionalDouble uniformOutput(final double input) {
+            return OptionalDouble.of(0.0);
+        }
+
+        @Override
+        public DataSource<DoubleType, VolatileDoubleType> featureSource(
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
+                final String name,
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            final DataSource<? extends RealType<?>, ?> smoothed = inputs[0];
+            final int nDim = smoothed.getDataSource(0, 0).numDimensions();
+            final int numComponents = TensorKernels.numTensorComponents(nDim);
+            return channelSource(this, cache, requests, "structure-tensor-", name, smoothed, nDim, 0, storageType, quantizationStep, lvl -> {
+                final InputArrays.Reader input = InputArrays.reader(smoothed.getDataSource(0, lvl), false);
+                final double[] outerSigmas = sigmas(smoothed, lvl, outerSigma);
+                final long[] outerHalo = IntStream.of(Gauss3.halfkernelsizes(outerSigmas)).asLongStream().toArray();
+                return block -> {
+                    final RandomAccessibleInterval<DoubleType> spatial = Views.hyperSlice(block, nDim, block.min(nDim));
+                    final FinalInterval productInterval = Intervals.expand(spatial, outerHalo);
+                    final FinalInterval withHalo = Intervals.expand(productInterval, 1);
+                    final int numProducts = (int) Intervals.numElements(productInterval);
+                    final int numVoxels = (int) Intervals.numElements(spatial);
+                    final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+                    final double[] gradients = ScratchBuffers.borrowDoubles((nDim + 1) * numProducts);
+                    final double[] target = ScratchBuffers.borrowDoubles((int) Intervals.numElements(block));
+                    // one row per tensor component, borrowed like the flat buffers
+                    final double[][] products = new double[numComponents][];
+                    final double[][] tensors = new double[numComponents][];
+                    for (int c = 0; c < numComponents; ++c) {
+                        products[c] = ScratchBuffers.borrowDoubles(numProducts);
+                        tensors[c] = ScratchBuffers.borrowDoubles(numVoxels);
+                    }
+                    try {
+                        input.fillBorder(withHalo, source);
+                        GradientKernels.gradientAndMagnitude(source, Intervals.dimensionsAsIntArray(productInterval), gradients, true);
+                        TensorKernels.outerProducts(gradients, nDim, numProducts, products);
+                        for (int c = 0; c < numComponents; ++c)
+                            Gauss3.gauss(
+                                    outerSigmas,
+                                    Views.extendBorder(Views.translate(ArrayImgs.doubles(products[c], Intervals.dimensionsAsLongArray(productInterval)), Intervals.minAsLongArray(productInterval))),
+                                    Views.translate(ArrayImgs.doubles(tensors[c], Intervals.dimensionsAsLongArray(spatial)), Intervals.minAsLongArray(spatial)),
+                                    ComputePool.get());
+                        TensorKernels.eigenvalues(tensors, nDim, numVoxels, target);
+                        CellArrays.copy(target, block, block, false);
+                    } finally {
+                        for (int c = 0; c < numComponents; ++c) {
+                            ScratchBuffers.release(tensors[c]);
+                            ScratchBuffers.release(products[c]);
+                        }
+                        ScratchBuffers.release(target);
+                        ScratchBuffers.release(gradients);
+                        ScratchBuffers.release(source);
+                    }
+                };
+            });
+        }
+    }
+
+    /**
+     * Source of a feature with multiple channels that are computed together. It shows the primary channel, the others
+     * are shown by {@link ChannelFeature channel features} that depend on its state.
+     */
+    private static class ChannelSource extends RandomAccessibleIntervalDataSource<DoubleType, VolatileDoubleType> {
+
+        private final RandomAccessibleInterval<DoubleType>[][] channelData;
+
+        private final RandomAccessibleInterval<VolatileDoubleType>[][] channelVData;
+
+        private final int primaryChannel;
+
+        private ChannelSource(
+                final RandomAccessibleInterval<DoubleType>[][] channelData,
+                final RandomAccessibleInterval<VolatileDoubleType>[][] channelVData,
+                final int primaryChannel,
+                final AffineTransform3D[] tfs,
+                final InvalidateAll invalidateAll,
+                final String name) {
+            super(channelData[primaryChannel], channelVData[primaryChannel], tfs, invalidateAll, new InterpolationFunc<>(), new InterpolationFunc<>(), name);
+            this.channelData = channelData;
+            this.channelVData = channelVData;
+            this.primaryChannel = primaryChannel;
+        }
+
+        public int getNumChannels() {
+            return channelData.length;
+        }
+
+        public int getPrimaryChannel() {
+            return primaryChannel;
+        }
+    }
+
+    /**
+     * Single channel of the {@link ChannelSource} this feature depends on, e.g. a gradient component or an eigenvalue.
+     */
+    private static class ChannelFeature implements Feature {
+
+        @Expose
+        private final int channel;
+
+        public ChannelFeature(final int channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public DataSource<DoubleType, VolatileDoubleType> featureSource(
+                final FeatureCache cache,
+                final TimeSeriesSource.Requests requests,
+                final String name,
+                final DataSource<? extends RealType<?>, ?>... inputs) {
+            if (inputs.length != 1)
+                throw new RuntimeException("Expected exactly one dependency but got " + inputs.length);
+            if (!(inputs[0] instanceof ChannelSource) || ((ChannelSource) inputs[0]).getNumChannels() <= channel)
+                throw new RuntimeException("Expected source with at least " + (channel + 1) + " channels but got " + inputs[0]);
+            final ChannelSource channels = (ChannelSource) inputs[0];
+            return new RandomAccessibleIntervalDataSource<>(
+                    channels.channelData[channel],
+                    channels.channelVData[channel],
+                    transforms(channels),
+                    cache::evict,
+                    new InterpolationFunc<>(),
+                    new InterpolationFunc<>(),
+                    name);
+        }
+    }
+
+    /**
+     * Store {@code numChannels} channels in the same cached cells, so that all channels of a block are computed by
+     * a single call of the loader.
+     *
+     * @param feature of which the {@link Feature#halo halo} of {@code input} is fetched before computing a block, and
+     *                whose {@link Feature#uniformOutput uniform output} is stored without computing where the input is
+     *                uniform
+     * @param requests see {@link Feature#featureSource}
+     * @param loaders loader for each level; the last dimension of the blocks are the channels
+     */
+    private static ChannelSource channelSource(
+            final Feature feature,
+            final FeatureCache cache,
+            final TimeSeriesSource.Requests requests,
+            final String prefix,
+            final String name,
+            final DataSource<? extends RealType<?>, ?> input,
+            final int numChannels,
+            final int primaryChannel,
+            final StorageType storageType,
+            final double quantizationStep,
+            final IntFunction<BlockLoader> loaders) {
+        final int numLevels = input.getNumMipmapLevels();
+        final int nDim = input.getDataSource(0, 0).numDimensions();
+        final StorageType storage = StorageType.orDefault(storageType);
+
+        final AffineTransform3D[] transforms = transforms(input);
+        final RandomAccessibleInterval<DoubleType>[][] data = new RandomAccessibleInterval[numChannels][numLevels];
+        final RandomAccessibleInterval<VolatileDoubleType>[][] vdata = new RandomAccessibleInterval[numChannels][numLevels];
+        for (int lvl = 0; lvl < numLevels; ++lvl) {
+            final long[] dimensions = new long[nDim + 1];
+            input.getDataSource(0, lvl).dimensions(dimensions);
+            dimensions[nDim] = numChannels;
+            final int[] halo = feature.halo(input, lvl);
+            final RandomAccessibleInterval<? extends RealType<?>> inputLevel = input.getDataSource(0, lvl);
+            final BlockLoader loader = UniformBlocks.shortCircuit(UniformBlocks.ofInput(inputLevel, halo, feature::uniformOutput), loaders.apply(lvl));
+            final CachedCellImg<? extends RealType<?>, ?> stored = cache.createCellImg(prefix, lvl, transforms[lvl], dimensions, numChannels, storage, quantizationStep, block -> IoPool.prefetch(block, halo, inputLevel), requests, loader);
+            final RandomAccessibleInterval<DoubleType> channels = storage.asDouble(stored, quantizationStep);
+            final RandomAccessibleInterval<VolatileDoubleType> vchannels = storage.asVolatileDouble(stored, quantizationStep);
+            for (int channel = 0; channel < numChannels; ++channel) {
+                data[channel][lvl] = Views.hyperSlice(channels, nDim, channel);
+                vdata[channel][lvl] = Views.hyperSlice(vchannels, nDim, channel);
+            }
+        }
+        return new ChannelSource(data, vdata, primaryChannel, transforms, cache::evict, name);
+    }
+
+    /**
+     * @return loader of a level of the gradient feature along {@code dim} of {@code input}, without caching and
+     * scheduling, e.g. for benchmarks
+     */
+    static BlockLoader gradientLoader(final RandomAccessibleInterval<? extends RealType<?>> input, final int dim) {
+        return new GradientFeature(dim).loader(input, ones(input.numDimensions()));
+    }
+
+    /**
+     * @return loader of a level of the gradient magnitude feature of {@code gradients}, without caching and
+     * scheduling, e.g. for benchmarks
+     */
+    @SafeVarargs
+    static BlockLoader magnitudeLoader(final RandomAccessibleInterval<? extends RealType<?>>... gradients) {
+        return new MagnitudeFeature().loader(gradients, new int[gradients[0].numDimensions()]);
+    }
+
+    private static int[] ones(final int nDim) {
+        return IntStream.range(0, nDim).map(d -> 1).toArray();
+    }
+
+    private static AffineTransform3D[] transforms(final DataSource<?, ?> dataSource) {
+        return IntStream
+                .range(0, dataSource.getNumMipmapLevels())
+                .mapToObj(lvl -> { AffineTransform3D tf = new AffineTransform3D(); dataSource.getSourceTransform(0, lvl, tf); return tf;})
+                .toArray(AffineTransform3D[]::new);
+    }
+
+    /**
+     * @param sigma in units of the smallest voxel edge at full resolution
+     * @return sigma in voxels of {@code level} for each dimension
+     */
+    private static double[] sigmas(final DataSource<?, ?> dataSource, final int level, final double sigma) {
+        final AffineTransform3D fullResolution = new AffineTransform3D();
+        final AffineTransform3D transform = new AffineTransform3D();
+        dataSource.getSourceTransform(0, 0, fullResolution);
+        dataSource.getSourceTransform(0, level, transform);
+        final int nDim = dataSource.getDataSource(0, level).numDimensions();
+        double minVoxelSize = Double.POSITIVE_INFINITY;
+        for (int d = 0; d < nDim; ++d)
+            minVoxelSize = Math.min(minVoxelSize, Math.abs(fullResolution.get(d, d)));
+        final double[] sigmas = new double[nDim];
+        for (int d = 0; d < nDim; ++d)
+            sigmas[d] = sigma * minVoxelSize / Math.abs(transform.get(d, d));
+        return sigmas;
+    }
+
+    private static <T extends RealType<?>> RandomAccessibleInterval<DoubleType> asDouble(final RandomAccessibleInterval<T> input) {
+        return Converters.convert(input, (src, tgt) -> tgt.setReal(src.getRealDouble()), new DoubleType());
     }
 
     private final Feature feature;
 
+    private final FeatureCache cache;
+
+    private final AutoContrast autoContrast;
+
+    /**
+     * Feature states that depend on this state. States that are removed from the viewer drop out once they are garbage
+     * collected.
+     */
+    private final Set<FeatureSourceState> dependents = Collections.newSetFromMap(new WeakHashMap<>());
+
     private FeatureSourceState(
             final Feature feature,
             final String name,
             final String cacheDir,
+            final int[] cellDimensions,
+            final CellCompression compression,
+            SourceState<? extends RealType<?>, ?>... dependsOn) {
+        this(feature, name, FeatureCache.create(cacheDir, cellDimensions, compression, feature, inputs(dependsOn)), dependsOn);
+    }
+
+    private FeatureSourceState(
+            final Feature feature,
+            final String name,
+            final FeatureCache cache,
             SourceState<? extends RealType<?>, ?>... dependsOn) {
         super(
-                feature.featureSource(cacheDir, name, dependsOn),
+                timeSeries(feature, cache, name, dependsOn),
                 new ARGBColorConverter.InvertingImp1<VolatileDoubleType>(),
                 new ARGBCompositeAlphaAdd(),
                 name,
                 dependsOn);
         this.feature = feature;
+        this.cache = cache;
+        for (final SourceState<?, ?> dependency : dependsOn) {
+            // invalidating any input, e.g. when a raw source is refreshed, invalidates this feature
+            SourceInvalidation.addDependent(dependency.getDataSource(), getDataSource());
+            if (dependency instanceof FeatureSourceState)
+                ((FeatureSourceState) dependency).addDependent(this);
+        }
+        // until the first blocks are loaded
         converter().setMin(0.0);
         converter().setMax(50.0);
         converter().setColor(Colors.toARGBType(Color.MAGENTA));
+        this.autoContrast = createAutoContrast(dependsOn);
+    }
+
+    /**
+     * @return auto contrast from the values of the channel that this state shows. {@link ChannelFeature Channel
+     * features} show a channel of the cells of the state they depend on.
+     */
+    private AutoContrast createAutoContrast(final SourceState<?, ?>... dependsOn) {
+        if (feature instanceof ChannelFeature && dependsOn.length == 1 && dependsOn[0] instanceof FeatureSourceState)
+            return new AutoContrast(((FeatureSourceState) dependsOn[0]).cache.getStatistics(), ((ChannelFeature) feature).channel, converter());
+        final DataSource<?, ?> timepoint = ((TimeSeriesSource) getDataSource()).getTimepoint(0);
+        final int channel = timepoint instanceof ChannelSource ? ((ChannelSource) timepoint).getPrimaryChannel() : 0;
+        return new AutoContrast(cache.getStatistics(), channel, converter());
+    }
+
+    /**
+     * @return source whose timepoints are computed by {@code feature} from the same timepoint of {@code dependsOn},
+     * each with the cells of its {@link FeatureCache#timepoint(int) timepoint} of {@code cache}
+     */
+    @SuppressWarnings("unchecked")
+    private static TimeSeriesSource timeSeries(
+            final Feature feature,
+            final FeatureCache cache,
+            final String name,
+            final SourceState<? extends RealType<?>, ?>... dependsOn) {
+        final DataSource<? extends RealType<?>, ?>[] inputs = Stream
+                .of(dependsOn)
+                .map(SourceState::getDataSource)
+                .toArray(DataSource[]::new);
+        final TimeSeriesSource timeSeries = new TimeSeriesSource(
+                inputs[0],
+                (t, requests) -> feature.featureSource(
+                        cache.timepoint(t),
+                        requests,
+                        name,
+                        Stream.of(inputs).map(input -> TimeSeriesSource.at(input, t)).toArray(DataSource[]::new)),
+                cache::invalidateAll,
+                name);
+        // fail on inconsistent dependencies here rather than while rendering
+        timeSeries.getTimepoint(0);
+        return timeSeries;
+    }
+
+    /**
+     * @return identities of {@code dependsOn} at a timepoint for the keys of the persistent feature cache: the key of
+     * the timepoint of features, the content-aware description of the timepoint of other sources
+     */
+    private static IntFunction<String[]> inputs(final SourceState<?, ?>... dependsOn) {
+        return t -> Stream
+                .of(dependsOn)
+                .map(state -> state instanceof FeatureSourceState
+                        ? ((FeatureSourceState) state).cache.timepoint(t).getKey()
+                        : PersistentBlockCache.describe(TimeSeriesSource.at(state.getDataSource(), t)).toString())
+                .toArray(String[]::new);
+    }
+
+    private void addDependent(final FeatureSourceState dependent) {
+        synchronized (dependents) {
+            dependents.add(dependent);
+        }
+    }
+
+    private List<FeatureSourceState> getDependents() {
+        synchronized (dependents) {
+            return new ArrayList<>(dependents);
+        }
+    }
+
+    /**
+     * Drop all cells of this feature and of all features that depend on it from memory and disk. They are recomputed
+     * lazily when they are requested again. Same as {@link DataSource#invalidateAll()} of its data source, which
+     * {@link SourceInvalidation propagates} to the dependents.
+     */
+    public void invalidateAll() {
+        getDataSource().invalidateAll();
+    }
+
+    /**
+     * Drop the cells of all levels of this feature that read from {@code globalInterval} of the input, and the
+     * affected cells of all features that depend on it, from memory and disk. They are recomputed lazily when they are
+     * requested again.
+     *
+     * @param globalInterval region of the input that changed, in world coordinates
+     */
+    public void invalidate(final RealInterval globalInterval) {
+        final DataSource<?, ?> input = dependsOn()[0].getDataSource();
+        final DataSource<DoubleType, VolatileDoubleType> source = getDataSource();
+        final double[] affectedMin = new double[globalInterval.numDimensions()];
+        final double[] affectedMax = new double[globalInterval.numDimensions()];
+        Arrays.fill(affectedMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(affectedMax, Double.NEGATIVE_INFINITY);
+        for (int level = 0; level < source.getNumMipmapLevels(); ++level) {
+            final AffineTransform3D transform = new AffineTransform3D();
+            source.getSourceTransform(0, level, transform);
+            final long[] halo = IntStream.of(feature.halo(input, level)).asLongStream().toArray();
+            final Interval affected = Intervals.expand(Intervals.smallestContainingInterval(transform.inverse().estimateBounds(globalInterval)), halo);
+            cache.invalidate(level, affected);
+            final RealInterval globalAffected = transform.estimateBounds(affected);
+            for (int d = 0; d < affectedMin.length; ++d) {
+                affectedMin[d] = Math.min(affectedMin[d], globalAffected.realMin(d));
+                affectedMax[d] = Math.max(affectedMax[d], globalAffected.realMax(d));
+            }
+        }
+        final RealInterval affected = new FinalRealInterval(affectedMin, affectedMax);
+        getDependents().forEach(dependent -> dependent.invalidate(affected));
+    }
+
+    /**
+     * Invalidate all derived states that depend on {@code source} and, transitively, all states that depend on
+     * those, e.g. after {@code source} was edited. Refreshing a source that {@link SourceInvalidation announces} its
+     * {@link DataSource#invalidateAll()} does the same for all of it without this call.
+     *
+     * @param globalInterval region of {@code source} that changed in world coordinates, {@code null} if all of it changed
+     */
+    public static void invalidateDependents(
+            final PainteraBaseView paintera,
+            final SourceState<?, ?> source,
+            final RealInterval globalInterval) {
+        if (globalInterval == null) {
+            SourceInvalidation.invalidated(source.getDataSource());
+            paintera.orthogonalViews().requestRepaint();
+            return;
+        }
+        paintera
+                .sourceInfo()
+                .trackSources()
+                .stream()
+                .map(paintera.sourceInfo()::getState)
+                .filter(state -> state instanceof FeatureSourceState && Arrays.asList(state.dependsOn()).contains(source))
+                .map(state -> (FeatureSourceState) state)
+                .forEach(state -> state.invalidate(globalInterval));
+        paintera.orthogonalViews().requestRepaint();
     }
 
     private static class InterpolationFunc<D extends NumericType<D>> implements Function<Interpolation, InterpolatorFactory<D, RandomAccessible<D>>> {
@@ -234,6 +918,8 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
             menuPath = "_Features>_Gradient Magnitude")
     public static class MenuEntry implements OpenDialogMenuEntry {
 
+        private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
         @Override
         public BiConsumer<PainteraBaseView, String> onAction() {
             return (pbv, directory) -> {
@@ -248,39 +934,240 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
                 final Alert alert = PainteraAlerts.alert(Alert.AlertType.CONFIRMATION, true);
                 final ObservableList<SourceState<? extends RealType<?>, ?>> observableSources = FXCollections.observableArrayList(sources);
                 final ComboBox<SourceState<? extends RealType<?>, ?>> comboBox = new ComboBox<>(observableSources);
-                alert.getDialogPane().setContent(comboBox);
+                final ComboBox<StorageType> storageChoice = new ComboBox<>(FXCollections.observableArrayList(StorageType.values()));
+                storageChoice.setValue(StorageType.FLOAT64);
+                final CheckBox componentsBox = new CheckBox("Gradient components");
+                componentsBox.setSelected(true);
+                final TextField cellSizeField = new TextField(String.valueOf(FeatureCache.DEFAULT_CELL_SIZE));
+                final ComboBox<CellCompression> compressionChoice = new ComboBox<>(FXCollections.observableArrayList(CellCompression.values()));
+                compressionChoice.setValue(CellCompression.NONE);
+                alert.getDialogPane().setContent(new VBox(
+                        comboBox,
+                        storageChoice,
+                        componentsBox,
+                        new Label("Cell size"),
+                        cellSizeField,
+                        new Label("Disk compression"),
+                        compressionChoice));
                 final Optional<ButtonType> bt = alert.showAndWait();
                 if (bt.filter(ButtonType.OK::equals).isPresent() && comboBox.getValue() != null) {
                     final SourceState<? extends RealType<?>, ?> raw = comboBox.getValue();
+                    final StorageType storageType = StorageType.orDefault(storageChoice.getValue());
+                    final boolean storeComponents = componentsBox.isSelected();
                     final int nDim = raw.getDataSource().getDataSource(0, 0).numDimensions();
-                    final FeatureSourceState[] gradients = IntStream
-                            .range(0, nDim)
-                            .mapToObj(dim -> new GradientFeature(dim))
-                            .map(feat -> new FeatureSourceState(feat, raw.nameProperty().getName() + "-gradient", directory, raw))
-                            .toArray(FeatureSourceState[]::new);
+                    final int[] cellDimensions = cellDimensions(cellSizeField.getText(), nDim, LOG);
+                    final CellCompression compression = CellCompression.orDefault(compressionChoice.getValue());
                     final FeatureSourceState magnitude = new FeatureSourceState(
-                            new MagnitudeFeature(),
-                            raw.nameProperty().getName() + "-gradient-magnitude",
+                            new FusedGradientFeature(storeComponents, storageType, StorageType.DEFAULT_QUANTIZATION_STEP),
+                            raw.nameProperty().get() + "-gradient-magnitude",
                             directory,
-                            gradients);
-                    gradients[0].converter().colorProperty().set(Colors.toARGBType("#ff0000"));
-                    gradients[1].converter().colorProperty().set(Colors.toARGBType("#00ff00"));
-                    gradients[2].converter().colorProperty().set(Colors.toARGBType("#0000ff"));
-                    Stream.of(gradients).forEach(pbv::addState);
+                            cellDimensions,
+                            compression,
+                            raw);
+                    final FeatureSourceState[] gradients = IntStream
+                            .range(0, storeComponents ? nDim : 0)
+                            .mapToObj(dim -> new FeatureSourceState(new ChannelFeature(dim), raw.nameProperty().get() + "-gradient-" + dim, directory, cellDimensions, compression, magnitude))
+                            .toArray(FeatureSourceState[]::new);
+                    final String[] colors = {"#ff0000", "#00ff00", "#0000ff"};
+                    for (int dim = 0; dim < gradients.length && dim < colors.length; ++dim)
+                        gradients[dim].converter().colorProperty().set(Colors.toARGBType(colors[dim]));
                     Stream.of(magnitude).forEach(pbv::addState);
+                    Stream.of(gradients).forEach(pbv::addState);
+                }
+            };
+        }
+    }
+
+    @Plugin(type = OpenDialogMenuEntry.class,
+            menuPath = "_Features>_Refresh Dependent Features")
+    public static class InvalidateMenuEntry implements OpenDialogMenuEntry {
+
+        private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+        @Override
+        public BiConsumer<PainteraBaseView, String> onAction() {
+            return (pbv, directory) -> {
+                final List<SourceState<?, ?>> sources = pbv
+                        .sourceInfo()
+                        .trackSources()
+                        .stream()
+                        .map(pbv.sourceInfo()::getState)
+                        .collect(Collectors.toList());
+                final Alert alert = PainteraAlerts.alert(Alert.AlertType.CONFIRMATION, true);
+                alert.setHeaderText("Recompute features that depend on");
+                final ComboBox<SourceState<?, ?>> comboBox = new ComboBox<>(FXCollections.observableArrayList(sources));
+                final TextField minField = new TextField();
+                final TextField maxField = new TextField();
+                minField.setPromptText("x, y, z");
+                maxField.setPromptText("x, y, z");
+                alert.getDialogPane().setContent(new VBox(
+                        comboBox,
+                        new Label("Changed region in world coordinates, empty for everything"),
+                        new Label("Min"),
+                        minField,
+                        new Label("Max"),
+                        maxField));
+                final Optional<ButtonType> bt = alert.showAndWait();
+                if (bt.filter(ButtonType.OK::equals).isPresent() && comboBox.getValue() != null) {
+                    RealInterval globalInterval = null;
+                    if (!minField.getText().trim().isEmpty() || !maxField.getText().trim().isEmpty()) {
+                        try {
+                            globalInterval = new FinalRealInterval(coordinates(minField.getText()), coordinates(maxField.getText()));
+                        } catch (final IllegalArgumentException e) {
+                            LOG.warn("Invalid region {} - {}, recomputing everything", minField.getText(), maxField.getText(), e);
+                        }
+                    }
+                    invalidateDependents(pbv, comboBox.getValue(), globalInterval);
+                }
+            };
+        }
+
+        private static double[] coordinates(final String text) {
+            final double[] coordinates = Stream.of(text.split(",")).map(String::trim).mapToDouble(Double::parseDouble).toArray();
+            if (coordinates.length != 3)
+                throw new IllegalArgumentException("Expected three coordinates but got " + text);
+            return coordinates;
+        }
+    }
+
+    @Plugin(type = OpenDialogMenuEntry.class,
+            menuPath = "_Features>Feature _Bank")
+    public static class FeatureBankMenuEntry implements OpenDialogMenuEntry {
+
+        private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+        @Override
+        public BiConsumer<PainteraBaseView, String> onAction() {
+            return (pbv, directory) -> {
+                final List<SourceState<? extends RealType<?>, ?>> sources = pbv
+                        .sourceInfo()
+                        .trackSources()
+                        .stream()
+                        .map(pbv.sourceInfo()::getState)
+                        .filter(state -> state.getDataSource().getDataType() instanceof RealType<?>)
+                        .map(s -> (SourceState<? extends RealType<?>, ?>)s)
+                        .collect(Collectors.toList());
+                final Alert alert = PainteraAlerts.alert(Alert.AlertType.CONFIRMATION, true);
+                alert.setHeaderText("Feature bank on");
+                final ComboBox<SourceState<? extends RealType<?>, ?>> comboBox = new ComboBox<>(FXCollections.observableArrayList(sources));
+                final TextField sigmasField = new TextField("0.7, 1.0, 1.6, 3.5, 5.0");
+                final CheckBox gaussianBox = new CheckBox("Gaussian smoothing");
+                final CheckBox gradientBox = new CheckBox("Gradient magnitude of Gaussian");
+                final CheckBox hessianBox = new CheckBox("Hessian eigenvalues");
+                final CheckBox structureTensorBox = new CheckBox("Structure tensor eigenvalues");
+                Stream.of(gaussianBox, gradientBox, hessianBox, structureTensorBox).forEach(cb -> cb.setSelected(true));
+                final ComboBox<StorageType> storageChoice = new ComboBox<>(FXCollections.observableArrayList(StorageType.values()));
+                storageChoice.setValue(StorageType.FLOAT32);
+                final TextField cellSizeField = new TextField(String.valueOf(FeatureCache.DEFAULT_CELL_SIZE));
+                final ComboBox<CellCompression> compressionChoice = new ComboBox<>(FXCollections.observableArrayList(CellCompression.values()));
+                compressionChoice.setValue(CellCompression.NONE);
+                alert.getDialogPane().setContent(new VBox(
+                        comboBox,
+                        new Label("Scales"),
+                        sigmasField,
+                        gaussianBox,
+                        gradientBox,
+                        hessianBox,
+                        structureTensorBox,
+                        storageChoice,
+                        new Label("Cell size"),
+                        cellSizeField,
+                        new Label("Disk compression"),
+                        compressionChoice));
+                final Optional<ButtonType> bt = alert.showAndWait();
+                if (bt.filter(ButtonType.OK::equals).isPresent() && comboBox.getValue() != null) {
+                    final double[] sigmas;
+                    try {
+                        sigmas = Stream.of(sigmasField.getText().split(",")).map(String::trim).filter(str -> !str.isEmpty()).mapToDouble(Double::parseDouble).filter(sigma -> sigma > 0).toArray();
+                    } catch (final NumberFormatException e) {
+                        LOG.warn("Unable to parse scales {}", sigmasField.getText(), e);
+                        return;
+                    }
+                    final SourceState<? extends RealType<?>, ?> raw = comboBox.getValue();
+                    final StorageType storageType = StorageType.orDefault(storageChoice.getValue());
+                    final double step = StorageType.DEFAULT_QUANTIZATION_STEP;
+                    final int nDim = raw.getDataSource().getDataSource(0, 0).numDimensions();
+                    final String prefix = raw.nameProperty().get();
+                    final int[] cellDimensions = cellDimensions(cellSizeField.getText(), nDim, LOG);
+                    final CellCompression compression = CellCompression.orDefault(compressionChoice.getValue());
+                    for (final double sigma : sigmas) {
+                        // added even if not shown, all other features at this scale read the smoothed data from its cache
+                        final FeatureSourceState gaussian = new FeatureSourceState(new GaussianFeature(sigma, storageType, step), prefix + "-gaussian-" + sigma, directory, cellDimensions, compression, raw);
+                        gaussian.isVisibleProperty().set(gaussianBox.isSelected());
+                        pbv.addState(gaussian);
+                        if (gradientBox.isSelected())
+                            pbv.addState(new FeatureSourceState(new FusedGradientFeature(false, storageType, step), prefix + "-gradient-magnitude-" + sigma, directory, cellDimensions, compression, gaussian));
+                        if (hessianBox.isSelected())
+                            addEigenvalues(pbv, new HessianEigenvaluesFeature(storageType, step), prefix + "-hessian-eigenvalue-", sigma, nDim, directory, cellDimensions, compression, gaussian);
+                        if (structureTensorBox.isSelected())
+                            addEigenvalues(pbv, new StructureTensorEigenvaluesFeature(STRUCTURE_TENSOR_OUTER_SCALE * sigma, storageType, step), prefix + "-structure-tensor-eigenvalue-", sigma, nDim, directory, cellDimensions, compression, gaussian);
+                    }
                 }
             };
         }
+
+        private static void addEigenvalues(
+                final PainteraBaseView pbv,
+                final Feature feature,
+                final String prefix,
+                final double sigma,
+                final int nDim,
+                final String directory,
+                final int[] cellDimensions,
+                final CellCompression compression,
+                final FeatureSourceState gaussian) {
+            final FeatureSourceState largest = new FeatureSourceState(feature, prefix + 0 + "-" + sigma, directory, cellDimensions, compression, gaussian);
+            pbv.addState(largest);
+            for (int channel = 1; channel < nDim; ++channel)
+                pbv.addState(new FeatureSourceState(new ChannelFeature(channel), prefix + channel + "-" + sigma, directory, cellDimensions, compression, largest));
+        }
+    }
+
+    /**
+     * @param text cell size for all dimensions, or comma-separated cell size per dimension
+     */
+    private static int[] cellDimensions(final String text, final int nDim, final Logger log) {
+        try {
+            final int[] cellDimensions = Stream.of(text.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+            if (cellDimensions.length == 1)
+                return IntStream.range(0, nDim).map(d -> cellDimensions[0]).toArray();
+            if (cellDimensions.length == nDim && IntStream.of(cellDimensions).allMatch(c -> c > 0))
+                return cellDimensions;
+        } catch (final NumberFormatException e) {
+            log.debug("Unable to parse cell size {}", text, e);
+        }
+        log.warn("Invalid cell size {}, using default", text);
+        return FeatureCache.defaultCellDimensions(nDim);
     }
 
     @Override
     public void onAdd(PainteraBaseView paintera) {
+        DerivedSourceScheduler.global().track(paintera);
+        cache.getMetrics().registerWhileAdded(paintera, getDataSource(), nameProperty().get());
         converter().minProperty().addListener(obs -> paintera.orthogonalViews().requestRepaint());
         converter().maxProperty().addListener(obs -> paintera.orthogonalViews().requestRepaint());
         converter().colorProperty().addListener(obs -> paintera.orthogonalViews().requestRepaint());
         converter().alphaProperty().addListener(obs -> paintera.orthogonalViews().requestRepaint());
     }
 
+    @Plugin(type = SourceStateUIElementsDefaultFactory.AdditionalBindUnbindSuppliersFactory.class)
+    public static class AdditionalBindUnbindSuppliersFactory implements SourceStateUIElementsDefaultFactory.AdditionalBindUnbindSuppliersFactory<FeatureSourceState> {
+
+        @Override
+        public BindUnbindAndNodeSupplier[] create(final FeatureSourceState state) {
+            return new BindUnbindAndNodeSupplier[] {
+                    new DerivedSourceSettingsPanel(DerivedSourceSettings.global()),
+                    new ContrastPanel(state.autoContrast),
+                    new MetricsPanel(state.cache.getMetrics())
+            };
+        }
+
+        @Override
+        public Class<FeatureSourceState> getTargetClass() {
+            return FeatureSourceState.class;
+        }
+    }
+
     @Plugin(type = StatefulSerializer.SerializerAndDeserializer.class)
     public static class SerializationFactory implements StatefulSerializer.SerializerAndDeserializer<FeatureSourceState, Deserializer, Serializer> {
 
@@ -319,10 +1206,15 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
             map.add("composite", SerializationHelpers.serializeWithClassInfo(src.compositeProperty().get(), context));
             map.add("converter", SerializationHelpers.serializeWithClassInfo(src.converter(), context));
             map.add("feature", SerializationHelpers.serializeWithClassInfo(src.feature, context));
+            map.add("cellDimensions", context.serialize(src.cache.getCellDimensions()));
+            map.add("compression", context.serialize(src.cache.getCompression()));
             map.add(INTERPOLATION_KEY, context.serialize(src.interpolationProperty().get(), Interpolation.class));
             map.addProperty(IS_VISIBLE_KEY, src.isVisibleProperty().get());
             map.addProperty(NAME_KEY, src.nameProperty().get());
             map.add(DEPENDS_ON_KEY, context.serialize(Stream.of(src.dependsOn()).mapToInt(sourceToIndex).toArray()));
+            map.addProperty("autoContrast", src.autoContrast.enabledProperty().get());
+            map.add("autoContrastPercentiles", context.serialize(new double[] {src.autoContrast.lowerPercentileProperty().get(), src.autoContrast.upperPercentileProperty().get()}));
+            map.add("derivedSources", DerivedSourceSettings.global().serialize());
             return map;
         }
     }
@@ -348,16 +1240,33 @@ public class FeatureSourceState extends MinimalSourceState<DoubleType, VolatileD
                         .toArray(SourceState[]::new);
                 if (Stream.of(dependsOn).anyMatch(s -> s == null))
                     return null;
+                final int[] cellDimensions = map.has("cellDimensions")
+                        ? context.deserialize(map.get("cellDimensions"), int[].class)
+                        : FeatureCache.defaultCellDimensions(dependsOn[0].getDataSource().getDataSource(0, 0).numDimensions());
+                final CellCompression compression = map.has("compression")
+                        ? context.deserialize(map.get("compression"), CellCompression.class)
+                        : CellCompression.NONE;
                 final FeatureSourceState fs = new FeatureSourceState(
                         SerializationHelpers.deserializeFromClassInfo(map.getAsJsonObject("feature"), context),
                         map.get(NAME_KEY).getAsString(),
                         cacheDir,
+                        cellDimensions,
+                        compression,
                         dependsOn);
                 final ARGBColorConverter<VolatileDoubleType> converter = SerializationHelpers.deserializeFromClassInfo(map.getAsJsonObject("converter"), context);
                 fs.converter().setColor(converter.getColor());
                 fs.converter().setMin(converter.getMin());
                 fs.converter().setMax(converter.getMax());
                 fs.converter().alphaProperty().set(converter.alphaProperty().get());
+                // keep the stored display range of projects from before auto contrast
+                fs.autoContrast.enabledProperty().set(map.has("autoContrast") && map.get("autoContrast").getAsBoolean());
+                if (map.has("autoContrastPercentiles")) {
+                    final double[] percentiles = context.deserialize(map.get("autoContrastPercentiles"), double[].class);
+                    fs.autoContrast.lowerPercentileProperty().set(percentiles[0]);
+                    fs.autoContrast.upperPercentileProperty().set(percentiles[1]);
+                }
+                if (map.has("derivedSources"))
+                    DerivedSourceSettings.global().deserialize(map.getAsJsonObject("derivedSources"));
                 fs.compositeProperty().set(SerializationHelpers.deserializeFromClassInfo(map.getAsJsonObject("composite"), context));
                 fs.interpolationProperty().set(context.deserialize(map.get(INTERPOLATION_KEY), Interpolation.class));
                 fs.isVisibleProperty().set(map.get(IS_VISIBLE_KEY).getAsBoolean());
@@ -0,0 +1,169 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Gradient kernels on flat arrays. Unless stated otherwise, the source is a block that is expanded by one voxel in every
+ * dimension, in flat iteration order.
+ */
+public class GradientKernels {
+
+    private GradientKernels() {
+    }
+
+    /**
+     * Copy {@code interval} of {@code source} into {@code target} in flat iteration order.
+     */
+    public static void fill(final RandomAccessible<DoubleType> source, final Interval interval, final double[] target) {
+        final Cursor<DoubleType> cursor = Views.flatIterable(Views.interval(source, interval)).cursor();
+        for (int i = 0; cursor.hasNext(); ++i)
+            target[i] = cursor.next().get();
+    }
+
+    /**
+     * @param input border extended input
+     * @param nDim  spatial dimensions, blocks have a channel dimension after them
+     * @return loader of the gradient magnitude, and the gradient components in the channels before it if
+     * {@code components}
+     */
+    public static BlockLoader loader(final InputArrays.Reader input, final int nDim, final boolean components) {
+        return block -> {
+            final RandomAccessibleInterval<DoubleType> spatial = Views.hyperSlice(block, nDim, block.min(nDim));
+            final FinalInterval withHalo = Intervals.expand(spatial, 1);
+            final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+            final double[] target = ScratchBuffers.borrowDoubles((int) Intervals.numElements(block));
+            try {
+                input.fillBorder(withHalo, source);
+                gradientAndMagnitude(source, Intervals.dimensionsAsIntArray(spatial), target, components);
+                CellArrays.copy(target, block, block, false);
+            } finally {
+                ScratchBuffers.release(target);
+                ScratchBuffers.release(source);
+            }
+        };
+    }
+
+    /**
+     * @param input   border extended input
+     * @param channel channel of {@link #gradientAndMagnitude} with components: the component along dimension
+     *                {@code channel}, or the magnitude if {@code channel} is the number of dimensions
+     * @return loader of a single channel into blocks without a channel dimension, e.g. of separate datasets
+     */
+    public static BlockLoader channelLoader(final InputArrays.Reader input, final int channel) {
+        return block -> {
+            final int nDim = block.numDimensions();
+            final boolean components = channel < nDim;
+            final FinalInterval withHalo = Intervals.expand(block, 1);
+            final int numVoxels = (int) Intervals.numElements(block);
+            final double[] source = ScratchBuffers.borrowDoubles((int) Intervals.numElements(withHalo));
+            final double[] target = ScratchBuffers.borrowDoubles(components ? (nDim + 1) * numVoxels : numVoxels);
+            try {
+                input.fillBorder(withHalo, source);
+                gradientAndMagnitude(source, Intervals.dimensionsAsIntArray(block), target, components);
+                if (components && channel > 0)
+                    System.arraycopy(target, channel * numVoxels, target, 0, numVoxels);
+                CellArrays.copy(target, block, block, false);
+            } finally {
+                ScratchBuffers.release(target);
+                ScratchBuffers.release(source);
+            }
+        };
+    }
+
+    /**
+     * Central differences along {@code dim}. The inner loops run over contiguous ranges of both arrays without
+     * branches, so that the JIT can vectorize them.
+     *
+     * @param source block of {@code size} expanded by one voxel along {@code dim} only, in flat iteration order
+     * @param size   size of the block without the halo
+     * @param target block of {@code size} in flat iteration order
+     */
+    public static void centralDifference(final double[] source, final int[] size, final int dim, final double[] target) {
+        int inner = 1;
+        for (int d = 0; d < dim; ++d)
+            inner *= size[d];
+        int outer = 1;
+        for (int d = dim + 1; d < size.length; ++d)
+            outer *= size[d];
+        final int extent = size[dim];
+
+        if (dim == 0) {
+            // lines along the difference dimension are 2 voxels longer in source
+            for (int line = 0, t = 0, s = 0; line < outer; ++line, t += extent, s += extent + 2)
+                for (int x = 0; x < extent; ++x)
+                    target[t + x] = 0.5 * (source[s + x + 2] - source[s + x]);
+            return;
+        }
+
+        for (int o = 0, t = 0; o < outer; ++o) {
+            for (int k = 0; k < extent; ++k, t += inner) {
+                final int s = (o * (extent + 2) + k + 1) * inner;
+                for (int i = 0; i < inner; ++i)
+                    target[t + i] = 0.5 * (source[s + i + inner] - source[s + i - inner]);
+            }
+        }
+    }
+
+    /**
+     * {@code sumOfSquares[i] += values[i] * values[i]} for the first {@code length} voxels.
+     */
+    public static void addSquares(final double[] values, final double[] sumOfSquares, final int length) {
+        for (int i = 0; i < length; ++i)
+            sumOfSquares[i] += values[i] * values[i];
+    }
+
+    /**
+     * Central differences along all dimensions and the gradient magnitude in a single sweep over {@code source}.
+     *
+     * @param source     block of {@code size} expanded by one voxel in every dimension
+     * @param size       size of the block without the halo
+     * @param target     channels of the block one after another: the gradient components along all dimensions if
+     *                   {@code components}, followed by the magnitude
+     * @param components write the gradient components, otherwise only the magnitude
+     */
+    public static void gradientAndMagnitude(
+            final double[] source,
+            final int[] size,
+            final double[] target,
+            final boolean components) {
+        final int n = size.length;
+        final int[] sourceStrides = new int[n];
+        sourceStrides[0] = 1;
+        int numVoxels = size[0];
+        for (int d = 1; d < n; ++d) {
+            sourceStrides[d] = sourceStrides[d - 1] * (size[d - 1] + 2);
+            numVoxels *= size[d];
+        }
+        final int magnitudeOffset = components ? n * numVoxels : 0;
+        final int lineLength = size[0];
+        final int[] position = new int[n];
+
+        for (int targetIndex = 0; targetIndex < numVoxels; targetIndex += lineLength) {
+            int sourceIndex = 1;
+            for (int d = 1; d < n; ++d)
+                sourceIndex += (position[d] + 1) * sourceStrides[d];
+            for (int x = 0; x < lineLength; ++x, ++sourceIndex) {
+                double sumOfSquares = 0.0;
+                for (int d = 0; d < n; ++d) {
+                    final double g = 0.5 * (source[sourceIndex + sourceStrides[d]] - source[sourceIndex - sourceStrides[d]]);
+                    if (components)
+                        target[d * numVoxels + targetIndex + x] = g;
+                    sumOfSquares += g * g;
+                }
+                target[magnitudeOffset + targetIndex + x] = Math.sqrt(sumOfSquares);
+            }
+            for (int d = 1; d < n; ++d) {
+                if (++position[d] < size[d])
+                    break;
+                position[d] = 0;
+            }
+        }
+    }
+}
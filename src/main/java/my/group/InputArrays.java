@@ -0,0 +1,238 @@
+package my.group;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Reads blocks of the input of derived sources into flat arrays. Cell imgs of {@link UnsignedByteType},
+ * {@link UnsignedShortType}, {@link FloatType} and {@link DoubleType} are read line by line from the primitive arrays
+ * of their cells, instead of calling {@link RealType#getRealDouble()} through converters and views for every voxel.
+ * All other inputs, and cells that are not backed by arrays, are read through a cursor.
+ */
+public class InputArrays {
+
+    public static final String FAST_PATH_PROPERTY = "my.group.input.fast-path";
+
+    private static volatile boolean fastPathEnabled = !"false".equals(System.getProperty(FAST_PATH_PROPERTY));
+
+    private enum Kind {
+        UINT8,
+        UINT16,
+        FLOAT32,
+        FLOAT64,
+        GENERIC
+    }
+
+    private InputArrays() {
+    }
+
+    public static boolean isFastPathEnabled() {
+        return fastPathEnabled;
+    }
+
+    /**
+     * @param enabled {@code false} to read all inputs through a cursor, e.g. for benchmarks
+     */
+    public static void setFastPathEnabled(final boolean enabled) {
+        fastPathEnabled = enabled;
+    }
+
+    /**
+     * @param square read the squares of the values of {@code source}
+     */
+    public static Reader reader(final RandomAccessibleInterval<? extends RealType<?>> source, final boolean square) {
+        return new Reader(source, square);
+    }
+
+    public static class Reader {
+
+        private final RandomAccessibleInterval<? extends RealType<?>> source;
+
+        private final boolean square;
+
+        private final RandomAccessibleInterval<DoubleType> asDouble;
+
+        private volatile Kind kind = null;
+
+        private Reader(final RandomAccessibleInterval<? extends RealType<?>> source, final boolean square) {
+            this.source = source;
+            this.square = square;
+            this.asDouble = square
+                    ? Converters.convert(source, (s, t) -> t.set(s.getRealDouble() * s.getRealDouble()), new DoubleType())
+                    : Converters.convert(source, (s, t) -> t.set(s.getRealDouble()), new DoubleType());
+        }
+
+        /**
+         * Copy {@code interval} of the border extended source into {@code target} in flat iteration order.
+         */
+        public void fillBorder(final Interval interval, final double[] target) {
+            final long start = System.nanoTime();
+            if (kind() == Kind.GENERIC)
+                GradientKernels.fill(Views.extendBorder(asDouble), interval, target);
+            else
+                fill(interval, true, 0.0, target);
+            DerivedSourceMetrics.addIoNanos(System.nanoTime() - start);
+        }
+
+        /**
+         * Copy {@code interval} of the source extended by {@code outOfBounds} into {@code target} in flat iteration
+         * order. {@code outOfBounds} is not squared.
+         */
+        public void fillValue(final Interval interval, final double outOfBounds, final double[] target) {
+            final long start = System.nanoTime();
+            if (kind() == Kind.GENERIC)
+                GradientKernels.fill(Views.extendValue(asDouble, new DoubleType(outOfBounds)), interval, target);
+            else
+                fill(interval, false, outOfBounds, target);
+            DerivedSourceMetrics.addIoNanos(System.nanoTime() - start);
+        }
+
+        private Kind kind() {
+            if (!fastPathEnabled)
+                return Kind.GENERIC;
+            Kind kind = this.kind;
+            if (kind == null) {
+                kind = Kind.GENERIC;
+                if (source instanceof AbstractCellImg<?, ?, ?, ?>) {
+                    final Object type = Util.getTypeFromInterval(source);
+                    if (type instanceof UnsignedByteType)
+                        kind = Kind.UINT8;
+                    else if (type instanceof UnsignedShortType)
+                        kind = Kind.UINT16;
+                    else if (type instanceof FloatType)
+                        kind = Kind.FLOAT32;
+                    else if (type instanceof DoubleType)
+                        kind = Kind.FLOAT64;
+                }
+                this.kind = kind;
+            }
+            return kind;
+        }
+
+        /**
+         * Line by line along dimension {@code 0}. Lines are clamped to the source in all other dimensions, or filled
+         * with {@code outOfBounds}, and padded along dimension {@code 0}.
+         */
+        private void fill(final Interval interval, final boolean border, final double outOfBounds, final double[] target) {
+            final AbstractCellImg<?, ?, ?, ?> img = (AbstractCellImg<?, ?, ?, ?>) source;
+            final CellGrid grid = img.getCellGrid();
+            final RandomAccess<? extends Cell<?>> cells = img.getCells().randomAccess();
+            final RandomAccess<? extends RealType<?>> voxels = source.randomAccess();
+            final int n = interval.numDimensions();
+            final long[] position = new long[n];
+            final long[] clamped = new long[n];
+            final long[] cellPosition = new long[n];
+            final int lineLength = (int) interval.dimension(0);
+            final long x0 = interval.min(0);
+            final long x1 = interval.max(0);
+            final long inMin = Math.max(x0, source.min(0));
+            final long inMax = Math.min(x1, source.max(0));
+            for (int d = 1; d < n; ++d)
+                position[d] = interval.min(d);
+
+            final long numLines = Intervals.numElements(interval) / lineLength;
+            for (int line = 0, offset = 0; line < numLines; ++line, offset += lineLength) {
+                boolean inside = true;
+                for (int d = 1; d < n; ++d) {
+                    clamped[d] = Math.max(source.min(d), Math.min(source.max(d), position[d]));
+                    inside &= clamped[d] == position[d];
+                }
+
+                if (!border && (!inside || inMin > inMax))
+                    Arrays.fill(target, offset, offset + lineLength, outOfBounds);
+                else if (inMin > inMax) {
+                    clamped[0] = x1 < source.min(0) ? source.min(0) : source.max(0);
+                    voxels.setPosition(clamped);
+                    Arrays.fill(target, offset, offset + lineLength, value(voxels.get().getRealDouble()));
+                } else {
+                    final int start = offset + (int) (inMin - x0);
+                    final int end = offset + (int) (inMax - x0);
+                    copyLine(grid, cells, voxels, clamped, cellPosition, inMin, inMax, target, start);
+                    Arrays.fill(target, offset, start, border ? target[start] : outOfBounds);
+                    Arrays.fill(target, end + 1, offset + lineLength, border ? target[end] : outOfBounds);
+                }
+
+                for (int d = 1; d < n; ++d) {
+                    if (++position[d] <= interval.max(d))
+                        break;
+                    position[d] = interval.min(d);
+                }
+            }
+        }
+
+        /**
+         * Copy voxels {@code [from, to]} along dimension {@code 0} of the line at {@code position} into {@code target}
+         * starting at {@code start}, one cell at a time.
+         */
+        private void copyLine(
+                final CellGrid grid,
+                final RandomAccess<? extends Cell<?>> cells,
+                final RandomAccess<? extends RealType<?>> voxels,
+                final long[] position,
+                final long[] cellPosition,
+                final long from,
+                final long to,
+                final double[] target,
+                final int start) {
+            for (int d = 1; d < position.length; ++d)
+                cellPosition[d] = position[d] / grid.cellDimension(d);
+            final Kind kind = this.kind;
+            int t = start;
+            for (long x = from; x <= to; ) {
+                cellPosition[0] = x / grid.cellDimension(0);
+                cells.setPosition(cellPosition);
+                final Cell<?> cell = cells.get();
+                final long end = Math.min(to, cell.min(0) + cell.dimension(0) - 1);
+                final int length = (int) (end - x + 1);
+                position[0] = x;
+                final int index = cell.globalPositionToIndex(position);
+                final Object data = cell.getData();
+                final Object storage = data instanceof ArrayDataAccess<?> ? ((ArrayDataAccess<?>) data).getCurrentStorageArray() : null;
+                if (kind == Kind.UINT8 && storage instanceof byte[]) {
+                    final byte[] values = (byte[]) storage;
+                    for (int i = 0; i < length; ++i)
+                        target[t + i] = values[index + i] & 0xff;
+                } else if (kind == Kind.UINT16 && storage instanceof short[]) {
+                    final short[] values = (short[]) storage;
+                    for (int i = 0; i < length; ++i)
+                        target[t + i] = values[index + i] & 0xffff;
+                } else if (kind == Kind.FLOAT32 && storage instanceof float[]) {
+                    final float[] values = (float[]) storage;
+                    for (int i = 0; i < length; ++i)
+                        target[t + i] = values[index + i];
+                } else if (kind == Kind.FLOAT64 && storage instanceof double[]) {
+                    System.arraycopy((double[]) storage, index, target, t, length);
+                } else {
+                    voxels.setPosition(position);
+                    for (int i = 0; i < length; ++i, voxels.fwd(0))
+                        target[t + i] = voxels.get().getRealDouble();
+                }
+                if (square)
+                    for (int i = t; i < t + length; ++i)
+                        target[i] *= target[i];
+                t += length;
+                x = end + 1;
+            }
+        }
+
+        private double value(final double value) {
+            return square ? value * value : value;
+        }
+    }
+}
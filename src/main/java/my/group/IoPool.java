@@ -0,0 +1,172 @@
+package my.group;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool for reading the inputs of derived sources. Before a block is handed to the
+ * {@link DerivedSourceScheduler scheduler}, all input cells that it reads, incl. its halo, are
+ * {@link #prefetch(Interval, int[], RandomAccessibleInterval[]) fetched concurrently} on this pool, so that slow
+ * storage does not keep compute threads idle and reads of many cells overlap. With {@code 0} threads, inputs are read
+ * sequentially while computing.
+ */
+public class IoPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String THREADS_PROPERTY = "my.group.io.threads";
+
+    /**
+     * Sampling step for inputs with unknown cell size.
+     */
+    private static final int DEFAULT_STEP = 16;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ThreadLocal<Boolean> IS_IO_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                final Thread t = new Thread(() -> {
+                    IS_IO_THREAD.set(true);
+                    r.run();
+                });
+                t.setName("derived-source-io-" + THREAD_COUNT.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static volatile int numThreads = 0;
+
+    /**
+     * Fetch the inputs of a block.
+     */
+    @FunctionalInterface
+    public interface Prefetcher {
+
+        void prefetch(Interval block) throws InterruptedException;
+
+    }
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+        setNumThreads(Integer.getInteger(THREADS_PROPERTY, 2 * ComputePool.PARALLELISM));
+    }
+
+    private IoPool() {
+    }
+
+    public static int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads concurrent reads, {@code 0} to read inputs sequentially while computing
+     */
+    public static synchronized void setNumThreads(final int numThreads) {
+        final int poolSize = Math.max(numThreads, 1);
+        if (poolSize > POOL.getMaximumPoolSize()) {
+            POOL.setMaximumPoolSize(poolSize);
+            POOL.setCorePoolSize(poolSize);
+        } else {
+            POOL.setCorePoolSize(poolSize);
+            POOL.setMaximumPoolSize(poolSize);
+        }
+        IoPool.numThreads = Math.max(numThreads, 0);
+    }
+
+    /**
+     * Read all cells of {@code sources} that intersect {@code block} expanded by {@code halo}, concurrently, and wait
+     * until they are loaded. Only the leading dimensions of {@code block} that {@code sources} have are considered.
+     * Failed reads are ignored, they fail again when the block is computed.
+     */
+    public static void prefetch(
+            final Interval block,
+            final int[] halo,
+            final RandomAccessibleInterval<?>... sources) throws InterruptedException {
+        // reads on I/O threads that trigger loading of derived cells must not wait for the pool
+        if (numThreads == 0 || IS_IO_THREAD.get())
+            return;
+        final List<Callable<Void>> reads = new ArrayList<>();
+        for (final RandomAccessibleInterval<?> source : sources)
+            addReads(block, halo, source, reads);
+        if (reads.size() <= 1)
+            return;
+        final long start = System.nanoTime();
+        for (final Future<Void> read : POOL.invokeAll(reads)) {
+            try {
+                read.get();
+            } catch (final ExecutionException e) {
+                LOG.debug("Unable to prefetch input of block {}", block, e.getCause());
+            }
+        }
+        DerivedSourceMetrics.addIoNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * One read per cell of {@code source} that intersects the expanded block, or per {@link #DEFAULT_STEP} voxels if
+     * the cells of {@code source} are unknown.
+     */
+    private static void addReads(
+            final Interval block,
+            final int[] halo,
+            final RandomAccessibleInterval<?> source,
+            final List<Callable<Void>> reads) {
+        final int n = Math.min(block.numDimensions(), source.numDimensions());
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        final int[] step = new int[n];
+        for (int d = 0; d < n; ++d) {
+            final long h = d < halo.length ? halo[d] : 0;
+            min[d] = Math.max(block.min(d) - h, source.min(d));
+            max[d] = Math.min(block.max(d) + h, source.max(d));
+            if (min[d] > max[d])
+                return;
+            step[d] = source instanceof AbstractCellImg<?, ?, ?, ?>
+                    ? ((AbstractCellImg<?, ?, ?, ?>) source).getCellGrid().cellDimension(d)
+                    : DEFAULT_STEP;
+        }
+
+        final long[] position = min.clone();
+        for (int d = 0; d < n; ) {
+            final long[] readPosition = new long[source.numDimensions()];
+            System.arraycopy(position, 0, readPosition, 0, n);
+            for (int k = n; k < readPosition.length; ++k)
+                readPosition[k] = source.min(k);
+            reads.add(() -> {
+                final RandomAccess<?> access = source.randomAccess();
+                access.setPosition(readPosition);
+                access.get();
+                return null;
+            });
+            for (d = 0; d < n; ++d) {
+                if (position[d] < max[d]) {
+                    // align to the cell grid after the first step, and always read the last voxel
+                    position[d] = Math.min(position[d] - Math.floorMod(position[d], (long) step[d]) + step[d], max[d]);
+                    break;
+                }
+                position[d] = min[d];
+            }
+        }
+    }
+}
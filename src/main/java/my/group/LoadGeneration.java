@@ -0,0 +1,45 @@
+package my.group;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generation counter of the parameters of a derived source. Every rebuild of the source starts a new generation and
+ * loaders of older generations abort with a {@link CancellationException} the next time they {@link Token#check()}.
+ */
+public class LoadGeneration {
+
+    private final AtomicLong current = new AtomicLong();
+
+    /**
+     * Start a new generation. All {@link Token tokens} handed out before become stale.
+     */
+    public Token next() {
+        return new Token(current.incrementAndGet());
+    }
+
+    public Token current() {
+        return new Token(current.get());
+    }
+
+    public class Token {
+
+        private final long generation;
+
+        private Token(final long generation) {
+            this.generation = generation;
+        }
+
+        public boolean isStale() {
+            return generation != current.get();
+        }
+
+        /**
+         * @throws CancellationException if a newer generation was started
+         */
+        public void check() {
+            if (isStale())
+                throw new CancellationException("Generation " + generation + " is outdated");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package my.group;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.GridPane;
+import javafx.util.Duration;
+import org.janelia.saalfeldlab.fx.Labels;
+import org.janelia.saalfeldlab.fx.TitledPanes;
+import org.janelia.saalfeldlab.paintera.ui.BindUnbindAndNodeSupplier;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Live view of the {@link DerivedSourceMetrics} of a derived source: totals at the top, one column per mipmap level
+ * below. Refreshed every second while the source is selected.
+ */
+public class MetricsPanel implements BindUnbindAndNodeSupplier {
+
+    private static final Duration REFRESH_INTERVAL = Duration.seconds(1);
+
+    private static final String[] LEVEL_ROWS = {
+            "Cache Hits",
+            "Cache Misses",
+            "Evicted",
+            "Memory (MiB)",
+            "Pending",
+            "Computed",
+            "Disk Hits",
+            "Disk Writes",
+            "I/O p50/p99 (ms)",
+            "Compute p50/p99 (ms)",
+            "Latency p50/p99 (ms)"
+    };
+
+    private static final List<Function<DerivedSourceMetrics.LevelStatistics, String>> LEVEL_VALUES = Arrays.asList(
+            s -> Long.toString(s.getCacheHits()),
+            s -> Long.toString(s.getCacheMisses()),
+            s -> Long.toString(s.getEvictions()),
+            s -> mebibytes(s.getMemoryBytes()),
+            s -> Long.toString(s.getPending()),
+            s -> Long.toString(s.getComputed()),
+            s -> Long.toString(s.getDiskHits()),
+            s -> Long.toString(s.getDiskWrites()),
+            s -> percentiles(s.getIoMillisP50(), s.getIoMillisP99()),
+            s -> percentiles(s.getComputeMillisP50(), s.getComputeMillisP99()),
+            s -> percentiles(s.getLatencyMillisP50(), s.getLatencyMillisP99()));
+
+    private final DerivedSourceMetrics metrics;
+
+    private final Label memory = new Label();
+
+    private final Label disk = new Label();
+
+    private final Label pending = new Label();
+
+    private final Label queue = new Label();
+
+    private final GridPane levels = new GridPane();
+
+    private Label[][] levelValues = new Label[0][];
+
+    private final Timeline refresh = new Timeline(new KeyFrame(REFRESH_INTERVAL, e -> refresh()));
+
+    public MetricsPanel(final DerivedSourceMetrics metrics) {
+        this.metrics = metrics;
+        this.refresh.setCycleCount(Animation.INDEFINITE);
+    }
+
+    @Override
+    public Node get() {
+        final GridPane gp = new GridPane();
+        final Label memory = Labels.withTooltip("Memory (MiB)", "Cells of all levels held in memory");
+        final Label disk = Labels.withTooltip("Disk (MiB)", "Persisted blocks of the current parameters, updated every few seconds");
+        final Label pending = Labels.withTooltip("Pending", "Blocks that were requested and are not loaded yet");
+        final Label queue = Labels.withTooltip("Scheduler Queue", "Blocks of all derived sources that are waiting for a compute thread");
+
+        gp.add(memory, 0, 0);
+        gp.add(this.memory, 1, 0);
+
+        gp.add(disk, 0, 1);
+        gp.add(this.disk, 1, 1);
+
+        gp.add(pending, 0, 2);
+        gp.add(this.pending, 1, 2);
+
+        gp.add(queue, 0, 3);
+        gp.add(this.queue, 1, 3);
+
+        gp.add(levels, 0, 4, 2, 1);
+
+        refresh();
+        return TitledPanes.createCollapsed("Metrics", gp);
+    }
+
+    @Override
+    public void bind() {
+        refresh();
+        refresh.play();
+    }
+
+    @Override
+    public void unbind() {
+        refresh.stop();
+    }
+
+    private void refresh() {
+        final List<DerivedSourceMetrics.LevelStatistics> statistics = metrics.getLevels();
+        memory.setText(mebibytes(metrics.getMemoryBytes()));
+        disk.setText(mebibytes(metrics.getDiskBytes()));
+        pending.setText(Long.toString(metrics.getPendingBlocks()));
+        queue.setText(Integer.toString(metrics.getSchedulerQueueLength()));
+        if (levelValues.length != statistics.size())
+            createLevelColumns(statistics);
+        for (int column = 0; column < statistics.size(); ++column)
+            for (int row = 0; row < LEVEL_VALUES.size(); ++row)
+                levelValues[column][row].setText(LEVEL_VALUES.get(row).apply(statistics.get(column)));
+    }
+
+    private void createLevelColumns(final List<DerivedSourceMetrics.LevelStatistics> statistics) {
+        levels.getChildren().clear();
+        levels.setHgap(10.0);
+        for (int row = 0; row < LEVEL_ROWS.length; ++row)
+            levels.add(new Label(LEVEL_ROWS[row]), 0, row + 1);
+        levelValues = new Label[statistics.size()][LEVEL_ROWS.length];
+        for (int column = 0; column < statistics.size(); ++column) {
+            levels.add(new Label("s" + statistics.get(column).getLevel()), column + 1, 0);
+            for (int row = 0; row < LEVEL_ROWS.length; ++row) {
+                levelValues[column][row] = new Label();
+                levels.add(levelValues[column][row], column + 1, row + 1);
+            }
+        }
+    }
+
+    private static String mebibytes(final long bytes) {
+        return String.format("%.1f", bytes / (double) (1 << 20));
+    }
+
+    private static String percentiles(final double p50, final double p99) {
+        return String.format("%.1f / %.1f", p50, p99);
+    }
+}
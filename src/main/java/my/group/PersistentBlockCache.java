@@ -0,0 +1,454 @@
+package my.group;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.paintera.data.DataSource;
+import org.janelia.saalfeldlab.paintera.data.n5.N5DataSource;
+import org.janelia.saalfeldlab.paintera.data.n5.N5FSMeta;
+import org.janelia.saalfeldlab.paintera.data.n5.N5Meta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Disk tier for derived sources, stored in an N5 container. Each parameter set is a group named by the hash of its
+ * parameter description, with one dataset per mipmap level. Blocks that were computed once are read back instead of
+ * recomputed, e.g. after reopening a project or switching back to earlier parameters. Least recently used parameter
+ * sets are removed when the container exceeds its size limit, unless a source is {@link #setInUse(Object, String) using}
+ * them. Blocks of a parameter set can be {@link #invalidate(String, int, long[], long[]) invalidated} when the input
+ * changes, blocks that are loaded concurrently are not written then.
+ */
+public class PersistentBlockCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String PARAMETERS_KEY = "parameters";
+
+    public static final String LAST_ACCESS_KEY = "lastAccess";
+
+    private static final String ATTRIBUTES_FILE = "attributes.json";
+
+    private static final Map<Path, PersistentBlockCache> CACHES = new HashMap<>();
+
+    /**
+     * Samples per dimension of the coarsest level for {@link #describe(DataSource) content stamps}.
+     */
+    private static final int CONTENT_SAMPLES = 16;
+
+    private static final Map<DataSource<?, ?>, Origin> ORIGINS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Container and dataset that a source was read from.
+     */
+    private static class Origin {
+
+        private final Path container;
+
+        private final String dataset;
+
+        private Origin(final Path container, final String dataset) {
+            this.container = container;
+            this.dataset = dataset;
+        }
+    }
+
+    private final Path root;
+
+    private final N5FSWriter n5;
+
+    private final Map<Object, String> inUse = new WeakHashMap<>();
+
+    private final Map<String, AtomicLong> invalidations = new ConcurrentHashMap<>();
+
+    /**
+     * Bytes of the blocks of each parameter set, determined once and updated with each write and invalidation.
+     */
+    private final Map<String, AtomicLong> groupBytes = new ConcurrentHashMap<>();
+
+    private PersistentBlockCache(final Path root) throws IOException {
+        this.root = root;
+        this.n5 = new N5FSWriter(root.toString());
+    }
+
+    /**
+     * @return the cache for the container {@code containerName} in {@code directory}, shared by all sources
+     */
+    public static synchronized PersistentBlockCache get(final String directory, final String containerName) throws IOException {
+        final Path root = Paths.get(directory, containerName).toAbsolutePath().normalize();
+        PersistentBlockCache cache = CACHES.get(root);
+        if (cache == null) {
+            cache = new PersistentBlockCache(root);
+            CACHES.put(root, cache);
+        }
+        return cache;
+    }
+
+    public static String hash(final String parameters) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(parameters.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return data type that represents the values of {@code storageType} without loss
+     */
+    public static DataType dataType(final StorageType storageType) {
+        return StorageType.FLOAT64.equals(StorageType.orDefault(storageType)) ? DataType.FLOAT64 : DataType.FLOAT32;
+    }
+
+    /**
+     * Record where the data of {@code source} is stored, for sources that are not {@link N5DataSource N5 data sources},
+     * so that its {@link #describe(DataSource) description} includes the container and a modification stamp.
+     *
+     * @param container N5 root directory or HDF5 file
+     */
+    public static void setOrigin(final DataSource<?, ?> source, final String container, final String dataset) {
+        ORIGINS.put(source, new Origin(Paths.get(container).toAbsolutePath().normalize(), dataset));
+    }
+
+    /**
+     * @return identity of {@code dataSource} for parameter descriptions: its name, the dimensions and transforms of
+     * all levels, the container and dataset that it is read from, if known, with a modification stamp, and a content
+     * stamp of the coarsest level. Blocks persisted for a source are not read back once its data changed.
+     */
+    public static JsonObject describe(final DataSource<?, ?> dataSource) {
+        final JsonObject description = new JsonObject();
+        description.addProperty("name", dataSource.getName());
+        final JsonArray levels = new JsonArray();
+        for (int level = 0; level < dataSource.getNumMipmapLevels(); ++level) {
+            final AffineTransform3D transform = new AffineTransform3D();
+            dataSource.getSourceTransform(0, level, transform);
+            levels.add(Arrays.toString(Intervals.dimensionsAsLongArray(dataSource.getDataSource(0, level))) + " " + transform);
+        }
+        description.add("levels", levels);
+        final Origin origin = origin(dataSource);
+        if (origin != null) {
+            description.addProperty("container", origin.container.toString());
+            description.addProperty("dataset", origin.dataset);
+            description.addProperty("modified", modificationStamp(origin));
+        }
+        description.addProperty("content", contentStamp(dataSource));
+        return description;
+    }
+
+    private static Origin origin(final DataSource<?, ?> dataSource) {
+        final DataSource<?, ?> source = TimeSeriesSource.unwrap(dataSource);
+        final Origin origin = ORIGINS.get(source);
+        if (origin != null || !(source instanceof N5DataSource<?, ?>))
+            return origin;
+        final N5Meta meta = ((N5DataSource<?, ?>) source).meta();
+        return meta instanceof N5FSMeta
+                ? new Origin(Paths.get(((N5FSMeta) meta).basePath()).toAbsolutePath().normalize(), meta.dataset())
+                : null;
+    }
+
+    /**
+     * @return last modification of an HDF5 file, or the newest modification of the N5 dataset directory, its
+     * attributes and the directories of its levels and their first grid dimension. Blocks that are overwritten in place
+     * only change the {@link #contentStamp(DataSource) content stamp}.
+     */
+    private static long modificationStamp(final Origin origin) {
+        final Path container = origin.container;
+        if (Files.isRegularFile(container))
+            return container.toFile().lastModified();
+        final Path dataset = container.resolve(origin.dataset.replaceFirst("^/+", ""));
+        if (!Files.isDirectory(dataset))
+            return 0L;
+        try (final Stream<Path> files = Files.walk(dataset, 2)) {
+            return files
+                    .filter(path -> Files.isDirectory(path) || ATTRIBUTES_FILE.equals(path.getFileName().toString()))
+                    .mapToLong(path -> path.toFile().lastModified())
+                    .max()
+                    .orElse(0L);
+        } catch (final IOException | UncheckedIOException e) {
+            LOG.debug("Unable to determine the modification of {}", dataset, e);
+            return 0L;
+        }
+    }
+
+    /**
+     * @return hash of a regular grid of up to {@link #CONTENT_SAMPLES} samples per dimension of the coarsest level
+     */
+    private static int contentStamp(final DataSource<?, ?> dataSource) {
+        if (!(dataSource.getDataType() instanceof RealType<?>))
+            return 0;
+        @SuppressWarnings("unchecked")
+        final RandomAccessibleInterval<? extends RealType<?>> data = (RandomAccessibleInterval<? extends RealType<?>>) dataSource.getDataSource(0, dataSource.getNumMipmapLevels() - 1);
+        final long[] steps = new long[data.numDimensions()];
+        for (int d = 0; d < steps.length; ++d)
+            steps[d] = Math.max(1, data.dimension(d) / CONTENT_SAMPLES);
+        int hash = 1;
+        for (final RealType<?> value : Views.flatIterable(Views.subsample(Views.zeroMin(data), steps)))
+            hash = 31 * hash + Double.hashCode(value.getRealDouble());
+        return hash;
+    }
+
+    /**
+     * @param parameters full description of everything that affects the values of the blocks, incl. the input
+     * @param dataType {@link DataType#FLOAT64} or {@link DataType#FLOAT32}
+     * @return {@link BlockLoader} that reads blocks from disk if present and writes blocks after loading otherwise
+     */
+    public BlockLoader wrap(
+            final String parameters,
+            final int level,
+            final long[] dimensions,
+            final int[] blockSize,
+            final DataType dataType,
+            final BlockLoader loader) throws IOException {
+        return wrap(parameters, level, dimensions, blockSize, dataType, CellCompression.NONE, loader);
+    }
+
+    /**
+     * @param compression must be part of {@code parameters} unless it is {@link CellCompression#NONE}
+     */
+    public BlockLoader wrap(
+            final String parameters,
+            final int level,
+            final long[] dimensions,
+            final int[] blockSize,
+            final DataType dataType,
+            final CellCompression compression,
+            final BlockLoader loader) throws IOException {
+        final String group = hash(parameters);
+        final String dataset = group + "/s" + level;
+        final DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, compression.storedType(dataType), compression.n5Compression());
+        synchronized (this) {
+            n5.createGroup(group);
+            n5.setAttribute(group, PARAMETERS_KEY, parameters);
+            n5.setAttribute(group, LAST_ACCESS_KEY, System.currentTimeMillis());
+            if (!n5.datasetExists(dataset))
+                n5.createDataset(dataset, attributes);
+        }
+
+        final AtomicLong invalidation = invalidations.computeIfAbsent(group, g -> new AtomicLong());
+        final AtomicLong bytes = groupBytes(group);
+        return block -> {
+            final long[] gridPosition = new long[blockSize.length];
+            for (int d = 0; d < gridPosition.length; ++d)
+                gridPosition[d] = block.min(d) / blockSize[d];
+
+            final long readStart = System.nanoTime();
+            final DataBlock<?> stored = n5.readBlock(dataset, attributes, gridPosition);
+            if (stored != null) {
+                LOG.trace("Read block {} of {} from disk", gridPosition, dataset);
+                copy(compression.decode(stored), block);
+                DerivedSourceMetrics.diskHit(System.nanoTime() - readStart);
+                return;
+            }
+            DerivedSourceMetrics.addIoNanos(System.nanoTime() - readStart);
+
+            final long invalidationBeforeLoad = invalidation.get();
+            loader.load(block);
+            if (invalidation.get() != invalidationBeforeLoad) {
+                LOG.debug("Block {} of {} was invalidated while loading, not writing it", gridPosition, dataset);
+                return;
+            }
+            final long writeStart = System.nanoTime();
+            final int[] size = Intervals.dimensionsAsIntArray(block);
+            final Path file = blockPath(root.resolve(dataset), gridPosition);
+            final long previousBytes = file.toFile().length();
+            n5.writeBlock(dataset, attributes, DataType.FLOAT32.equals(dataType)
+                    ? compression.encode(size, gridPosition, toFloats(block))
+                    : compression.encode(size, gridPosition, toDoubles(block)));
+            bytes.addAndGet(file.toFile().length() - previousBytes);
+            DerivedSourceMetrics.diskWrite(System.nanoTime() - writeStart);
+        };
+    }
+
+    /**
+     * @return bytes of the persisted blocks of a parameter set, {@code 0} if there are none
+     */
+    public long bytes(final String parameters) {
+        final String group = hash(parameters);
+        return Files.isDirectory(root.resolve(group)) ? groupBytes(group).get() : 0L;
+    }
+
+    /**
+     * @return counter of the bytes of {@code group}, the size of its directory when it is first requested
+     */
+    private AtomicLong groupBytes(final String group) {
+        return groupBytes.computeIfAbsent(group, g -> {
+            final Path path = root.resolve(g);
+            try {
+                return new AtomicLong(Files.isDirectory(path) ? size(path) : 0L);
+            } catch (final IOException | UncheckedIOException e) {
+                LOG.debug("Unable to determine the size of {}", path, e);
+                return new AtomicLong();
+            }
+        });
+    }
+
+    private static Path blockPath(final Path dataset, final long[] gridPosition) {
+        Path block = dataset;
+        for (final long p : gridPosition)
+            block = block.resolve(Long.toString(p));
+        return block;
+    }
+
+    private static long deleteIfExists(final Path file) throws IOException {
+        final long bytes = file.toFile().length();
+        return Files.deleteIfExists(file) ? bytes : 0L;
+    }
+
+    /**
+     * Remove the blocks of {@code level} of a parameter set in the grid range {@code [gridMin, gridMax]}.
+     */
+    public void invalidate(
+            final String parameters,
+            final int level,
+            final long[] gridMin,
+            final long[] gridMax) throws IOException {
+        final String group = hash(parameters);
+        invalidations.computeIfAbsent(group, g -> new AtomicLong()).incrementAndGet();
+        final AtomicLong bytes = groupBytes(group);
+        final Path dataset = root.resolve(group).resolve("s" + level);
+        final long[] gridPosition = gridMin.clone();
+        for (int d = 0; d < gridPosition.length; ) {
+            bytes.addAndGet(-deleteIfExists(blockPath(dataset, gridPosition)));
+            for (d = 0; d < gridPosition.length; ++d) {
+                if (++gridPosition[d] <= gridMax[d])
+                    break;
+                gridPosition[d] = gridMin[d];
+            }
+        }
+    }
+
+    /**
+     * Remove the blocks of all levels of a parameter set, but keep its datasets.
+     */
+    public void invalidateAll(final String parameters) throws IOException {
+        final String group = hash(parameters);
+        invalidations.computeIfAbsent(group, g -> new AtomicLong()).incrementAndGet();
+        final Path groupPath = root.resolve(group);
+        if (!Files.isDirectory(groupPath))
+            return;
+        final AtomicLong bytes = groupBytes(group);
+        try (final Stream<Path> files = Files.walk(groupPath)) {
+            for (final Path file : (Iterable<Path>) files::iterator)
+                if (Files.isRegularFile(file) && !file.getParent().equals(groupPath) && !ATTRIBUTES_FILE.equals(file.getFileName().toString()))
+                    bytes.addAndGet(-deleteIfExists(file));
+        }
+    }
+
+    /**
+     * Protect the parameter set of {@code owner} from eviction. Entries of owners that are garbage collected are
+     * dropped.
+     *
+     * @param parameters current parameters of {@code owner}, {@code null} if it does not use this cache
+     */
+    public synchronized void setInUse(final Object owner, final String parameters) {
+        if (parameters == null)
+            inUse.remove(owner);
+        else
+            inUse.put(owner, hash(parameters));
+    }
+
+    /**
+     * Remove least recently used parameter sets until the container is smaller than {@code maxBytes}. Parameter sets
+     * that are in use are never removed.
+     */
+    public synchronized void evict(final long maxBytes) throws IOException {
+        final List<String> inUse = new ArrayList<>(this.inUse.values());
+
+        final List<String> groups = new ArrayList<>();
+        long totalBytes = 0;
+        for (final String group : n5.list("/")) {
+            groups.add(group);
+            totalBytes += groupBytes(group).get();
+        }
+        groups.sort(Comparator.comparingLong(this::lastAccess));
+
+        for (final String group : groups) {
+            if (totalBytes <= maxBytes)
+                break;
+            if (inUse.contains(group))
+                continue;
+            final long groupBytes = groupBytes(group).get();
+            LOG.debug("Removing parameter set {} ({} bytes) from {}", group, groupBytes, root);
+            n5.remove(group);
+            this.groupBytes.remove(group);
+            totalBytes -= groupBytes;
+        }
+    }
+
+    private long lastAccess(final String group) {
+        try {
+            final Long lastAccess = n5.getAttribute(group, LAST_ACCESS_KEY, Long.class);
+            return lastAccess == null ? 0L : lastAccess;
+        } catch (final IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long size(final Path path) throws IOException {
+        try (final Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void copy(final Object data, final RandomAccessibleInterval<DoubleType> block) {
+        final Cursor<DoubleType> cursor = Views.flatIterable(block).cursor();
+        if (data instanceof float[]) {
+            final float[] floats = (float[]) data;
+            for (int i = 0; cursor.hasNext(); ++i)
+                cursor.next().set(floats[i]);
+        } else {
+            final double[] doubles = (double[]) data;
+            for (int i = 0; cursor.hasNext(); ++i)
+                cursor.next().set(doubles[i]);
+        }
+    }
+
+    private static double[] toDoubles(final RandomAccessibleInterval<DoubleType> block) {
+        final double[] data = new double[(int) Intervals.numElements(block)];
+        final Cursor<DoubleType> cursor = Views.flatIterable(block).cursor();
+        for (int i = 0; cursor.hasNext(); ++i)
+            data[i] = cursor.next().get();
+        return data;
+    }
+
+    private static float[] toFloats(final RandomAccessibleInterval<DoubleType> block) {
+        final float[] data = new float[(int) Intervals.numElements(block)];
+        final Cursor<DoubleType> cursor = Views.flatIterable(block).cursor();
+        for (int i = 0; cursor.hasNext(); ++i)
+            data[i] = (float) cursor.next().get();
+        return data;
+    }
+}
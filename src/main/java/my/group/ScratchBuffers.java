@@ -0,0 +1,112 @@
+package my.group;
+
+import java.util.ArrayDeque;
+
+/**
+ * Per-thread pool of primitive scratch arrays for cell loaders. Arrays are borrowed and must be released on the same
+ * thread, typically in a {@code finally} block. Loads can nest, e.g. when a block triggers the load of a cached
+ * intermediate block on the same thread, so every borrow gets an array that is not in use.
+ * Borrowed arrays may be longer than requested and are not cleared.
+ *
+ * Each borrow gets the shortest free array that is long enough, so that small requests do not take the arrays of large
+ * ones. Each thread retains at most {@link #MAX_RETAINED_BYTES_PROPERTY} bytes, a few blocks worth, and drops the
+ * least recently released arrays beyond that. Arrays larger than a quarter of that are never retained.
+ */
+public class ScratchBuffers {
+
+    public static final String MAX_RETAINED_BYTES_PROPERTY = "my.group.scratch.max-bytes";
+
+    /**
+     * Enough for the per-component rows of a 3D structure tensor of a 64^3 block and the buffers of a nested input
+     * load, outside of the {@link SharedCellCache} budget on every thread that loads blocks.
+     */
+    private static final long MAX_RETAINED_BYTES = Long.getLong(MAX_RETAINED_BYTES_PROPERTY, 64L << 20);
+
+    private static final long MAX_RETAINED_ARRAY_BYTES = MAX_RETAINED_BYTES / 4;
+
+    private static final ThreadLocal<ScratchBuffers> BUFFERS = ThreadLocal.withInitial(ScratchBuffers::new);
+
+    // most recently released first
+    private final ArrayDeque<double[]> doubles = new ArrayDeque<>();
+
+    private final ArrayDeque<int[]> ints = new ArrayDeque<>();
+
+    private long bytes = 0;
+
+    private ScratchBuffers() {
+    }
+
+    public static double[] borrowDoubles(final int minLength) {
+        final ScratchBuffers buffers = BUFFERS.get();
+        double[] best = null;
+        for (final double[] array : buffers.doubles)
+            if (array.length >= minLength && (best == null || array.length < best.length))
+                best = array;
+        if (best == null)
+            return new double[minLength];
+        buffers.doubles.removeFirstOccurrence(best);
+        buffers.bytes -= bytes(best);
+        return best;
+    }
+
+    public static int[] borrowInts(final int minLength) {
+        final ScratchBuffers buffers = BUFFERS.get();
+        int[] best = null;
+        for (final int[] array : buffers.ints)
+            if (array.length >= minLength && (best == null || array.length < best.length))
+                best = array;
+        if (best == null)
+            return new int[minLength];
+        buffers.ints.removeFirstOccurrence(best);
+        buffers.bytes -= bytes(best);
+        return best;
+    }
+
+    public static void release(final double[] array) {
+        final long arrayBytes = bytes(array);
+        if (arrayBytes > MAX_RETAINED_ARRAY_BYTES)
+            return;
+        final ScratchBuffers buffers = BUFFERS.get();
+        buffers.doubles.push(array);
+        buffers.bytes += arrayBytes;
+        buffers.trim();
+    }
+
+    public static void release(final int[] array) {
+        final long arrayBytes = bytes(array);
+        if (arrayBytes > MAX_RETAINED_ARRAY_BYTES)
+            return;
+        final ScratchBuffers buffers = BUFFERS.get();
+        buffers.ints.push(array);
+        buffers.bytes += arrayBytes;
+        buffers.trim();
+    }
+
+    /**
+     * @return bytes of the free arrays of the current thread
+     */
+    static long retainedBytes() {
+        return BUFFERS.get().bytes;
+    }
+
+    /**
+     * Drop the least recently released arrays, the larger of the oldest of each type first, until the retained bytes
+     * fit.
+     */
+    private void trim() {
+        while (bytes > MAX_RETAINED_BYTES) {
+            if (!doubles.isEmpty() && (ints.isEmpty() || bytes(doubles.peekLast()) >= bytes(ints.peekLast())))
+                bytes -= bytes(doubles.pollLast());
+            else
+                bytes -= bytes(ints.pollLast());
+        }
+    }
+
+    private static long bytes(final double[] array) {
+        return (long) array.length * Double.BYTES;
+    }
+
+    private static long bytes(final int[] array) {
+        return (long) array.length * Integer.BYTES;
+    }
+}
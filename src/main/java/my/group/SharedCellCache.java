@@ -0,0 +1,584 @@
+package my.group;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.img.cell.Cell;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Size-bounded cache that replaces {@link net.imglib2.cache.ref.SoftRefLoaderCache} for derived sources.
+ * Eviction is driven by an explicit byte budget instead of GC heuristics. A single {@link #global() global} instance
+ * is shared by all derived sources, so one budget governs all of them.
+ *
+ * Eviction approximates LRU with the CLOCK algorithm: hits only mark their entry as referenced and do not lock the
+ * cache, so that the fetcher threads of all sources can read cells concurrently. Insertions and evictions are
+ * serialized. An eviction gives referenced entries a second chance, i.e. clears the mark and moves them to the end of
+ * the insertion order.
+ *
+ * Each derived source registers a {@link Source} that can additionally cap its own share of the budget and opt in to
+ * weighting by recompute cost: within a small window of unreferenced entries, cheap-to-recompute entries (load time
+ * per byte) of such sources are evicted first, entries of sources without cost weighting are evicted before any of
+ * those.
+ */
+public class SharedCellCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_BYTES_PROPERTY = "my.group.cache.max-bytes";
+
+    private static final int COST_WINDOW = 8;
+
+    /**
+     * Interval at which threads that wait for the load of another thread check whether they can help with it.
+     */
+    private static final long AWAIT_CHECK_MILLIS = 50;
+
+    private static final SharedCellCache GLOBAL = new SharedCellCache(Long.getLong(MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory() / 4));
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * All entries for lock-free lookups, modified only while the cache is locked.
+     */
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * All entries in insertion order, referenced entries move to the end when they get a second chance.
+     */
+    private final LinkedHashMap<Key, Entry> clock = new LinkedHashMap<>();
+
+    private final ConcurrentHashMap<Key, Pending> pending = new ConcurrentHashMap<>();
+
+    private long maxBytes;
+
+    private long bytes = 0;
+
+    public SharedCellCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static SharedCellCache global() {
+        return GLOBAL;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public Source newSource(final String name) {
+        return new Source(name);
+    }
+
+    /**
+     * Notified of the accesses and removals of the entries of a {@link Partition}, e.g. for
+     * {@link DerivedSourceMetrics}. Insertions and removals are notified while the cache is locked, all notifications
+     * must be cheap.
+     */
+    public interface Listener {
+
+        Listener NONE = new Listener() {};
+
+        /**
+         * A value was present, or was being loaded by another thread.
+         */
+        default void hit() {
+        }
+
+        /**
+         * A value is loaded by the current thread.
+         */
+        default void miss() {
+        }
+
+        default void inserted(final long bytes) {
+        }
+
+        /**
+         * @param evicted {@code true} if the entry was removed to stay within a budget, {@code false} if it was
+         *                invalidated
+         */
+        default void removed(final long bytes, final boolean evicted) {
+        }
+
+        /**
+         * @return listener that also runs {@code onInserted} after each insertion, i.e. once the value can be read
+         * from the cache
+         */
+        default Listener andOnInserted(final Runnable onInserted) {
+            final Listener self = this;
+            return new Listener() {
+
+                @Override
+                public void hit() {
+                    self.hit();
+                }
+
+                @Override
+                public void miss() {
+                    self.miss();
+                }
+
+                @Override
+                public void inserted(final long bytes) {
+                    self.inserted(bytes);
+                    onInserted.run();
+                }
+
+                @Override
+                public void removed(final long bytes, final boolean evicted) {
+                    self.removed(bytes, evicted);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Partition of the cache that belongs to a single derived source. The partition can be reconfigured at any time.
+     */
+    public class Source {
+
+        private final String name;
+
+        private long maxBytes = 0;
+
+        private boolean weighByCost = false;
+
+        private long bytes = 0;
+
+        private long generation = 0;
+
+        /**
+         * Entries of this source in insertion order like {@link #clock}, to evict from this source without scanning
+         * all other sources.
+         */
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>();
+
+        private Source(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param maxBytes upper limit for this source in addition to the global budget, {@code 0} for no limit
+         */
+        public void setMaxBytes(final long maxBytes) {
+            synchronized (SharedCellCache.this) {
+                this.maxBytes = maxBytes;
+                evict(this);
+            }
+        }
+
+        public long getMaxBytes() {
+            synchronized (SharedCellCache.this) {
+                return this.maxBytes;
+            }
+        }
+
+        /**
+         * @return bytes that this source can occupy at most, the smaller of its own limit and the global budget
+         */
+        public long getBudget() {
+            synchronized (SharedCellCache.this) {
+                return this.maxBytes > 0 ? Math.min(this.maxBytes, SharedCellCache.this.maxBytes) : SharedCellCache.this.maxBytes;
+            }
+        }
+
+        public void setWeighByCost(final boolean weighByCost) {
+            synchronized (SharedCellCache.this) {
+                this.weighByCost = weighByCost;
+            }
+        }
+
+        public boolean getWeighByCost() {
+            synchronized (SharedCellCache.this) {
+                return this.weighByCost;
+            }
+        }
+
+        public long getBytes() {
+            synchronized (SharedCellCache.this) {
+                return this.bytes;
+            }
+        }
+
+        /**
+         * Remove the entries of all caches of this source.
+         */
+        public void invalidateAll() {
+            synchronized (SharedCellCache.this) {
+                removeIf(entries, k -> true);
+            }
+        }
+
+        /**
+         * Remove the entries of all caches of this source and retire these caches: values that they load from now on
+         * are returned to the caller but not stored anymore.
+         */
+        public void newGeneration() {
+            synchronized (SharedCellCache.this) {
+                ++generation;
+                invalidateAll();
+            }
+        }
+
+        /**
+         * @param bytesPerElement size of a single voxel in the {@link Cell cells} of the new cache, except for
+         *                        {@link ConstantCells constant cells}
+         * @return new {@link LoaderCache} for cells of one image, e.g. one mipmap level
+         */
+        public <A> Partition<Long, Cell<A>> cellCache(final int bytesPerElement) {
+            return cellCache(bytesPerElement, Listener.NONE);
+        }
+
+        /**
+         * @param listener notified of the accesses of the new cache
+         */
+        public <A> Partition<Long, Cell<A>> cellCache(final int bytesPerElement, final Listener listener) {
+            // invalid cells of cancelled blocks are returned to the caller but not stored
+            return new Partition<>(
+                    this,
+                    cell -> ConstantCells.isConstant(cell.getData()) ? ConstantCells.BYTES : cell.size() * bytesPerElement,
+                    cell -> ConstantCells.isValid(cell.getData()),
+                    listener);
+        }
+
+        public <K, V> Partition<K, V> cache(final ToLongFunction<? super V> weigher) {
+            return cache(weigher, Listener.NONE);
+        }
+
+        public <K, V> Partition<K, V> cache(final ToLongFunction<? super V> weigher, final Listener listener) {
+            return new Partition<>(this, weigher, value -> true, listener);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * {@link LoaderCache} view of a {@link SharedCellCache}. Keys are local to the partition.
+     */
+    public class Partition<K, V> implements LoaderCache<K, V> {
+
+        private final long id = NEXT_ID.getAndIncrement();
+
+        private final Source source;
+
+        private final ToLongFunction<? super V> weigher;
+
+        private final Predicate<? super V> retain;
+
+        private final Listener listener;
+
+        private final long generation;
+
+        private Partition(
+                final Source source,
+                final ToLongFunction<? super V> weigher,
+                final Predicate<? super V> retain,
+                final Listener listener) {
+            this.source = source;
+            this.weigher = weigher;
+            this.retain = retain;
+            this.listener = listener;
+            synchronized (SharedCellCache.this) {
+                this.generation = source.generation;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getIfPresent(final K key) {
+            final Entry entry = entries.get(new Key(id, key));
+            if (entry == null)
+                return null;
+            entry.referenced = true;
+            return (V) entry.value;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws ExecutionException {
+            final Key k = new Key(id, key);
+            final V present = getIfPresent(key);
+            if (present != null) {
+                listener.hit();
+                return present;
+            }
+
+            final FutureTask<V> task = new FutureTask<>(() -> loader.get(key));
+            final Pending owned = new Pending(task, Thread.currentThread());
+            final Pending existing = pending.putIfAbsent(k, owned);
+            if (existing != null && existing.owner == Thread.currentThread()) {
+                // the owner helps with other tasks while it joins inside its own load, e.g. in ComputePool#invokeAll,
+                // and one of them needs the same key: waiting for the load would wait for this thread
+                listener.miss();
+                task.run();
+                return await(task, null);
+            }
+            if (existing != null) {
+                listener.hit();
+                final V value = (V) await(existing.task, existing.owner);
+                // the block of the owner was cancelled, this caller may still need it
+                return retain.test(value) ? value : get(key, loader);
+            }
+
+            listener.miss();
+            try {
+                final long start = System.nanoTime();
+                task.run();
+                final V value = await(task, null);
+                if (retain.test(value))
+                    insert(k, value, weigher.applyAsLong(value), System.nanoTime() - start, source, generation, listener);
+                return value;
+            } finally {
+                pending.remove(k, owned);
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            invalidateIf(k -> true);
+        }
+
+        public void invalidate(final K key) {
+            synchronized (SharedCellCache.this) {
+                remove(new Key(id, key), false);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void invalidateIf(final Predicate<K> condition) {
+            synchronized (SharedCellCache.this) {
+                removeIf(source.entries, k -> k.partition == id && condition.test((K) k.key));
+            }
+        }
+    }
+
+    /**
+     * Wait for {@code task} as a {@link ForkJoinPool.ManagedBlocker}, so that the {@link ComputePool} compensates for
+     * its workers that wait for a load of another thread. While waiting, compute the scheduled block that
+     * {@code owner} {@link DerivedSourceScheduler#runAwaitedBy(Thread) waits for} if it is still queued.
+     *
+     * @param owner thread that loads {@code task}, {@code null} if it is the current thread
+     */
+    private static <V> V await(final FutureTask<V> task, final Thread owner) throws ExecutionException {
+        try {
+            if (!task.isDone())
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        if (owner == null) {
+                            getQuietly();
+                            return true;
+                        }
+                        DerivedSourceScheduler.runAwaitedBy(owner);
+                        // the owner may queue its block only after this checked
+                        try {
+                            task.get(AWAIT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (final ExecutionException | CancellationException e) {
+                            // rethrown by the caller
+                        } catch (final TimeoutException e) {
+                            return false;
+                        }
+                        return true;
+                    }
+
+                    private void getQuietly() throws InterruptedException {
+                        try {
+                            task.get();
+                        } catch (final ExecutionException | CancellationException e) {
+                            // rethrown by the caller
+                        }
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return task.isDone();
+                    }
+                });
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+    private synchronized void insert(
+            final Key key,
+            final Object value,
+            final long weight,
+            final long loadNanos,
+            final Source source,
+            final long generation,
+            final Listener listener) {
+        if (generation != source.generation)
+            return;
+        remove(key, false);
+        final Entry entry = new Entry(value, weight, loadNanos, source, listener);
+        entries.put(key, entry);
+        clock.put(key, entry);
+        source.entries.put(key, entry);
+        bytes += weight;
+        source.bytes += weight;
+        listener.inserted(weight);
+        evict(source);
+    }
+
+    private void remove(final Key key, final boolean evicted) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            clock.remove(key);
+            entry.source.entries.remove(key);
+            bytes -= entry.bytes;
+            entry.source.bytes -= entry.bytes;
+            entry.listener.removed(entry.bytes, evicted);
+        }
+    }
+
+    private void removeIf(final Map<Key, Entry> entries, final Predicate<Key> condition) {
+        final List<Key> remove = new ArrayList<>();
+        entries.keySet().forEach(k -> {
+            if (condition.test(k))
+                remove.add(k);
+        });
+        remove.forEach(key -> remove(key, false));
+    }
+
+    private void evict(final Source source) {
+        if (source != null)
+            while (source.maxBytes > 0 && source.bytes > source.maxBytes && evictOne(source))
+                ;
+        while (bytes > maxBytes && evictOne(null))
+            ;
+    }
+
+    private boolean evictOne(final Source restrictTo) {
+        final LinkedHashMap<Key, Entry> order = restrictTo == null ? clock : restrictTo.entries;
+        // the first pass gives referenced entries a second chance, the second pass ignores entries that were
+        // referenced again in the meantime
+        for (int pass = 0; pass < 2; ++pass) {
+            Map.Entry<Key, Entry> candidate = null;
+            double candidateScore = Double.POSITIVE_INFINITY;
+            int visited = 0;
+            final List<Map.Entry<Key, Entry>> secondChance = new ArrayList<>();
+            for (final Iterator<Map.Entry<Key, Entry>> it = order.entrySet().iterator(); it.hasNext() && visited < COST_WINDOW; ) {
+                final Map.Entry<Key, Entry> e = it.next();
+                if (pass == 0 && e.getValue().referenced) {
+                    e.getValue().referenced = false;
+                    secondChance.add(e);
+                    it.remove();
+                    continue;
+                }
+                ++visited;
+                final double score = e.getValue().score();
+                if (score < candidateScore) {
+                    candidate = e;
+                    candidateScore = score;
+                }
+                if (score == 0.0)
+                    break;
+            }
+            secondChance.forEach(e -> order.put(e.getKey(), e.getValue()));
+            if (candidate != null) {
+                LOG.trace("Evicting {} from source {}", candidate.getKey().key, candidate.getValue().source);
+                remove(candidate.getKey(), true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Pending {
+
+        private final FutureTask<?> task;
+
+        private final Thread owner;
+
+        private Pending(final FutureTask<?> task, final Thread owner) {
+            this.task = task;
+            this.owner = owner;
+        }
+    }
+
+    private static class Key {
+
+        private final long partition;
+
+        private final Object key;
+
+        private Key(final long partition, final Object key) {
+            this.partition = partition;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key))
+                return false;
+            final Key that = (Key) other;
+            return this.partition == that.partition && Objects.equals(this.key, that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(partition) + Objects.hashCode(key);
+        }
+    }
+
+    private static class Entry {
+
+        private final Object value;
+
+        private final long bytes;
+
+        private final long loadNanos;
+
+        private final Source source;
+
+        private final Listener listener;
+
+        private volatile boolean referenced = false;
+
+        private Entry(final Object value, final long bytes, final long loadNanos, final Source source, final Listener listener) {
+            this.value = value;
+            this.bytes = bytes;
+            this.loadNanos = loadNanos;
+            this.source = source;
+            this.listener = listener;
+        }
+
+        private double score() {
+            return source.weighByCost ? (double) loadNanos / Math.max(bytes, 1) : 0.0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package my.group;
+
+import org.janelia.saalfeldlab.paintera.data.DataSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Propagates {@link DataSource#invalidateAll()} from inputs to the derived sources that depend on them, e.g. when a
+ * raw source is refreshed after its data changed. Derived sources register with their inputs and announce their own
+ * invalidation, so that invalidation reaches all transitive dependents. Neither inputs nor dependents are kept alive
+ * by the registration.
+ */
+public class SourceInvalidation {
+
+    private static final Map<DataSource<?, ?>, Set<DataSource<?, ?>>> DEPENDENTS = new WeakHashMap<>();
+
+    private SourceInvalidation() {
+    }
+
+    /**
+     * Invalidate {@code dependent} whenever {@code input} is {@link #invalidated(DataSource) invalidated}.
+     */
+    public static void addDependent(final DataSource<?, ?> input, final DataSource<?, ?> dependent) {
+        synchronized (DEPENDENTS) {
+            DEPENDENTS.computeIfAbsent(input, k -> Collections.newSetFromMap(new WeakHashMap<>())).add(dependent);
+        }
+    }
+
+    /**
+     * Announce that all data of {@code input} changed, called from its {@link DataSource#invalidateAll()}.
+     */
+    public static void invalidated(final DataSource<?, ?> input) {
+        final List<DataSource<?, ?>> dependents;
+        synchronized (DEPENDENTS) {
+            final Set<DataSource<?, ?>> registered = DEPENDENTS.get(input);
+            dependents = registered == null ? Collections.emptyList() : new ArrayList<>(registered);
+        }
+        // dependents announce their own invalidation, never while holding the lock
+        dependents.forEach(DataSource::invalidateAll);
+    }
+}
@@ -0,0 +1,274 @@
+package my.group;
+
+import bdv.util.volatiles.VolatileViews;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Sampler;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.readwrite.SamplerConverter;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileDoubleArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.PrimitiveType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.AbstractVolatileRealType;
+import net.imglib2.type.volatiles.VolatileDoubleType;
+
+import java.util.OptionalDouble;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Storage of derived sources. All derived sources are exposed as {@link DoubleType}/{@link VolatileDoubleType} but
+ * may be backed by cells of lower precision to reduce memory and disk footprint. {@link #INT16} stores
+ * {@code round(value / quantizationStep)}, clamped to the range of {@code short}.
+ */
+public enum StorageType {
+
+    FLOAT64(PrimitiveType.DOUBLE, 8),
+    FLOAT32(PrimitiveType.FLOAT, 4),
+    INT16(PrimitiveType.SHORT, 2);
+
+    public static final double DEFAULT_QUANTIZATION_STEP = 1.0 / 16;
+
+    private final PrimitiveType primitiveType;
+
+    private final int bytesPerVoxel;
+
+    StorageType(final PrimitiveType primitiveType, final int bytesPerVoxel) {
+        this.primitiveType = primitiveType;
+        this.bytesPerVoxel = bytesPerVoxel;
+    }
+
+    public static StorageType orDefault(final StorageType storageType) {
+        return storageType == null ? FLOAT64 : storageType;
+    }
+
+    public PrimitiveType getPrimitiveType() {
+        return primitiveType;
+    }
+
+    public int getBytesPerVoxel() {
+        return bytesPerVoxel;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <A> A createVolatileAccess() {
+        switch (this) {
+            case FLOAT32:
+                return (A) new VolatileFloatArray(1, true);
+            case INT16:
+                return (A) new VolatileShortArray(1, true);
+            default:
+                return (A) new VolatileDoubleArray(1, true);
+        }
+    }
+
+    /**
+     * @return {@link CellLoader} that fills cells of this storage type through a {@link DoubleType} view
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends NativeType<T> & RealType<T>> CellLoader<T> cellLoader(final BlockLoader loader, final double quantizationStep) {
+        if (this == FLOAT64)
+            return img -> loader.load((RandomAccessibleInterval<DoubleType>) (RandomAccessibleInterval<?>) img);
+        final SamplerConverter<T, DoubleType> converter = new StoringSamplerConverter<>(this, scale(quantizationStep));
+        return img -> loader.load(Converters.convert((RandomAccessibleInterval<T>) img, converter));
+    }
+
+    /**
+     * Create volatile {@link CachedCellImg} backed by a new partition of {@code cache}.
+     */
+    public CachedCellImg<? extends RealType<?>, ?> createCachedCellImg(
+            final CellGrid grid,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final SharedCellCache.Source cache) {
+        return createCachedCellImg(grid, UniformBlocks.NEVER, loader, quantizationStep, cache);
+    }
+
+    /**
+     * Create volatile {@link CachedCellImg} backed by a new partition of {@code cache}. Cells of blocks that pass
+     * {@code uniform} are stored as {@link ConstantCells constant cells} and {@code loader} is not called for them.
+     */
+    public CachedCellImg<? extends RealType<?>, ?> createCachedCellImg(
+            final CellGrid grid,
+            final UniformBlocks.Check uniform,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final SharedCellCache.Source cache) {
+        return createCachedCellImg(grid, uniform, loader, quantizationStep, cache, SharedCellCache.Listener.NONE);
+    }
+
+    /**
+     * Create volatile {@link CachedCellImg} backed by a new partition of {@code cache} that notifies {@code listener}
+     * of its cell accesses.
+     */
+    public CachedCellImg<? extends RealType<?>, ?> createCachedCellImg(
+            final CellGrid grid,
+            final UniformBlocks.Check uniform,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final SharedCellCache.Source cache,
+            final SharedCellCache.Listener listener) {
+        switch (this) {
+            case FLOAT32:
+                return createCachedCellImg(grid, new FloatType(), uniform, loader, quantizationStep, cache, listener);
+            case INT16:
+                return createCachedCellImg(grid, new ShortType(), uniform, loader, quantizationStep, cache, listener);
+            default:
+                return createCachedCellImg(grid, new DoubleType(), uniform, loader, quantizationStep, cache, listener);
+        }
+    }
+
+    /**
+     * Create {@link DiskCachedCellImg} with volatile accesses as specified by {@code options}.
+     */
+    public DiskCachedCellImg<? extends RealType<?>, ?> createDiskCachedCellImg(
+            final Dimensions dimensions,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final DiskCachedCellImgOptions options) {
+        switch (this) {
+            case FLOAT32:
+                return createDiskCachedCellImg(dimensions, new FloatType(), loader, quantizationStep, options);
+            case INT16:
+                return createDiskCachedCellImg(dimensions, new ShortType(), loader, quantizationStep, options);
+            default:
+                return createDiskCachedCellImg(dimensions, new DoubleType(), loader, quantizationStep, options);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends NativeType<T> & RealType<T>, A> CachedCellImg<T, A> createCachedCellImg(
+            final CellGrid grid,
+            final T type,
+            final UniformBlocks.Check uniform,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final SharedCellCache.Source sharedCache,
+            final SharedCellCache.Listener listener) {
+        final CellLoader<T> cellLoader = cellLoader(loader, quantizationStep);
+        final SharedCellCache.Partition<Long, Cell<A>> cache = sharedCache.cellCache(bytesPerVoxel, listener);
+        final LoadedCellCacheLoader<T, A> denseLoader = LoadedCellCacheLoader.get(grid, cellLoader, type, primitiveType, AccessFlags.setOf(AccessFlags.VOLATILE));
+        final CacheLoader<Long, Cell<A>> cacheLoader = index -> {
+            final int n = grid.numDimensions();
+            final long[] min = new long[n];
+            final long[] max = new long[n];
+            final int[] dimensions = new int[n];
+            grid.getCellDimensions(index, min, dimensions);
+            for (int d = 0; d < n; ++d)
+                max[d] = min[d] + dimensions[d] - 1;
+            try {
+                final OptionalDouble value = uniform == UniformBlocks.NEVER
+                        ? OptionalDouble.empty()
+                        : uniform.value(new FinalInterval(min, max));
+                return value.isPresent()
+                        ? new Cell<>(dimensions, min, (A) ConstantCells.access(this, stored(value.getAsDouble(), scale(quantizationStep))))
+                        : denseLoader.get(index);
+            } catch (final BlockCancelledException | CancellationException e) {
+                // the block went out of view or its generation is outdated, neither is an error: the volatile view
+                // shows the cell as missing until it is requested again
+                return new Cell<>(dimensions, min, (A) ConstantCells.invalid(this));
+            }
+        };
+        return new CachedCellImg<>(grid, type, cache.withLoader(cacheLoader), createVolatileAccess());
+    }
+
+    private <T extends NativeType<T> & RealType<T>> DiskCachedCellImg<T, ?> createDiskCachedCellImg(
+            final Dimensions dimensions,
+            final T type,
+            final BlockLoader loader,
+            final double quantizationStep,
+            final DiskCachedCellImgOptions options) {
+        final DiskCachedCellImgFactory<T> factory = new DiskCachedCellImgFactory<>(type, options);
+        return factory.create(dimensions, cellLoader(loader, quantizationStep), options);
+    }
+
+    /**
+     * @return {@link DoubleType} view of {@code stored}, or {@code stored} itself for {@link #FLOAT64}
+     */
+    @SuppressWarnings("unchecked")
+    public RandomAccessibleInterval<DoubleType> asDouble(
+            final RandomAccessibleInterval<? extends RealType<?>> stored,
+            final double quantizationStep) {
+        if (this == FLOAT64)
+            return (RandomAccessibleInterval<DoubleType>) stored;
+        final double scale = scale(quantizationStep);
+        return Converters.convert(stored, (s, t) -> t.set(s.getRealDouble() * scale), new DoubleType());
+    }
+
+    /**
+     * @param stored cached cell img with volatile accesses
+     * @return {@link VolatileDoubleType} view of {@code stored}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RandomAccessibleInterval<VolatileDoubleType> asVolatileDouble(
+            final RandomAccessibleInterval<? extends RealType<?>> stored,
+            final double quantizationStep) {
+        if (this == FLOAT64)
+            return VolatileViews.wrapAsVolatile((RandomAccessibleInterval<DoubleType>) stored);
+        final double scale = scale(quantizationStep);
+        final RandomAccessibleInterval<AbstractVolatileRealType<?, ?>> volatileStored = (RandomAccessibleInterval) VolatileViews.wrapAsVolatile((RandomAccessibleInterval) stored);
+        return Converters.convert(
+                volatileStored,
+                (s, t) -> {
+                    t.setValid(s.isValid());
+                    t.setReal(s.getRealDouble() * scale);
+                },
+                new VolatileDoubleType());
+    }
+
+    private double scale(final double quantizationStep) {
+        return this == INT16 ? quantizationStep : 1.0;
+    }
+
+    /**
+     * @return {@code value} in the primitive type of this storage type
+     */
+    private double stored(final double value, final double scale) {
+        final double scaled = value / scale;
+        return this == INT16 ? Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.rint(scaled))) : scaled;
+    }
+
+    private static class StoringSamplerConverter<T extends RealType<T>> implements SamplerConverter<T, DoubleType> {
+
+        private final StorageType storageType;
+
+        private final double scale;
+
+        private StoringSamplerConverter(final StorageType storageType, final double scale) {
+            this.storageType = storageType;
+            this.scale = scale;
+        }
+
+        @Override
+        public DoubleType convert(final Sampler<? extends T> sampler) {
+            return new DoubleType(new DoubleAccess() {
+                @Override
+                public double getValue(final int index) {
+                    return sampler.get().getRealDouble() * scale;
+                }
+
+                @Override
+                public void setValue(final int index, final double value) {
+                    sampler.get().setReal(storageType.stored(value, scale));
+                }
+            });
+        }
+    }
+}
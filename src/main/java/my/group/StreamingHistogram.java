@@ -0,0 +1,113 @@
+package my.group;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of a stream of values with a fixed number of equally wide bins, whose range grows with the values. When a
+ * value falls outside of the range, the bin width is doubled and pairs of neighbouring bins are merged until it fits,
+ * so the bins always cover the values seen so far within a factor of two and memory does not depend on the number of
+ * values. Quantiles are interpolated linearly within a bin. Values of {@link #SENTINEL_MAGNITUDE} and beyond mean "no
+ * value" and are ignored, like {@code NaN}.
+ */
+public class StreamingHistogram {
+
+    public static final int NUM_BINS = 1024;
+
+    /**
+     * Finite values of at least this magnitude are sentinels rather than data, e.g. the {@link Double#MAX_VALUE}
+     * background of uniform distance transform blocks and its square root in computed blocks without any seed. A
+     * single one would stretch the bins over hundreds of orders of magnitude.
+     */
+    public static final double SENTINEL_MAGNITUDE = 1e150;
+
+    /**
+     * Width of the bins around the first value relative to its magnitude, the range grows quickly from there.
+     */
+    private static final double INITIAL_RELATIVE_WIDTH = 1e-6;
+
+    private final long[] counts = new long[NUM_BINS];
+
+    private double min = 0.0;
+
+    private double binWidth = 0.0;
+
+    private long total = 0;
+
+    /**
+     * @param weight number of voxels that each of the first {@code n} {@code values} represents
+     */
+    public synchronized void add(final double[] values, final int n, final long weight) {
+        for (int i = 0; i < n; ++i)
+            add(values[i], weight);
+    }
+
+    public synchronized void add(final double value, final long weight) {
+        if (!(Math.abs(value) < SENTINEL_MAGNITUDE) || weight <= 0)
+            return;
+        if (total == 0)
+            initialize(value);
+        while (value < min)
+            growDown();
+        while (value >= min + NUM_BINS * binWidth)
+            growUp();
+        counts[Math.min((int) ((value - min) / binWidth), NUM_BINS - 1)] += weight;
+        total += weight;
+    }
+
+    /**
+     * @param q in {@code [0, 1]}
+     * @return approximate {@code q}-quantile of all values, {@code NaN} if there are none
+     */
+    public synchronized double quantile(final double q) {
+        if (total == 0)
+            return Double.NaN;
+        final double rank = Math.max(0.0, Math.min(1.0, q)) * total;
+        long count = 0;
+        for (int bin = 0; bin < NUM_BINS; ++bin) {
+            if (counts[bin] > 0 && count + counts[bin] >= rank)
+                return min + (bin + (rank - count) / counts[bin]) * binWidth;
+            count += counts[bin];
+        }
+        return min + NUM_BINS * binWidth;
+    }
+
+    /**
+     * @return number of voxels that were added
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(counts, 0L);
+        total = 0;
+    }
+
+    private void initialize(final double value) {
+        Arrays.fill(counts, 0L);
+        binWidth = Math.max(Math.abs(value), 1.0) * INITIAL_RELATIVE_WIDTH;
+        min = value - NUM_BINS / 2 * binWidth;
+    }
+
+    /**
+     * The current bins become the upper half of the range.
+     */
+    private void growDown() {
+        final long[] merged = new long[NUM_BINS];
+        for (int bin = 0; bin < NUM_BINS; ++bin)
+            merged[NUM_BINS / 2 + bin / 2] += counts[bin];
+        System.arraycopy(merged, 0, counts, 0, NUM_BINS);
+        min -= NUM_BINS * binWidth;
+        binWidth *= 2;
+    }
+
+    /**
+     * The current bins become the lower half of the range.
+     */
+    private void growUp() {
+        for (int bin = 0; bin < NUM_BINS / 2; ++bin)
+            counts[bin] = counts[2 * bin] + counts[2 * bin + 1];
+        Arrays.fill(counts, NUM_BINS / 2, NUM_BINS, 0L);
+        binWidth *= 2;
+    }
+}
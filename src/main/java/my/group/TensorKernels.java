@@ -0,0 +1,148 @@
+package my.group;
+
+/**
+ * Second order kernels on flat arrays and closed-form eigenvalues of symmetric tensors. Symmetric tensors are stored
+ * as their upper triangle in row-major order, e.g. {@code xx, xy, xz, yy, yz, zz}. Eigenvalues are sorted in
+ * descending order.
+ */
+public class TensorKernels {
+
+    private TensorKernels() {
+    }
+
+    public static int numTensorComponents(final int n) {
+        return n * (n + 1) / 2;
+    }
+
+    /**
+     * Eigenvalues of the Hessian matrix from central differences in a single sweep over {@code source}.
+     *
+     * @param source block of {@code size} expanded by one voxel in every dimension
+     * @param size   size of the block without the halo
+     * @param target eigenvalues of the block, one channel after another
+     */
+    public static void hessianEigenvalues(
+            final double[] source,
+            final int[] size,
+            final double[] target) {
+        final int n = size.length;
+        final int[] sourceStrides = new int[n];
+        sourceStrides[0] = 1;
+        int numVoxels = size[0];
+        for (int d = 1; d < n; ++d) {
+            sourceStrides[d] = sourceStrides[d - 1] * (size[d - 1] + 2);
+            numVoxels *= size[d];
+        }
+        final int lineLength = size[0];
+        final int[] position = new int[n];
+        final double[] hessian = new double[numTensorComponents(n)];
+        final double[] eigenvalues = new double[n];
+
+        for (int targetIndex = 0; targetIndex < numVoxels; targetIndex += lineLength) {
+            int sourceIndex = 1;
+            for (int d = 1; d < n; ++d)
+                sourceIndex += (position[d] + 1) * sourceStrides[d];
+            for (int x = 0; x < lineLength; ++x, ++sourceIndex) {
+                for (int i = 0, c = 0; i < n; ++i) {
+                    final int si = sourceStrides[i];
+                    hessian[c++] = source[sourceIndex + si] - 2 * source[sourceIndex] + source[sourceIndex - si];
+                    for (int j = i + 1; j < n; ++j) {
+                        final int sj = sourceStrides[j];
+                        hessian[c++] = 0.25 * (
+                                source[sourceIndex + si + sj]
+                                        - source[sourceIndex + si - sj]
+                                        - source[sourceIndex - si + sj]
+                                        + source[sourceIndex - si - sj]);
+                    }
+                }
+                symmetricEigenvalues(hessian, n, eigenvalues);
+                for (int k = 0; k < n; ++k)
+                    target[k * numVoxels + targetIndex + x] = eigenvalues[k];
+            }
+            for (int d = 1; d < n; ++d) {
+                if (++position[d] < size[d])
+                    break;
+                position[d] = 0;
+            }
+        }
+    }
+
+    /**
+     * @param gradients gradient components, one channel after another
+     * @param products  outer products of the gradients, one channel per tensor component
+     */
+    public static void outerProducts(final double[] gradients, final int n, final int numVoxels, final double[][] products) {
+        for (int i = 0, c = 0; i < n; ++i)
+            for (int j = i; j < n; ++j, ++c)
+                for (int v = 0; v < numVoxels; ++v)
+                    products[c][v] = gradients[i * numVoxels + v] * gradients[j * numVoxels + v];
+    }
+
+    /**
+     * @param tensors tensor components, one channel per tensor component
+     * @param target  eigenvalues, one channel after another
+     */
+    public static void eigenvalues(final double[][] tensors, final int n, final int numVoxels, final double[] target) {
+        final double[] tensor = new double[tensors.length];
+        final double[] eigenvalues = new double[n];
+        for (int v = 0; v < numVoxels; ++v) {
+            for (int c = 0; c < tensor.length; ++c)
+                tensor[c] = tensors[c][v];
+            symmetricEigenvalues(tensor, n, eigenvalues);
+            for (int k = 0; k < n; ++k)
+                target[k * numVoxels + v] = eigenvalues[k];
+        }
+    }
+
+    /**
+     * Closed-form eigenvalues of a symmetric {@code n x n} tensor, {@code n <= 3}.
+     */
+    public static void symmetricEigenvalues(final double[] tensor, final int n, final double[] eigenvalues) {
+        switch (n) {
+            case 1:
+                eigenvalues[0] = tensor[0];
+                break;
+            case 2: {
+                final double mean = 0.5 * (tensor[0] + tensor[2]);
+                final double halfDifference = 0.5 * (tensor[0] - tensor[2]);
+                final double radius = Math.sqrt(halfDifference * halfDifference + tensor[1] * tensor[1]);
+                eigenvalues[0] = mean + radius;
+                eigenvalues[1] = mean - radius;
+                break;
+            }
+            case 3:
+                symmetricEigenvalues3(
+                        tensor[0], tensor[1], tensor[2],
+                        tensor[3], tensor[4],
+                        tensor[5],
+                        eigenvalues);
+                break;
+            default:
+                throw new UnsupportedOperationException("Eigenvalues are only supported for up to three dimensions but got " + n);
+        }
+    }
+
+    private static void symmetricEigenvalues3(
+            final double a00, final double a01, final double a02,
+            final double a11, final double a12,
+            final double a22,
+            final double[] eigenvalues) {
+        final double p1 = a01 * a01 + a02 * a02 + a12 * a12;
+        final double q = (a00 + a11 + a22) / 3;
+        final double d00 = a00 - q;
+        final double d11 = a11 - q;
+        final double d22 = a22 - q;
+        final double p2 = d00 * d00 + d11 * d11 + d22 * d22 + 2 * p1;
+        if (p2 == 0.0) {
+            eigenvalues[0] = eigenvalues[1] = eigenvalues[2] = q;
+            return;
+        }
+        final double p = Math.sqrt(p2 / 6);
+        final double b00 = d00 / p, b01 = a01 / p, b02 = a02 / p, b11 = d11 / p, b12 = a12 / p, b22 = d22 / p;
+        final double r = 0.5 * (b00 * (b11 * b22 - b12 * b12) - b01 * (b01 * b22 - b12 * b02) + b02 * (b01 * b12 - b11 * b02));
+        final double phi = r <= -1 ? Math.PI / 3 : r >= 1 ? 0.0 : Math.acos(r) / 3;
+        eigenvalues[0] = q + 2 * p * Math.cos(phi);
+        eigenvalues[2] = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+        eigenvalues[1] = 3 * q - eigenvalues[0] - eigenvalues[2];
+    }
+}
@@ -0,0 +1,507 @@
+package my.group;
+
+import bdv.viewer.Interpolation;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.volatiles.VolatileDoubleType;
+import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.paintera.cache.InvalidateAll;
+import org.janelia.saalfeldlab.paintera.data.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Derived source over the timepoints of its input. The derived data of a timepoint is created on first access from
+ * the same timepoint of the input, see {@link #at(DataSource, int)}. At most {@link #getMaxResident()} timepoints of
+ * each source are resident: the least recently accessed timepoint is dropped from memory, its persisted blocks are
+ * kept.
+ *
+ * Once blocks were requested at more than one timepoint, blocks that are requested at one timepoint are loaded
+ * {@link DerivedSourceScheduler#speculatively speculatively} at the next timepoint in the direction of the last change
+ * and, if there is room for three resident timepoints, at the previous timepoint. Inputs without time never trigger
+ * this, because the viewer only ever requests their first timepoint.
+ */
+public class TimeSeriesSource implements DataSource<DoubleType, VolatileDoubleType> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_RESIDENT_PROPERTY = "my.group.timepoints.max-resident";
+
+    public static final String PREFETCH_PROPERTY = "my.group.timepoints.prefetch";
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Prefetches that are queued and not started, the oldest are dropped beyond {@link #MAX_QUEUED_PREFETCHES}.
+     */
+    private static final Set<Prefetch> PENDING_PREFETCHES = ConcurrentHashMap.newKeySet();
+
+    private static final int MAX_QUEUED_PREFETCHES = 1024;
+
+    /**
+     * Sized to the {@link ComputePool compute pool} on each use, see {@link #speculativePool()}. When the queue is
+     * full, the oldest prefetch is dropped: it was requested for a view that has most likely moved on.
+     */
+    private static final ThreadPoolExecutor SPECULATIVE_POOL = new ThreadPoolExecutor(
+            ComputePool.get().getParallelism(),
+            ComputePool.get().getParallelism(),
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_PREFETCHES),
+            r -> {
+                final Thread t = new Thread(r);
+                t.setName("time-series-prefetch-" + THREAD_COUNT.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            },
+            TimeSeriesSource::dropOldestPrefetch);
+
+    private static volatile int maxResident = Math.max(1, Integer.getInteger(MAX_RESIDENT_PROPERTY, 3));
+
+    private static volatile boolean prefetchEnabled = !"false".equals(System.getProperty(PREFETCH_PROPERTY));
+
+    static {
+        SPECULATIVE_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Notified of the blocks that are requested from the cell imgs of a timepoint, on the requesting thread.
+     */
+    @FunctionalInterface
+    public interface Requests {
+
+        void requested(int level, Interval block);
+
+        /**
+         * @return {@code loader} that notifies this of each block before loading it
+         */
+        default BlockLoader notifying(final int level, final BlockLoader loader) {
+            return block -> {
+                requested(level, block);
+                loader.load(block);
+            };
+        }
+
+    }
+
+    /**
+     * Creates the derived data of a single timepoint. {@link DataSource#invalidateAll()} of the created source is called
+     * when the timepoint is no longer resident and should drop its cells from memory only.
+     */
+    @FunctionalInterface
+    public interface Factory {
+
+        /**
+         * @param requests to be notified of all blocks that are requested from the cell imgs of timepoint {@code t}
+         */
+        DataSource<DoubleType, VolatileDoubleType> create(int t, Requests requests);
+
+    }
+
+    private final DataSource<?, ?> input;
+
+    private final Factory factory;
+
+    private final InvalidateAll invalidateAll;
+
+    private final String name;
+
+    private final LinkedHashMap<Integer, FutureTask<DataSource<DoubleType, VolatileDoubleType>>> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile int current = 0;
+
+    private volatile int direction = 1;
+
+    private volatile boolean multipleTimepoints = false;
+
+    /**
+     * @param input         determines the timepoints that are {@link #isPresent(int) present}, the number of levels and
+     *                      their transforms, without creating any timepoint
+     * @param invalidateAll drops the cells of all timepoints, also from disk
+     */
+    public TimeSeriesSource(
+            final DataSource<?, ?> input,
+            final Factory factory,
+            final InvalidateAll invalidateAll,
+            final String name) {
+        this.input = input;
+        this.factory = factory;
+        this.invalidateAll = invalidateAll;
+        this.name = name;
+    }
+
+    public static int getMaxResident() {
+        return maxResident;
+    }
+
+    /**
+     * Applies to all time series. Timepoints beyond the limit are dropped on their next access.
+     */
+    public static void setMaxResident(final int maxResident) {
+        TimeSeriesSource.maxResident = Math.max(1, maxResident);
+    }
+
+    public static boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    public static void setPrefetchEnabled(final boolean enabled) {
+        prefetchEnabled = enabled;
+    }
+
+    /**
+     * @return {@code source} at timepoint {@code t} for all timepoints: the resident timepoint of a
+     * {@link TimeSeriesSource}, or a view of any other source
+     */
+    @SuppressWarnings("unchecked")
+    public static <D, T> DataSource<D, T> at(final DataSource<D, T> source, final int t) {
+        if (source instanceof TimeSeriesSource)
+            return (DataSource<D, T>) ((TimeSeriesSource) source).getTimepoint(t);
+        return new Timepoint<>(source, t);
+    }
+
+    /**
+     * @return the source that {@link #at(DataSource, int)} viewed at a single timepoint, {@code source} otherwise
+     */
+    public static DataSource<?, ?> unwrap(final DataSource<?, ?> source) {
+        return source instanceof Timepoint ? ((Timepoint<?, ?>) source).source : source;
+    }
+
+    /**
+     * @return derived data of timepoint {@code t}, created if it is not resident
+     */
+    public DataSource<DoubleType, VolatileDoubleType> getTimepoint(final int t) {
+        final FutureTask<DataSource<DoubleType, VolatileDoubleType>> task;
+        final List<FutureTask<DataSource<DoubleType, VolatileDoubleType>>> evicted = new ArrayList<>();
+        final boolean create;
+        synchronized (resident) {
+            final FutureTask<DataSource<DoubleType, VolatileDoubleType>> existing = resident.get(t);
+            create = existing == null;
+            task = create ? new FutureTask<>(() -> factory.create(t, (level, block) -> requested(t, level, block))) : existing;
+            if (create)
+                resident.put(t, task);
+            for (final Iterator<Map.Entry<Integer, FutureTask<DataSource<DoubleType, VolatileDoubleType>>>> it = resident.entrySet().iterator(); it.hasNext() && resident.size() > maxResident; ) {
+                final Map.Entry<Integer, FutureTask<DataSource<DoubleType, VolatileDoubleType>>> eldest = it.next();
+                if (eldest.getKey() != t) {
+                    LOG.debug("Dropping timepoint {} of {} from memory", eldest.getKey(), name);
+                    evicted.add(eldest.getValue());
+                    it.remove();
+                }
+            }
+        }
+        // factories and evicted timepoints may lock their owners, never while holding the lock of this
+        evicted.forEach(TimeSeriesSource::invalidate);
+        if (create) {
+            LOG.debug("Creating timepoint {} of {}", t, name);
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            synchronized (resident) {
+                resident.remove(t, task);
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Drop all resident timepoints, e.g. after the parameters of the factory changed. They are created again on their
+     * next access.
+     */
+    public void clear() {
+        final List<FutureTask<DataSource<DoubleType, VolatileDoubleType>>> evicted;
+        synchronized (resident) {
+            evicted = new ArrayList<>(resident.values());
+            resident.clear();
+        }
+        evicted.forEach(TimeSeriesSource::invalidate);
+    }
+
+    private static void invalidate(final FutureTask<DataSource<DoubleType, VolatileDoubleType>> timepoint) {
+        // timepoints that are still being created are dropped by the cache budget
+        if (!timepoint.isDone())
+            return;
+        try {
+            timepoint.get().invalidateAll();
+        } catch (final InterruptedException | ExecutionException e) {
+            LOG.debug("Timepoint was not created", e);
+        }
+    }
+
+    private void requested(final int t, final int level, final Interval block) {
+        if (DerivedSourceScheduler.isSpeculative())
+            return;
+        final int previous = current;
+        if (t != previous) {
+            direction = t > previous ? 1 : -1;
+            current = t;
+            multipleTimepoints = true;
+        }
+        if (!prefetchEnabled || !multipleTimepoints || maxResident < 2)
+            return;
+        final long[] min = Intervals.minAsLongArray(block);
+        prefetch(t + direction, level, min);
+        if (maxResident >= 3)
+            prefetch(t - direction, level, min);
+    }
+
+    private void prefetch(final int t, final int level, final long[] min) {
+        if (t < 0 || !input.isPresent(t))
+            return;
+        // blocks are requested again while their prefetch is queued, e.g. by other viewers, queue them once
+        final Prefetch prefetch = new Prefetch(t, level, min);
+        if (PENDING_PREFETCHES.add(prefetch))
+            speculativePool().execute(prefetch);
+    }
+
+    private static void dropOldestPrefetch(final Runnable prefetch, final ThreadPoolExecutor pool) {
+        if (pool.isShutdown())
+            return;
+        final Runnable oldest = pool.getQueue().poll();
+        if (oldest != null)
+            PENDING_PREFETCHES.remove(oldest);
+        pool.execute(prefetch);
+    }
+
+    /**
+     * @return pool for speculative loads that follows the parallelism of the {@link ComputePool compute pool}, e.g.
+     * after {@link DerivedSourceScheduler#setNumThreads(int)}
+     */
+    private static ThreadPoolExecutor speculativePool() {
+        final int parallelism = ComputePool.get().getParallelism();
+        synchronized (SPECULATIVE_POOL) {
+            if (parallelism > SPECULATIVE_POOL.getMaximumPoolSize()) {
+                SPECULATIVE_POOL.setMaximumPoolSize(parallelism);
+                SPECULATIVE_POOL.setCorePoolSize(parallelism);
+            } else if (parallelism < SPECULATIVE_POOL.getMaximumPoolSize()) {
+                SPECULATIVE_POOL.setCorePoolSize(parallelism);
+                SPECULATIVE_POOL.setMaximumPoolSize(parallelism);
+            }
+        }
+        return SPECULATIVE_POOL;
+    }
+
+    @Override
+    public RandomAccessibleInterval<DoubleType> getDataSource(final int t, final int level) {
+        return getTimepoint(t).getDataSource(t, level);
+    }
+
+    @Override
+    public RealRandomAccessible<DoubleType> getInterpolatedDataSource(final int t, final int level, final Interpolation interpolation) {
+        return getTimepoint(t).getInterpolatedDataSource(t, level, interpolation);
+    }
+
+    @Override
+    public DoubleType getDataType() {
+        return new DoubleType();
+    }
+
+    @Override
+    public boolean isPresent(final int t) {
+        return input.isPresent(t);
+    }
+
+    @Override
+    public RandomAccessibleInterval<VolatileDoubleType> getSource(final int t, final int level) {
+        return getTimepoint(t).getSource(t, level);
+    }
+
+    @Override
+    public RealRandomAccessible<VolatileDoubleType> getInterpolatedSource(final int t, final int level, final Interpolation method) {
+        return getTimepoint(t).getInterpolatedSource(t, level, method);
+    }
+
+    @Override
+    public void getSourceTransform(final int t, final int level, final AffineTransform3D transform) {
+        // derived timepoints share the transforms of their input
+        input.getSourceTransform(t, level, transform);
+    }
+
+    @Override
+    public VolatileDoubleType getType() {
+        return new VolatileDoubleType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return null;
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return input.getNumMipmapLevels();
+    }
+
+    /**
+     * Drop the cells of all timepoints from memory and disk, and invalidate the sources that
+     * {@link SourceInvalidation depend} on this.
+     */
+    @Override
+    public void invalidateAll() {
+        invalidateAll.invalidateAll();
+        SourceInvalidation.invalidated(this);
+    }
+
+    /**
+     * Single timepoint of a source: all timepoints are that timepoint. Other timepoints than the first one have the
+     * timepoint in their name, so that parameter descriptions of derived data differ between timepoints.
+     */
+    private static class Timepoint<D, T> implements DataSource<D, T> {
+
+        private final DataSource<D, T> source;
+
+        private final int t;
+
+        private Timepoint(final DataSource<D, T> source, final int t) {
+            this.source = source;
+            this.t = t;
+        }
+
+        @Override
+        public RandomAccessibleInterval<D> getDataSource(final int t, final int level) {
+            return source.getDataSource(this.t, level);
+        }
+
+        @Override
+        public RealRandomAccessible<D> getInterpolatedDataSource(final int t, final int level, final Interpolation interpolation) {
+            return source.getInterpolatedDataSource(this.t, level, interpolation);
+        }
+
+        @Override
+        public D getDataType() {
+            return source.getDataType();
+        }
+
+        @Override
+        public boolean isPresent(final int t) {
+            return source.isPresent(this.t);
+        }
+
+        @Override
+        public RandomAccessibleInterval<T> getSource(final int t, final int level) {
+            return source.getSource(this.t, level);
+        }
+
+        @Override
+        public RealRandomAccessible<T> getInterpolatedSource(final int t, final int level, final Interpolation method) {
+            return source.getInterpolatedSource(this.t, level, method);
+        }
+
+        @Override
+        public void getSourceTransform(final int t, final int level, final AffineTransform3D transform) {
+            source.getSourceTransform(this.t, level, transform);
+        }
+
+        @Override
+        public T getType() {
+            return source.getType();
+        }
+
+        @Override
+        public String getName() {
+            return t == 0 ? source.getName() : source.getName() + " t=" + t;
+        }
+
+        @Override
+        public VoxelDimensions getVoxelDimensions() {
+            return source.getVoxelDimensions();
+        }
+
+        @Override
+        public int getNumMipmapLevels() {
+            return source.getNumMipmapLevels();
+        }
+
+        @Override
+        public void invalidateAll() {
+            source.invalidateAll();
+        }
+    }
+
+    /**
+     * Speculative load of the block at {@code min} of {@code level} of timepoint {@code t}, equal to the prefetches of
+     * the same block of the same source.
+     */
+    private class Prefetch implements Runnable {
+
+        private final int t;
+
+        private final int level;
+
+        private final long[] min;
+
+        private Prefetch(final int t, final int level, final long[] min) {
+            this.t = t;
+            this.level = level;
+            this.min = min;
+        }
+
+        @Override
+        public void run() {
+            PENDING_PREFETCHES.remove(this);
+            // the viewer moved on
+            if (Math.abs(t - current) != 1)
+                return;
+            try {
+                DerivedSourceScheduler.speculatively(() -> {
+                    final RandomAccessibleInterval<DoubleType> data = getTimepoint(t).getDataSource(t, level);
+                    final RandomAccess<DoubleType> access = data.randomAccess();
+                    for (int d = 0; d < access.numDimensions(); ++d)
+                        access.setPosition(min[d], d);
+                    if (Intervals.contains(data, access))
+                        access.get().get();
+                    return null;
+                });
+            } catch (final Exception e) {
+                LOG.debug("Unable to prefetch block at {} of level {} of timepoint {} of {}", Arrays.toString(min), level, t, name, e);
+            }
+        }
+
+        private TimeSeriesSource source() {
+            return TimeSeriesSource.this;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Prefetch))
+                return false;
+            final Prefetch that = (Prefetch) other;
+            return source() == that.source() && t == that.t && level == that.level && Arrays.equals(min, that.min);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * System.identityHashCode(source()) + t) + level) + Arrays.hashCode(min);
+        }
+    }
+}
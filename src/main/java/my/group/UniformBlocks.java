@@ -0,0 +1,115 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+import java.util.function.DoubleFunction;
+
+/**
+ * Detection of blocks that are uniform without computing them, e.g. because their input is background. Such blocks
+ * are {@link #fill filled} directly or, in memory caches, stored as {@link ConstantCells constant cells}.
+ */
+public class UniformBlocks {
+
+    /**
+     * Value of a block if it is known to be uniform without computing it.
+     */
+    @FunctionalInterface
+    public interface Check {
+
+        OptionalDouble value(Interval block) throws Exception;
+
+    }
+
+    public static final Check NEVER = block -> OptionalDouble.empty();
+
+    private UniformBlocks() {
+    }
+
+    /**
+     * @return value of all voxels of {@code source} within {@code interval}, if they are all equal
+     */
+    public static OptionalDouble value(final RandomAccessible<? extends RealType<?>> source, final Interval interval) {
+        final Cursor<? extends RealType<?>> cursor = Views.flatIterable(Views.interval(source, interval)).cursor();
+        final double first = cursor.next().getRealDouble();
+        while (cursor.hasNext())
+            if (cursor.next().getRealDouble() != first)
+                return OptionalDouble.empty();
+        return OptionalDouble.of(first);
+    }
+
+    /**
+     * Value of a border extended {@code source} in {@code block} expanded by {@code halo}. Only the leading dimensions
+     * of {@code block} that {@code source} has are considered, e.g. not the channels of a block.
+     *
+     * @return value of all voxels of {@code source} that a block with {@code halo} reads, if they are all equal
+     */
+    public static OptionalDouble borderValue(
+            final RandomAccessibleInterval<? extends RealType<?>> source,
+            final Interval block,
+            final int[] halo) {
+        final int n = source.numDimensions();
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        for (int d = 0; d < n; ++d) {
+            // voxels outside of source repeat the border, which is within the clamped interval
+            final long h = d < halo.length ? halo[d] : 0;
+            min[d] = Math.max(block.min(d) - h, source.min(d));
+            max[d] = Math.min(block.max(d) + h, source.max(d));
+        }
+        return value(source, new FinalInterval(min, max));
+    }
+
+    /**
+     * @param output value of the feature for uniform input, if known, applies to all channels
+     * @return check for a feature of border extended {@code input} that reads {@code halo} around each block
+     */
+    public static Check ofInput(
+            final RandomAccessibleInterval<? extends RealType<?>> input,
+            final int[] halo,
+            final DoubleFunction<OptionalDouble> output) {
+        return block -> {
+            final OptionalDouble value = borderValue(input, block, halo);
+            return value.isPresent() ? output.apply(value.getAsDouble()) : value;
+        };
+    }
+
+    /**
+     * @return {@code loader} that fills blocks that pass {@code check} directly and whose
+     * {@link BlockLoader#uniformValue(Interval) uniform value} is {@code check}
+     */
+    public static BlockLoader shortCircuit(final Check check, final BlockLoader loader) {
+        return new BlockLoader() {
+
+            @Override
+            public void load(final RandomAccessibleInterval<DoubleType> block) throws Exception {
+                final OptionalDouble value = check.value(block);
+                if (value.isPresent())
+                    fill(block, value.getAsDouble());
+                else
+                    loader.load(block);
+            }
+
+            @Override
+            public OptionalDouble uniformValue(final Interval block) throws Exception {
+                return check.value(block);
+            }
+        };
+    }
+
+    public static void fill(final RandomAccessibleInterval<DoubleType> block, final double value) {
+        final double[] storage = CellArrays.storage(block);
+        if (storage == null)
+            Views.iterable(block).forEach(voxel -> voxel.set(value));
+        else
+            Arrays.fill(storage, value);
+    }
+}
@@ -0,0 +1,140 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Approximate distribution of the values of a derived source, per mipmap level and channel. Each block contributes a
+ * sample of its values right after it is loaded, while they are still in the CPU caches, and
+ * {@link UniformBlocks uniform blocks} contribute their value without touching any voxels. The distributions are
+ * {@link StreamingHistogram streaming histograms}, so memory does not depend on the size of the source.
+ *
+ * Blocks that are loaded again after they were evicted contribute again, i.e. regions that are looked at more weigh
+ * more.
+ */
+public class ValueStatistics {
+
+    /**
+     * Voxels of a block that contribute to the histogram, each representing the voxels up to the next sampled one.
+     */
+    private static final int MAX_SAMPLES_PER_BLOCK = 4096;
+
+    /**
+     * Coarse levels cover the whole source first and are preferred for {@link #range} once they have this many voxels.
+     */
+    private static final long MIN_VOXELS = 100000;
+
+    private final Map<Integer, Map<Integer, StreamingHistogram>> levels = new ConcurrentSkipListMap<>();
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param numChannels if positive, the last dimension of the blocks are channels, see
+     *                    {@link FeatureCache#cellDimensions(int)}
+     * @return {@code loader} that adds a sample of each block it loads to the histogram of {@code level}
+     */
+    public BlockLoader observing(final int level, final int numChannels, final BlockLoader loader) {
+        return block -> {
+            loader.load(block);
+            if (numChannels <= 0)
+                sample(histogram(level, 0), block);
+            else
+                for (int channel = 0; channel < numChannels; ++channel)
+                    sample(histogram(level, channel), Views.hyperSlice(block, block.numDimensions() - 1, channel));
+            notifyListeners();
+        };
+    }
+
+    /**
+     * @param numChannels see {@link #observing(int, int, BlockLoader)}, a uniform value applies to all channels
+     * @return {@code uniform} that adds the value of each uniform block to the histogram of {@code level}
+     */
+    public UniformBlocks.Check observingUniform(final int level, final int numChannels, final UniformBlocks.Check uniform) {
+        return block -> {
+            final OptionalDouble value = uniform.value(block);
+            if (value.isPresent()) {
+                final long numVoxels = numChannels <= 0
+                        ? Intervals.numElements(block)
+                        : Intervals.numElements(block) / block.dimension(block.numDimensions() - 1);
+                for (int channel = 0; channel < Math.max(numChannels, 1); ++channel)
+                    histogram(level, channel).add(value.getAsDouble(), numVoxels);
+                notifyListeners();
+            }
+            return value;
+        };
+    }
+
+    /**
+     * @param lower quantile in {@code [0, 1]}
+     * @param upper quantile in {@code [0, 1]}
+     * @return approximate {@code lower} and {@code upper} quantiles of {@code channel} at the coarsest level with
+     * enough voxels, or at the level with the most voxels, {@code null} if nothing was loaded yet
+     */
+    public double[] range(final int channel, final double lower, final double upper) {
+        StreamingHistogram best = null;
+        for (final Map<Integer, StreamingHistogram> channels : levels.values()) {
+            final StreamingHistogram histogram = channels.get(channel);
+            if (histogram == null || histogram.getTotal() == 0)
+                continue;
+            // levels are ordered from fine to coarse
+            if (histogram.getTotal() >= MIN_VOXELS || best == null || best.getTotal() < MIN_VOXELS && histogram.getTotal() > best.getTotal())
+                best = histogram;
+        }
+        return best == null ? null : new double[]{best.quantile(lower), best.quantile(upper)};
+    }
+
+    /**
+     * Forget all values, e.g. when the parameters of the source change.
+     */
+    public void clear() {
+        levels.values().forEach(channels -> channels.values().forEach(StreamingHistogram::clear));
+        notifyListeners();
+    }
+
+    /**
+     * @param listener called on the loading thread whenever values were added, it must be cheap
+     */
+    public void addListener(final Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private StreamingHistogram histogram(final int level, final int channel) {
+        return levels
+                .computeIfAbsent(level, l -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(channel, c -> new StreamingHistogram());
+    }
+
+    private void notifyListeners() {
+        listeners.forEach(Runnable::run);
+    }
+
+    private static void sample(final StreamingHistogram histogram, final RandomAccessibleInterval<DoubleType> block) {
+        final long numVoxels = Intervals.numElements(block);
+        long stride = Math.max(1, numVoxels / MAX_SAMPLES_PER_BLOCK);
+        // odd strides do not keep hitting the same columns of blocks with power of two sizes
+        if (stride > 1)
+            stride |= 1;
+        final double[] samples = new double[(int) ((numVoxels + stride - 1) / stride)];
+        final Cursor<DoubleType> cursor = Views.flatIterable(block).cursor();
+        cursor.fwd();
+        samples[0] = cursor.get().get();
+        for (int i = 1; i < samples.length; ++i) {
+            cursor.jumpFwd(stride);
+            samples[i] = cursor.get().get();
+        }
+        histogram.add(samples, samples.length, stride);
+    }
+}
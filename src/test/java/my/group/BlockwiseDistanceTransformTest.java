@@ -0,0 +1,107 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockwiseDistanceTransformTest {
+
+    private static final long[] DIMENSIONS = {13, 9, 7};
+
+    private static final int[] BLOCK_SIZE = {4, 3, 5};
+
+    private static final double[][] WEIGHTS = {{1.0}, {0.5, 2.0, 1.5}};
+
+    @Test
+    public void testMatchesImglib2() {
+        final ArrayImg<DoubleType, DoubleArray> input = ArrayImgs.doubles(DIMENSIONS);
+        final Random random = new Random(1);
+        input.forEach(v -> v.set(random.nextDouble() * 50.0));
+        for (final DistanceTransform.DISTANCE_TYPE distanceType : DistanceTransform.DISTANCE_TYPE.values())
+            for (final double[] weights : WEIGHTS)
+                for (final int numTasks : new int[]{1, 3})
+                    assertMatchesImglib2(input, distanceType, numTasks, weights);
+    }
+
+    @Test
+    public void testSparseForeground() {
+        // distances are propagated across all blocks from two seeds, the background cost is never the minimum
+        final ArrayImg<DoubleType, DoubleArray> input = ArrayImgs.doubles(DIMENSIONS);
+        input.forEach(v -> v.set(1e6));
+        final RandomAccess<DoubleType> access = input.randomAccess();
+        access.setPosition(new long[]{1, 7, 2});
+        access.get().set(0.0);
+        access.setPosition(new long[]{11, 0, 6});
+        access.get().set(0.0);
+        for (final DistanceTransform.DISTANCE_TYPE distanceType : DistanceTransform.DISTANCE_TYPE.values())
+            for (final double[] weights : WEIGHTS)
+                assertMatchesImglib2(input, distanceType, 1, weights);
+    }
+
+    @Test
+    public void testStageBytes() {
+        Assert.assertEquals(13 * 9 * 7 * Double.BYTES * 2, BlockwiseDistanceTransform.stageBytes(ArrayImgs.doubles(DIMENSIONS)));
+        final SharedCellCache.Source cache = new SharedCellCache(13 * 9 * 7 * Double.BYTES * 2).newSource("test");
+        Assert.assertTrue(BlockwiseDistanceTransform.fitsInCache(ArrayImgs.doubles(DIMENSIONS), cache));
+        cache.setMaxBytes(13 * 9 * 7 * Double.BYTES);
+        Assert.assertFalse(BlockwiseDistanceTransform.fitsInCache(ArrayImgs.doubles(DIMENSIONS), cache));
+    }
+
+    private static void assertMatchesImglib2(
+            final RandomAccessibleInterval<DoubleType> input,
+            final DistanceTransform.DISTANCE_TYPE distanceType,
+            final int numTasks,
+            final double... weights) {
+        final ArrayImg<DoubleType, DoubleArray> expected = ArrayImgs.doubles(DIMENSIONS);
+        DistanceTransform.transform(input, expected, distanceType, weights);
+        if (DistanceTransform.DISTANCE_TYPE.EUCLIDIAN.equals(distanceType))
+            expected.forEach(v -> v.set(Math.sqrt(v.get())));
+
+        // no samples outside of the input, like imglib2
+        final BlockwiseDistanceTransform dt = new BlockwiseDistanceTransform(
+                input,
+                Double.POSITIVE_INFINITY,
+                distanceType,
+                BLOCK_SIZE,
+                new SharedCellCache(1L << 24).newSource("test"),
+                new LoadGeneration().current(),
+                numTasks,
+                weights);
+        final ArrayImg<DoubleType, DoubleArray> actual = ArrayImgs.doubles(DIMENSIONS);
+        final CellGrid grid = new CellGrid(DIMENSIONS, BLOCK_SIZE);
+        final long[] cellMin = new long[DIMENSIONS.length];
+        final int[] cellDimensions = new int[DIMENSIONS.length];
+        for (long index = 0; index < grid.getNumCells(); ++index) {
+            grid.getCellDimensions(index, cellMin, cellDimensions);
+            final long[] cellMax = new long[DIMENSIONS.length];
+            for (int d = 0; d < cellMax.length; ++d)
+                cellMax[d] = cellMin[d] + cellDimensions[d] - 1;
+            dt.transformBlock(Views.interval(actual, cellMin, cellMax));
+        }
+
+        final Cursor<DoubleType> expectedCursor = expected.localizingCursor();
+        final RandomAccess<DoubleType> actualAccess = actual.randomAccess();
+        while (expectedCursor.hasNext()) {
+            expectedCursor.fwd();
+            actualAccess.setPosition(expectedCursor);
+            Assert.assertEquals(
+                    distanceType + " with weights " + Arrays.toString(weights) + " at " + Util.printCoordinates(expectedCursor),
+                    expectedCursor.get().get(),
+                    actualAccess.get().get(),
+                    1e-9 * Math.max(1.0, Math.abs(expectedCursor.get().get())));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package my.group;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class CellCompressionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShuffleFloatRoundTrip() {
+        for (final int n : new int[]{1, 3, 4, 7, 1000}) {
+            final float[] values = floats(n, new Random(n));
+            Assert.assertArrayEquals(bits(values), bits(CellCompression.unshuffle(CellCompression.shuffle(values))));
+        }
+    }
+
+    @Test
+    public void testShuffleDoubleRoundTrip() {
+        for (final int n : new int[]{1, 3, 8, 9, 1000}) {
+            final double[] values = doubles(n, new Random(n));
+            Assert.assertArrayEquals(bits(values), bits(CellCompression.unshuffle(CellCompression.shuffle(values))));
+        }
+    }
+
+    @Test
+    public void testShuffleGroupsBytes() {
+        // the most significant bytes of all values come first
+        final int[] shuffled = CellCompression.shuffle(new float[]{1.0f, 1.0f, 1.0f, 1.0f});
+        Assert.assertEquals(0x3f3f3f3f, shuffled[0]);
+        Assert.assertEquals(0x80808080, shuffled[1]);
+        Assert.assertEquals(0, shuffled[2]);
+        Assert.assertEquals(0, shuffled[3]);
+    }
+
+    @Test
+    public void testEncodeDecodeAllCodecs() {
+        final int[] size = {4, 3, 2};
+        final long[] gridPosition = {1, 2, 3};
+        final double[] doubles = doubles(24, new Random(1));
+        final float[] floats = floats(24, new Random(2));
+        for (final CellCompression compression : CellCompression.values()) {
+            final DataBlock<?> doubleBlock = compression.encode(size, gridPosition, doubles);
+            Assert.assertArrayEquals(gridPosition, doubleBlock.getGridPosition());
+            Assert.assertArrayEquals(bits(doubles), bits((double[]) compression.decode(doubleBlock)));
+            final DataBlock<?> floatBlock = compression.encode(size, gridPosition, floats);
+            Assert.assertArrayEquals(bits(floats), bits((float[]) compression.decode(floatBlock)));
+        }
+    }
+
+    @Test
+    public void testN5RoundTrip() throws IOException {
+        final N5FSWriter n5 = new N5FSWriter(folder.getRoot().getAbsolutePath());
+        final int[] size = {8, 8, 8};
+        final long[] gridPosition = {0, 1, 0};
+        final double[] doubles = doubles(512, new Random(3));
+        final float[] floats = floats(512, new Random(4));
+        for (final CellCompression compression : CellCompression.values()) {
+            if (compression.usesSessionDiskCache())
+                continue;
+            final DatasetAttributes doubleAttributes = new DatasetAttributes(new long[]{8, 16, 8}, size, compression.storedType(DataType.FLOAT64), compression.n5Compression());
+            n5.createDataset(compression + "-float64", doubleAttributes);
+            n5.writeBlock(compression + "-float64", doubleAttributes, compression.encode(size, gridPosition, doubles));
+            Assert.assertArrayEquals(bits(doubles), bits((double[]) compression.decode(n5.readBlock(compression + "-float64", doubleAttributes, gridPosition))));
+
+            final DatasetAttributes floatAttributes = new DatasetAttributes(new long[]{8, 16, 8}, size, compression.storedType(DataType.FLOAT32), compression.n5Compression());
+            n5.createDataset(compression + "-float32", floatAttributes);
+            n5.writeBlock(compression + "-float32", floatAttributes, compression.encode(size, gridPosition, floats));
+            Assert.assertArrayEquals(bits(floats), bits((float[]) compression.decode(n5.readBlock(compression + "-float32", floatAttributes, gridPosition))));
+        }
+    }
+
+    /**
+     * Smooth values with noise and special values, compared bit by bit.
+     */
+    private static double[] doubles(final int n, final Random random) {
+        final double[] values = new double[n];
+        for (int i = 0; i < n; ++i)
+            values[i] = 100 * Math.sin(0.1 * i) + random.nextGaussian();
+        final double[] special = {Double.NaN, -0.0, Double.POSITIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < special.length && i < n; ++i)
+            values[(i * 7) % n] = special[i];
+        return values;
+    }
+
+    private static float[] floats(final int n, final Random random) {
+        final double[] doubles = doubles(n, random);
+        final float[] values = new float[n];
+        for (int i = 0; i < n; ++i)
+            values[i] = (float) doubles[i];
+        return values;
+    }
+
+    private static long[] bits(final double[] values) {
+        final long[] bits = new long[values.length];
+        for (int i = 0; i < values.length; ++i)
+            bits[i] = Double.doubleToRawLongBits(values[i]);
+        return bits;
+    }
+
+    private static int[] bits(final float[] values) {
+        final int[] bits = new int[values.length];
+        for (int i = 0; i < values.length; ++i)
+            bits[i] = Float.floatToRawIntBits(values[i]);
+        return bits;
+    }
+}
@@ -0,0 +1,137 @@
+package my.group;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class DatasetIndexTest {
+
+    private static final long[] DIMENSIONS = {60, 40};
+
+    private static final int[] BLOCK_SIZE = {16, 16};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMultiScaleGroupsWithGaps() throws IOException {
+        final Path root = folder.newFolder("data").toPath();
+        final N5FSWriter n5 = new N5FSWriter(root.resolve("container.n5").toString());
+        // s2 is missing, s3 is not part of the group
+        for (final String level : new String[] {"s0", "s1", "s3"})
+            createDataset(n5, "raw/" + level);
+        // without s0 there is no group
+        for (final String level : new String[] {"s1", "s2"})
+            createDataset(n5, "labels/" + level);
+        createDataset(n5, "mask");
+
+        final List<DatasetIndex.Dataset> datasets = newIndex().scan(root, 2);
+        Assert.assertEquals(
+                Arrays.asList("/labels/s1", "/labels/s2", "/mask", "/raw", "/raw/s3"),
+                datasets.stream().map(DatasetIndex.Dataset::getPath).collect(Collectors.toList()));
+        final DatasetIndex.Dataset raw = find(datasets, "/raw");
+        Assert.assertTrue(raw.isMultiScale());
+        Assert.assertEquals(2, raw.getNumScales());
+        Assert.assertArrayEquals(DIMENSIONS, raw.getDimensions());
+        Assert.assertFalse(find(datasets, "/raw/s3").isMultiScale());
+        Assert.assertFalse(find(datasets, "/labels/s1").isMultiScale());
+        for (final DatasetIndex.Dataset dataset : datasets)
+            Assert.assertEquals(root.resolve("container.n5").toString(), dataset.getContainer());
+    }
+
+    @Test
+    public void testContainerRootWithoutAttributes() throws IOException {
+        final Path root = folder.newFolder("data").toPath();
+        final Path container = root.resolve("container.n5");
+        final N5FSWriter n5 = new N5FSWriter(container.toString());
+        createDataset(n5, "raw/s0");
+        createDataset(n5, "raw/s1");
+        createDataset(n5, "mask");
+        Files.deleteIfExists(container.resolve("attributes.json"));
+
+        // the levels still form a group, in the directory that contains them
+        final List<DatasetIndex.Dataset> datasets = newIndex().scan(root, 2);
+        Assert.assertEquals(2, datasets.size());
+        final DatasetIndex.Dataset mask = find(datasets, "/mask");
+        Assert.assertEquals(container.toString(), mask.getContainer());
+        final DatasetIndex.Dataset raw = find(datasets, "/");
+        Assert.assertEquals(container.resolve("raw").toString(), raw.getContainer());
+        Assert.assertEquals(2, raw.getNumScales());
+        Assert.assertEquals("raw", raw.getName());
+    }
+
+    @Test
+    public void testRescanReusesUnchangedEntries() throws IOException {
+        final Path root = folder.newFolder("data").toPath();
+        final Path container = root.resolve("container.n5");
+        final N5FSWriter n5 = new N5FSWriter(container.toString());
+        createDataset(n5, "raw");
+        final DatasetIndex index = newIndex();
+        Assert.assertArrayEquals(DIMENSIONS, find(index.scan(root, 2), "/raw").getDimensions());
+
+        // change the attributes without changing their size or modification time
+        final Path attributes = container.resolve("raw").resolve("attributes.json");
+        final FileTime modified = Files.getLastModifiedTime(attributes);
+        final String json = new String(Files.readAllBytes(attributes), StandardCharsets.UTF_8);
+        final String changed = json.replace("60", "50");
+        Assert.assertNotEquals(json, changed);
+        Files.write(attributes, changed.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(attributes, modified);
+
+        Assert.assertArrayEquals(DIMENSIONS, find(index.scan(root, 2), "/raw").getDimensions());
+        // also when the index is read from its file
+        Assert.assertArrayEquals(DIMENSIONS, find(newIndex().scan(root, 2), "/raw").getDimensions());
+        Assert.assertArrayEquals(DIMENSIONS, find(newIndex().datasets(root), "/raw").getDimensions());
+
+        Files.setLastModifiedTime(attributes, FileTime.fromMillis(modified.toMillis() + 2000));
+        Assert.assertArrayEquals(new long[] {50, 40}, find(index.scan(root, 2), "/raw").getDimensions());
+    }
+
+    @Test
+    public void testBlocksAreNotListed() throws IOException {
+        final Path root = folder.newFolder("data").toPath();
+        final Path container = root.resolve("container.n5");
+        final N5FSWriter n5 = new N5FSWriter(container.toString());
+        createDataset(n5, "raw");
+        Assert.assertTrue(Files.isRegularFile(container.resolve("raw").resolve("0").resolve("0")));
+        // a dataset inside the block directories is only found if they are listed
+        createDataset(new N5FSWriter(container.resolve("raw").resolve("1").toString()), "hidden");
+
+        final List<DatasetIndex.Dataset> datasets = newIndex().scan(root, 2);
+        Assert.assertEquals(Arrays.asList("/raw"), datasets.stream().map(DatasetIndex.Dataset::getPath).collect(Collectors.toList()));
+    }
+
+    private DatasetIndex newIndex() {
+        return new DatasetIndex(folder.getRoot().toPath().resolve("project").toString());
+    }
+
+    private static void createDataset(final N5FSWriter n5, final String path) throws IOException {
+        final DatasetAttributes attributes = new DatasetAttributes(DIMENSIONS, BLOCK_SIZE, DataType.UINT8, new RawCompression());
+        n5.createDataset(path, attributes);
+        n5.writeBlock(path, attributes, new ByteArrayDataBlock(BLOCK_SIZE, new long[] {0, 0}, new byte[BLOCK_SIZE[0] * BLOCK_SIZE[1]]));
+        n5.writeBlock(path, attributes, new ByteArrayDataBlock(BLOCK_SIZE, new long[] {1, 0}, new byte[BLOCK_SIZE[0] * BLOCK_SIZE[1]]));
+    }
+
+    private static DatasetIndex.Dataset find(final List<DatasetIndex.Dataset> datasets, final String path) {
+        return datasets
+                .stream()
+                .filter(dataset -> dataset.getPath().equals(path))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError(path + " not found in " + datasets));
+    }
+}
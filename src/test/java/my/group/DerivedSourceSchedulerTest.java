@@ -0,0 +1,129 @@
+package my.group;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DerivedSourceSchedulerTest {
+
+    @Test
+    public void testComputePoolFollowsDefaultThreads() {
+        Assert.assertEquals(DerivedSourceScheduler.global().getNumThreads(), ComputePool.get().getParallelism());
+        Assert.assertEquals(ComputePool.DEFAULT_PARALLELISM, ComputePool.get().getParallelism());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockComputesQueuedInputThatItWaitsFor() throws InterruptedException {
+        final DerivedSourceScheduler scheduler = new DerivedSourceScheduler(1);
+        final SharedCellCache cache = new SharedCellCache(1 << 20);
+        final SharedCellCache.Partition<Long, double[]> input = cache.newSource("input").cache(values -> values.length * Double.BYTES);
+        final SharedCellCache.Partition<Long, double[]> output = cache.newSource("output").cache(values -> values.length * Double.BYTES);
+        final CountDownLatch outputStarted = new CountDownLatch(1);
+
+        final BlockLoader inputBlock = scheduler.scheduled(0, new AffineTransform3D(), block -> {});
+        final CacheLoader<Long, double[]> inputLoader = key -> {
+            inputBlock.load(ArrayImgs.doubles(2, 2, 2));
+            return new double[] {key};
+        };
+        // the output block holds the only thread of the scheduler and needs the input block that another fetcher
+        // thread is loading and that is queued behind it
+        final BlockLoader outputBlock = scheduler.scheduled(0, new AffineTransform3D(), block -> {
+            outputStarted.countDown();
+            while (scheduler.getQueueLength() == 0)
+                Thread.sleep(1);
+            input.get(1L, inputLoader);
+        });
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread outputFetcher = new Thread(() -> {
+            try {
+                output.get(0L, key -> {
+                    outputBlock.load(ArrayImgs.doubles(2, 2, 2));
+                    return new double[] {key};
+                });
+            } catch (final ExecutionException e) {
+                failure.set(e);
+            }
+        });
+        final Thread inputFetcher = new Thread(() -> {
+            try {
+                outputStarted.await();
+                input.get(1L, inputLoader);
+            } catch (final InterruptedException | ExecutionException e) {
+                failure.set(e);
+            }
+        });
+        outputFetcher.start();
+        inputFetcher.start();
+        outputFetcher.join();
+        inputFetcher.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertNotNull(input.getIfPresent(1L));
+        Assert.assertNotNull(output.getIfPresent(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelledBlockLeavesCellInvalid() throws InterruptedException {
+        final DerivedSourceScheduler scheduler = new DerivedSourceScheduler(1);
+        final CountDownLatch busyStarted = new CountDownLatch(1);
+        final CountDownLatch busyReleased = new CountDownLatch(1);
+        final BlockLoader busyBlock = scheduler.scheduled(0, new AffineTransform3D(), block -> {
+            busyStarted.countDown();
+            busyReleased.await();
+        });
+        // far from the viewer plane z = 0
+        final AffineTransform3D outOfView = new AffineTransform3D();
+        outOfView.setTranslation(0.0, 0.0, 1000.0);
+        final AtomicBoolean computed = new AtomicBoolean(false);
+        final BlockLoader queuedBlock = scheduler.scheduled(0, outOfView, block -> computed.set(true));
+        final CachedCellImg<?, ?> img = StorageType.FLOAT64.createCachedCellImg(
+                new CellGrid(new long[] {2, 2, 2}, new int[] {2, 2, 2}),
+                queuedBlock,
+                1.0,
+                new SharedCellCache(1 << 20).newSource("queued"));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Cell<?>> cell = new AtomicReference<>();
+        final Thread busyFetcher = new Thread(() -> {
+            try {
+                busyBlock.load(ArrayImgs.doubles(2, 2, 2));
+            } catch (final Exception e) {
+                failure.set(e);
+            }
+        });
+        final Thread queuedFetcher = new Thread(() -> {
+            try {
+                cell.set((Cell<?>) img.getCache().get(0L));
+            } catch (final ExecutionException e) {
+                failure.set(e);
+            }
+        });
+        busyFetcher.start();
+        busyStarted.await();
+        queuedFetcher.start();
+        while (scheduler.getQueueLength() == 0)
+            Thread.sleep(1);
+        scheduler.setViewerTransform(this, new AffineTransform3D());
+        scheduler.viewChanged();
+        queuedFetcher.join();
+        busyReleased.countDown();
+        busyFetcher.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertFalse(computed.get());
+        Assert.assertFalse(ConstantCells.isValid(cell.get().getData()));
+        Assert.assertNull(img.getCache().getIfPresent(0L));
+        Assert.assertEquals(0, scheduler.getQueueLength());
+    }
+}
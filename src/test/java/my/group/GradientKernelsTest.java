@@ -0,0 +1,92 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gradient.PartialDerivative;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link GradientKernels} with {@link PartialDerivative#gradientCentralDifference} on random blocks.
+ */
+public class GradientKernelsTest {
+
+    private static final double EPSILON = 1e-12;
+
+    private static final int[][] SIZES = {
+            {7, 5},
+            {1, 6},
+            {6, 4, 3},
+            {3, 1, 5},
+            {5, 5, 5}
+    };
+
+    @Test
+    public void testGradientAndMagnitude() {
+        final Random random = new Random(42);
+        for (final int[] size : SIZES) {
+            final int n = size.length;
+            final long[] expanded = Arrays.stream(size).mapToLong(s -> s + 2).toArray();
+            final double[] source = random.doubles(Intervals.numElements(expanded), -100.0, 100.0).toArray();
+            final int numVoxels = (int) Intervals.numElements(size);
+            final double[] components = new double[(n + 1) * numVoxels];
+            final double[] magnitude = new double[numVoxels];
+            GradientKernels.gradientAndMagnitude(source, size, components, true);
+            GradientKernels.gradientAndMagnitude(source, size, magnitude, false);
+
+            final RandomAccessibleInterval<DoubleType> input = Views.translate(
+                    ArrayImgs.doubles(source, expanded),
+                    Arrays.stream(size).mapToLong(s -> -1).toArray());
+            final double[] sumOfSquares = new double[numVoxels];
+            for (int d = 0; d < n; ++d) {
+                final double[] expected = new double[numVoxels];
+                PartialDerivative.gradientCentralDifference(input, ArrayImgs.doubles(expected, Arrays.stream(size).asLongStream().toArray()), d);
+                GradientKernels.addSquares(expected, sumOfSquares, numVoxels);
+                Assert.assertArrayEquals(
+                        "size " + Arrays.toString(size) + " dimension " + d,
+                        expected,
+                        Arrays.copyOfRange(components, d * numVoxels, (d + 1) * numVoxels),
+                        EPSILON);
+            }
+            final double[] expectedMagnitude = Arrays.stream(sumOfSquares).map(Math::sqrt).toArray();
+            Assert.assertArrayEquals("size " + Arrays.toString(size), expectedMagnitude, Arrays.copyOfRange(components, n * numVoxels, (n + 1) * numVoxels), EPSILON);
+            Assert.assertArrayEquals("size " + Arrays.toString(size), expectedMagnitude, magnitude, EPSILON);
+        }
+    }
+
+    @Test
+    public void testChannelLoader() throws Exception {
+        final Random random = new Random(42);
+        final long[] dimensions = {9, 7, 4};
+        final ArrayImg<DoubleType, DoubleArray> input = ArrayImgs.doubles(random.doubles(Intervals.numElements(dimensions)).toArray(), dimensions);
+        final long[] min = {6, 0, 2};
+        final long[] blockSize = {3, 5, 2};
+        for (int channel = 0; channel <= dimensions.length; ++channel) {
+            final RandomAccessibleInterval<DoubleType> block = Views.translate(ArrayImgs.doubles(blockSize), min);
+            GradientKernels.channelLoader(InputArrays.reader(input, false), channel).load(block);
+
+            final double[] expected = new double[(int) Intervals.numElements(blockSize)];
+            if (channel < dimensions.length) {
+                PartialDerivative.gradientCentralDifference(Views.extendBorder(input), Views.translate(ArrayImgs.doubles(expected, blockSize), min), channel);
+            } else {
+                for (int d = 0; d < dimensions.length; ++d) {
+                    final double[] component = new double[expected.length];
+                    PartialDerivative.gradientCentralDifference(Views.extendBorder(input), Views.translate(ArrayImgs.doubles(component, blockSize), min), d);
+                    GradientKernels.addSquares(component, expected, expected.length);
+                }
+                Arrays.setAll(expected, i -> Math.sqrt(expected[i]));
+            }
+            final double[] actual = new double[expected.length];
+            GradientKernels.fill(block, block, actual);
+            Assert.assertArrayEquals("channel " + channel, expected, actual, EPSILON);
+        }
+    }
+}
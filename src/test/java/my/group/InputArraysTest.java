@@ -0,0 +1,130 @@
+package my.group;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the typed and generic reads of {@link InputArrays} with reading the extended source voxel by voxel.
+ */
+public class InputArraysTest {
+
+    private static final long[] DIMENSIONS = {10, 7, 5};
+
+    private static final int[] CELL_SIZE = {4, 3, 2};
+
+    private static final double OUT_OF_BOUNDS = -3.5;
+
+    private static final List<Interval> INTERVALS = Arrays.asList(
+            new FinalInterval(DIMENSIONS),
+            new FinalInterval(new long[]{1, 2, 1}, new long[]{6, 4, 3}),
+            new FinalInterval(new long[]{-3, -2, -1}, new long[]{3, 2, 1}),
+            new FinalInterval(new long[]{7, 5, 3}, new long[]{12, 9, 7}),
+            new FinalInterval(new long[]{-5, 1, 1}, new long[]{-1, 3, 2}),
+            new FinalInterval(new long[]{11, -4, 6}, new long[]{14, -1, 8}),
+            new FinalInterval(new long[]{-2, -2, -2}, new long[]{11, 8, 6}));
+
+    private final boolean fastPathEnabled = InputArrays.isFastPathEnabled();
+
+    @After
+    public void restoreFastPath() {
+        InputArrays.setFastPathEnabled(fastPathEnabled);
+    }
+
+    @Test
+    public void testUnsignedByte() {
+        testCellAndArrayImgs(new UnsignedByteType(), 255);
+    }
+
+    @Test
+    public void testUnsignedShort() {
+        testCellAndArrayImgs(new UnsignedShortType(), 65535);
+    }
+
+    @Test
+    public void testFloat() {
+        testCellAndArrayImgs(new FloatType(), 1000);
+    }
+
+    @Test
+    public void testDouble() {
+        testCellAndArrayImgs(new DoubleType(), 1000);
+    }
+
+    @Test
+    public void testGenericType() {
+        testCellAndArrayImgs(new ShortType(), 30000);
+    }
+
+    private static <T extends NativeType<T> & RealType<T>> void testCellAndArrayImgs(final T type, final double maxValue) {
+        test(fill(new CellImgFactory<>(type, CELL_SIZE).create(DIMENSIONS), maxValue));
+        test(fill(new ArrayImgFactory<>(type).create(DIMENSIONS), maxValue));
+    }
+
+    private static void test(final RandomAccessibleInterval<? extends RealType<?>> source) {
+        for (final boolean fastPath : new boolean[]{true, false}) {
+            InputArrays.setFastPathEnabled(fastPath);
+            for (final boolean square : new boolean[]{false, true}) {
+                final InputArrays.Reader reader = InputArrays.reader(source, square);
+                for (final Interval interval : INTERVALS) {
+                    final String message = String.format("fast path %s, square %s, interval %s", fastPath, square, Arrays.toString(Intervals.minAsLongArray(interval)));
+                    final double[] border = new double[(int) Intervals.numElements(interval)];
+                    reader.fillBorder(interval, border);
+                    Assert.assertArrayEquals(message, expected(Views.extendBorder(source), interval, square, Double.NaN), border, 0.0);
+
+                    final double[] value = new double[border.length];
+                    reader.fillValue(interval, OUT_OF_BOUNDS, value);
+                    Assert.assertArrayEquals(message, expected(Views.extendBorder(source), interval, square, OUT_OF_BOUNDS), value, 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param outOfBounds value outside of the source, not squared, {@code NaN} to read {@code extended} there
+     */
+    private static double[] expected(
+            final RandomAccessible<? extends RealType<?>> extended,
+            final Interval interval,
+            final boolean square,
+            final double outOfBounds) {
+        final double[] expected = new double[(int) Intervals.numElements(interval)];
+        final Cursor<? extends RealType<?>> cursor = Views.flatIterable(Views.interval(extended, interval)).localizingCursor();
+        for (int i = 0; cursor.hasNext(); ++i) {
+            final double value = cursor.next().getRealDouble();
+            if (!Double.isNaN(outOfBounds) && !Intervals.contains(new FinalInterval(DIMENSIONS), cursor))
+                expected[i] = outOfBounds;
+            else
+                expected[i] = square ? value * value : value;
+        }
+        return expected;
+    }
+
+    private static <T extends RealType<T>> Img<T> fill(final Img<T> img, final double maxValue) {
+        final Random random = new Random(1);
+        for (final T voxel : img)
+            voxel.setReal(Math.floor(random.nextDouble() * maxValue));
+        return img;
+    }
+}
@@ -0,0 +1,68 @@
+package my.group;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class PersistentBlockCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTrackedBytesMatchDirectory() throws IOException {
+        final PersistentBlockCache cache = PersistentBlockCache.get(folder.getRoot().getAbsolutePath(), "cache.n5");
+        final Path root = folder.getRoot().toPath().resolve("cache.n5");
+        final String parameters = "{\"test\":1}";
+        final AtomicInteger loads = new AtomicInteger();
+        final BlockLoader loader = cache.wrap(parameters, 0, new long[]{8, 8, 8}, new int[]{4, 4, 4}, DataType.FLOAT64, block -> {
+            loads.incrementAndGet();
+            Views.flatIterable(block).forEach(v -> v.set(1.0));
+        });
+
+        loader.load(block(0, 0, 0));
+        loader.load(block(4, 0, 4));
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(size(root.resolve(PersistentBlockCache.hash(parameters))), cache.bytes(parameters));
+
+        // persisted blocks are read back
+        loader.load(block(4, 0, 4));
+        Assert.assertEquals(2, loads.get());
+
+        cache.invalidate(parameters, 0, new long[]{1, 0, 1}, new long[]{1, 0, 1});
+        Assert.assertEquals(size(root.resolve(PersistentBlockCache.hash(parameters))), cache.bytes(parameters));
+        loader.load(block(4, 0, 4));
+        Assert.assertEquals(3, loads.get());
+
+        cache.invalidateAll(parameters);
+        Assert.assertEquals(size(root.resolve(PersistentBlockCache.hash(parameters))), cache.bytes(parameters));
+        loader.load(block(0, 0, 0));
+        Assert.assertEquals(4, loads.get());
+
+        cache.evict(0);
+        Assert.assertFalse(Files.exists(root.resolve(PersistentBlockCache.hash(parameters))));
+        Assert.assertEquals(0, cache.bytes(parameters));
+    }
+
+    private static RandomAccessibleInterval<DoubleType> block(final long... min) {
+        return Views.translate(ArrayImgs.doubles(4, 4, 4), min);
+    }
+
+    private static long size(final Path path) throws IOException {
+        try (final Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package my.group;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScratchBuffersTest {
+
+    @Test
+    public void testBorrowBestFit() {
+        final double[] large = ScratchBuffers.borrowDoubles(1 << 16);
+        final double[] small = ScratchBuffers.borrowDoubles(1 << 8);
+        ScratchBuffers.release(large);
+        ScratchBuffers.release(small);
+
+        // the large array stays available for the next large request
+        Assert.assertSame(small, ScratchBuffers.borrowDoubles(100));
+        Assert.assertSame(large, ScratchBuffers.borrowDoubles(1 << 10));
+        ScratchBuffers.release(small);
+        ScratchBuffers.release(large);
+    }
+
+    @Test
+    public void testRetainedBytesAreBounded() {
+        final long maxBytes = Long.getLong(ScratchBuffers.MAX_RETAINED_BYTES_PROPERTY, 64L << 20);
+        final int length = (int) (maxBytes / 4 / Double.BYTES);
+        final double[][] arrays = new double[8][];
+        for (int i = 0; i < arrays.length; ++i)
+            arrays[i] = ScratchBuffers.borrowDoubles(length);
+        for (final double[] array : arrays)
+            ScratchBuffers.release(array);
+        Assert.assertTrue(ScratchBuffers.retainedBytes() <= maxBytes);
+
+        // the most recently released arrays are retained
+        Assert.assertSame(arrays[arrays.length - 1], ScratchBuffers.borrowDoubles(length));
+        ScratchBuffers.release(arrays[arrays.length - 1]);
+    }
+
+    @Test
+    public void testOversizedArraysAreNotRetained() {
+        final long maxBytes = Long.getLong(ScratchBuffers.MAX_RETAINED_BYTES_PROPERTY, 64L << 20);
+        final long before = ScratchBuffers.retainedBytes();
+        final double[] oversized = ScratchBuffers.borrowDoubles((int) (maxBytes / 4 / Double.BYTES) + 1);
+        ScratchBuffers.release(oversized);
+        Assert.assertEquals(before, ScratchBuffers.retainedBytes());
+        Assert.assertNotSame(oversized, ScratchBuffers.borrowDoubles(oversized.length));
+    }
+}
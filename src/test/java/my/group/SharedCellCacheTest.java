@@ -0,0 +1,200 @@
+package my.group;
+
+import net.imglib2.cache.CacheLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+public class SharedCellCacheTest {
+
+    @Test
+    public void testSourceLimitEvictsOwnEntries() throws ExecutionException {
+        final SharedCellCache cache = new SharedCellCache(1000);
+        final SharedCellCache.Source a = cache.newSource("a");
+        final SharedCellCache.Source b = cache.newSource("b");
+        final SharedCellCache.Partition<Long, byte[]> partitionA = a.cache(value -> value.length);
+        final SharedCellCache.Partition<Long, byte[]> partitionB = b.cache(value -> value.length);
+        a.setMaxBytes(300);
+
+        // the least recently used entries of the cache belong to b
+        for (long key = 0; key < 5; ++key)
+            partitionB.get(key, k -> new byte[100]);
+        for (long key = 0; key < 3; ++key)
+            partitionA.get(key, k -> new byte[100]);
+        partitionA.getIfPresent(0L);
+        partitionA.get(3L, k -> new byte[100]);
+
+        Assert.assertEquals(500, b.getBytes());
+        Assert.assertEquals(300, a.getBytes());
+        Assert.assertNotNull(partitionA.getIfPresent(0L));
+        Assert.assertNull(partitionA.getIfPresent(1L));
+        Assert.assertNotNull(partitionA.getIfPresent(3L));
+    }
+
+    @Test
+    public void testGlobalBudgetEvictsLeastRecentlyUsed() throws ExecutionException {
+        final SharedCellCache cache = new SharedCellCache(300);
+        final SharedCellCache.Partition<Long, byte[]> a = cache.newSource("a").cache(value -> value.length);
+        final SharedCellCache.Partition<Long, byte[]> b = cache.newSource("b").cache(value -> value.length);
+        a.get(0L, k -> new byte[100]);
+        b.get(0L, k -> new byte[100]);
+        a.get(1L, k -> new byte[100]);
+        b.getIfPresent(0L);
+        a.get(2L, k -> new byte[100]);
+
+        Assert.assertEquals(300, cache.getBytes());
+        Assert.assertNull(a.getIfPresent(0L));
+        Assert.assertNotNull(b.getIfPresent(0L));
+    }
+
+    @Test
+    public void testReferencedEntriesGetSecondChance() throws ExecutionException {
+        final SharedCellCache cache = new SharedCellCache(300);
+        final SharedCellCache.Partition<Long, byte[]> partition = cache.newSource("a").cache(value -> value.length);
+        for (long key = 0; key < 3; ++key)
+            partition.get(key, k -> new byte[100]);
+        partition.getIfPresent(0L);
+        partition.get(3L, k -> new byte[100]);
+        // 0 moved behind 3, 2 is the oldest entry now
+        partition.get(4L, k -> new byte[100]);
+
+        Assert.assertEquals(300, cache.getBytes());
+        Assert.assertNull(partition.getIfPresent(1L));
+        Assert.assertNull(partition.getIfPresent(2L));
+        Assert.assertNotNull(partition.getIfPresent(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void testHitsDoNotLockCache() throws ExecutionException, InterruptedException {
+        final SharedCellCache cache = new SharedCellCache(1 << 20);
+        final SharedCellCache.Partition<Long, byte[]> partition = cache.newSource("a").cache(value -> value.length);
+        partition.get(0L, k -> new byte[100]);
+
+        // e.g. a long eviction or invalidation on another thread
+        final AtomicInteger hits = new AtomicInteger();
+        final List<Thread> readers = IntStream
+                .range(0, 4)
+                .mapToObj(i -> new Thread(() -> {
+                    for (int j = 0; j < 1000; ++j)
+                        if (partition.getIfPresent(0L) != null)
+                            hits.incrementAndGet();
+                }))
+                .collect(Collectors.toList());
+        synchronized (cache) {
+            readers.forEach(Thread::start);
+            for (final Thread reader : readers)
+                reader.join();
+        }
+
+        Assert.assertEquals(4000, hits.get());
+    }
+
+    @Test
+    public void testInvalidateSource() throws ExecutionException {
+        final SharedCellCache cache = new SharedCellCache(1000);
+        final SharedCellCache.Source a = cache.newSource("a");
+        final SharedCellCache.Partition<Long, byte[]> partitionA = a.cache(value -> value.length);
+        final SharedCellCache.Partition<Long, byte[]> partitionB = cache.newSource("b").cache(value -> value.length);
+        partitionA.get(0L, k -> new byte[100]);
+        partitionB.get(0L, k -> new byte[100]);
+        a.invalidateAll();
+
+        Assert.assertEquals(0, a.getBytes());
+        Assert.assertEquals(100, cache.getBytes());
+        Assert.assertNull(partitionA.getIfPresent(0L));
+        Assert.assertNotNull(partitionB.getIfPresent(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void testOwnerHelpsWithLoadOfSameKey() {
+        final SharedCellCache cache = new SharedCellCache(1 << 20);
+        final SharedCellCache.Partition<Long, double[]> inner = cache.newSource("inner").cache(values -> values.length * Double.BYTES);
+        final SharedCellCache.Partition<Long, double[]> outer = cache.newSource("outer").cache(values -> values.length * Double.BYTES);
+        final Runnable[] queued = new Runnable[1];
+
+        // a fork-join worker that joins inside the inner load runs queued tasks, e.g. another outer block that needs
+        // the inner block that this worker is loading
+        final CacheLoader<Long, double[]> innerLoader = key -> {
+            final Runnable task = queued[0];
+            queued[0] = null;
+            if (task != null)
+                task.run();
+            return new double[] {1.0};
+        };
+        queued[0] = () -> get(outer, 1L, k -> new double[] {get(inner, 0L, innerLoader)[0] + k});
+        final double[] values = get(outer, 0L, k -> new double[] {get(inner, 0L, innerLoader)[0] + k});
+
+        Assert.assertEquals(1.0, values[0], 0.0);
+        Assert.assertEquals(2.0, outer.getIfPresent(1L)[0], 0.0);
+        Assert.assertNotNull(inner.getIfPresent(0L));
+    }
+
+    @Test(timeout = 60000)
+    public void testNestedLoadsOfOneKey() {
+        final SharedCellCache cache = new SharedCellCache(1 << 20);
+        final SharedCellCache.Partition<Long, double[]> inner = cache.newSource("inner").cache(values -> values.length * Double.BYTES);
+        final SharedCellCache.Partition<Long, double[]> outer = cache.newSource("outer").cache(values -> values.length * Double.BYTES);
+        final AtomicInteger innerLoads = new AtomicInteger();
+
+        // the single inner block is loaded with intra-block parallelism, its owner helps with other outer blocks that
+        // need the same inner block while it joins
+        final CacheLoader<Long, double[]> innerLoader = key -> {
+            innerLoads.incrementAndGet();
+            final double[] values = new double[64];
+            ComputePool.invokeAll(IntStream
+                    .range(0, values.length)
+                    .mapToObj(i -> (Runnable) () -> {
+                        sleep(1);
+                        values[i] = i;
+                    })
+                    .collect(Collectors.toList()));
+            return values;
+        };
+        final List<Runnable> outerLoads = LongStream
+                .range(0, 4 * ComputePool.PARALLELISM)
+                .mapToObj(key -> (Runnable) () -> {
+                    final double[] values = get(outer, key, k -> {
+                        final double[] sums = new double[8];
+                        ComputePool.invokeAll(IntStream
+                                .range(0, sums.length)
+                                .mapToObj(i -> (Runnable) () -> sums[i] = get(inner, 0L, innerLoader)[i] + k)
+                                .collect(Collectors.toList()));
+                        return sums;
+                    });
+                    Assert.assertEquals(key + 7, values[7], 0.0);
+                })
+                .collect(Collectors.toList());
+        // several workers even on small machines
+        ComputePool.setParallelism(4);
+        try {
+            ComputePool.invokeAll(outerLoads);
+        } finally {
+            ComputePool.setParallelism(ComputePool.DEFAULT_PARALLELISM);
+        }
+
+        Assert.assertNotNull(inner.getIfPresent(0L));
+        Assert.assertTrue(innerLoads.get() >= 1);
+    }
+
+    private static <V> V get(final SharedCellCache.Partition<Long, V> partition, final long key, final CacheLoader<Long, V> loader) {
+        try {
+            return partition.get(key, loader);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
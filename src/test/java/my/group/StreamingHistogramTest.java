@@ -0,0 +1,124 @@
+package my.group;
+
+import net.imglib2.FinalInterval;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+import java.util.Random;
+
+public class StreamingHistogramTest {
+
+    private static final double[] QUANTILES = {0.0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1.0};
+
+    @Test
+    public void testQuantilesAfterGrowingInBothDirections() {
+        final Random random = new Random(42);
+        final StreamingHistogram histogram = new StreamingHistogram();
+        // the first value fixes a tiny range, every later magnitude grows it up or down many times
+        final double[] values = new double[10000];
+        values[0] = 0.5;
+        for (int i = 1; i < values.length; ++i)
+            values[i] = (random.nextBoolean() ? 1 : -1) * Math.pow(10, random.nextDouble() * 3);
+        for (final double value : values)
+            histogram.add(value, 1);
+
+        Assert.assertEquals(values.length, histogram.getTotal());
+        assertQuantiles(values, histogram);
+    }
+
+    @Test
+    public void testQuantilesAfterAlternatingGrowth() {
+        final StreamingHistogram histogram = new StreamingHistogram();
+        final double[] values = new double[200];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = (i % 2 == 0 ? 1 : -1) * Math.pow(1.1, i);
+        for (final double value : values)
+            histogram.add(value, 1);
+
+        Assert.assertEquals(values.length, histogram.getTotal());
+        assertQuantiles(values, histogram);
+    }
+
+    @Test
+    public void testIgnoresNonFiniteAndSentinelValues() {
+        final double[] ignored = {
+                Double.NaN,
+                Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY,
+                Double.MAX_VALUE,
+                -Double.MAX_VALUE,
+                Math.sqrt(Double.MAX_VALUE),
+                -Math.sqrt(Double.MAX_VALUE)};
+        final StreamingHistogram histogram = new StreamingHistogram();
+        histogram.add(ignored, ignored.length, 1);
+        Assert.assertEquals(0, histogram.getTotal());
+        Assert.assertTrue(Double.isNaN(histogram.quantile(0.5)));
+
+        final double[] values = new double[100];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i;
+            histogram.add(i, 1);
+            histogram.add(ignored[i % ignored.length], 1);
+        }
+        Assert.assertEquals(values.length, histogram.getTotal());
+        assertQuantiles(values, histogram);
+    }
+
+    @Test
+    public void testWeightedAddsEqualRepeatedAdds() {
+        final Random random = new Random(42);
+        final StreamingHistogram weighted = new StreamingHistogram();
+        final StreamingHistogram repeated = new StreamingHistogram();
+        for (int i = 0; i < 100; ++i) {
+            final double value = random.nextGaussian() * 10;
+            final int weight = 1 + random.nextInt(20);
+            weighted.add(value, weight);
+            for (int k = 0; k < weight; ++k)
+                repeated.add(value, 1);
+        }
+        weighted.add(1.0, 0);
+
+        Assert.assertEquals(repeated.getTotal(), weighted.getTotal());
+        for (final double q : QUANTILES)
+            Assert.assertEquals(repeated.quantile(q), weighted.quantile(q), 0.0);
+    }
+
+    @Test
+    public void testConstantCellsAreWeightedByTheirVoxels() throws Exception {
+        final ValueStatistics statistics = new ValueStatistics();
+        final UniformBlocks.Check uniform = statistics.observingUniform(0, 0, block -> OptionalDouble.of(block.min(0) == 0 ? 0.0 : 10.0));
+        // one uniform block of 0 outweighs three uniform blocks of 10 that are a quarter of its size
+        uniform.value(new FinalInterval(16, 16, 16));
+        for (int i = 1; i <= 3; ++i)
+            uniform.value(new FinalInterval(new long[] {16 * i, 0, 0}, new long[] {16 * i + 7, 15, 7}));
+
+        final double[] median = statistics.range(0, 0.5, 0.5);
+        Assert.assertNotNull(median);
+        Assert.assertEquals(0.0, median[0], 1e-3);
+
+        // a uniform value applies to all channels with the voxels of a single channel
+        final ValueStatistics channels = new ValueStatistics();
+        channels.observingUniform(0, 2, block -> OptionalDouble.of(5.0)).value(new FinalInterval(4, 4, 4, 2));
+        Assert.assertArrayEquals(new double[] {5.0, 5.0}, channels.range(1, 0.0, 1.0), 1e-3);
+    }
+
+    /**
+     * Quantiles lie between the values of neighbouring ranks, within the width of a bin, i.e. within a small fraction
+     * of the range of the values.
+     */
+    private static void assertQuantiles(final double[] values, final StreamingHistogram histogram) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final int n = sorted.length;
+        // the bins cover the values within a factor of two on each side
+        final double tolerance = 4 * (sorted[n - 1] - sorted[0]) / StreamingHistogram.NUM_BINS;
+        for (final double q : QUANTILES) {
+            final double quantile = histogram.quantile(q);
+            final double lower = sorted[Math.max(0, (int) Math.floor(q * n) - 1)] - tolerance;
+            final double upper = sorted[Math.min(n - 1, (int) Math.ceil(q * n))] + tolerance;
+            Assert.assertTrue("quantile " + q + " is " + quantile + ", expected [" + lower + ", " + upper + "]", quantile >= lower && quantile <= upper);
+        }
+    }
+}
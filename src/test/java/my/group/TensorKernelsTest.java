@@ -0,0 +1,196 @@
+package my.group;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the closed-form eigenvalues of {@link TensorKernels} with a Jacobi eigenvalue iteration, and
+ * {@link TensorKernels#hessianEigenvalues} with Hessians from finite differences voxel by voxel.
+ */
+public class TensorKernelsTest {
+
+    private static final double EPSILON = 1e-9;
+
+    private static final int[][] SIZES = {
+            {7, 5},
+            {1, 6},
+            {6, 4, 3},
+            {3, 1, 5},
+            {5, 5, 5}
+    };
+
+    @Test
+    public void testRandomTensors() {
+        final Random random = new Random(42);
+        for (int n = 1; n <= 3; ++n) {
+            for (int i = 0; i < 1000; ++i) {
+                final double[] tensor = random.doubles(TensorKernels.numTensorComponents(n), -10.0, 10.0).toArray();
+                assertEigenvalues(tensor, n);
+            }
+        }
+    }
+
+    @Test
+    public void testDegenerateTensors() {
+        final Random random = new Random(42);
+        // p2 == 0
+        assertEigenvalues(new double[] {2.5, 0.0, 0.0, 2.5, 0.0, 2.5}, 3);
+        assertEigenvalues(new double[] {0.0, 0.0, 0.0, 0.0, 0.0, 0.0}, 3);
+        assertEigenvalues(new double[] {-1.0, 0.0, -1.0}, 2);
+        // r == 1 and r == -1: two equal eigenvalues below or above the third one
+        assertEigenvalues(new double[] {3.0, 0.0, 0.0, 1.0, 0.0, 1.0}, 3);
+        assertEigenvalues(new double[] {1.0, 0.0, 0.0, 3.0, 0.0, 3.0}, 3);
+        // rounding may push r slightly beyond [-1, 1] for rotated tensors
+        for (int i = 0; i < 1000; ++i) {
+            final double[][] rotation = randomRotation(random);
+            final double equal = random.nextDouble() * 10.0;
+            final double other = equal + (random.nextBoolean() ? 1.0 : -1.0) * random.nextDouble() * 10.0;
+            assertEigenvalues(rotated(rotation, new double[] {other, equal, equal}), 3);
+            assertEigenvalues(rotated(rotation, new double[] {equal, equal, equal}), 3);
+        }
+    }
+
+    @Test
+    public void testHessianEigenvalues() {
+        final Random random = new Random(42);
+        for (final int[] size : SIZES) {
+            final int n = size.length;
+            final int[] expanded = Arrays.stream(size).map(s -> s + 2).toArray();
+            final double[] source = random.doubles(Arrays.stream(expanded).reduce(1, (a, b) -> a * b), -100.0, 100.0).toArray();
+            final int numVoxels = Arrays.stream(size).reduce(1, (a, b) -> a * b);
+            final double[] target = new double[n * numVoxels];
+            TensorKernels.hessianEigenvalues(source, size, target);
+
+            final int[] position = new int[n];
+            for (int v = 0; v < numVoxels; ++v) {
+                final double[] hessian = new double[TensorKernels.numTensorComponents(n)];
+                for (int i = 0, c = 0; i < n; ++i) {
+                    for (int j = i; j < n; ++j, ++c) {
+                        hessian[c] = i == j
+                                ? at(source, expanded, position, i, 1, i, 0) - 2 * at(source, expanded, position, i, 0, i, 0) + at(source, expanded, position, i, -1, i, 0)
+                                : 0.25 * (at(source, expanded, position, i, 1, j, 1)
+                                - at(source, expanded, position, i, 1, j, -1)
+                                - at(source, expanded, position, i, -1, j, 1)
+                                + at(source, expanded, position, i, -1, j, -1));
+                    }
+                }
+                final double[] expected = referenceEigenvalues(hessian, n);
+                for (int k = 0; k < n; ++k)
+                    Assert.assertEquals(
+                            "size " + Arrays.toString(size) + " voxel " + Arrays.toString(position),
+                            expected[k],
+                            target[k * numVoxels + v],
+                            EPSILON * (1.0 + Math.abs(expected[0]) + Math.abs(expected[n - 1])));
+                for (int d = 0; d < n; ++d) {
+                    if (++position[d] < size[d])
+                        break;
+                    position[d] = 0;
+                }
+            }
+        }
+    }
+
+    private static void assertEigenvalues(final double[] tensor, final int n) {
+        final double[] eigenvalues = new double[n];
+        TensorKernels.symmetricEigenvalues(tensor, n, eigenvalues);
+        final double[] expected = referenceEigenvalues(tensor, n);
+        final double scale = 1.0 + Math.abs(expected[0]) + Math.abs(expected[n - 1]);
+        for (int k = 0; k < n; ++k) {
+            Assert.assertFalse(Arrays.toString(tensor), Double.isNaN(eigenvalues[k]));
+            Assert.assertEquals(Arrays.toString(tensor), expected[k], eigenvalues[k], 1e-7 * scale);
+        }
+    }
+
+    /**
+     * Source value at {@code position} of the block, shifted by {@code da} along {@code a} and by {@code db} along
+     * {@code b}.
+     */
+    private static double at(
+            final double[] source,
+            final int[] expanded,
+            final int[] position,
+            final int a,
+            final int da,
+            final int b,
+            final int db) {
+        int index = 0;
+        for (int d = expanded.length - 1; d >= 0; --d) {
+            final int offset = (d == a ? da : 0) + (d == b ? db : 0);
+            index = index * expanded[d] + position[d] + 1 + offset;
+        }
+        return source[index];
+    }
+
+    /**
+     * Cyclic Jacobi eigenvalue iteration, sorted in descending order.
+     */
+    private static double[] referenceEigenvalues(final double[] tensor, final int n) {
+        final double[][] a = new double[n][n];
+        for (int i = 0, c = 0; i < n; ++i)
+            for (int j = i; j < n; ++j, ++c)
+                a[i][j] = a[j][i] = tensor[c];
+        for (int sweep = 0; sweep < 100; ++sweep) {
+            double offDiagonal = 0.0;
+            for (int p = 0; p < n; ++p)
+                for (int q = p + 1; q < n; ++q)
+                    offDiagonal += a[p][q] * a[p][q];
+            if (offDiagonal == 0.0)
+                break;
+            for (int p = 0; p < n; ++p) {
+                for (int q = p + 1; q < n; ++q) {
+                    if (a[p][q] == 0.0)
+                        continue;
+                    final double theta = 0.5 * Math.atan2(2 * a[p][q], a[q][q] - a[p][p]);
+                    final double c = Math.cos(theta);
+                    final double s = Math.sin(theta);
+                    for (int k = 0; k < n; ++k) {
+                        final double akp = a[k][p];
+                        final double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; ++k) {
+                        final double apk = a[p][k];
+                        final double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                }
+            }
+        }
+        final double[] eigenvalues = new double[n];
+        for (int k = 0; k < n; ++k)
+            eigenvalues[k] = -a[k][k];
+        Arrays.sort(eigenvalues);
+        for (int k = 0; k < n; ++k)
+            eigenvalues[k] = -eigenvalues[k];
+        return eigenvalues;
+    }
+
+    private static double[][] randomRotation(final Random random) {
+        final double[] axis = random.doubles(3, -1.0, 1.0).toArray();
+        final double norm = Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+        final double x = axis[0] / norm, y = axis[1] / norm, z = axis[2] / norm;
+        final double angle = random.nextDouble() * 2 * Math.PI;
+        final double c = Math.cos(angle), s = Math.sin(angle), t = 1 - c;
+        return new double[][] {
+                {t * x * x + c, t * x * y - s * z, t * x * z + s * y},
+                {t * x * y + s * z, t * y * y + c, t * y * z - s * x},
+                {t * x * z - s * y, t * y * z + s * x, t * z * z + c}};
+    }
+
+    /**
+     * @return upper triangle of {@code rotation * diag(eigenvalues) * rotation^T}
+     */
+    private static double[] rotated(final double[][] rotation, final double[] eigenvalues) {
+        final double[] tensor = new double[6];
+        for (int i = 0, c = 0; i < 3; ++i)
+            for (int j = i; j < 3; ++j, ++c)
+                for (int k = 0; k < 3; ++k)
+                    tensor[c] += rotation[i][k] * eigenvalues[k] * rotation[j][k];
+        return tensor;
+    }
+}